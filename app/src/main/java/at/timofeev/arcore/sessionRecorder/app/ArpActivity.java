@@ -16,6 +16,7 @@
 
 package at.timofeev.arcore.sessionRecorder.app;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.ImageFormat;
 import android.hardware.camera2.CameraAccessException;
@@ -31,6 +32,7 @@ import android.os.Bundle;
 import android.os.Environment;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.util.Size;
 import android.view.MotionEvent;
 import android.view.View;
 import android.widget.Button;
@@ -40,7 +42,6 @@ import android.widget.Toast;
 import com.google.ar.core.Anchor;
 import com.google.ar.core.ArCoreApk;
 import com.google.ar.core.Camera;
-import com.google.ar.core.CameraIntrinsics;
 import com.google.ar.core.Frame;
 import com.google.ar.core.HitResult;
 import com.google.ar.core.ImageMetadata;
@@ -54,26 +55,42 @@ import com.google.ar.core.Trackable;
 import com.google.ar.core.TrackingState;
 import at.timofeev.arcore.sessionRecorder.helpers.CameraPermissionHelper;
 import at.timofeev.arcore.sessionRecorder.helpers.DisplayRotationHelper;
+import at.timofeev.arcore.sessionRecorder.helpers.EncoderProfile;
 import at.timofeev.arcore.sessionRecorder.helpers.FullScreenHelper;
+import at.timofeev.arcore.sessionRecorder.helpers.ImageSequence;
+import at.timofeev.arcore.sessionRecorder.helpers.PreRoll;
+import at.timofeev.arcore.sessionRecorder.helpers.RecordingSegments;
+import at.timofeev.arcore.sessionRecorder.helpers.RecordingVerifier;
 import at.timofeev.arcore.sessionRecorder.helpers.SnackbarHelper;
 import at.timofeev.arcore.sessionRecorder.helpers.TapHelper;
+import at.timofeev.arcore.sessionRecorder.helpers.TextureIntrinsicsCache;
 import at.timofeev.arcore.sessionRecorder.helpers.VideoRecorder;
+import at.timofeev.arcore.sessionRecorder.poses.AsyncPoseLogWriter;
+import at.timofeev.arcore.sessionRecorder.poses.DurabilityPolicy;
+import at.timofeev.arcore.sessionRecorder.poses.DurablePoseLogWriter;
+import at.timofeev.arcore.sessionRecorder.poses.IndexedPoseLogWriter;
+import at.timofeev.arcore.sessionRecorder.poses.MappedPoseLogWriter;
+import at.timofeev.arcore.sessionRecorder.poses.PoseLogFormat;
+import at.timofeev.arcore.sessionRecorder.poses.PoseSample;
+import at.timofeev.arcore.sessionRecorder.poses.SidecarSyncer;
 import at.timofeev.arcore.sessionRecorder.rendering.BackgroundRenderer;
+import at.timofeev.arcore.sessionRecorder.rendering.FrameRing;
 import at.timofeev.arcore.sessionRecorder.rendering.ObjectRenderer;
 import at.timofeev.arcore.sessionRecorder.rendering.ObjectRenderer.BlendMode;
 import at.timofeev.arcore.sessionRecorder.rendering.PlaneRenderer;
 import at.timofeev.arcore.sessionRecorder.rendering.PointCloudRenderer;
+import at.timofeev.arcore.sessionRecorder.rendering.TextureBlitter;
 
 import com.google.ar.core.exceptions.CameraNotAvailableException;
+import com.google.ar.core.exceptions.NotYetAvailableException;
+import com.google.ar.core.exceptions.ResourceExhaustedException;
 import com.google.ar.core.exceptions.UnavailableApkTooOldException;
 import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
 import com.google.ar.core.exceptions.UnavailableDeviceNotCompatibleException;
 import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
 import com.google.ar.core.exceptions.UnavailableUserDeclinedInstallationException;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -89,6 +106,12 @@ import static com.google.ar.core.ImageMetadata.LENS_RADIAL_DISTORTION;
 
 public class ArpActivity extends AppCompatActivity implements GLSurfaceView.Renderer, VideoRecorder.VideoRecorderListener {
     public static final String TAG = ArpActivity.class.getSimpleName();
+    // Name of the encoder profile to record with, see EncoderProfile.forName().
+    public static final String EXTRA_ENCODER_PROFILE = "encoderProfile";
+    // "jpeg" or "png" to record the frames as image files instead of a video.
+    public static final String EXTRA_IMAGE_SEQUENCE = "imageSequence";
+    // JPEG quality of an image sequence, 0-100.
+    public static final String EXTRA_IMAGE_QUALITY = "imageQuality";
 
     // Rendering. The Renderers are created here, and initialized when the GL surface is created.
     private GLSurfaceView surfaceView;
@@ -101,6 +124,10 @@ public class ArpActivity extends AppCompatActivity implements GLSurfaceView.Rend
     private TapHelper tapHelper;
 
     private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer();
+    // Camera images rendered while recording, handed to the encoder thread.
+    private final TextureBlitter textureBlitter = new TextureBlitter();
+    private final FrameRing frameRing = new FrameRing(textureBlitter, FRAME_RING_SIZE);
+    private boolean frameRingCreated;
     private final ObjectRenderer virtualObject = new ObjectRenderer();
     private final ObjectRenderer virtualObjectShadow = new ObjectRenderer();
     private final PlaneRenderer planeRenderer = new PlaneRenderer();
@@ -111,14 +138,78 @@ public class ArpActivity extends AppCompatActivity implements GLSurfaceView.Rend
     private static final float[] DEFAULT_COLOR = new float[]{0f, 0f, 0f, 0f};
 
     private int frameId = 0;
+    // Size of the GL surface.
+    private int viewportWidth;
+    private int viewportHeight;
+
+    // Frames the encoder thread may lag behind before video frames are dropped.
+    private static final int FRAME_RING_SIZE = 3;
+    // Let MediaCodec hand encoded frames to the muxer as they are ready, instead of polling.
+    private static final boolean ASYNC_ENCODER = false;
+    // Record the whole camera image at its texture size, which the logged intrinsics describe,
+    // instead of the screen's cropped and rotated view of it.
+    private static final boolean RECORD_CAMERA_IMAGE = false;
+    // Camera images are recorded at 1/CAMERA_IMAGE_DOWNSCALE of the texture size.
+    private static final int CAMERA_IMAGE_DOWNSCALE = 1;
+    // Record the CPU camera image (Frame.acquireCameraImage()) at its own resolution instead,
+    // copied into the encoder on a worker thread without GL. Logs the CPU image's intrinsics.
+    private static final boolean CPU_CAMERA_IMAGE = false;
+    // Also record a proxy at 1/PROXY_DOWNSCALE of the video size with EncoderProfile.PROXY,
+    // downsampled on the GPU from the same frames. 0 for no proxy.
+    private static final int PROXY_DOWNSCALE = 0;
+    // Recordings are split into a new video and pose log segment after this many seconds or
+    // megabytes of video, whichever comes first. 0 disables the limit, 0 for both disables
+    // segmenting.
+    private static final int SEGMENT_SECONDS = 0;
+    private static final int SEGMENT_MEGABYTES = 0;
+    // Also store every pose in a metadata track of the MP4 itself (API 26+), so a video can be
+    // processed without its pose log.
+    private static final boolean EMBED_POSE_TRACK = false;
+    // Lower the bitrate while storage can't keep up or the phone runs hot, and raise it back up
+    // to the profile's while there is headroom.
+    private static final boolean ADAPTIVE_BITRATE = false;
+    // Keep encoding while not recording, and start every recording with the last
+    // PRE_ROLL_SECONDS before "Record" was pressed, held in at most PRE_ROLL_MEGABYTES. 0 for
+    // none. Only for videos from the GL path.
+    private static final int PRE_ROLL_SECONDS = 0;
+    private static final int PRE_ROLL_MEGABYTES = 48;
+    // Write videos as fragmented MP4 with fragments of at least this many milliseconds, which
+    // can be played while recording and survive a crash up to the last fragment. 0 for plain
+    // MP4 through MediaMuxer.
+    private static final int FRAGMENT_MILLIS = 0;
+    private EncoderProfile encoderProfile = EncoderProfile.DEFAULT;
+    // Default JPEG quality of image sequences.
+    private static final int IMAGE_QUALITY = 95;
+    private ImageSequence imageSequence;
+
+    // Format of the pose log written next to each video.
+    private static final PoseLogFormat POSE_LOG_FORMAT = PoseLogFormat.TEXT;
+    // Poses are handed to a writer thread through a ring of this many records (~8s at 30fps).
+    private static final int POSE_QUEUE_CAPACITY = 256;
+    private static final AsyncPoseLogWriter.OverflowPolicy POSE_QUEUE_POLICY =
+            AsyncPoseLogWriter.OverflowPolicy.BLOCK;
+    // A seek index entry is written next to the pose log every this many frames.
+    private static final int POSE_INDEX_INTERVAL = 300;
+    // How often the pose log and its index are synced to storage while recording.
+    private static final DurabilityPolicy POSE_DURABILITY = DurabilityPolicy.groupCommit(1000, 30);
 
     // Recording
-    private VideoRecorder mRecorder;
+    // Created, toggled and cleared on the GL thread only, except that onPause() cancels a
+    // pre-roll while the GL thread is paused.  Read by the UI thread for the controls.
+    private volatile VideoRecorder mRecorder;
+    private boolean preRollFailed;
     private android.opengl.EGLConfig mAndroidEGLConfig;
 
     private File poseFile;
     private boolean posesFileCreated = false;
-    private BufferedWriter bufWriter;
+    private AsyncPoseLogWriter poseWriter;
+    // Segment of a segmented recording the pose writer writes.
+    private int poseSegment;
+    private SidecarSyncer sidecarSyncer;
+    // Filled from the camera every recorded frame, to avoid allocations on the GL thread.
+    private final PoseSample poseSample = new PoseSample();
+    private final TextureIntrinsicsCache intrinsicsCache =
+            new TextureIntrinsicsCache(CPU_CAMERA_IMAGE);
     private String mWorkingDirectory;
 
 
@@ -142,12 +233,20 @@ public class ArpActivity extends AppCompatActivity implements GLSurfaceView.Rend
         setContentView(R.layout.activity_main);
         surfaceView = findViewById(R.id.surfaceview);
         displayRotationHelper = new DisplayRotationHelper(/*context=*/ this);
+        encoderProfile = EncoderProfile.forName(getIntent().getStringExtra(EXTRA_ENCODER_PROFILE));
+        imageSequence = ImageSequence.forName(getIntent().getStringExtra(EXTRA_IMAGE_SEQUENCE),
+                getIntent().getIntExtra(EXTRA_IMAGE_QUALITY, IMAGE_QUALITY));
+        if (imageSequence != null && CPU_CAMERA_IMAGE) {
+            Log.w(TAG, "Image sequences are read back from GL, recording a video instead");
+            imageSequence = null;
+        }
 
 
         File extStore = Environment.getExternalStorageDirectory();
         mWorkingDirectory = extStore.getAbsolutePath() + "/" + "ARCorePoseRecorder" + "/";
         extStore = new File(mWorkingDirectory);
         extStore.mkdirs();
+        recoverPoseLogs();
 
         // Set up tap listener.
         tapHelper = new TapHelper(/*context=*/ this);
@@ -155,7 +254,11 @@ public class ArpActivity extends AppCompatActivity implements GLSurfaceView.Rend
 
         // Set up renderer.
         surfaceView.setPreserveEGLContextOnPause(true);
-        surfaceView.setEGLContextClientVersion(2);
+        // OpenGL ES 3 lets the frame ring hand frames to the encoder with fences, not glFinish().
+        ActivityManager activityManager =
+                (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        boolean gles3 = activityManager.getDeviceConfigurationInfo().reqGlEsVersion >= 0x30000;
+        surfaceView.setEGLContextClientVersion(gles3 ? 3 : 2);
         surfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0); // Alpha used for plane blending.
         surfaceView.setRenderer(this);
         surfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
@@ -281,6 +384,7 @@ public class ArpActivity extends AppCompatActivity implements GLSurfaceView.Rend
 
         surfaceView.onResume();
         displayRotationHelper.onResume();
+        intrinsicsCache.invalidate();
 
         messageSnackbarHelper.showMessage(this, "Searching for surfaces...");
     }
@@ -297,6 +401,12 @@ public class ArpActivity extends AppCompatActivity implements GLSurfaceView.Rend
             displayRotationHelper.onPause();
             surfaceView.onPause();
             session.pause();
+            // The GL thread is paused; a new pre-roll starts when it resumes.
+            VideoRecorder recorder = mRecorder;
+            if (recorder != null && recorder.isPreRolling()) {
+                recorder.cancelPreRoll();
+                mRecorder = null;
+            }
         }
     }
 
@@ -327,6 +437,8 @@ public class ArpActivity extends AppCompatActivity implements GLSurfaceView.Rend
         try {
             // Create the texture and pass it to ARCore session to be filled during update().
             backgroundRenderer.createOnGlThread(/*context=*/ this);
+            textureBlitter.createOnGlThread(/*context=*/ this);
+            frameRingCreated = false;
             planeRenderer.createOnGlThread(/*context=*/ this, "models/trigrid.png");
             pointCloudRenderer.createOnGlThread(/*context=*/ this);
 
@@ -359,6 +471,8 @@ public class ArpActivity extends AppCompatActivity implements GLSurfaceView.Rend
     public void onSurfaceChanged(GL10 gl, int width, int height) {
         displayRotationHelper.onSurfaceChanged(width, height);
         GLES20.glViewport(0, 0, width, height);
+        viewportWidth = width;
+        viewportHeight = height;
     }
 
     @Override
@@ -393,27 +507,64 @@ public class ArpActivity extends AppCompatActivity implements GLSurfaceView.Rend
             // Get camera matrix and draw.
             float[] viewmtx = new float[16];
             camera.getViewMatrix(viewmtx, 0);
-            backgroundRenderer.draw(frame);  // draw camera see-through
+            if (mRecorder == null && usePreRoll()) {
+                startPreRoll();
+            }
+            // While recording, the camera image is rendered once into a frame of the ring,
+            // copied to the screen and encoded on the encoder thread. If the encoder still holds
+            // every frame, this one is only shown and left out of the video. The same goes for
+            // the pre-roll, but its poses are kept by the recorder until the recording starts.
+            VideoRecorder recorder = mRecorder;
+            boolean recording = recorder != null && recorder.isRecording() && posesFileCreated;
+            boolean capturing = recording || (recorder != null && recorder.isPreRolling());
+            int slot = capturing && !CPU_CAMERA_IMAGE
+                    ? acquireFrame(recorder.getWidth(), recorder.getHeight()) : -1;
+            if (recording && !CPU_CAMERA_IMAGE && slot < 0) {
+                recorder.getStats().frameDropped();
+            }
+            if (slot >= 0 && RECORD_CAMERA_IMAGE) {
+                // The full camera image differs from the screen's, so it is drawn twice.
+                backgroundRenderer.drawCameraImage(frame, frameRing.getFramebufferId(slot),
+                        frameRing.getWidth(), frameRing.getHeight());
+                GLES20.glViewport(0, 0, viewportWidth, viewportHeight);
+                backgroundRenderer.draw(frame);
+            } else if (slot >= 0) {
+                backgroundRenderer.drawToFramebuffer(
+                        frame, frameRing.getFramebufferId(slot), viewportWidth, viewportHeight);
+                frameRing.draw(slot);
+            } else {
+                backgroundRenderer.draw(frame);  // draw camera see-through
+            }
 
       //      Log.d(TAG, "Available focal lengths: " + Arrays.toString(distortion));
             PointCloud pointCloud = frame.acquirePointCloud();
             pointCloudRenderer.update(pointCloud);
             pointCloudRenderer.draw(viewmtx, projmtx);
 
-            if (mRecorder!= null && mRecorder.isRecording() && posesFileCreated) {
-                bufWriter.append("" + frameId  + " " + getPoseAsString(camera.getPose()) + " " + getIntrinsicsAsString(camera.getTextureIntrinsics())
-                   //     + " " + distortion[0] + " " + distortion[1] + " " + distortion[2] + " " + distortion[3] + " " + distortion[4]
-                );
-                bufWriter.newLine();
-                frameId++;
-                VideoRecorder.CaptureContext ctx = mRecorder.startCapture();
-                if (ctx != null) {
-                    // draw again to capture the texture content
-                    backgroundRenderer.draw(frame);
+            if (capturing) {
+                fillPoseSample(frame, camera);
+                poseSample.presentationTimeNs = PoseSample.NO_PRESENTATION_TIME;
+                if (CPU_CAMERA_IMAGE) {
+                    poseSample.presentationTimeNs = submitCameraImage(frame);
+                } else if (slot >= 0) {
                     //Log.d(TAG, "pose: " + getPoseAsString(camera.getPose()));
-                    // restore the context
-                    mRecorder.stopCapture(ctx, frame.getTimestamp());
+                    poseSample.presentationTimeNs =
+                            recorder.submitFrame(frameRing, slot, frame.getTimestamp(),
+                                    poseSample);
                 }
+                if (recording) {
+                    // The poses of the pre-roll frames in the video come first.
+                    PoseSample preRollPose;
+                    while ((preRollPose = recorder.pollPreRollPose()) != null) {
+                        poseWriter.write(preRollPose);
+                    }
+                    RecordingSegments segments = recorder.getSegments();
+                    if (segments != null && segments.getIndex() != poseSegment) {
+                        rollPoseLog(segments);
+                    }
+                    poseWriter.write(poseSample);
+                }
+                frameId++;
             }
 
             // Check if we detected at least one plane. If so, hide the loading message.
@@ -453,38 +604,212 @@ public class ArpActivity extends AppCompatActivity implements GLSurfaceView.Rend
         }
     }
 
-    private String getPoseAsString(Pose pose) {
-        return pose.tx() + " " + pose.ty() + " " + pose.tz() + " " + pose.qx() + " " + pose.qy() + " " + pose.qz() + " " + pose.qw();
+    /**
+     * Repairs binary pose logs left behind by a recording that crashed, in the background.
+     */
+    private void recoverPoseLogs() {
+        final File[] logs = new File(mWorkingDirectory).listFiles(
+                (dir, name) -> name.startsWith("poses-") && name.endsWith(".bin"));
+        if (logs == null || logs.length == 0) {
+            return;
+        }
+        new Thread(() -> {
+            for (File log : logs) {
+                try {
+                    long records = MappedPoseLogWriter.recover(log);
+                    if (records >= 0) {
+                        Log.w(TAG, "Recovered " + records + " poses from " + log.getName());
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to recover " + log.getName(), e);
+                }
+            }
+        }, "PoseLogRecovery").start();
+    }
+
+    /**
+     * Takes a frame of the ring for rendering the video frame into, sizing the ring for the video
+     * first.
+     *
+     * @return the slot, or -1 if the video frame has to be dropped.
+     */
+    private int acquireFrame(int width, int height) {
+        if (!frameRingCreated) {
+            frameRing.createOnGlThread(width, height);
+            frameRingCreated = true;
+        } else if (frameRing.getWidth() != width || frameRing.getHeight() != height) {
+            if (!frameRing.isIdle()) {
+                // The encoder of the previous recording still draws from the ring.
+                return -1;
+            }
+            frameRing.resize(width, height);
+        }
+        return frameRing.acquire();
+    }
+
+    /**
+     * Hands the CPU camera image of the frame to the recorder.
+     *
+     * @return the presentation time of the video frame, or
+     *     {@link PoseSample#NO_PRESENTATION_TIME} if the image was not available or not taken.
+     */
+    private long submitCameraImage(Frame frame) {
+        Image image;
+        try {
+            image = frame.acquireCameraImage();
+        } catch (NotYetAvailableException | ResourceExhaustedException e) {
+            mRecorder.getStats().frameDropped();
+            return PoseSample.NO_PRESENTATION_TIME;
+        }
+        return mRecorder.submitImage(image, frame.getTimestamp(), poseSample);
     }
-    private String getIntrinsicsAsString(CameraIntrinsics intrinsics) {
-        return intrinsics.getFocalLength()[0] + " " + intrinsics.getFocalLength()[1] + " " +
-                intrinsics.getImageDimensions()[0] + " " + intrinsics.getImageDimensions()[1] + " " +
-                intrinsics.getPrincipalPoint()[0] + " " + intrinsics.getPrincipalPoint()[1];
+
+    private void fillPoseSample(Frame frame, Camera camera) {
+        poseSample.frameId = frameId;
+        poseSample.timestampNs = frame.getTimestamp();
+
+        Pose pose = camera.getPose();
+        poseSample.tx = pose.tx();
+        poseSample.ty = pose.ty();
+        poseSample.tz = pose.tz();
+        poseSample.qx = pose.qx();
+        poseSample.qy = pose.qy();
+        poseSample.qz = pose.qz();
+        poseSample.qw = pose.qw();
+
+        if (intrinsicsCache.update(camera)) {
+            Log.d(TAG, "Texture intrinsics changed at frame " + frameId);
+        }
+        intrinsicsCache.copyTo(poseSample);
     }
 
     public void clickToggleRecording(View view) {
         Log.d(TAG, "clickToggleRecording");
-        if (mRecorder == null) {
-            File outputFile = new File(mWorkingDirectory,
-                    "video-" + Long.toHexString(System.currentTimeMillis()) + ".mp4");
-            File dir = outputFile.getParentFile();
-            if (!dir.exists()) {
-                dir.mkdirs();
+        // Setting up the codecs takes a while, so a new recorder is built here and only handed
+        // to the GL thread, which is the one that sets mRecorder, also for the pre-roll.
+        final VideoRecorder created = mRecorder == null ? createRecorder(null) : null;
+        surfaceView.queueEvent(() -> {
+            if (created != null && mRecorder == null) {
+                mRecorder = created;
+            } else if (created != null) {
+                // A pre-roll started in the meantime; record that one.
+                new Thread(created::release, "RecorderRelease").start();
             }
-
             try {
-                mRecorder = new VideoRecorder(surfaceView.getWidth(),
-                        surfaceView.getHeight(),
-                        VideoRecorder.DEFAULT_BITRATE, outputFile, this);
-                mRecorder.setEglConfig(mAndroidEGLConfig);
+                if (mRecorder != null) {
+                    mRecorder.toggleRecording();
+                }
+            } catch (RuntimeException e) {
+                // Outside onDrawFrame()'s catch; don't let a failed encoder end the GL thread.
+                Log.e(TAG, "Could not toggle the recording", e);
+            }
+            runOnUiThread(this::updateControls);
+        });
+    }
 
-            } catch (IOException e) {
-                Log.e(TAG,"Exception starting recording", e);
+    private boolean usePreRoll() {
+        return PRE_ROLL_SECONDS > 0 && !CPU_CAMERA_IMAGE && imageSequence == null
+                && !preRollFailed;
+    }
+
+    /**
+     * Sets up a recorder whose encoder runs ahead of the recording.  GL thread only.
+     */
+    private void startPreRoll() {
+        VideoRecorder recorder;
+        try {
+            recorder = createRecorder(new PreRoll(PRE_ROLL_SECONDS, PRE_ROLL_MEGABYTES));
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not start the pre-roll", e);
+            recorder = null;
+        }
+        if (recorder == null) {
+            // Don't try again every frame; recordings start cold instead.
+            preRollFailed = true;
+            return;
+        }
+        recorder.startPreRoll();
+        // Frame ids count on from the pre-roll into the recording.
+        frameId = 0;
+        mRecorder = recorder;
+    }
+
+    /**
+     * Creates the recorder for a new video, with the current camera configuration.
+     *
+     * @param preRoll the pre-roll to record, or null.
+     * @return the recorder, or null if it could not be created.
+     */
+    private VideoRecorder createRecorder(PreRoll preRoll) {
+        String id = Long.toHexString(System.currentTimeMillis());
+        File outputFile = new File(mWorkingDirectory, "video-" + id + ".mp4");
+        File dir = outputFile.getParentFile();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        RecordingSegments segments = null;
+        // Image sequences aren't segmented, every frame is a file of its own already.
+        if (imageSequence == null && (SEGMENT_SECONDS > 0 || SEGMENT_MEGABYTES > 0)) {
+            segments = new RecordingSegments(dir, id, POSE_LOG_FORMAT.getExtension(),
+                    SEGMENT_SECONDS, SEGMENT_MEGABYTES * 1024L * 1024L);
+        }
+
+        EncoderProfile profile = encoderProfile;
+        if (session != null) {
+            // Encode at the rate the camera delivers frames.
+            profile = profile.withFrameRate(session.getCameraConfig().getFpsRange().getUpper());
+        }
+        if (FRAGMENT_MILLIS > 0) {
+            profile = profile.withFragments(FRAGMENT_MILLIS);
+        }
+        int width = surfaceView.getWidth();
+        int height = surfaceView.getHeight();
+        if (CPU_CAMERA_IMAGE && session != null) {
+            Size size = session.getCameraConfig().getImageSize();
+            width = size.getWidth();
+            height = size.getHeight();
+        } else if (RECORD_CAMERA_IMAGE && session != null) {
+            Size size = session.getCameraConfig().getTextureSize();
+            // Encoders want even sizes.
+            width = (size.getWidth() / CAMERA_IMAGE_DOWNSCALE) & ~1;
+            height = (size.getHeight() / CAMERA_IMAGE_DOWNSCALE) & ~1;
+        }
+        VideoRecorder recorder = null;
+        try {
+            recorder = new VideoRecorder(width, height,
+                    profile, ASYNC_ENCODER, outputFile, segments, EMBED_POSE_TRACK,
+                    CPU_CAMERA_IMAGE, imageSequence, preRoll, this);
+            recorder.setEglConfig(mAndroidEGLConfig);
+            if (ADAPTIVE_BITRATE) {
+                recorder.enableBitrateControl(this);
+            }
+            if (PROXY_DOWNSCALE > 1 && !CPU_CAMERA_IMAGE && imageSequence == null) {
+                addProxy(recorder, width, height, profile.getFrameRate());
+            }
+            Log.d(TAG, "Recording with " + recorder.getProfile()
+                    + (preRoll != null ? ", pre-roll " + preRoll : ""));
+        } catch (IOException | RuntimeException e) {
+            // MediaCodec throws CodecException and friends for settings the device can't do.
+            Log.e(TAG,"Exception starting recording", e);
+            if (recorder != null) {
+                recorder.release();
+                recorder = null;
             }
         }
-        Log.d(TAG, "clickToggleRecording");
-        mRecorder.toggleRecording();
-        updateControls();
+        return recorder;
+    }
+
+    private static void addProxy(VideoRecorder recorder, int width, int height, int frameRate) {
+        int proxyWidth = (width / PROXY_DOWNSCALE) & ~1;
+        int proxyHeight = (height / PROXY_DOWNSCALE) & ~1;
+        try {
+            recorder.addProxy(proxyWidth, proxyHeight,
+                    EncoderProfile.PROXY.withFrameRate(frameRate));
+            Log.d(TAG, "Recording a " + proxyWidth + "x" + proxyHeight + " proxy");
+        } catch (IOException | RuntimeException e) {
+            // Devices may not run a second encoder at the same time.
+            Log.w(TAG, "Recording without proxy", e);
+        }
     }
 
     private void updateControls() {
@@ -545,15 +870,83 @@ public class ArpActivity extends AppCompatActivity implements GLSurfaceView.Rend
         }
     }
 
+    private AsyncPoseLogWriter openPoseWriter(File poseFile, File indexFile) throws IOException {
+        return new AsyncPoseLogWriter(
+                new DurablePoseLogWriter(
+                        new IndexedPoseLogWriter(POSE_LOG_FORMAT.createWriter(poseFile),
+                                indexFile, POSE_INDEX_INTERVAL),
+                        POSE_DURABILITY, sidecarSyncer),
+                POSE_QUEUE_CAPACITY, POSE_QUEUE_POLICY);
+    }
+
+    private static void closePoseWriter(AsyncPoseLogWriter writer) throws IOException {
+        writer.close();
+        Log.d(TAG, "pose writer closed, " + writer.getWrittenCount() + " written, "
+                + writer.getDroppedCount() + " dropped, high-water mark "
+                + writer.getHighWaterMark() + "/" + writer.getCapacity());
+    }
+
+    /**
+     * Switches the pose log to the segment the last video frame started, on the GL thread. The
+     * previous log is closed in the background, so the GL thread doesn't wait for its last
+     * writes and sync.
+     */
+    private void rollPoseLog(RecordingSegments segments) throws IOException {
+        final AsyncPoseLogWriter finished = poseWriter;
+        poseSegment = segments.getIndex();
+        poseFile = segments.getPoseFile(poseSegment);
+        poseWriter = openPoseWriter(poseFile, segments.getPoseIndexFile(poseSegment));
+        new Thread(() -> {
+            try {
+                closePoseWriter(finished);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close pose log segment", e);
+            }
+        }, "PoseLogCloser").start();
+    }
+
+    /**
+     * Writes the encoder telemetry next to the video once the encoder is done, in the
+     * background.
+     */
+    private static void writeEncoderStats(final VideoRecorder recorder) {
+        new Thread(() -> {
+            try {
+                recorder.awaitFinished();
+                recorder.writeStats();
+                Log.i(TAG, "encoder stats: " + recorder.getStats());
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write " + recorder.getStatsFile(), e);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Encoder stats not written, interrupted");
+            }
+        }, "EncoderStats").start();
+    }
+
     @Override
     public void onVideoRecorderEvent(VideoRecorder.VideoEvent videoEvent) {
         Log.d(TAG, "VideoEvent: " + videoEvent);
-        updateControls();
+        runOnUiThread(this::updateControls);
         try {
             if (!posesFileCreated) {
-                frameId = 0;
-                poseFile = new File(mWorkingDirectory, "poses-" + Long.toHexString(System.currentTimeMillis()) + ".txt");
-                bufWriter = new BufferedWriter(new FileWriter(poseFile));
+                if (!mRecorder.hasPreRoll()) {
+                    frameId = 0;
+                }
+                intrinsicsCache.invalidate();
+                File indexFile;
+                RecordingSegments segments = mRecorder.getSegments();
+                if (segments != null) {
+                    poseSegment = 0;
+                    poseFile = segments.getPoseFile(0);
+                    indexFile = segments.getPoseIndexFile(0);
+                } else {
+                    String poseName = "poses-" + Long.toHexString(System.currentTimeMillis());
+                    poseFile = new File(mWorkingDirectory,
+                            poseName + "." + POSE_LOG_FORMAT.getExtension());
+                    indexFile = new File(mWorkingDirectory, poseName + ".idx");
+                }
+                sidecarSyncer = new SidecarSyncer();
+                poseWriter = openPoseWriter(poseFile, indexFile);
                 posesFileCreated = true;
             }
         }
@@ -562,19 +955,51 @@ public class ArpActivity extends AppCompatActivity implements GLSurfaceView.Rend
             e.printStackTrace();
         }
         if (videoEvent == VideoRecorder.VideoEvent.RecordingStopped) {
+            VideoRecorder recorder = mRecorder;
             mRecorder = null;
-            if (posesFileCreated)
-                try {
-                    bufWriter.close();
-                    Log.d(TAG, "pose writer buffer closed");
-                    posesFileCreated = false;
-                    frameId = 0;
-                }
-                catch (IOException e)             {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
+            if (posesFileCreated) {
+                final AsyncPoseLogWriter writer = poseWriter;
+                final SidecarSyncer syncer = sidecarSyncer;
+                final File lastPoseFile = poseFile;
+                final int lastSegment = poseSegment;
+                posesFileCreated = false;
+                frameId = 0;
+                // This runs on the GL thread, which shouldn't wait for the last writes and
+                // syncs of the pose log, see rollPoseLog().
+                new Thread(() -> finishRecording(recorder, writer, syncer, lastPoseFile,
+                        lastSegment), "PoseLogCloser").start();
+            }
+        }
+    }
+
+    /**
+     * Closes the pose log of a stopped recording and starts checking it against the video.
+     */
+    private static void finishRecording(VideoRecorder recorder, AsyncPoseLogWriter writer,
+                                        SidecarSyncer syncer, File lastPoseFile,
+                                        int lastSegment) {
+        try {
+            closePoseWriter(writer);
+            syncer.stop();
+            Log.d(TAG, "sidecar syncs (" + POSE_DURABILITY + "): " + syncer.getStats());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close the pose log", e);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while closing the pose log");
+            return;
+        }
+        RecordingSegments segments = recorder.getSegments();
+        if (recorder.isImageSequence()) {
+            Log.d(TAG, "frames written to " + recorder.getImageDirectory());
+        } else if (segments != null) {
+            for (int i = 0; i <= lastSegment; i++) {
+                new RecordingVerifier(recorder, segments.getPoseFile(i),
+                        segments.getVideoFile(i)).start();
+            }
+        } else {
+            new RecordingVerifier(recorder, lastPoseFile, recorder.getOutputFile()).start();
         }
+        writeEncoderStats(recorder);
     }
 }
 
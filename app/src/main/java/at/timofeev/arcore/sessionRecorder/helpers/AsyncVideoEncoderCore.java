@@ -0,0 +1,216 @@
+package at.timofeev.arcore.sessionRecorder.helpers;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import at.timofeev.arcore.sessionRecorder.app.ArpActivity;
+
+/**
+ * Surface-input video encoding like {@link VideoEncoderCore}, but with the codec in
+ * asynchronous mode: MediaCodec calls back on a thread of our own as soon as an output buffer
+ * is ready, and the buffer goes straight to the muxer.  Nobody polls, so an encoded frame
+ * doesn't wait for the next drainEncoder() call to reach the file, and the encoder thread
+ * doesn't wake up just to find nothing to drain.
+ * <p>
+ * The muxer is only used on the callback thread, and by release() once the end of stream
+ * has been seen.
+ */
+public class AsyncVideoEncoderCore implements EncoderCore {
+    private static final String TAG = ArpActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private final HandlerThread mCallbackThread;
+    private final Object mLock = new Object();
+
+    private Surface mInputSurface;
+    private MediaCodec mEncoder;
+
+    // ----- accessed by the callback thread, and release() after the end of stream -----
+    private SegmentedMuxer mMuxer;
+
+    // ----- guarded by mLock -----
+    private boolean mEndOfStream;
+    private MediaCodec.CodecException mError;
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.
+     *
+     * @param profile the encoder settings, as returned by {@link EncoderProfile#resolve}.
+     * @param segments how to split the video into several files, or null.
+     * @param metadata pose records to mux into a metadata track, or null for video only.
+     * @param preRoll where to hold the output until the recording starts, or null.
+     * @param stats where to report the samples written, or null.
+     */
+    public AsyncVideoEncoderCore(int width, int height, EncoderProfile profile, File outputFile,
+                                 RecordingSegments segments, PoseMetadataQueue metadata,
+                                 PreRollBuffer preRoll, EncoderStats stats) throws IOException {
+        MediaFormat format = profile.createFormat(width, height);
+        if (VERBOSE) Log.d(TAG, "format: " + format);
+
+        mMuxer = new SegmentedMuxer(outputFile, segments, profile.getFragmentDurationUs(),
+                metadata, preRoll, stats);
+
+        mCallbackThread = new HandlerThread("EncoderCallbacks");
+        mCallbackThread.start();
+
+        try {
+            // The callback has to be set before configure() to put the codec in asynchronous
+            // mode.
+            mEncoder = profile.createEncoder();
+            mEncoder.setCallback(new Callback(), new Handler(mCallbackThread.getLooper()));
+            mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mInputSurface = mEncoder.createInputSurface();
+            mEncoder.start();
+        } catch (IOException | RuntimeException e) {
+            // Profiles the device can't encode fail here; don't keep the codec or muxer.
+            release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    /**
+     * Output is written as it arrives, so there is nothing to drain.  With endOfStream set,
+     * signals the end of input and blocks until the callback thread has seen the last buffer
+     * (or the codec failed).
+     */
+    @Override
+    public void drainEncoder(boolean endOfStream) {
+        if (!endOfStream) {
+            return;
+        }
+        if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
+        mEncoder.signalEndOfInputStream();
+
+        synchronized (mLock) {
+            while (!mEndOfStream && mError == null) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException ie) {
+                    // ignore
+                }
+            }
+            if (mError != null) {
+                Log.w(TAG, "encoder failed before end of stream", mError);
+            }
+        }
+    }
+
+    /**
+     * Asks the encoder to make the next frame a key frame.
+     */
+    @Override
+    public void requestKeyFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mEncoder.setParameters(params);
+    }
+
+    /**
+     * Changes the bitrate on the fly, for {@link BitrateController}.
+     */
+    @Override
+    public void setBitRate(int bitRate) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        try {
+            mEncoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            // Released at the end of the recording while the controller was still running.
+        }
+    }
+
+    @Override
+    public void release() {
+        if (VERBOSE) Log.d(TAG, "releasing encoder objects");
+        try {
+            if (mEncoder != null) {
+                try {
+                    mEncoder.stop();
+                } catch (IllegalStateException e) {
+                    // The codec is already in the error state after onError().
+                    Log.w(TAG, "encoder stop failed", e);
+                }
+            }
+        } finally {
+            if (mEncoder != null) {
+                mEncoder.release();
+                mEncoder = null;
+            }
+            // No more callbacks after stop() or release(), the muxer is ours now.
+            mCallbackThread.quitSafely();
+            if (mMuxer != null) {
+                mMuxer.release();
+                mMuxer = null;
+            }
+        }
+    }
+
+    private class Callback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // Input comes through the surface.
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            // should happen before receiving buffers, and should only happen once
+            if (mMuxer.isStarted()) {
+                throw new RuntimeException("format changed twice");
+            }
+            Log.d(TAG, "encoder output format changed: " + format);
+            mMuxer.start(format);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                                            MediaCodec.BufferInfo info) {
+            ByteBuffer encodedData = codec.getOutputBuffer(index);
+            if (encodedData == null) {
+                throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+            }
+
+            // The codec config data was fed to the muxer with the output format.
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size != 0) {
+                encodedData.position(info.offset);
+                encodedData.limit(info.offset + info.size);
+                mMuxer.writeSampleData(encodedData, info);
+                if (VERBOSE) {
+                    Log.d(TAG, "sent " + info.size + " bytes to muxer, ts=" +
+                            info.presentationTimeUs);
+                }
+            }
+            codec.releaseOutputBuffer(index, false);
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (VERBOSE) Log.d(TAG, "end of stream reached");
+                synchronized (mLock) {
+                    mEndOfStream = true;
+                    mLock.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "encoder error", e);
+            synchronized (mLock) {
+                mError = e;
+                mLock.notifyAll();
+            }
+        }
+    }
+}
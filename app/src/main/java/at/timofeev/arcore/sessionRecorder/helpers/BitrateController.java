@@ -0,0 +1,187 @@
+package at.timofeev.arcore.sessionRecorder.helpers;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.util.Log;
+import android.util.Range;
+
+import java.lang.reflect.Method;
+
+import at.timofeev.arcore.sessionRecorder.app.ArpActivity;
+
+/**
+ * Adjusts the bitrate of a running encoder to what the device can sustain.  Once a second it
+ * looks at the last second of {@link EncoderStats} and the thermal state:
+ * <ul>
+ * <li>if the muxer spent more than half the time writing, frames were dropped or late, or the
+ * device is hot, the bitrate goes down by a quarter, and stays down for a while;</li>
+ * <li>if all is calm and the device cool, it creeps back up by a tenth.</li>
+ * </ul>
+ * The bitrate stays within the range it is given, which should lie within what the encoder
+ * supports.  Every change is reported to the stats, which put it into the recording's summary.
+ * <p>
+ * The thermal state comes from {@code PowerManager.getCurrentThermalStatus()} on API 29 and
+ * later, called through reflection, and is guessed from the battery temperature before that.
+ */
+public class BitrateController {
+    private static final String TAG = ArpActivity.TAG;
+
+    private static final long INTERVAL_MS = 1000;
+    // After lowering the bitrate, wait this many intervals before raising it again.
+    private static final int HOLD_INTERVALS = 10;
+    // Fraction of the time the muxer may spend in writeSampleData().
+    private static final double MAX_STORAGE_BUSY = 0.5;
+    private static final double MIN_STEP = 0.05;
+
+    // PowerManager.THERMAL_STATUS_MODERATE and _SEVERE, API 29.
+    private static final int THERMAL_MODERATE = 2;
+    private static final int THERMAL_SEVERE = 3;
+    // Battery temperatures in tenths of a degree that stand in for them below API 29.
+    private static final int BATTERY_MODERATE = 400;
+    private static final int BATTERY_SEVERE = 450;
+
+    /**
+     * Where the bitrate goes, e.g. {@link EncoderCore#setBitRate}.
+     */
+    public interface Target {
+        void setBitRate(int bitRate);
+    }
+
+    private final Context mContext;
+    private final Target mTarget;
+    private final EncoderStats mStats;
+    private final int mMinBitRate;
+    private final int mMaxBitRate;
+    private final PowerManager mPowerManager;
+    private final Method mThermalStatus;
+    private final IntentFilter mBatteryFilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    // ----- accessed by the controller thread -----
+    private int mBitRate;
+    private int mHold;
+    private long mLastTickNs;
+    private long mLastWriteNs;
+    private long mLastDropped;
+    private long mLastLate;
+
+    /**
+     * @param bitRate the bitrate the encoder was configured with.
+     * @param bitRates the lowest and highest bitrate to set.
+     */
+    public BitrateController(Context context, Target target, EncoderStats stats, int bitRate,
+                             Range<Integer> bitRates) {
+        mContext = context.getApplicationContext();
+        mTarget = target;
+        mStats = stats;
+        mBitRate = bitRate;
+        mMinBitRate = bitRates.getLower();
+        mMaxBitRate = bitRates.getUpper();
+        mPowerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        mThermalStatus = findThermalStatus();
+    }
+
+    private static Method findThermalStatus() {
+        try {
+            return PowerManager.class.getMethod("getCurrentThermalStatus");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public void start() {
+        mThread = new HandlerThread("BitrateController");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mLastTickNs = System.nanoTime();
+        mHandler.postDelayed(mTick, INTERVAL_MS);
+    }
+
+    public void stop() {
+        if (mThread != null) {
+            mHandler.removeCallbacks(mTick);
+            mThread.quitSafely();
+            mThread = null;
+        }
+    }
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+            mHandler.postDelayed(this, INTERVAL_MS);
+        }
+    };
+
+    private void tick() {
+        long now = System.nanoTime();
+        long writeNs = mStats.getMuxLatency().getSumNs();
+        long dropped = mStats.getDroppedFrames();
+        long late = mStats.getLateFrames();
+        double storageBusy = (double) (writeNs - mLastWriteNs) / Math.max(now - mLastTickNs, 1);
+        boolean backlog = dropped > mLastDropped || late > mLastLate;
+        mLastTickNs = now;
+        mLastWriteNs = writeNs;
+        mLastDropped = dropped;
+        mLastLate = late;
+
+        int thermal = getThermalLevel();
+        String reason = null;
+        if (storageBusy > MAX_STORAGE_BUSY) {
+            reason = "storage";
+        } else if (backlog) {
+            reason = "backlog";
+        } else if (thermal >= THERMAL_SEVERE) {
+            reason = "thermal";
+        }
+
+        if (reason != null) {
+            mHold = HOLD_INTERVALS;
+            setBitRate(Math.max(mMinBitRate, mBitRate * 3 / 4), reason);
+        } else if (mHold > 0) {
+            mHold--;
+        } else if (thermal < THERMAL_MODERATE && storageBusy < MAX_STORAGE_BUSY / 2) {
+            setBitRate(Math.min(mMaxBitRate, mBitRate + mBitRate / 10), "headroom");
+        }
+    }
+
+    private void setBitRate(int bitRate, String reason) {
+        if (Math.abs(bitRate - mBitRate) < mBitRate * MIN_STEP) {
+            return;
+        }
+        Log.i(TAG, "bitrate " + mBitRate / 1000 + " -> " + bitRate / 1000 + " kbit/s (" + reason
+                + ")");
+        mBitRate = bitRate;
+        mTarget.setBitRate(bitRate);
+        mStats.bitRateChanged(bitRate, reason);
+    }
+
+    /**
+     * Returns the thermal status on the scale of PowerManager.THERMAL_STATUS_*.
+     */
+    private int getThermalLevel() {
+        if (mThermalStatus != null) {
+            try {
+                return (Integer) mThermalStatus.invoke(mPowerManager);
+            } catch (ReflectiveOperationException e) {
+                // fall back to the battery
+            }
+        }
+        Intent battery = mContext.registerReceiver(null, mBatteryFilter);
+        int temperature = battery != null
+                ? battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0) : 0;
+        if (temperature >= BATTERY_SEVERE) {
+            return THERMAL_SEVERE;
+        } else if (temperature >= BATTERY_MODERATE) {
+            return THERMAL_MODERATE;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,296 @@
+package at.timofeev.arcore.sessionRecorder.helpers;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import at.timofeev.arcore.sessionRecorder.app.ArpActivity;
+
+/**
+ * Encodes the CPU camera images of ARCore ({@code Frame.acquireCameraImage()}, YUV_420_888)
+ * without going through GL: a worker thread copies the planes of every image straight into an
+ * input image of an encoder configured for {@code COLOR_FormatYUV420Flexible}, and drains the
+ * encoded frames into the muxer.
+ * <p>
+ * The images are handed over in a few preallocated slots.  ARCore only lends out a handful of
+ * images at a time, so when the worker falls behind and every slot is taken, the render thread
+ * closes the image and the frame is left out of the video, just like with the frame ring of the
+ * GL path.  Nothing is allocated per frame: row and pixel strides are handled by copying rows
+ * between the two images in place.
+ */
+public class CameraImageEncoder implements Runnable {
+    private static final String TAG = ArpActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final long TIMEOUT_USEC = 10000;
+
+    private final MediaCodec mEncoder;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private final EncoderStats mStats;
+    private final int mWidth;
+    private final int mHeight;
+
+    private final ArrayBlockingQueue<Slot> mFree;
+    private final ArrayBlockingQueue<Slot> mQueued;
+    private final Slot mEndOfStream = new Slot();
+    private final Thread mThread;
+
+    // ----- accessed by the worker thread -----
+    private SegmentedMuxer mMuxer;
+
+    private static final class Slot {
+        Image image;
+        long presentationTimeNs;
+        boolean keyFrame;
+    }
+
+    /**
+     * Configures encoder and muxer and starts the worker thread.
+     *
+     * @param width the size of the camera images, which the video gets.
+     * @param profile the encoder settings, as returned by {@link EncoderProfile#resolve}.
+     * @param slots how many images may wait for the worker.
+     */
+    public CameraImageEncoder(int width, int height, EncoderProfile profile, File outputFile,
+                              RecordingSegments segments, PoseMetadataQueue metadata,
+                              EncoderStats stats, int slots) throws IOException {
+        mWidth = width;
+        mHeight = height;
+        mStats = stats;
+        mFree = new ArrayBlockingQueue<>(slots);
+        mQueued = new ArrayBlockingQueue<>(slots + 1);
+        for (int i = 0; i < slots; i++) {
+            mFree.add(new Slot());
+        }
+
+        MediaFormat format = profile.createFormat(width, height,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+        if (VERBOSE) Log.d(TAG, "format: " + format);
+        mEncoder = profile.createEncoder();
+        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mEncoder.start();
+
+        mMuxer = new SegmentedMuxer(outputFile, segments, profile.getFragmentDurationUs(),
+                metadata, null, stats);
+
+        mThread = new Thread(this, "CameraImageEncoder");
+        mThread.start();
+    }
+
+    /**
+     * Returns whether {@link #submit} would take an image.  Render thread only.
+     */
+    public boolean hasFreeSlot() {
+        return !mFree.isEmpty();
+    }
+
+    /**
+     * Hands an image to the worker thread, which closes it once copied.  Render thread only.
+     *
+     * @param keyFrame whether to ask the encoder for a key frame.
+     * @return false if every slot was taken; the image has been closed then.
+     */
+    public boolean submit(Image image, long presentationTimeNs, boolean keyFrame) {
+        Slot slot = mFree.poll();
+        if (slot == null) {
+            image.close();
+            return false;
+        }
+        slot.image = image;
+        slot.presentationTimeNs = presentationTimeNs;
+        slot.keyFrame = keyFrame;
+        mQueued.add(slot);
+        return true;
+    }
+
+    /**
+     * Changes the bitrate on the fly, for {@link BitrateController}.  Any thread.
+     */
+    public void setBitRate(int bitRate) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        try {
+            mEncoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            // Released at the end of the recording while the controller was still running.
+        }
+    }
+
+    /**
+     * Lets the worker finish the images already submitted, end the stream and release the
+     * encoder and muxer.  Returns immediately.
+     */
+    public void stop() {
+        mQueued.add(mEndOfStream);
+    }
+
+    /**
+     * Blocks until the movie has been completely written.
+     */
+    public void awaitStopped() throws InterruptedException {
+        mThread.join();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Slot slot = mQueued.take();
+                if (slot == mEndOfStream) {
+                    break;
+                }
+                encode(slot);
+                slot.image = null;
+                mFree.add(slot);
+                drainEncoder(false);
+            }
+            signalEndOfStream();
+            drainEncoder(true);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Camera image encoder interrupted");
+        } finally {
+            release();
+        }
+    }
+
+    private void encode(Slot slot) {
+        long start = System.nanoTime();
+        int index;
+        while ((index = mEncoder.dequeueInputBuffer(TIMEOUT_USEC)) < 0) {
+            drainEncoder(false);
+        }
+        long copy = System.nanoTime();
+        Image input = mEncoder.getInputImage(index);
+        try {
+            copyImage(slot.image, input);
+        } finally {
+            slot.image.close();
+        }
+        if (slot.keyFrame) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            mEncoder.setParameters(params);
+        }
+        mEncoder.queueInputBuffer(index, 0, mWidth * mHeight * 3 / 2,
+                slot.presentationTimeNs / 1000, 0);
+        if (mStats != null) {
+            mStats.frameRendered(System.nanoTime() - copy, copy - start);
+        }
+    }
+
+    private void signalEndOfStream() {
+        int index;
+        while ((index = mEncoder.dequeueInputBuffer(TIMEOUT_USEC)) < 0) {
+            drainEncoder(false);
+        }
+        mEncoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    /**
+     * Copies a YUV 4:2:0 image into another of the same size, whatever the row and pixel
+     * strides of either are.
+     */
+    private static void copyImage(Image src, Image dst) {
+        Image.Plane[] srcPlanes = src.getPlanes();
+        Image.Plane[] dstPlanes = dst.getPlanes();
+        int width = Math.min(src.getWidth(), dst.getWidth());
+        int height = Math.min(src.getHeight(), dst.getHeight());
+        for (int i = 0; i < 3; i++) {
+            int planeWidth = i == 0 ? width : (width + 1) / 2;
+            int planeHeight = i == 0 ? height : (height + 1) / 2;
+            copyPlane(srcPlanes[i], dstPlanes[i], planeWidth, planeHeight);
+        }
+    }
+
+    private static void copyPlane(Image.Plane src, Image.Plane dst, int width, int height) {
+        ByteBuffer in = src.getBuffer();
+        ByteBuffer out = dst.getBuffer();
+        int inRowStride = src.getRowStride();
+        int outRowStride = dst.getRowStride();
+        int inPixelStride = src.getPixelStride();
+        int outPixelStride = dst.getPixelStride();
+        int inBase = in.position();
+        int outBase = out.position();
+        int inLimit = in.limit();
+        int outLimit = out.limit();
+
+        for (int y = 0; y < height; y++) {
+            int inRow = inBase + y * inRowStride;
+            int outRow = outBase + y * outRowStride;
+            if (inPixelStride == 1 && outPixelStride == 1) {
+                // Bulk copy of the row.  The buffers are ours until the images are closed.
+                in.limit(inRow + width);
+                in.position(inRow);
+                out.limit(outLimit);
+                out.position(outRow);
+                out.put(in);
+                in.limit(inLimit);
+            } else {
+                for (int x = 0; x < width; x++) {
+                    out.put(outRow + x * outPixelStride, in.get(inRow + x * inPixelStride));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes what the encoder has finished to the muxer.  With endOfStream set, waits until the
+     * encoder has emitted its last buffer.
+     */
+    private void drainEncoder(boolean endOfStream) {
+        while (true) {
+            int status = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+            if (status == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+            } else if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (mMuxer.isStarted()) {
+                    throw new RuntimeException("format changed twice");
+                }
+                MediaFormat format = mEncoder.getOutputFormat();
+                Log.d(TAG, "encoder output format changed: " + format);
+                mMuxer.start(format);
+            } else if (status >= 0) {
+                ByteBuffer encodedData = mEncoder.getOutputBuffer(status);
+                if (encodedData == null) {
+                    throw new RuntimeException("encoderOutputBuffer " + status + " was null");
+                }
+                // The codec config data was fed to the muxer with the output format.
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0
+                        && mBufferInfo.size != 0) {
+                    encodedData.position(mBufferInfo.offset);
+                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
+                    mMuxer.writeSampleData(encodedData, mBufferInfo);
+                }
+                mEncoder.releaseOutputBuffer(status, false);
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    if (VERBOSE) Log.d(TAG, "end of stream reached");
+                    return;
+                }
+            }
+        }
+    }
+
+    private void release() {
+        mEncoder.stop();
+        mEncoder.release();
+        mMuxer.release();
+        mMuxer = null;
+        // Images submitted after the end of stream was requested.
+        Slot slot;
+        while ((slot = mQueued.poll()) != null) {
+            if (slot.image != null) {
+                slot.image.close();
+            }
+        }
+    }
+}
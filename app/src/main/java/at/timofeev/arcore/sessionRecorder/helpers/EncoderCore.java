@@ -0,0 +1,36 @@
+package at.timofeev.arcore.sessionRecorder.helpers;
+
+import android.view.Surface;
+
+/**
+ * A surface-input video encoder writing into a movie file, as driven by
+ * {@link TextureMovieEncoder2}.
+ */
+public interface EncoderCore {
+    /**
+     * Returns the encoder's input surface.
+     */
+    Surface getInputSurface();
+
+    /**
+     * Moves the pending encoder output to the muxer.  With endOfStream set, signals the end
+     * of input and returns once the last frame has been written.
+     */
+    void drainEncoder(boolean endOfStream);
+
+    /**
+     * Asks the encoder to make the next frame it receives a key frame.
+     */
+    void requestKeyFrame();
+
+    /**
+     * Changes the target bitrate of the running encoder, in bits per second.  May be called
+     * from any thread; ignored once the encoder is released.
+     */
+    void setBitRate(int bitRate);
+
+    /**
+     * Releases encoder resources.
+     */
+    void release();
+}
@@ -0,0 +1,391 @@
+package at.timofeev.arcore.sessionRecorder.helpers;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import at.timofeev.arcore.sessionRecorder.app.ArpActivity;
+
+/**
+ * Settings of the video encoder: codec, rate control, key frame interval, frame rate and
+ * optionally a codec profile and level.
+ * <p>
+ * Profiles are immutable; the {@code with...} methods return modified copies.  Before use,
+ * {@link #resolve} checks a profile against the encoders of the device through
+ * {@link MediaCodecInfo} and replaces whatever they don't support.
+ */
+public final class EncoderProfile {
+    private static final String TAG = ArpActivity.TAG;
+
+    // MediaFormat.KEY_QUALITY, API 28.
+    private static final String KEY_QUALITY = "quality";
+
+    public static final int ANY = 0;
+
+    public enum Codec {
+        AVC(MediaFormat.MIMETYPE_VIDEO_AVC),
+        HEVC(MediaFormat.MIMETYPE_VIDEO_HEVC);
+
+        public final String mimeType;
+
+        Codec(String mimeType) {
+            this.mimeType = mimeType;
+        }
+    }
+
+    public enum BitrateMode {
+        /** Constant bitrate, for predictable file sizes. */
+        CBR(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR),
+        /** Variable bitrate averaging the target, the usual default of encoders. */
+        VBR(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR),
+        /** Constant quality, the bitrate is ignored in favour of the quality setting. */
+        CQ(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ);
+
+        public final int value;
+
+        BitrateMode(int value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * H.264 at 20 Mbit/s in the encoder's default rate control mode, with a key frame every
+     * 5 seconds, what the recorder always used.
+     */
+    public static final EncoderProfile DEFAULT =
+            new EncoderProfile(Codec.AVC, null, 20000000, 0, 5, 30, ANY, ANY, 0, null);
+    /** HEVC at half the bitrate, which gives about the same quality. */
+    public static final EncoderProfile HEVC = DEFAULT.withCodec(Codec.HEVC).withBitRate(10000000);
+    /**
+     * A key frame every second, so frames can be extracted from anywhere in the video without
+     * decoding far from the last key frame.
+     */
+    public static final EncoderProfile EXTRACTION = DEFAULT.withKeyFrameInterval(1);
+    /**
+     * Every frame a key frame, so any single frame decodes on its own.  Intra frames need
+     * about two and a half times the bitrate for the same quality.
+     */
+    public static final EncoderProfile ALL_INTRA = DEFAULT.withKeyFrameInterval(0)
+            .withBitRate(50000000);
+    /**
+     * For the downscaled proxy next to the full recording: 2 Mbit/s, small enough to upload
+     * right away, and a key frame every second for scrubbing.
+     */
+    public static final EncoderProfile PROXY = DEFAULT.withBitRate(2000000)
+            .withKeyFrameInterval(1);
+
+    private final Codec mCodec;
+    private final BitrateMode mBitrateMode;
+    private final int mBitRate;
+    private final int mQuality;
+    private final int mKeyFrameIntervalSec;
+    private final int mFrameRate;
+    private final int mProfile;
+    private final int mLevel;
+    // Duration of the fragments of a fragmented MP4, or 0 for a plain one.
+    private final int mFragmentDurationMs;
+    // Name of the encoder chosen by resolve(), or null.
+    private final String mEncoderName;
+
+    private EncoderProfile(Codec codec, BitrateMode bitrateMode, int bitRate, int quality,
+                           int keyFrameIntervalSec, int frameRate, int profile, int level,
+                           int fragmentDurationMs, String encoderName) {
+        mCodec = codec;
+        mBitrateMode = bitrateMode;
+        mBitRate = bitRate;
+        mQuality = quality;
+        mKeyFrameIntervalSec = keyFrameIntervalSec;
+        mFrameRate = frameRate;
+        mProfile = profile;
+        mLevel = level;
+        mFragmentDurationMs = fragmentDurationMs;
+        mEncoderName = encoderName;
+    }
+
+    /**
+     * Returns the preset called {@code name} ("default", "hevc", "extraction" or "intra"), or
+     * DEFAULT if there is none.
+     */
+    public static EncoderProfile forName(String name) {
+        if ("hevc".equalsIgnoreCase(name)) {
+            return HEVC;
+        } else if ("extraction".equalsIgnoreCase(name)) {
+            return EXTRACTION;
+        } else if ("intra".equalsIgnoreCase(name)) {
+            return ALL_INTRA;
+        }
+        return DEFAULT;
+    }
+
+    public EncoderProfile withCodec(Codec codec) {
+        return new EncoderProfile(codec, mBitrateMode, mBitRate, mQuality, mKeyFrameIntervalSec,
+                mFrameRate, ANY, ANY, mFragmentDurationMs, null);
+    }
+
+    public EncoderProfile withBitRate(int bitRate) {
+        return new EncoderProfile(mCodec, mBitrateMode, bitRate, mQuality, mKeyFrameIntervalSec,
+                mFrameRate, mProfile, mLevel, mFragmentDurationMs, null);
+    }
+
+    /**
+     * @param bitrateMode the rate control mode, or null for the encoder's default.
+     */
+    public EncoderProfile withBitrateMode(BitrateMode bitrateMode) {
+        return new EncoderProfile(mCodec, bitrateMode, mBitRate, mQuality, mKeyFrameIntervalSec,
+                mFrameRate, mProfile, mLevel, mFragmentDurationMs, null);
+    }
+
+    /**
+     * @param quality for {@link BitrateMode#CQ}, within the encoder's quality range (queried
+     *     with EncoderCapabilities.getQualityRange() on API 28).
+     */
+    public EncoderProfile withQuality(int quality) {
+        return new EncoderProfile(mCodec, mBitrateMode, mBitRate, quality, mKeyFrameIntervalSec,
+                mFrameRate, mProfile, mLevel, mFragmentDurationMs, null);
+    }
+
+    /**
+     * @param seconds between key frames; 0 makes every frame a key frame.
+     */
+    public EncoderProfile withKeyFrameInterval(int seconds) {
+        return new EncoderProfile(mCodec, mBitrateMode, mBitRate, mQuality, seconds,
+                mFrameRate, mProfile, mLevel, mFragmentDurationMs, null);
+    }
+
+    public EncoderProfile withFrameRate(int frameRate) {
+        return new EncoderProfile(mCodec, mBitrateMode, mBitRate, mQuality, mKeyFrameIntervalSec,
+                frameRate, mProfile, mLevel, mFragmentDurationMs, null);
+    }
+
+    /**
+     * @param profile one of the {@link MediaCodecInfo.CodecProfileLevel} profiles of the codec.
+     * @param level the minimum level, or {@link #ANY}.
+     */
+    public EncoderProfile withProfileLevel(int profile, int level) {
+        return new EncoderProfile(mCodec, mBitrateMode, mBitRate, mQuality, mKeyFrameIntervalSec,
+                mFrameRate, profile, level, mFragmentDurationMs, null);
+    }
+
+    /**
+     * Writes the video as fragmented MP4, see {@link SegmentedMuxer}.
+     *
+     * @param millis the minimum duration of a fragment; a fragment always starts with a key
+     *     frame, so it is at least the key frame interval.  0 writes a plain MP4.
+     */
+    public EncoderProfile withFragments(int millis) {
+        return new EncoderProfile(mCodec, mBitrateMode, mBitRate, mQuality, mKeyFrameIntervalSec,
+                mFrameRate, mProfile, mLevel, millis, mEncoderName);
+    }
+
+    public Codec getCodec() {
+        return mCodec;
+    }
+
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * Returns the requested bitrate mode, or null for the encoder's default.
+     */
+    public BitrateMode getBitrateMode() {
+        return mBitrateMode;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    public int getKeyFrameInterval() {
+        return mKeyFrameIntervalSec;
+    }
+
+    /**
+     * Returns the minimum duration of a fragment, or 0 if the video is written as plain MP4.
+     */
+    public long getFragmentDurationUs() {
+        return mFragmentDurationMs * 1000L;
+    }
+
+    /**
+     * Returns the bitrates the encoder chosen by {@link #resolve} supports, or null if no
+     * encoder was chosen.
+     */
+    public Range<Integer> getEncoderBitrateRange() {
+        if (mEncoderName == null) {
+            return null;
+        }
+        MediaCodecList codecs = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : codecs.getCodecInfos()) {
+            if (info.isEncoder() && info.getName().equals(mEncoderName)) {
+                return info.getCapabilitiesForType(mCodec.mimeType).getVideoCapabilities()
+                        .getBitrateRange();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether every frame is encoded as a key frame.
+     */
+    public boolean isAllIntra() {
+        return mKeyFrameIntervalSec == 0;
+    }
+
+    /**
+     * Returns the settings as properties for the info file next to a video, see
+     * {@link VideoRecorder#getInfoFile}.
+     */
+    public Properties toProperties() {
+        Properties p = new Properties();
+        p.setProperty("codec", mCodec.mimeType);
+        p.setProperty("bitRate", Integer.toString(mBitRate));
+        p.setProperty("bitrateMode", mBitrateMode != null ? mBitrateMode.name() : "default");
+        p.setProperty("frameRate", Integer.toString(mFrameRate));
+        p.setProperty("keyFrameIntervalSec", Integer.toString(mKeyFrameIntervalSec));
+        p.setProperty("allIntra", Boolean.toString(isAllIntra()));
+        p.setProperty("fragmentDurationMs", Integer.toString(mFragmentDurationMs));
+        if (mEncoderName != null) {
+            p.setProperty("encoder", mEncoderName);
+        }
+        return p;
+    }
+
+    /**
+     * Picks an encoder for video of the given size and adapts the profile to it.  Falls back
+     * to H.264 at twice the bitrate if there is no HEVC encoder for the size, drops a bitrate
+     * mode or profile the encoder doesn't have, and clamps the bitrate to its range.
+     */
+    public EncoderProfile resolve(int width, int height) {
+        MediaCodecInfo info = findEncoder(mCodec.mimeType, width, height, mFrameRate);
+        if (info == null) {
+            if (mCodec == Codec.HEVC) {
+                Log.w(TAG, "No HEVC encoder for " + width + "x" + height + ", using H.264");
+                return withCodec(Codec.AVC).withBitRate(mBitRate * 2).resolve(width, height);
+            }
+            Log.w(TAG, "No " + mCodec + " encoder for " + width + "x" + height
+                    + " at " + mFrameRate + " fps, leaving the choice to MediaCodec");
+            return this;
+        }
+
+        MediaCodecInfo.CodecCapabilities caps = info.getCapabilitiesForType(mCodec.mimeType);
+        BitrateMode bitrateMode = mBitrateMode;
+        if (bitrateMode != null
+                && !caps.getEncoderCapabilities().isBitrateModeSupported(bitrateMode.value)) {
+            Log.w(TAG, info.getName() + " has no " + bitrateMode + " mode, using its default");
+            bitrateMode = null;
+        }
+        Range<Integer> bitRates = caps.getVideoCapabilities().getBitrateRange();
+        int bitRate = bitRates.clamp(mBitRate);
+
+        int profile = mProfile;
+        int level = mLevel;
+        if (profile != ANY && !supportsProfileLevel(caps, profile, level)) {
+            Log.w(TAG, info.getName() + " has no profile " + profile + " at level " + level
+                    + ", using its default");
+            profile = ANY;
+            level = ANY;
+        }
+
+        return new EncoderProfile(mCodec, bitrateMode, bitRate, mQuality, mKeyFrameIntervalSec,
+                mFrameRate, profile, level, mFragmentDurationMs, info.getName());
+    }
+
+    /**
+     * Returns the format to configure the encoder with, for input from a surface.
+     */
+    public MediaFormat createFormat(int width, int height) {
+        return createFormat(width, height, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+    }
+
+    /**
+     * Returns the format to configure the encoder with, for input in the given color format,
+     * e.g. {@code COLOR_FormatYUV420Flexible} for images copied in by the CPU.
+     */
+    public MediaFormat createFormat(int width, int height, int colorFormat) {
+        MediaFormat format = MediaFormat.createVideoFormat(mCodec.mimeType, width, height);
+
+        // Set some properties.  Failing to specify some of these can cause the MediaCodec
+        // configure() call to throw an unhelpful exception.
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mKeyFrameIntervalSec);
+        if (mBitrateMode != null) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, mBitrateMode.value);
+            if (mBitrateMode == BitrateMode.CQ) {
+                format.setInteger(KEY_QUALITY, mQuality);
+            }
+        }
+        if (mProfile != ANY) {
+            format.setInteger(MediaFormat.KEY_PROFILE, mProfile);
+            if (mLevel != ANY) {
+                format.setInteger(MediaFormat.KEY_LEVEL, mLevel);
+            }
+        }
+        return format;
+    }
+
+    /**
+     * Creates the encoder chosen by {@link #resolve}, or any encoder of the codec.
+     */
+    public MediaCodec createEncoder() throws IOException {
+        if (mEncoderName != null) {
+            return MediaCodec.createByCodecName(mEncoderName);
+        }
+        return MediaCodec.createEncoderByType(mCodec.mimeType);
+    }
+
+    private static MediaCodecInfo findEncoder(String mimeType, int width, int height,
+                                              int frameRate) {
+        MediaCodecList codecs = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : codecs.getCodecInfos()) {
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mimeType)
+                        && info.getCapabilitiesForType(type).getVideoCapabilities()
+                                .areSizeAndRateSupported(width, height, frameRate)) {
+                    return info;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean supportsProfileLevel(MediaCodecInfo.CodecCapabilities caps,
+                                                int profile, int level) {
+        for (MediaCodecInfo.CodecProfileLevel pl : caps.profileLevels) {
+            if (pl.profile == profile && (level == ANY || pl.level >= level)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mCodec).append(' ').append(mBitRate / 1000).append(" kbit/s");
+        sb.append(' ').append(mBitrateMode != null ? mBitrateMode.name() : "default mode");
+        sb.append(", ").append(mFrameRate).append(" fps, key frame every ")
+                .append(mKeyFrameIntervalSec).append(" s");
+        if (mProfile != ANY) {
+            sb.append(", profile ").append(mProfile).append(" level ").append(mLevel);
+        }
+        if (mFragmentDurationMs > 0) {
+            sb.append(", fragments of ").append(mFragmentDurationMs).append(" ms");
+        }
+        if (mEncoderName != null) {
+            sb.append(" (").append(mEncoderName).append(')');
+        }
+        return sb.toString();
+    }
+}
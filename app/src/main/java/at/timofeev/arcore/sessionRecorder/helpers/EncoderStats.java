@@ -0,0 +1,272 @@
+package at.timofeev.arcore.sessionRecorder.helpers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Telemetry of the encoder pipeline of one recording: whether the encoder thread keeps up
+ * with the GL thread, how long it spends drawing and in eglSwapBuffers(), how long a frame
+ * takes from being submitted to its sample being muxed, and how much was written.
+ * <p>
+ * Each event is reported by the thread it happens on: submits and drops by the GL thread,
+ * draws and swaps by the encoder thread, samples by the thread that drains the encoder, bitrate
+ * changes by the {@link BitrateController}.  None of the recorders allocate or lock.  The
+ * getters can be called at any time, and {@link #writeJson} dumps a summary once the recording
+ * is finished.
+ */
+public class EncoderStats {
+    // Submit times of frames not muxed yet; the encoder may lag at most a few frames behind.
+    private static final int PENDING_CAPACITY = 64;
+    // backlog[i] counts the submits that found i frames still waiting for the encoder thread;
+    // the last bucket also counts deeper backlogs.
+    private static final int BACKLOG_BUCKETS = 16;
+    // Bitrate changes kept for the summary; the controller makes at most one a second.
+    private static final int BITRATE_CHANGES_CAPACITY = 256;
+
+    private final long mLateThresholdNs;
+
+    private final LatencyHistogram mRenderLatency = new LatencyHistogram();
+    private final LatencyHistogram mSwapLatency = new LatencyHistogram();
+    private final LatencyHistogram mMuxLatency = new LatencyHistogram();
+    private final LatencyHistogram mEncodeLatency = new LatencyHistogram();
+    private final AtomicLongArray mBacklog = new AtomicLongArray(BACKLOG_BUCKETS);
+
+    // Single-producer/single-consumer ring of (presentation time, submit time) pairs, from the
+    // GL thread to the muxer.
+    private final long[] mPendingPtsUs = new long[PENDING_CAPACITY];
+    private final long[] mPendingSubmitNs = new long[PENDING_CAPACITY];
+    private final AtomicLong mPendingHead = new AtomicLong();
+    private final AtomicLong mPendingTail = new AtomicLong();
+
+    // Bitrate changes, at the presentation time of the last sample muxed before each.
+    private final long[] mBitRateChangePtsUs = new long[BITRATE_CHANGES_CAPACITY];
+    private final int[] mBitRateChanges = new int[BITRATE_CHANGES_CAPACITY];
+    private final String[] mBitRateChangeReasons = new String[BITRATE_CHANGES_CAPACITY];
+
+    // ----- each written by one thread only -----
+    private volatile long mSubmitted;
+    private volatile long mPreRolled;
+    private volatile long mDropped;
+    private volatile long mRendered;
+    private volatile long mMuxed;
+    private volatile long mKeyFrames;
+    private volatile long mLate;
+    private volatile long mLostByEncoder;
+    private volatile long mBytes;
+    private volatile long mFirstPtsUs = -1;
+    private volatile long mLastPtsUs = -1;
+    private volatile long mMaxBacklog;
+    private volatile int mBitRateChangeCount;
+
+    /**
+     * @param lateThresholdNs frames taking longer than this from submit to muxer are late.
+     */
+    public EncoderStats(long lateThresholdNs) {
+        mLateThresholdNs = lateThresholdNs;
+    }
+
+    /**
+     * A frame was handed to the encoder thread.  GL thread only.
+     */
+    public void frameSubmitted(long presentationTimeNs) {
+        long now = System.nanoTime();
+        long head = mPendingHead.get();
+        // If the ring is full the muxer is far behind anyway; that frame gets no latency.
+        if (head - mPendingTail.get() < PENDING_CAPACITY) {
+            int i = (int) (head % PENDING_CAPACITY);
+            mPendingPtsUs[i] = presentationTimeNs / 1000;
+            mPendingSubmitNs[i] = now;
+            mPendingHead.lazySet(head + 1);
+        }
+        long backlog = ++mSubmitted + mPreRolled - mRendered;
+        mBacklog.incrementAndGet((int) Math.min(Math.max(backlog - 1, 0), BACKLOG_BUCKETS - 1));
+        if (backlog > mMaxBacklog) {
+            mMaxBacklog = backlog;
+        }
+    }
+
+    /**
+     * A frame was handed to the encoder thread before the recording started, for the
+     * pre-roll.  It only counts towards the backlog.  GL thread only.
+     */
+    public void framePreRolled() {
+        mPreRolled++;
+    }
+
+    /**
+     * A frame was left out of the video because the encoder thread held every frame of the
+     * ring.  GL thread only.
+     */
+    public void frameDropped() {
+        mDropped++;
+    }
+
+    /**
+     * The encoder thread drew a frame into the input surface and submitted it.  Encoder thread
+     * only.  For camera images copied in by the CPU, renderNs is the copy and swapNs the wait
+     * for an input buffer.
+     */
+    public void frameRendered(long renderNs, long swapNs) {
+        mRenderLatency.record(renderNs);
+        mSwapLatency.record(swapNs);
+        mRendered++;
+    }
+
+    /**
+     * A video sample was written to the muxer.  Muxer thread only.
+     */
+    void sampleMuxed(long presentationTimeUs, int size, boolean keyFrame, long writeNs) {
+        long now = System.nanoTime();
+        mMuxLatency.record(writeNs);
+        mMuxed++;
+        if (keyFrame) {
+            mKeyFrames++;
+        }
+        mBytes += size;
+        if (mFirstPtsUs < 0) {
+            mFirstPtsUs = presentationTimeUs;
+        }
+        mLastPtsUs = presentationTimeUs;
+
+        // Frames before this one that never came out were dropped by the codec.
+        long tail = mPendingTail.get();
+        long head = mPendingHead.get();
+        while (tail != head) {
+            int i = (int) (tail % PENDING_CAPACITY);
+            long ptsUs = mPendingPtsUs[i];
+            if (ptsUs > presentationTimeUs) {
+                break;
+            }
+            tail++;
+            if (ptsUs < presentationTimeUs) {
+                mLostByEncoder++;
+                continue;
+            }
+            long latency = now - mPendingSubmitNs[i];
+            mEncodeLatency.record(latency);
+            if (latency > mLateThresholdNs) {
+                mLate++;
+            }
+            break;
+        }
+        mPendingTail.lazySet(tail);
+    }
+
+    /**
+     * The bitrate of the encoder was changed.  Bitrate controller thread only.
+     *
+     * @param reason why, a constant string.
+     */
+    public void bitRateChanged(int bitRate, String reason) {
+        int n = mBitRateChangeCount;
+        if (n < BITRATE_CHANGES_CAPACITY) {
+            mBitRateChangePtsUs[n] = mLastPtsUs;
+            mBitRateChanges[n] = bitRate;
+            mBitRateChangeReasons[n] = reason;
+            mBitRateChangeCount = n + 1;
+        }
+    }
+
+    public long getSubmittedFrames() {
+        return mSubmitted;
+    }
+
+    public long getDroppedFrames() {
+        return mDropped;
+    }
+
+    public long getLateFrames() {
+        return mLate;
+    }
+
+    public long getMuxedSamples() {
+        return mMuxed;
+    }
+
+    public long getMuxedBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the number of frames submitted but not drawn by the encoder thread yet.
+     */
+    public long getBacklog() {
+        return mSubmitted + mPreRolled - mRendered;
+    }
+
+    /**
+     * Returns the muxed video bitrate in bits per second of presentation time.
+     */
+    public long getBitRate() {
+        long durationUs = mLastPtsUs - mFirstPtsUs;
+        return durationUs > 0 ? mBytes * 8 * 1000000 / durationUs : 0;
+    }
+
+    /**
+     * Returns the time from submitting a frame to writing its sample.
+     */
+    public LatencyHistogram getEncodeLatency() {
+        return mEncodeLatency;
+    }
+
+    public LatencyHistogram getSwapLatency() {
+        return mSwapLatency;
+    }
+
+    /**
+     * Returns the time spent in MediaMuxer.writeSampleData(), i.e. storage speed.
+     */
+    public LatencyHistogram getMuxLatency() {
+        return mMuxLatency;
+    }
+
+    public String toJson() {
+        StringBuilder out = new StringBuilder(2048);
+        out.append(String.format(Locale.US, "{\n  \"submittedFrames\": %d,\n"
+                        + "  \"droppedFrames\": %d,\n  \"lostByEncoder\": %d,\n"
+                        + "  \"lateFrames\": %d,\n  \"lateThresholdMs\": %.3f,\n"
+                        + "  \"muxedSamples\": %d,\n  \"keyFrames\": %d,\n"
+                        + "  \"muxedBytes\": %d,\n  \"bitRate\": %d,\n  \"maxBacklog\": %d,\n",
+                mSubmitted, mDropped, mLostByEncoder, mLate, mLateThresholdNs / 1e6, mMuxed,
+                mKeyFrames, mBytes, getBitRate(), mMaxBacklog));
+        out.append("  \"backlog\": [");
+        for (int i = 0; i < BACKLOG_BUCKETS; i++) {
+            out.append(i > 0 ? ", " : "").append(mBacklog.get(i));
+        }
+        out.append("],\n  \"bitRateChanges\": [");
+        for (int i = 0; i < mBitRateChangeCount; i++) {
+            out.append(i > 0 ? ", " : "").append(String.format(Locale.US,
+                    "{\"ptsUs\": %d, \"bitRate\": %d, \"reason\": \"%s\"}",
+                    mBitRateChangePtsUs[i], mBitRateChanges[i], mBitRateChangeReasons[i]));
+        }
+        out.append("],\n  \"renderLatency\": ");
+        mRenderLatency.appendJson(out);
+        out.append(",\n  \"swapLatency\": ");
+        mSwapLatency.appendJson(out);
+        out.append(",\n  \"muxLatency\": ");
+        mMuxLatency.appendJson(out);
+        out.append(",\n  \"encodeLatency\": ");
+        mEncodeLatency.appendJson(out);
+        out.append("\n}\n");
+        return out.toString();
+    }
+
+    public void writeJson(File file) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(toJson().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d submitted, %d dropped, %d late, backlog %d, "
+                        + "encode %s, swap %s, %d kbit/s", mSubmitted, mDropped, mLate,
+                getBacklog(), mEncodeLatency, mSwapLatency, getBitRate() / 1000);
+    }
+}
@@ -0,0 +1,109 @@
+package at.timofeev.arcore.sessionRecorder.helpers;
+
+import android.graphics.Bitmap;
+
+/**
+ * Settings for recording the frames as a sequence of image files instead of a video: the
+ * format, its quality, how many threads compress and write them, and what happens when those
+ * fall behind.
+ * <p>
+ * Immutable; the {@code with...} methods return modified copies.
+ */
+public final class ImageSequence {
+    public enum Format {
+        JPEG(Bitmap.CompressFormat.JPEG, "jpg"),
+        /** Lossless, the quality is ignored.  Much slower to compress than JPEG. */
+        PNG(Bitmap.CompressFormat.PNG, "png");
+
+        public final Bitmap.CompressFormat compressFormat;
+        public final String extension;
+
+        Format(Bitmap.CompressFormat compressFormat, String extension) {
+            this.compressFormat = compressFormat;
+            this.extension = extension;
+        }
+    }
+
+    public enum Backpressure {
+        /**
+         * Wait for a free buffer.  The wait backs up into the frame ring, so frames are left out
+         * on the GL thread instead, which never stalls.
+         */
+        BLOCK,
+        /** Drop the frame being read back. */
+        DROP
+    }
+
+    private final Format mFormat;
+    private final int mQuality;
+    private final int mWorkers;
+    private final Backpressure mBackpressure;
+
+    /**
+     * @param quality JPEG quality from 0 to 100.
+     */
+    public ImageSequence(Format format, int quality) {
+        this(format, quality, Math.max(1, Runtime.getRuntime().availableProcessors() - 2),
+                Backpressure.BLOCK);
+    }
+
+    private ImageSequence(Format format, int quality, int workers, Backpressure backpressure) {
+        mFormat = format;
+        mQuality = Math.max(0, Math.min(100, quality));
+        mWorkers = workers;
+        mBackpressure = backpressure;
+    }
+
+    /**
+     * Returns the settings for "jpeg" or "png", or null for any other name.
+     */
+    public static ImageSequence forName(String name, int quality) {
+        if ("jpeg".equals(name) || "jpg".equals(name)) {
+            return new ImageSequence(Format.JPEG, quality);
+        } else if ("png".equals(name)) {
+            return new ImageSequence(Format.PNG, quality);
+        }
+        return null;
+    }
+
+    public ImageSequence withWorkers(int workers) {
+        return new ImageSequence(mFormat, mQuality, Math.max(1, workers), mBackpressure);
+    }
+
+    public ImageSequence withBackpressure(Backpressure backpressure) {
+        return new ImageSequence(mFormat, mQuality, mWorkers, backpressure);
+    }
+
+    public Format getFormat() {
+        return mFormat;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Returns the number of threads compressing and writing images.
+     */
+    public int getWorkers() {
+        return mWorkers;
+    }
+
+    /**
+     * Returns the number of pooled frame buffers: each worker can compress one while another
+     * waits for it.
+     */
+    public int getBuffers() {
+        return mWorkers * 2;
+    }
+
+    public Backpressure getBackpressure() {
+        return mBackpressure;
+    }
+
+    @Override
+    public String toString() {
+        return mFormat + (mFormat == Format.JPEG ? " q" + mQuality : "") + ", " + mWorkers
+                + " workers, " + mBackpressure;
+    }
+}
@@ -0,0 +1,321 @@
+package at.timofeev.arcore.sessionRecorder.helpers;
+
+import android.graphics.Bitmap;
+import android.graphics.PixelFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import at.timofeev.arcore.sessionRecorder.app.ArpActivity;
+
+/**
+ * Writes every frame as an image file instead of encoding a video, for tools that want the
+ * frames one by one and would otherwise extract them from the video again.
+ * <p>
+ * Driven by {@link TextureMovieEncoder2} like the video encoder cores: the encoder thread draws
+ * the frames into the surface of an {@link ImageReader}.  A reader thread copies each image
+ * into a pooled {@link Bitmap} and hands it to a fixed pool of workers, which compress it and
+ * write {@code <frameId>-<timestampNs>.<ext>} into the output directory, with the frame id
+ * from {@link #expectFrame} and the camera timestamp.  Frames without an id get -1.
+ * <p>
+ * Bitmaps, staging buffers and the workers' tasks are all preallocated.  When every bitmap is
+ * in use, the reader thread waits or drops the frame, see {@link ImageSequence.Backpressure}.
+ */
+public class ImageSequenceCore implements EncoderCore {
+    private static final String TAG = ArpActivity.TAG;
+
+    // Frame ids of frames not read back yet; the encoder lags at most a few frames behind.
+    private static final int PENDING_CAPACITY = 64;
+    // How long the end of stream waits for the last frames to arrive from the surface.
+    private static final long END_OF_STREAM_TIMEOUT_MS = 2000;
+
+    private final File mDirectory;
+    private final ImageSequence mSettings;
+    private final int mWidth;
+    private final int mHeight;
+
+    private final HandlerThread mReaderThread;
+    private final ImageReader mReader;
+    private final ThreadPoolExecutor mWorkers;
+    private final ArrayBlockingQueue<Task> mFree;
+
+    // Single-producer/single-consumer ring of (presentation time, frame id) pairs, from the GL
+    // thread to the reader thread.
+    private final long[] mPendingPtsNs = new long[PENDING_CAPACITY];
+    private final int[] mPendingFrameIds = new int[PENDING_CAPACITY];
+    private final AtomicLong mPendingHead = new AtomicLong();
+    private final AtomicLong mPendingTail = new AtomicLong();
+
+    // Set at the end of stream; images arriving after that are dropped.
+    private volatile boolean mStopped;
+
+    // ----- guarded by mLock -----
+    private final Object mLock = new Object();
+    private long mExpected;
+    private long mRead;
+    private long mDropped;
+    private long mWritten;
+    private long mFailed;
+
+    /**
+     * @param directory where the images go, created if needed.
+     */
+    public ImageSequenceCore(int width, int height, File directory, ImageSequence settings)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        mDirectory = directory;
+        mSettings = settings;
+        mWidth = width;
+        mHeight = height;
+
+        int buffers = settings.getBuffers();
+        mFree = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            mFree.add(new Task());
+        }
+        // Never more tasks than bitmaps, so the queue never rejects one.
+        mWorkers = new ThreadPoolExecutor(settings.getWorkers(), settings.getWorkers(),
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(buffers));
+
+        mReaderThread = new HandlerThread("ImageSequenceReader");
+        mReaderThread.start();
+        mReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);
+        mReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                readImage(reader);
+            }
+        }, new Handler(mReaderThread.getLooper()));
+    }
+
+    @Override
+    public Surface getInputSurface() {
+        return mReader.getSurface();
+    }
+
+    /**
+     * Tells which frame will arrive with the given presentation time.  Call on the GL thread
+     * before handing the frame to the encoder thread.
+     */
+    public void expectFrame(long presentationTimeNs, int frameId) {
+        long head = mPendingHead.get();
+        if (head - mPendingTail.get() < PENDING_CAPACITY) {
+            int i = (int) (head % PENDING_CAPACITY);
+            mPendingPtsNs[i] = presentationTimeNs;
+            mPendingFrameIds[i] = frameId;
+            mPendingHead.lazySet(head + 1);
+        }
+        synchronized (mLock) {
+            mExpected++;
+        }
+    }
+
+    private int takeFrameId(long presentationTimeNs) {
+        long tail = mPendingTail.get();
+        long head = mPendingHead.get();
+        int frameId = -1;
+        while (tail != head) {
+            int i = (int) (tail % PENDING_CAPACITY);
+            if (mPendingPtsNs[i] > presentationTimeNs) {
+                break;
+            }
+            tail++;
+            if (mPendingPtsNs[i] == presentationTimeNs) {
+                frameId = mPendingFrameIds[i];
+                break;
+            }
+        }
+        mPendingTail.lazySet(tail);
+        return frameId;
+    }
+
+    private void readImage(ImageReader reader) {
+        Image image = reader.acquireNextImage();
+        if (image == null) {
+            return;
+        }
+        try {
+            Task task;
+            if (mStopped) {
+                // Arrived after the end of stream gave up waiting for it.
+                task = null;
+            } else if (mSettings.getBackpressure() == ImageSequence.Backpressure.BLOCK) {
+                task = mFree.take();
+            } else {
+                task = mFree.poll();
+            }
+            if (task == null) {
+                dropImage(image);
+                return;
+            }
+            task.timestampNs = image.getTimestamp();
+            task.frameId = takeFrameId(task.timestampNs);
+            task.copyFrom(image);
+            try {
+                mWorkers.execute(task);
+            } catch (RejectedExecutionException e) {
+                // The end of stream shut the workers down while this image was copied.
+                mFree.add(task);
+                dropImage(image);
+                return;
+            }
+            synchronized (mLock) {
+                mRead++;
+                mLock.notifyAll();
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Image sequence reader interrupted");
+            dropImage(image);
+        } finally {
+            image.close();
+        }
+    }
+
+    private void dropImage(Image image) {
+        takeFrameId(image.getTimestamp());
+        synchronized (mLock) {
+            mRead++;
+            mDropped++;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Images are written as they arrive.  With endOfStream set, waits until every expected
+     * frame has arrived and been written.
+     */
+    @Override
+    public void drainEncoder(boolean endOfStream) {
+        if (!endOfStream) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + END_OF_STREAM_TIMEOUT_MS;
+        synchronized (mLock) {
+            long wait;
+            while (mRead < mExpected && (wait = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    mLock.wait(wait);
+                } catch (InterruptedException ie) {
+                    // ignore
+                }
+            }
+            if (mRead < mExpected) {
+                Log.w(TAG, (mExpected - mRead) + " frames never arrived from the surface");
+            }
+        }
+        mStopped = true;
+        mWorkers.shutdown();
+        try {
+            mWorkers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while writing the last images");
+        }
+        synchronized (mLock) {
+            Log.d(TAG, "image sequence " + mDirectory.getName() + ": " + mWritten
+                    + " written, " + mDropped + " dropped, " + mFailed + " failed");
+        }
+    }
+
+    @Override
+    public void requestKeyFrame() {
+        // Every image stands on its own.
+    }
+
+    @Override
+    public void setBitRate(int bitRate) {
+        // Images are compressed at a fixed quality.
+    }
+
+    @Override
+    public void release() {
+        mStopped = true;
+        // Wakes a reader waiting for a bitmap with BLOCK; the workers that would return one may
+        // be gone.  The reader has to be done with its image before the ImageReader closes.
+        mReaderThread.quit();
+        mReaderThread.interrupt();
+        try {
+            mReaderThread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while stopping the image sequence reader");
+        }
+        mWorkers.shutdownNow();
+        mReader.close();
+    }
+
+    /**
+     * A pooled frame: its bitmap and the work of compressing and writing it.
+     */
+    private final class Task implements Runnable {
+        final Bitmap bitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        // Tightly packed copy of images whose rows are padded, allocated on first use.
+        ByteBuffer staging;
+        long timestampNs;
+        int frameId;
+
+        /**
+         * Copies the pixels of an RGBA image into the bitmap, whose memory layout is the same.
+         */
+        void copyFrom(Image image) {
+            Image.Plane plane = image.getPlanes()[0];
+            ByteBuffer pixels = plane.getBuffer();
+            int rowBytes = mWidth * 4;
+            if (plane.getRowStride() != rowBytes) {
+                if (staging == null) {
+                    staging = ByteBuffer.allocateDirect(rowBytes * mHeight);
+                }
+                staging.clear();
+                int base = pixels.position();
+                int limit = pixels.limit();
+                for (int y = 0; y < mHeight; y++) {
+                    int row = base + y * plane.getRowStride();
+                    pixels.limit(row + rowBytes);
+                    pixels.position(row);
+                    staging.put(pixels);
+                    pixels.limit(limit);
+                }
+                staging.flip();
+                pixels = staging;
+            }
+            bitmap.copyPixelsFromBuffer(pixels);
+        }
+
+        @Override
+        public void run() {
+            File file = new File(mDirectory, String.format(Locale.US, "%06d-%d.%s",
+                    frameId, timestampNs, mSettings.getFormat().extension));
+            boolean written = false;
+            // compress() buffers its writes itself.
+            try (OutputStream out = new FileOutputStream(file)) {
+                written = bitmap.compress(mSettings.getFormat().compressFormat,
+                        mSettings.getQuality(), out);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write " + file, e);
+            }
+            synchronized (mLock) {
+                if (written) {
+                    mWritten++;
+                } else {
+                    mFailed++;
+                }
+            }
+            mFree.add(this);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package at.timofeev.arcore.sessionRecorder.helpers;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with power-of-two buckets in microseconds: bucket 0 counts
+ * everything below 1us, bucket i durations of [2^(i-1), 2^i) us, and the last one everything
+ * above.  Percentiles are therefore only accurate to a factor of two, which is plenty to tell a
+ * 2ms swap from a 30ms one.
+ * <p>
+ * {@link #record} doesn't allocate or lock and may be called from any thread; the getters can
+ * be called at any time and see a consistent enough snapshot for live display.
+ */
+public class LatencyHistogram {
+    // The last bucket starts at 2^(BUCKETS-2)us, about 17s.
+    private static final int BUCKETS = 26;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumNs = new AtomicLong();
+    private final AtomicLong mMaxNs = new AtomicLong();
+
+    public void record(long durationNs) {
+        long us = Math.max(durationNs, 0) / 1000;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(us), BUCKETS - 1);
+        mBuckets.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mSumNs.addAndGet(durationNs);
+        long max;
+        while (durationNs > (max = mMaxNs.get()) && !mMaxNs.compareAndSet(max, durationNs)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMeanNs() {
+        long count = mCount.get();
+        return count > 0 ? mSumNs.get() / count : 0;
+    }
+
+    /**
+     * Returns the total of all durations recorded.
+     */
+    public long getSumNs() {
+        return mSumNs.get();
+    }
+
+    public long getMaxNs() {
+        return mMaxNs.get();
+    }
+
+    /**
+     * Returns the upper end of the bucket the given fraction of the durations fall into, e.g.
+     * 0.99 for the 99th percentile.  0 if nothing was recorded.
+     */
+    public long getPercentileNs(double fraction) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return Math.min((1L << i) * 1000, getMaxNs());
+            }
+        }
+        return getMaxNs();
+    }
+
+    /**
+     * Appends the histogram as a JSON object, in milliseconds.  Buckets are keyed by their
+     * upper end, empty ones are left out.
+     */
+    public void appendJson(StringBuilder out) {
+        out.append(String.format(Locale.US,
+                "{\"count\": %d, \"meanMs\": %.3f, \"p50Ms\": %.3f, \"p90Ms\": %.3f, "
+                        + "\"p99Ms\": %.3f, \"maxMs\": %.3f, \"buckets\": {",
+                getCount(), getMeanNs() / 1e6, getPercentileNs(0.5) / 1e6,
+                getPercentileNs(0.9) / 1e6, getPercentileNs(0.99) / 1e6, getMaxNs() / 1e6));
+        boolean first = true;
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = mBuckets.get(i);
+            if (n == 0) {
+                continue;
+            }
+            if (!first) {
+                out.append(", ");
+            }
+            first = false;
+            String bound = i < BUCKETS - 1
+                    ? String.format(Locale.US, "%.3f", (1L << i) / 1000.0) : "inf";
+            out.append("\"<").append(bound).append("\": ").append(n);
+        }
+        out.append("}}");
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "n=%d mean=%.2fms p99<=%.2fms max=%.2fms", getCount(),
+                getMeanNs() / 1e6, getPercentileNs(0.99) / 1e6, getMaxNs() / 1e6);
+    }
+}
@@ -0,0 +1,100 @@
+package at.timofeev.arcore.sessionRecorder.helpers;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import at.timofeev.arcore.sessionRecorder.poses.PoseMetadataFormat;
+import at.timofeev.arcore.sessionRecorder.poses.PoseSample;
+
+/**
+ * Hands the pose of every submitted frame from the GL thread to the muxer, which writes it to
+ * the pose metadata track next to the frame's video sample.
+ * <p>
+ * A single-producer/single-consumer ring of preallocated records in the
+ * {@link PoseMetadataFormat} layout.  The GL thread never waits: if the muxer falls that far
+ * behind, the record is dropped and counted.
+ */
+public class PoseMetadataQueue {
+    private final ByteBuffer[] mSlots;
+    private final long[] mPresentationTimesUs;
+    private final int mMask;
+
+    // Next sequence number to publish; only advanced by the GL thread.
+    private final AtomicLong mHead = new AtomicLong();
+    // Next sequence number to mux; only advanced by the muxer thread.
+    private final AtomicLong mTail = new AtomicLong();
+
+    private volatile long mDroppedCount;
+
+    /**
+     * @param capacity number of records the ring can hold, rounded up to a power of two.
+     */
+    public PoseMetadataQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mSlots = new ByteBuffer[size];
+        for (int i = 0; i < size; i++) {
+            // MediaMuxer reads direct buffers without a copy.
+            mSlots[i] = ByteBuffer.allocateDirect(PoseMetadataFormat.RECORD_SIZE);
+        }
+        mPresentationTimesUs = new long[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Queues the record of a frame that was handed to the encoder.  GL thread only.
+     *
+     * @return false if the ring was full and the record was dropped.
+     */
+    public boolean offer(PoseSample sample) {
+        long head = mHead.get();
+        if (head - mTail.get() > mMask) {
+            mDroppedCount++;
+            return false;
+        }
+        int slot = (int) head & mMask;
+        PoseMetadataFormat.encode(mSlots[slot], 0, sample);
+        mPresentationTimesUs[slot] = sample.presentationTimeNs / 1000;
+        mHead.lazySet(head + 1);
+        return true;
+    }
+
+    /**
+     * Returns the sample time of the oldest queued record, or -1 if there is none.  Muxer
+     * thread only.
+     */
+    long peekPresentationTimeUs() {
+        long tail = mTail.get();
+        if (tail == mHead.get()) {
+            return -1;
+        }
+        return mPresentationTimesUs[(int) tail & mMask];
+    }
+
+    /**
+     * Returns the oldest queued record, positioned for writing, or null.  It stays valid
+     * until {@link #remove}.  Muxer thread only.
+     */
+    ByteBuffer peek() {
+        long tail = mTail.get();
+        if (tail == mHead.get()) {
+            return null;
+        }
+        ByteBuffer record = mSlots[(int) tail & mMask];
+        record.clear();
+        return record;
+    }
+
+    /**
+     * Frees the oldest queued record.  Muxer thread only.
+     */
+    void remove() {
+        mTail.lazySet(mTail.get() + 1);
+    }
+
+    /**
+     * Returns how many records were dropped because the ring was full.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+}
@@ -0,0 +1,42 @@
+package at.timofeev.arcore.sessionRecorder.helpers;
+
+/**
+ * Settings for keeping the last seconds before a recording starts: how far back, and how much
+ * memory the encoded samples may take at most.  Whichever limit is hit first wins.
+ * <p>
+ * Immutable.
+ */
+public final class PreRoll {
+    private final int mSeconds;
+    private final int mMaxBytes;
+
+    /**
+     * @param seconds how much to keep, at least.  The buffer is trimmed a group of pictures
+     *     at a time, so it may hold up to a key frame interval more.
+     * @param megabytes the memory cap of the buffer.
+     */
+    public PreRoll(int seconds, int megabytes) {
+        if (seconds <= 0 || megabytes <= 0) {
+            throw new IllegalArgumentException("Pre-roll needs a duration and memory");
+        }
+        mSeconds = seconds;
+        mMaxBytes = megabytes * 1024 * 1024;
+    }
+
+    public int getSeconds() {
+        return mSeconds;
+    }
+
+    public long getDurationUs() {
+        return mSeconds * 1000000L;
+    }
+
+    public int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return mSeconds + "s, " + mMaxBytes / (1024 * 1024) + "MB";
+    }
+}
@@ -0,0 +1,227 @@
+package at.timofeev.arcore.sessionRecorder.helpers;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds the encoded samples of the last seconds before a recording starts, with their pose
+ * records, for {@link SegmentedMuxer} to write first once it does.
+ * <p>
+ * The samples are copied into one preallocated direct buffer used as a ring, and always start
+ * at a key frame: when the buffer holds more than the pre-roll duration, or a new sample
+ * doesn't fit, the oldest group of pictures is dropped as a whole, along with the pose records
+ * before its successor's key frame.
+ * <p>
+ * The muxer thread appends; {@link #freeze} is called by whoever starts the recording.  From
+ * then on the contents no longer change, and the muxer writes them out on its next sample.
+ */
+public class PreRollBuffer {
+    // Samples and pose records held at most, enough for half a minute at 120fps.
+    private static final int MAX_ENTRIES = 8192;
+
+    private final long mDurationUs;
+    private final ByteBuffer mData;
+
+    // Ring of entries, oldest at mHead.
+    private final int[] mOffsets = new int[MAX_ENTRIES];
+    private final int[] mSizes = new int[MAX_ENTRIES];
+    private final long[] mPresentationTimesUs = new long[MAX_ENTRIES];
+    private final int[] mFlags = new int[MAX_ENTRIES];
+    private final boolean[] mMetadata = new boolean[MAX_ENTRIES];
+
+    // ----- guarded by this until frozen, then muxer thread only -----
+    private int mHead;
+    private int mCount;
+    private int mWritePosition;
+    private int mKeyFrames;
+    private long mDropped;
+    private volatile boolean mFrozen;
+
+    /**
+     * @param durationUs how much to hold at least, if the memory allows.
+     * @param capacity the memory cap in bytes.
+     */
+    public PreRollBuffer(long durationUs, int capacity) {
+        mDurationUs = durationUs;
+        mData = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Copies a video sample or pose record into the buffer, dropping old ones to make room.
+     * Pose records must be appended before the video sample with the same time.  Muxer thread
+     * only.
+     *
+     * @return false if the buffer is frozen; nothing was appended then.
+     */
+    public synchronized boolean append(boolean metadata, ByteBuffer data, long presentationTimeUs,
+                                       int flags) {
+        if (mFrozen) {
+            return false;
+        }
+        boolean keyFrame = !metadata && (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (keyFrame && mKeyFrames == 0) {
+            // Nothing before the first key frame can be decoded.
+            dropBefore(presentationTimeUs);
+        } else if (!metadata && mKeyFrames == 0) {
+            mDropped++;
+            return true;
+        }
+        if (!metadata) {
+            long second;
+            while ((second = getSecondKeyFrameUs()) >= 0
+                    && presentationTimeUs - second >= mDurationUs) {
+                dropBefore(second);
+            }
+        }
+
+        int size = data.remaining();
+        int offset;
+        while ((offset = allocate(size)) < 0) {
+            long second = getSecondKeyFrameUs();
+            if (second >= 0) {
+                dropBefore(second);
+            } else {
+                // A single group of pictures is larger than the buffer, start over.
+                dropBefore(Long.MAX_VALUE);
+                if (keyFrame && size <= mData.capacity()) {
+                    continue;
+                }
+                if (!metadata) {
+                    mDropped++;
+                }
+                return true;
+            }
+        }
+
+        int position = data.position();
+        mData.limit(offset + size);
+        mData.position(offset);
+        mData.put(data);
+        data.position(position);
+        mWritePosition = offset + size;
+
+        int i = (mHead + mCount) % MAX_ENTRIES;
+        mOffsets[i] = offset;
+        mSizes[i] = size;
+        mPresentationTimesUs[i] = presentationTimeUs;
+        mFlags[i] = flags;
+        mMetadata[i] = metadata;
+        mCount++;
+        if (keyFrame) {
+            mKeyFrames++;
+        }
+        return true;
+    }
+
+    /**
+     * Returns where a sample of the given size can be stored, or -1 if it doesn't fit without
+     * dropping older ones.
+     */
+    private int allocate(int size) {
+        if (mCount == MAX_ENTRIES) {
+            return -1;
+        }
+        if (mCount == 0) {
+            return size <= mData.capacity() ? 0 : -1;
+        }
+        int start = mOffsets[mHead];
+        if (mWritePosition > start) {
+            if (size <= mData.capacity() - mWritePosition) {
+                return mWritePosition;
+            }
+            // Wrap around, leaving the end unused.  Never catch up with the oldest sample
+            // completely, or an empty buffer couldn't be told from a full one.
+            return size < start ? 0 : -1;
+        }
+        return size < start - mWritePosition ? mWritePosition : -1;
+    }
+
+    private long getSecondKeyFrameUs() {
+        boolean first = false;
+        for (int n = 0; n < mCount; n++) {
+            int i = (mHead + n) % MAX_ENTRIES;
+            if (!mMetadata[i] && (mFlags[i] & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                if (first) {
+                    return mPresentationTimesUs[i];
+                }
+                first = true;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Drops everything older than the given time.
+     */
+    private void dropBefore(long presentationTimeUs) {
+        while (mCount > 0 && mPresentationTimesUs[mHead] < presentationTimeUs) {
+            if (!mMetadata[mHead]) {
+                mDropped++;
+                if ((mFlags[mHead] & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                    mKeyFrames--;
+                }
+            }
+            mHead = (mHead + 1) % MAX_ENTRIES;
+            mCount--;
+        }
+        if (mCount == 0) {
+            mWritePosition = 0;
+        }
+    }
+
+    /**
+     * Stops the buffer from changing, for the recording to start with what it holds.
+     *
+     * @return the time of the first video sample in microseconds, or -1 if there is none.
+     */
+    public synchronized long freeze() {
+        mFrozen = true;
+        if (mKeyFrames == 0) {
+            // Only pose records of frames that were dropped.
+            dropBefore(Long.MAX_VALUE);
+        }
+        for (int n = 0; n < mCount; n++) {
+            int i = (mHead + n) % MAX_ENTRIES;
+            if (!mMetadata[i]) {
+                return mPresentationTimesUs[i];
+            }
+        }
+        return -1;
+    }
+
+    public boolean isFrozen() {
+        return mFrozen;
+    }
+
+    /**
+     * Returns the number of entries, video samples and pose records.  Once frozen, muxer
+     * thread only.
+     */
+    int size() {
+        return mCount;
+    }
+
+    boolean isMetadata(int index) {
+        return mMetadata[(mHead + index) % MAX_ENTRIES];
+    }
+
+    /**
+     * Returns the buffer holding an entry, and describes the entry in info.  The buffer is
+     * only valid until the next call.  Once frozen, muxer thread only.
+     */
+    ByteBuffer get(int index, MediaCodec.BufferInfo info) {
+        int i = (mHead + index) % MAX_ENTRIES;
+        info.set(mOffsets[i], mSizes[i], mPresentationTimesUs[i], mFlags[i]);
+        mData.limit(mOffsets[i] + mSizes[i]);
+        mData.position(mOffsets[i]);
+        return mData;
+    }
+
+    /**
+     * Returns how many video samples were dropped for being too old or not fitting.
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+}
@@ -0,0 +1,182 @@
+package at.timofeev.arcore.sessionRecorder.helpers;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import at.timofeev.arcore.sessionRecorder.app.ArpActivity;
+
+/**
+ * Splits a recording into segments of bounded duration and size, each a complete MP4 with its
+ * own pose log: {@code video-<id>-000.mp4} with {@code poses-<id>-000.<ext>}, and so on.  A
+ * crash loses at most the segment being written, and finished segments can be uploaded while
+ * recording continues.
+ * <p>
+ * Segment boundaries are decided on the GL thread, by {@link #beginsSegment} for every frame
+ * handed to the encoder, so the pose log can be switched at exactly that frame.  The encoder
+ * is asked for a key frame there, and {@link SegmentedMuxer} starts the next MP4 at the first
+ * key frame at or after the boundary.  That is the boundary frame itself unless the encoder
+ * ignores the request, in which case the video switches at its next regular key frame; the
+ * presentation times in the pose logs still map every pose to its video sample.
+ * <p>
+ * Every finished segment is appended to the manifest {@code video-<id>.segments}, one line of
+ * {@code index videoFile poseFile firstPtsUs lastPtsUs samples bytes}, synced to storage before
+ * the next segment starts.
+ * <p>
+ * A proxy video recorded along with the main one gets segments of its own from
+ * {@link #createProxy}, {@code video-<id>-proxy-000.mp4} and so on, which switch at the same
+ * frames and share the pose logs.
+ */
+public class RecordingSegments {
+    private static final String TAG = ArpActivity.TAG;
+
+    private final File mDirectory;
+    private final String mId;
+    private final String mVideoName;
+    private final String mPoseExtension;
+    private final long mMaxDurationNs;
+    private final long mMaxBytes;
+
+    // Presentation times of boundaries the muxer hasn't switched at yet.
+    private final ConcurrentLinkedQueue<Long> mBoundaries = new ConcurrentLinkedQueue<>();
+    private RecordingSegments mProxy;
+    // Bytes written into the current video segment.
+    private final AtomicLong mSegmentBytes = new AtomicLong();
+
+    // ----- accessed by the GL thread -----
+    private int mIndex;
+    private long mSegmentStartNs = -1;
+
+    /**
+     * @param id the part of the file names shared by all segments.
+     * @param maxDurationSec starts a new segment after this many seconds, 0 for no limit.
+     * @param maxBytes starts a new segment once the video segment has this size, 0 for no limit.
+     */
+    public RecordingSegments(File directory, String id, String poseExtension,
+                             int maxDurationSec, long maxBytes) {
+        this(directory, id, "video-" + id, poseExtension, maxDurationSec, maxBytes);
+    }
+
+    private RecordingSegments(File directory, String id, String videoName, String poseExtension,
+                              int maxDurationSec, long maxBytes) {
+        mDirectory = directory;
+        mId = id;
+        mVideoName = videoName;
+        mPoseExtension = poseExtension;
+        mMaxDurationNs = maxDurationSec * 1000000000L;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the segments of a proxy video, which follow the boundaries of these.  Call
+     * before the first frame.
+     */
+    public RecordingSegments createProxy() {
+        mProxy = new RecordingSegments(mDirectory, mId, "video-" + mId + "-proxy",
+                mPoseExtension, 0, 0);
+        return mProxy;
+    }
+
+    /**
+     * Returns the segments created by {@link #createProxy}, or null.
+     */
+    public RecordingSegments getProxy() {
+        return mProxy;
+    }
+
+    public File getVideoFile(int index) {
+        return new File(mDirectory, String.format(Locale.US, "%s-%03d.mp4", mVideoName, index));
+    }
+
+    public File getPoseFile(int index) {
+        return new File(mDirectory,
+                String.format(Locale.US, "poses-%s-%03d.%s", mId, index, mPoseExtension));
+    }
+
+    public File getPoseIndexFile(int index) {
+        return new File(mDirectory, String.format(Locale.US, "poses-%s-%03d.idx", mId, index));
+    }
+
+    public File getManifestFile() {
+        return new File(mDirectory, mVideoName + ".segments");
+    }
+
+    /**
+     * Returns the segment the last frame passed to {@link #beginsSegment} belongs to.  GL
+     * thread only.
+     */
+    public int getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * Decides whether a frame handed to the encoder starts a new segment.  GL thread only.
+     *
+     * @return true if the frame is the first of a new segment, other than the first one.
+     */
+    public boolean beginsSegment(long presentationTimeNs) {
+        if (mSegmentStartNs < 0) {
+            mSegmentStartNs = presentationTimeNs;
+            return false;
+        }
+        // Wait for the muxer to catch up with the last boundary, its byte count is still
+        // the previous segment's.
+        if (!mBoundaries.isEmpty()) {
+            return false;
+        }
+        boolean full = (mMaxDurationNs > 0
+                && presentationTimeNs - mSegmentStartNs >= mMaxDurationNs)
+                || (mMaxBytes > 0 && mSegmentBytes.get() >= mMaxBytes);
+        if (!full) {
+            return false;
+        }
+        mIndex++;
+        mSegmentStartNs = presentationTimeNs;
+        mBoundaries.add(presentationTimeNs);
+        if (mProxy != null) {
+            mProxy.mIndex++;
+            mProxy.mSegmentStartNs = presentationTimeNs;
+            mProxy.mBoundaries.add(presentationTimeNs);
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the muxer should switch to the next segment before writing a sample.
+     * If so, the boundary is consumed.  Muxer thread only.
+     */
+    boolean switchesAt(long presentationTimeUs, boolean keyFrame) {
+        Long boundary = mBoundaries.peek();
+        if (!keyFrame || boundary == null || presentationTimeUs * 1000 < boundary) {
+            return false;
+        }
+        mBoundaries.poll();
+        mSegmentBytes.set(0);
+        return true;
+    }
+
+    void addBytes(int bytes) {
+        mSegmentBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Appends a finished video segment to the manifest and syncs it.
+     */
+    void segmentFinished(int index, long firstPtsUs, long lastPtsUs, int samples, long bytes) {
+        String line = String.format(Locale.US, "%d %s %s %d %d %d %d\n", index,
+                getVideoFile(index).getName(), getPoseFile(index).getName(),
+                firstPtsUs, lastPtsUs, samples, bytes);
+        try (FileOutputStream out = new FileOutputStream(getManifestFile(), true)) {
+            out.write(line.getBytes(StandardCharsets.US_ASCII));
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not add segment " + index + " to the manifest", e);
+        }
+    }
+}
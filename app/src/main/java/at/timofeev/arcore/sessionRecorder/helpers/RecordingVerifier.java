@@ -0,0 +1,145 @@
+package at.timofeev.arcore.sessionRecorder.helpers;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+import at.timofeev.arcore.sessionRecorder.app.ArpActivity;
+import at.timofeev.arcore.sessionRecorder.poses.Mp4PoseTrackReader;
+import at.timofeev.arcore.sessionRecorder.poses.ParallelPoseLogParser;
+import at.timofeev.arcore.sessionRecorder.poses.PoseArrays;
+import at.timofeev.arcore.sessionRecorder.poses.PoseVideoAlignment;
+
+/**
+ * Checks a finished recording: every pose that was handed to the encoder should have a sample
+ * at its presentation time in the video, and every video sample a pose.  The same goes for
+ * the pose track embedded in the video, if there is one.
+ * <p>
+ * Runs on its own thread and only logs the outcome, so it never holds up the next recording.
+ */
+public class RecordingVerifier implements Runnable {
+    private static final String TAG = ArpActivity.TAG;
+
+    private final VideoRecorder mRecorder;
+    private final File mPoseFile;
+    private final File mVideoFile;
+
+    /**
+     * @param recorder the stopped recorder, waited on until its movie is complete.
+     */
+    public RecordingVerifier(VideoRecorder recorder, File poseFile, File videoFile) {
+        mRecorder = recorder;
+        mPoseFile = poseFile;
+        mVideoFile = videoFile;
+    }
+
+    public void start() {
+        new Thread(this, "RecordingVerifier").start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            mRecorder.awaitFinished();
+            PoseArrays poses = new ParallelPoseLogParser().parse(mPoseFile);
+            long[] sampleTimes = readSampleTimes(mVideoFile);
+            PoseVideoAlignment alignment =
+                    PoseVideoAlignment.check(poses.presentationTimeNs, sampleTimes);
+            if (alignment.isExact()) {
+                Log.i(TAG, mVideoFile.getName() + " verified: " + alignment);
+            } else {
+                Log.w(TAG, mVideoFile.getName() + " does not match " + mPoseFile.getName()
+                        + ": " + alignment);
+            }
+            if (mRecorder.hasPoseTrack()) {
+                PoseArrays track = Mp4PoseTrackReader.read(mVideoFile);
+                PoseVideoAlignment trackAlignment =
+                        PoseVideoAlignment.check(track.presentationTimeNs, sampleTimes);
+                if (!trackAlignment.isExact()) {
+                    Log.w(TAG, "Pose track of " + mVideoFile.getName() + " does not match: "
+                            + trackAlignment + ", " + mRecorder.getDroppedPoseCount()
+                            + " poses dropped by the muxer");
+                }
+            }
+            if (mRecorder.isAllIntra()) {
+                int nonSync = countNonSyncSamples(mVideoFile);
+                if (nonSync > 0) {
+                    Log.w(TAG, mVideoFile.getName() + " was recorded all-intra, but " + nonSync
+                            + " samples are not sync frames");
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not verify " + mVideoFile.getName(), e);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Verification of " + mVideoFile.getName() + " interrupted");
+        }
+    }
+
+    /**
+     * Returns the sample times of the first video track, in microseconds and decode order.
+     * Only the sample table is read, nothing is decoded.
+     */
+    public static long[] readSampleTimes(File video) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            selectVideoTrack(extractor, video);
+
+            long[] times = new long[1024];
+            int count = 0;
+            for (long time = extractor.getSampleTime(); time >= 0;
+                    time = extractor.getSampleTime()) {
+                if (count == times.length) {
+                    long[] grown = new long[count * 2];
+                    System.arraycopy(times, 0, grown, 0, count);
+                    times = grown;
+                }
+                times[count++] = time;
+                extractor.advance();
+            }
+            long[] result = new long[count];
+            System.arraycopy(times, 0, result, 0, count);
+            return result;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Returns the number of samples of the first video track that are not sync frames.
+     */
+    public static int countNonSyncSamples(File video) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            selectVideoTrack(extractor, video);
+            int count = 0;
+            while (extractor.getSampleTime() >= 0) {
+                if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) == 0) {
+                    count++;
+                }
+                extractor.advance();
+            }
+            return count;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private static void selectVideoTrack(MediaExtractor extractor, File video)
+            throws IOException {
+        extractor.setDataSource(video.getPath());
+        int track = -1;
+        for (int i = 0; i < extractor.getTrackCount() && track < 0; i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/")) {
+                track = i;
+            }
+        }
+        if (track < 0) {
+            throw new IOException("No video track in " + video);
+        }
+        extractor.selectTrack(track);
+    }
+}
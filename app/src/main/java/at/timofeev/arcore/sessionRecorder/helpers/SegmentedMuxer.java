@@ -0,0 +1,327 @@
+package at.timofeev.arcore.sessionRecorder.helpers;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import at.timofeev.arcore.sessionRecorder.app.ArpActivity;
+import at.timofeev.arcore.sessionRecorder.poses.DurabilityPolicy;
+import at.timofeev.arcore.sessionRecorder.poses.FragmentedMp4Writer;
+import at.timofeev.arcore.sessionRecorder.poses.PoseMetadataFormat;
+
+/**
+ * The MP4 muxer of an encoder core.  Writes a single file, or with {@link RecordingSegments}
+ * one file per segment, switching to the next at the first key frame of a segment.
+ * <p>
+ * With a {@link PoseMetadataQueue}, every file also gets a timed metadata track of
+ * {@link PoseMetadataFormat#MIME_TYPE}: the pose records queued for the frames are written
+ * with the same sample times as the frames, just before the video sample they belong to.
+ * <p>
+ * With a {@link PreRollBuffer}, samples and pose records are held in it instead of written,
+ * until it is frozen: then its contents are written first, and the muxer goes on live.  If it
+ * never is, the file is deleted at the end.
+ * <p>
+ * With a fragment duration, the files are written as fragmented MP4 by
+ * {@link FragmentedMp4Writer} instead of {@link MediaMuxer}: playable while being written,
+ * and readable up to the last complete fragment after a crash.
+ * <p>
+ * Not thread-safe; all calls must come from the thread that drains the encoder.
+ */
+public class SegmentedMuxer {
+    private static final String TAG = ArpActivity.TAG;
+
+    // Fragments are written as they are complete; sync them now and then so that even
+    // a power loss costs only seconds.
+    private static final DurabilityPolicy FRAGMENT_DURABILITY =
+            DurabilityPolicy.groupCommit(5000, 0);
+
+    private final File mOutputFile;
+    private final RecordingSegments mSegments;
+    private final long mFragmentDurationUs;
+    private final PoseMetadataQueue mMetadata;
+    private final EncoderStats mStats;
+    private final MediaCodec.BufferInfo mMetadataInfo = new MediaCodec.BufferInfo();
+    private final MediaCodec.BufferInfo mPreRollInfo = new MediaCodec.BufferInfo();
+    // Until the recording starts; null once live.
+    private PreRollBuffer mPreRoll;
+
+    // One of them is open, depending on mFragmentDurationUs.
+    private MediaMuxer mMuxer;
+    private FragmentedMp4Writer mWriter;
+    private MediaFormat mFormat;
+    private int mTrackIndex = -1;
+    private int mMetadataTrackIndex = -1;
+    private boolean mStarted;
+
+    // The current segment.
+    private int mIndex;
+    private long mFirstPtsUs = -1;
+    private long mLastPtsUs = -1;
+    private int mSamples;
+    private long mBytes;
+
+    /**
+     * @param segments how to split the recording, or null to write everything to outputFile.
+     * @param fragmentDurationUs the minimum duration of a fragment, or 0 to write plain MP4
+     *     files.
+     * @param metadata the pose records to mux along with the video, or null.  Metadata tracks
+     *     need API 26.
+     * @param preRoll where to hold the samples until the recording starts, or null to write
+     *     them right away.
+     * @param stats where to report the samples written, or null.
+     */
+    public SegmentedMuxer(File outputFile, RecordingSegments segments, long fragmentDurationUs,
+                          PoseMetadataQueue metadata, PreRollBuffer preRoll, EncoderStats stats)
+            throws IOException {
+        mOutputFile = outputFile;
+        mSegments = segments;
+        mFragmentDurationUs = fragmentDurationUs;
+        mMetadata = metadata;
+        mPreRoll = preRoll;
+        mStats = stats;
+        open(0);
+    }
+
+    private void open(int index) throws IOException {
+        File file = mSegments != null ? mSegments.getVideoFile(index) : mOutputFile;
+        if (mFragmentDurationUs > 0) {
+            mWriter = new FragmentedMp4Writer(file, mFragmentDurationUs, FRAGMENT_DURABILITY);
+        } else {
+            mMuxer = new MediaMuxer(file.toString(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        }
+    }
+
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Adds the video track with the encoder's output format, and the pose track if there is
+     * one, and starts the muxer.
+     */
+    public void start(MediaFormat format) {
+        mFormat = format;
+        if (mWriter != null) {
+            startWriter(format);
+            mStarted = true;
+            return;
+        }
+        mTrackIndex = mMuxer.addTrack(format);
+        if (mMetadata != null) {
+            MediaFormat metadataFormat = new MediaFormat();
+            metadataFormat.setString(MediaFormat.KEY_MIME, PoseMetadataFormat.MIME_TYPE);
+            mMetadataTrackIndex = mMuxer.addTrack(metadataFormat);
+        }
+        mMuxer.start();
+        mStarted = true;
+    }
+
+    private void startWriter(MediaFormat format) {
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        FragmentedMp4Writer.Codec codec;
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType)) {
+            codec = FragmentedMp4Writer.Codec.AVC;
+        } else if (MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mimeType)) {
+            codec = FragmentedMp4Writer.Codec.HEVC;
+        } else {
+            throw new IllegalArgumentException("Cannot write " + mimeType + " as fragmented MP4");
+        }
+        // H.264 encoders put the SPS in csd-0 and the PPS in csd-1, HEVC ones all in csd-0.
+        ByteBuffer csd0 = format.getByteBuffer("csd-0");
+        ByteBuffer csd1 = format.containsKey("csd-1") ? format.getByteBuffer("csd-1") : null;
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        mTrackIndex = csd1 != null ? mWriter.addVideoTrack(codec, width, height, csd0, csd1)
+                : mWriter.addVideoTrack(codec, width, height, csd0);
+        if (mMetadata != null) {
+            mMetadataTrackIndex = mWriter.addMetadataTrack(PoseMetadataFormat.MIME_TYPE);
+        }
+        try {
+            mWriter.start();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write the header", e);
+        }
+    }
+
+    private void writeSample(int trackIndex, ByteBuffer data, MediaCodec.BufferInfo info) {
+        if (mWriter == null) {
+            mMuxer.writeSampleData(trackIndex, data, info);
+            return;
+        }
+        // MediaMuxer takes the sample from info.offset, the writer from the position.
+        int position = data.position();
+        int limit = data.limit();
+        data.limit(info.offset + info.size);
+        data.position(info.offset);
+        try {
+            mWriter.writeSample(trackIndex, data, info.presentationTimeUs,
+                    (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write a fragment", e);
+        } finally {
+            data.limit(limit);
+            data.position(position);
+        }
+    }
+
+    public void writeSampleData(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        if (!mStarted) {
+            throw new RuntimeException("muxer hasn't started");
+        }
+        if (mPreRoll != null && holdPreRoll(encodedData, info)) {
+            return;
+        }
+        writeVideo(encodedData, info);
+    }
+
+    /**
+     * Appends a sample and the pose records up to it to the pre-roll.  Once that is frozen,
+     * writes its contents instead and leaves the sample to be written live.
+     *
+     * @return true if the sample was held.
+     */
+    private boolean holdPreRoll(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        if (!mPreRoll.isFrozen()) {
+            long ptsUs;
+            while (mMetadata != null && (ptsUs = mMetadata.peekPresentationTimeUs()) >= 0
+                    && ptsUs <= info.presentationTimeUs
+                    && mPreRoll.append(true, mMetadata.peek(), ptsUs, 0)) {
+                mMetadata.remove();
+            }
+            if (mPreRoll.append(false, encodedData, info.presentationTimeUs, info.flags)) {
+                return true;
+            }
+        }
+        flushPreRoll();
+        return false;
+    }
+
+    private void flushPreRoll() {
+        Log.d(TAG, "writing " + mPreRoll.size() + " pre-roll samples and poses, "
+                + mPreRoll.getDroppedCount() + " frames dropped before");
+        for (int i = 0; i < mPreRoll.size(); i++) {
+            ByteBuffer data = mPreRoll.get(i, mPreRollInfo);
+            if (mPreRoll.isMetadata(i)) {
+                writeSample(mMetadataTrackIndex, data, mPreRollInfo);
+            } else {
+                writeVideo(data, mPreRollInfo);
+            }
+        }
+        // Let the memory go.
+        mPreRoll = null;
+    }
+
+    private void writeVideo(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (mSegments != null && mSamples > 0
+                && mSegments.switchesAt(info.presentationTimeUs, keyFrame)) {
+            // Poses of frames the encoder dropped before the boundary stay with the old file.
+            writeMetadata(info.presentationTimeUs - 1);
+            nextSegment();
+        }
+
+        writeMetadata(info.presentationTimeUs);
+        long start = System.nanoTime();
+        writeSample(mTrackIndex, encodedData, info);
+        if (mStats != null) {
+            mStats.sampleMuxed(info.presentationTimeUs, info.size, keyFrame,
+                    System.nanoTime() - start);
+        }
+        if (mFirstPtsUs < 0) {
+            mFirstPtsUs = info.presentationTimeUs;
+        }
+        mLastPtsUs = info.presentationTimeUs;
+        mSamples++;
+        mBytes += info.size;
+        if (mSegments != null) {
+            mSegments.addBytes(info.size);
+        }
+    }
+
+    /**
+     * Writes the queued pose records up to the given sample time.
+     */
+    private void writeMetadata(long untilPtsUs) {
+        if (mMetadata == null) {
+            return;
+        }
+        long ptsUs;
+        while ((ptsUs = mMetadata.peekPresentationTimeUs()) >= 0 && ptsUs <= untilPtsUs) {
+            ByteBuffer record = mMetadata.peek();
+            mMetadataInfo.set(0, record.remaining(), ptsUs, 0);
+            writeSample(mMetadataTrackIndex, record, mMetadataInfo);
+            mMetadata.remove();
+        }
+    }
+
+    private void nextSegment() {
+        finishSegment();
+        mIndex++;
+        try {
+            open(mIndex);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create segment " + mIndex, e);
+        }
+        Log.d(TAG, "starting video segment " + mIndex);
+        start(mFormat);
+        mFirstPtsUs = -1;
+        mLastPtsUs = -1;
+        mSamples = 0;
+        mBytes = 0;
+    }
+
+    private void finishSegment() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not finish video segment " + mIndex, e);
+            }
+            mWriter = null;
+        } else {
+            // stop() throws an exception if no data was written.
+            if (mStarted && mSamples > 0) {
+                mMuxer.stop();
+            }
+            mMuxer.release();
+            mMuxer = null;
+        }
+        mStarted = false;
+        if (mSegments != null && mSamples > 0) {
+            mSegments.segmentFinished(mIndex, mFirstPtsUs, mLastPtsUs, mSamples, mBytes);
+        }
+    }
+
+    /**
+     * Finishes the current file.
+     */
+    public void release() {
+        if (mMuxer != null || mWriter != null) {
+            boolean discard = false;
+            if (mPreRoll != null) {
+                if (mPreRoll.isFrozen() && mStarted) {
+                    flushPreRoll();
+                } else {
+                    // The recording never started.
+                    discard = !mPreRoll.isFrozen();
+                    mPreRoll = null;
+                }
+            }
+            if (mStarted && mSamples > 0) {
+                writeMetadata(Long.MAX_VALUE);
+            }
+            finishSegment();
+            if (discard) {
+                File file = mSegments != null ? mSegments.getVideoFile(mIndex) : mOutputFile;
+                if (!file.delete()) {
+                    Log.w(TAG, "Could not delete " + file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package at.timofeev.arcore.sessionRecorder.helpers;
+
+import com.google.ar.core.Camera;
+import com.google.ar.core.CameraIntrinsics;
+
+import at.timofeev.arcore.sessionRecorder.poses.PoseSample;
+
+/**
+ * Caches the camera's texture intrinsics between frames, or the intrinsics of the CPU camera
+ * image for recordings of those.
+ * <p>
+ * They only change with the camera configuration, but querying them goes through JNI and
+ * allocates a new array for every value.  The cache asks ARCore again every
+ * {@link #REFRESH_INTERVAL} frames, and right away after {@link #invalidate()}.
+ */
+public class TextureIntrinsicsCache {
+    private static final int REFRESH_INTERVAL = 30;
+
+    private final boolean mCpuImage;
+    private int mFramesUntilRefresh;
+    private boolean mValid;
+    private float mFx, mFy;
+    private float mCx, mCy;
+    private int mWidth, mHeight;
+
+    public TextureIntrinsicsCache() {
+        this(false);
+    }
+
+    /**
+     * @param cpuImage whether to cache the intrinsics of the CPU image instead of the texture's.
+     */
+    public TextureIntrinsicsCache(boolean cpuImage) {
+        mCpuImage = cpuImage;
+    }
+
+    /**
+     * Forces the next {@link #update} to query ARCore, e.g. after the session was resumed.
+     */
+    public void invalidate() {
+        mFramesUntilRefresh = 0;
+    }
+
+    /**
+     * Refreshes the cached values if they are due.  Call once per frame.
+     *
+     * @return true if the intrinsics differ from the ones cached before.
+     */
+    public boolean update(Camera camera) {
+        if (mFramesUntilRefresh-- > 0) {
+            return false;
+        }
+        mFramesUntilRefresh = REFRESH_INTERVAL - 1;
+
+        CameraIntrinsics intrinsics = mCpuImage
+                ? camera.getImageIntrinsics() : camera.getTextureIntrinsics();
+        float[] focalLength = intrinsics.getFocalLength();
+        float[] principalPoint = intrinsics.getPrincipalPoint();
+        int[] dimensions = intrinsics.getImageDimensions();
+        boolean changed = !mValid
+                || focalLength[0] != mFx || focalLength[1] != mFy
+                || principalPoint[0] != mCx || principalPoint[1] != mCy
+                || dimensions[0] != mWidth || dimensions[1] != mHeight;
+        mFx = focalLength[0];
+        mFy = focalLength[1];
+        mCx = principalPoint[0];
+        mCy = principalPoint[1];
+        mWidth = dimensions[0];
+        mHeight = dimensions[1];
+        mValid = true;
+        return changed;
+    }
+
+    /**
+     * Copies the cached intrinsics into the sample.
+     */
+    public void copyTo(PoseSample sample) {
+        sample.fx = mFx;
+        sample.fy = mFy;
+        sample.cx = mCx;
+        sample.cy = mCy;
+        sample.width = mWidth;
+        sample.height = mHeight;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+}
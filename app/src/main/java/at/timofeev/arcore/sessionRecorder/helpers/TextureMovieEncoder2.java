@@ -16,6 +16,13 @@ package at.timofeev.arcore.sessionRecorder.helpers;
  * limitations under the License.
  */
 
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -24,6 +31,7 @@ import android.util.Log;
 import java.lang.ref.WeakReference;
 
 import at.timofeev.arcore.sessionRecorder.app.ArpActivity;
+import at.timofeev.arcore.sessionRecorder.rendering.FrameRing;
 
 /**
  * Encode a movie from frames rendered from an external texture image.
@@ -42,6 +50,14 @@ import at.timofeev.arcore.sessionRecorder.app.ArpActivity;
  * but it doesn't matter -- either it runs early and prevents blockage, or it runs late
  * and un-blocks the encoder.
  * <p>
+ * Once {@link #startRendering} is called, the encoder thread also owns the input surface: it
+ * gets its own EGL context, shared with the render thread's, and draws the frames published
+ * in a {@link FrameRing}.  Waiting for the codec in eglSwapBuffers() then only holds up this
+ * thread, never the preview.
+ * <p>
+ * A second, proxy encoder can be driven along with the main one: every frame is also drawn
+ * into its input surface, scaled down by the GPU, with the same presentation time.
+ * <p>
  * TODO: reconcile this with TextureMovieEncoder.
  */
 public class TextureMovieEncoder2 implements Runnable {
@@ -50,9 +66,26 @@ public class TextureMovieEncoder2 implements Runnable {
 
     private static final int MSG_STOP_RECORDING = 1;
     private static final int MSG_FRAME_AVAILABLE = 2;
+    private static final int MSG_START_RENDERING = 3;
+    private static final int MSG_RENDER_FRAME = 4;
 
     // ----- accessed exclusively by encoder thread -----
-    private VideoEncoderCore mVideoEncoder;
+    private EncoderCore mVideoEncoder;
+    private EncoderCore mProxyEncoder;
+    private EncoderStats mStats;
+    private EGLDisplay mEglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext mEglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface mEglSurface = EGL14.EGL_NO_SURFACE;
+    private EGLSurface mProxySurface = EGL14.EGL_NO_SURFACE;
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
+    private int mProxyWidth;
+    private int mProxyHeight;
+
+    // ----- set by the render thread before MSG_START_RENDERING -----
+    private EGLContext mSharedContext;
+    private EGLConfig mEglConfig;
+    private FrameRing mFrameRing;
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
@@ -65,15 +98,21 @@ public class TextureMovieEncoder2 implements Runnable {
     /**
      * Tells the video recorder to start recording.  (Call from non-encoder thread.)
      * <p>
-     * Creates a new thread, which will own the provided VideoEncoderCore.  When the
-     * thread exits, the VideoEncoderCore will be released.
+     * Creates a new thread, which will own the provided EncoderCore.  When the
+     * thread exits, the EncoderCore will be released.
      * <p>
      * Returns after the recorder thread has started and is ready to accept Messages.
+     *
+     * @param proxyCore a second encoder that gets every frame too, usually smaller, or null.
+     * @param stats where to report the time spent drawing and swapping frames, or null.
      */
-    public TextureMovieEncoder2(VideoEncoderCore encoderCore) {
+    public TextureMovieEncoder2(EncoderCore encoderCore, EncoderCore proxyCore,
+                                EncoderStats stats) {
         Log.d(TAG, "Encoder: startRecording()");
 
         mVideoEncoder = encoderCore;
+        mProxyEncoder = proxyCore;
+        mStats = stats;
 
         synchronized (mReadyFence) {
             if (mRunning) {
@@ -116,6 +155,18 @@ public class TextureMovieEncoder2 implements Runnable {
         }
     }
 
+    /**
+     * Blocks until the encoder thread has finished the movie and exited.  (Call from
+     * non-encoder thread.)
+     */
+    public void awaitStopped() throws InterruptedException {
+        synchronized (mReadyFence) {
+            while (mRunning) {
+                mReadyFence.wait();
+            }
+        }
+    }
+
     /**
      * Tells the video recorder that a new frame is arriving soon.  (Call from non-encoder thread.)
      * <p>
@@ -132,6 +183,27 @@ public class TextureMovieEncoder2 implements Runnable {
         mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE));
     }
 
+    /**
+     * Makes the encoder thread draw into the input surface from now on, with a context that
+     * shares objects with {@code sharedContext}.  (Call from the render thread.)
+     */
+    public void startRendering(EGLContext sharedContext, EGLConfig config, FrameRing ring) {
+        mSharedContext = sharedContext;
+        mEglConfig = config;
+        mFrameRing = ring;
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_START_RENDERING));
+    }
+
+    /**
+     * Tells the encoder thread to encode a frame published in the ring.  (Call from the render
+     * thread, after {@link #startRendering}.)
+     *
+     * @param keyFrame whether to ask the encoder for a key frame.
+     */
+    public void renderFrame(int slot, boolean keyFrame) {
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_RENDER_FRAME, slot, keyFrame ? 1 : 0));
+    }
+
     /**
      * Encoder thread entry point.  Establishes Looper/Handler and waits for messages.
      * <p>
@@ -152,6 +224,7 @@ public class TextureMovieEncoder2 implements Runnable {
         synchronized (mReadyFence) {
             mReady = mRunning = false;
             mHandler = null;
+            mReadyFence.notifyAll();
         }
     }
 
@@ -185,6 +258,12 @@ public class TextureMovieEncoder2 implements Runnable {
                 case MSG_FRAME_AVAILABLE:
                     encoder.handleFrameAvailable();
                     break;
+                case MSG_START_RENDERING:
+                    encoder.handleStartRendering();
+                    break;
+                case MSG_RENDER_FRAME:
+                    encoder.handleRenderFrame(inputMessage.arg1, inputMessage.arg2 != 0);
+                    break;
                 default:
                     throw new RuntimeException("Unhandled msg what=" + what);
             }
@@ -197,6 +276,113 @@ public class TextureMovieEncoder2 implements Runnable {
     private void handleFrameAvailable() {
         if (VERBOSE) Log.d(TAG, "handleFrameAvailable");
         mVideoEncoder.drainEncoder(false);
+        if (mProxyEncoder != null) {
+            mProxyEncoder.drainEncoder(false);
+        }
+    }
+
+    /**
+     * Sets up the EGL context and window surface of the encoder thread.
+     */
+    private void handleStartRendering() {
+        mEglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(mEglDisplay, version, 0, version, 1)) {
+            throw new RuntimeException("eglInitialize failed");
+        }
+        // Match the render thread's client version, the frame ring only uses fences on ES 3.
+        int[] clientVersion = new int[1];
+        if (!EGL14.eglQueryContext(mEglDisplay, mSharedContext,
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, clientVersion, 0) || clientVersion[0] < 2) {
+            clientVersion[0] = 2;
+        }
+        int[] contextAttribs = {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, clientVersion[0],
+                EGL14.EGL_NONE
+        };
+        mEglContext = EGL14.eglCreateContext(mEglDisplay, mEglConfig, mSharedContext,
+                contextAttribs, 0);
+        if (mEglContext == EGL14.EGL_NO_CONTEXT) {
+            throw new RuntimeException("eglCreateContext failed: 0x"
+                    + Integer.toHexString(EGL14.eglGetError()));
+        }
+        mEglSurface = createWindowSurface(mVideoEncoder);
+        if (mProxyEncoder != null) {
+            mProxySurface = createWindowSurface(mProxyEncoder);
+            int[] size = new int[1];
+            EGL14.eglQuerySurface(mEglDisplay, mProxySurface, EGL14.EGL_WIDTH, size, 0);
+            mProxyWidth = size[0];
+            EGL14.eglQuerySurface(mEglDisplay, mProxySurface, EGL14.EGL_HEIGHT, size, 0);
+            mProxyHeight = size[0];
+        }
+        EGL14.eglMakeCurrent(mEglDisplay, mEglSurface, mEglSurface, mEglContext);
+
+        int[] size = new int[1];
+        EGL14.eglQuerySurface(mEglDisplay, mEglSurface, EGL14.EGL_WIDTH, size, 0);
+        mSurfaceWidth = size[0];
+        EGL14.eglQuerySurface(mEglDisplay, mEglSurface, EGL14.EGL_HEIGHT, size, 0);
+        mSurfaceHeight = size[0];
+    }
+
+    private EGLSurface createWindowSurface(EncoderCore encoder) {
+        int[] surfaceAttribs = {
+                EGL14.EGL_NONE
+        };
+        EGLSurface surface = EGL14.eglCreateWindowSurface(mEglDisplay, mEglConfig,
+                encoder.getInputSurface(), surfaceAttribs, 0);
+        if (surface == EGL14.EGL_NO_SURFACE) {
+            throw new RuntimeException("eglCreateWindowSurface failed: 0x"
+                    + Integer.toHexString(EGL14.eglGetError()));
+        }
+        return surface;
+    }
+
+    /**
+     * Draws a published frame into the input surface and submits it, and the same for the
+     * proxy.
+     */
+    private void handleRenderFrame(int slot, boolean keyFrame) {
+        if (VERBOSE) Log.d(TAG, "handleRenderFrame " + slot);
+        mVideoEncoder.drainEncoder(false);
+        if (mProxyEncoder != null) {
+            mProxyEncoder.drainEncoder(false);
+        }
+
+        long start = System.nanoTime();
+        mFrameRing.awaitPublished(slot);
+        long presentationTimeNs = mFrameRing.getPresentationTime(slot);
+        GLES20.glViewport(0, 0, mSurfaceWidth, mSurfaceHeight);
+        mFrameRing.draw(slot);
+        if (mProxyEncoder == null) {
+            // With a proxy, the frame is released once drawn into both surfaces.
+            mFrameRing.release(slot);
+        }
+
+        if (keyFrame) {
+            // Right before the frame reaches the encoder, so earlier frames aren't affected.
+            mVideoEncoder.requestKeyFrame();
+        }
+        EGLExt.eglPresentationTimeANDROID(mEglDisplay, mEglSurface, presentationTimeNs);
+        long swap = System.nanoTime();
+        EGL14.eglSwapBuffers(mEglDisplay, mEglSurface);
+        long end = System.nanoTime();
+
+        if (mProxyEncoder != null) {
+            // Downsampled by the texture's linear filtering.
+            EGL14.eglMakeCurrent(mEglDisplay, mProxySurface, mProxySurface, mEglContext);
+            GLES20.glViewport(0, 0, mProxyWidth, mProxyHeight);
+            mFrameRing.draw(slot);
+            mFrameRing.release(slot);
+            if (keyFrame) {
+                mProxyEncoder.requestKeyFrame();
+            }
+            EGLExt.eglPresentationTimeANDROID(mEglDisplay, mProxySurface, presentationTimeNs);
+            EGL14.eglSwapBuffers(mEglDisplay, mProxySurface);
+            EGL14.eglMakeCurrent(mEglDisplay, mEglSurface, mEglSurface, mEglContext);
+        }
+        if (mStats != null) {
+            mStats.frameRendered(swap - start, end - swap);
+        }
     }
 
     /**
@@ -205,6 +391,35 @@ public class TextureMovieEncoder2 implements Runnable {
     private void handleStopRecording() {
         Log.d(TAG, "handleStopRecording");
         mVideoEncoder.drainEncoder(true);
+        if (mProxyEncoder != null) {
+            mProxyEncoder.drainEncoder(true);
+        }
+        releaseEgl();
         mVideoEncoder.release();
+        if (mProxyEncoder != null) {
+            mProxyEncoder.release();
+        }
+    }
+
+    /**
+     * Releases the context and surface of the encoder thread.  The display stays initialized,
+     * the render thread still uses it.
+     */
+    private void releaseEgl() {
+        if (mEglDisplay == EGL14.EGL_NO_DISPLAY) {
+            return;
+        }
+        EGL14.eglMakeCurrent(mEglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                EGL14.EGL_NO_CONTEXT);
+        EGL14.eglDestroySurface(mEglDisplay, mEglSurface);
+        if (mProxySurface != EGL14.EGL_NO_SURFACE) {
+            EGL14.eglDestroySurface(mEglDisplay, mProxySurface);
+            mProxySurface = EGL14.EGL_NO_SURFACE;
+        }
+        EGL14.eglDestroyContext(mEglDisplay, mEglContext);
+        EGL14.eglReleaseThread();
+        mEglSurface = EGL14.EGL_NO_SURFACE;
+        mEglContext = EGL14.EGL_NO_CONTEXT;
+        mEglDisplay = EGL14.EGL_NO_DISPLAY;
     }
 }
@@ -17,9 +17,8 @@ package at.timofeev.arcore.sessionRecorder.helpers;
  */
 
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
+import android.os.Bundle;
 import android.util.Log;
 import android.view.Surface;
 
@@ -38,48 +37,50 @@ import at.timofeev.arcore.sessionRecorder.app.ArpActivity;
  * <p>
  * This class is not thread-safe, with one exception: it is valid to use the input surface
  * on one thread, and drain the output on a different thread.
+ * <p>
+ * See {@link AsyncVideoEncoderCore} for a version that is handed its output instead of
+ * polling for it.
  */
-public class VideoEncoderCore {
+public class VideoEncoderCore implements EncoderCore {
     private static final String TAG = ArpActivity.TAG;
     private static final boolean VERBOSE = false;
 
-    // TODO: these ought to be configurable as well
-    private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
-    private static final int FRAME_RATE = 30;               // 30fps
-    private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
-
     private Surface mInputSurface;
-    private MediaMuxer mMuxer;
+    private SegmentedMuxer mMuxer;
     private MediaCodec mEncoder;
     private MediaCodec.BufferInfo mBufferInfo;
-    private int mTrackIndex;
-    private boolean mMuxerStarted;
 
 
     /**
      * Configures encoder and muxer state, and prepares the input Surface.
+     *
+     * @param profile the encoder settings, as returned by {@link EncoderProfile#resolve}.
+     * @param segments how to split the video into several files, or null.
+     * @param metadata pose records to mux into a metadata track, or null for video only.
+     * @param preRoll where to hold the output until the recording starts, or null.
+     * @param stats where to report the samples written, or null.
      */
-    public VideoEncoderCore(int width, int height, int bitRate, File outputFile)
-            throws IOException {
+    public VideoEncoderCore(int width, int height, EncoderProfile profile, File outputFile,
+                            RecordingSegments segments, PoseMetadataQueue metadata,
+                            PreRollBuffer preRoll, EncoderStats stats) throws IOException {
         mBufferInfo = new MediaCodec.BufferInfo();
 
-        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
-
-        // Set some properties.  Failing to specify some of these can cause the MediaCodec
-        // configure() call to throw an unhelpful exception.
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE); // TODO: change back to the global variable
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+        MediaFormat format = profile.createFormat(width, height);
         if (VERBOSE) Log.d(TAG, "format: " + format);
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
-        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mInputSurface = mEncoder.createInputSurface();
-        mEncoder.start();
+        mEncoder = profile.createEncoder();
+        try {
+            mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mInputSurface = mEncoder.createInputSurface();
+            mEncoder.start();
+        } catch (RuntimeException e) {
+            // Profiles the device can't encode fail here; don't keep the codec.
+            mEncoder.release();
+            mEncoder = null;
+            throw e;
+        }
 
         // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
         // because our MediaFormat doesn't have the Magic Goodies.  These can only be
@@ -87,23 +88,51 @@ public class VideoEncoderCore {
         //
         // We're not actually interested in multiplexing audio.  We just want to convert
         // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
-        mMuxer = new MediaMuxer(outputFile.toString(),
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-
-        mTrackIndex = -1;
-        mMuxerStarted = false;
+        try {
+            mMuxer = new SegmentedMuxer(outputFile, segments, profile.getFragmentDurationUs(),
+                    metadata, preRoll, stats);
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
     }
 
     /**
      * Returns the encoder's input surface.
      */
+    @Override
     public Surface getInputSurface() {
         return mInputSurface;
     }
 
+    /**
+     * Asks the encoder to make the next frame a key frame.
+     */
+    @Override
+    public void requestKeyFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mEncoder.setParameters(params);
+    }
+
+    /**
+     * Changes the bitrate on the fly, for {@link BitrateController}.
+     */
+    @Override
+    public void setBitRate(int bitRate) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        try {
+            mEncoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            // Released at the end of the recording while the controller was still running.
+        }
+    }
+
     /**
      * Releases encoder resources.
      */
+    @Override
     public void release() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
         if (mEncoder != null) {
@@ -112,9 +141,6 @@ public class VideoEncoderCore {
             mEncoder = null;
         }
         if (mMuxer != null) {
-            // TODO: stop() throws an exception if you haven't fed it any data.  Keep track
-            //       of frames submitted, and don't call stop() if we haven't written anything.
-            mMuxer.stop();
             mMuxer.release();
             mMuxer = null;
         }
@@ -130,6 +156,7 @@ public class VideoEncoderCore {
      * We're just using the muxer to get a .mp4 file (instead of a raw H.264 stream).  We're
      * not recording audio.
      */
+    @Override
     public void drainEncoder(boolean endOfStream) {
         final int TIMEOUT_USEC = 10000;
         if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
@@ -154,16 +181,14 @@ public class VideoEncoderCore {
                 encoderOutputBuffers = mEncoder.getOutputBuffers();
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
+                if (mMuxer.isStarted()) {
                     throw new RuntimeException("format changed twice");
                 }
                 MediaFormat newFormat = mEncoder.getOutputFormat();
                 Log.d(TAG, "encoder output format changed: " + newFormat);
 
                 // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
+                mMuxer.start(newFormat);
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                         encoderStatus);
@@ -183,15 +208,11 @@ public class VideoEncoderCore {
                 }
 
                 if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
-
                     // adjust the ByteBuffer values to match BufferInfo (not needed?)
                     encodedData.position(mBufferInfo.offset);
                     encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
 
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+                    mMuxer.writeSampleData(encodedData, mBufferInfo);
                     if (VERBOSE) {
                         Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
                                 mBufferInfo.presentationTimeUs);
@@ -1,126 +1,555 @@
 package at.timofeev.arcore.sessionRecorder.helpers;
 
-import android.graphics.Rect;
+import android.content.Context;
+import android.media.Image;
 import android.opengl.EGL14;
 import android.opengl.EGLConfig;
-import android.opengl.EGLDisplay;
-import android.opengl.EGLExt;
-import android.opengl.EGLSurface;
-import android.opengl.GLES20;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import at.timofeev.arcore.sessionRecorder.app.ArpActivity;
+import at.timofeev.arcore.sessionRecorder.poses.PoseSample;
+import at.timofeev.arcore.sessionRecorder.rendering.FrameRing;
 
 
 public class VideoRecorder {
+    private static final String TAG = ArpActivity.TAG;
+    // Pose records the muxer may lag behind the GL thread, about two seconds at 30fps.
+    private static final int POSE_TRACK_CAPACITY = 64;
+    // Frames taking longer than this many frame intervals from submit to muxer count as late.
+    private static final int LATE_FRAME_INTERVALS = 3;
+    // Camera images that may wait for the CPU encoder; ARCore only lends out a few at a time.
+    private static final int CAMERA_IMAGE_SLOTS = 2;
+    // Key frames are requested this often during the pre-roll, so it can be trimmed finely.
+    private static final long PRE_ROLL_KEY_FRAME_INTERVAL_NS = 1000000000L;
+    // The pre-roll poses cover this many seconds more than the pre-roll, which may hold up to
+    // a key frame interval more, and frames that arrive while the recording starts.
+    private static final int PRE_ROLL_POSE_MARGIN_SECONDS = 3;
+    // Smallest pre-roll buffer of a proxy, whose share by bitrate may be tiny.
+    private static final int MIN_PROXY_PRE_ROLL_BYTES = 1024 * 1024;
 
     private VideoRecorderListener listener;
-    private VideoEncoderCore mEncoderCore;
-    private Rect mVideoRect;
-    public static int DEFAULT_BITRATE = 20000000;
-
-    private CaptureContext mEncoderContext;
-
-    private boolean mRecording = false;
+    private EncoderCore mEncoderCore;
+    private EncoderCore mProxyCore;
+    private File mProxyFile;
+    private RecordingSegments mProxySegments;
+    private EncoderProfile mProxyProfile;
+    private int mProxyWidth;
+    private int mProxyHeight;
+    private CameraImageEncoder mImageEncoder;
+    private ImageSequenceCore mImageSequence;
+    private ImageSequence mImageSettings;
+    private File mOutputFile;
+    private EncoderProfile mProfile;
+    private RecordingSegments mSegments;
+    private PoseMetadataQueue mPoseTrack;
+    private EncoderStats mStats;
+    private BitrateController mBitrateController;
+    private PreRoll mPreRoll;
+    private PreRollBuffer mPreRollBuffer;
+    private PreRollBuffer mProxyPreRollBuffer;
+    // Poses of the frames submitted during the pre-roll, a ring written and read on the GL
+    // thread.
+    private PoseSample[] mPreRollPoses;
+    private long mPreRollPoseCount;
+    private long mPreRollPoseRead;
+    private long mPreRollStartNs;
+    private long mLastPreRollKeyFrameNs;
+    private int mWidth;
+    private int mHeight;
+
+    private volatile boolean mRecording = false;
+    private volatile boolean mPreRolling = false;
+    private boolean mRenderingStarted = false;
     private TextureMovieEncoder2 mVideoEncoder;
     private EGLConfig mEGLConfig;
 
-    public VideoRecorder(int width, int height, int bitrate, File outputFile,
+    /**
+     * @param profile the requested encoder settings, adapted to what the device supports.
+     * @param asyncEncoder whether to use the callback-driven {@link AsyncVideoEncoderCore}
+     *     instead of polling the encoder with {@link VideoEncoderCore}.
+     * @param segments how to split the video into several files, or null to write all of it
+     *     to outputFile.
+     * @param embedPoses whether to mux the poses passed to {@link #submitFrame} into a metadata
+     *     track of the video.  Ignored below API 26, where MediaMuxer has no metadata tracks.
+     * @param cpuImages whether frames come as CPU camera images through {@link #submitImage},
+     *     copied into the encoder without GL, instead of through {@link #submitFrame}.  The
+     *     asyncEncoder setting doesn't apply to them.
+     * @param imageSequence write the frames as image files into {@link #getImageDirectory()}
+     *     instead of encoding a video, or null.  Not with cpuImages; segments, the pose track
+     *     and the encoder settings don't apply.
+     * @param preRoll keep encoding the frames submitted before the recording starts, and
+     *     start the video with the last seconds of them, see {@link #startPreRoll()}; or null.
+     *     Not with cpuImages or imageSequence.
+     */
+    public VideoRecorder(int width, int height, EncoderProfile profile, boolean asyncEncoder,
+                         File outputFile, RecordingSegments segments, boolean embedPoses,
+                         boolean cpuImages, ImageSequence imageSequence, PreRoll preRoll,
                          VideoRecorderListener _listener) throws IOException {
+        if (imageSequence != null && cpuImages) {
+            throw new IllegalArgumentException("Image sequences are recorded from the GL path");
+        }
+        if (preRoll != null && (imageSequence != null || cpuImages)) {
+            throw new IllegalArgumentException("Only videos from the GL path have a pre-roll");
+        }
         this.listener = _listener;
-        mEncoderCore = new VideoEncoderCore(width, height, bitrate, outputFile);
-        mVideoRect = new Rect(0,0,width,height);
+        mWidth = width;
+        mHeight = height;
+        mOutputFile = outputFile;
+        mImageSettings = imageSequence;
+        if (imageSequence != null) {
+            // Nothing to resolve against the codecs, the profile is only used for its rate.
+            mProfile = profile;
+            mStats = new EncoderStats(
+                    LATE_FRAME_INTERVALS * 1000000000L / Math.max(mProfile.getFrameRate(), 1));
+            mImageSequence = new ImageSequenceCore(width, height, getImageDirectory(),
+                    imageSequence);
+            mEncoderCore = mImageSequence;
+            writeInfo();
+            return;
+        }
+        mSegments = segments;
+        mProfile = profile.resolve(width, height);
+        mStats = new EncoderStats(
+                LATE_FRAME_INTERVALS * 1000000000L / Math.max(mProfile.getFrameRate(), 1));
+        // MediaMuxer has metadata tracks from API 26, the fragmented MP4 writer always.
+        if (embedPoses && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                || mProfile.getFragmentDurationUs() > 0)) {
+            mPoseTrack = new PoseMetadataQueue(POSE_TRACK_CAPACITY);
+        }
+        if (preRoll != null) {
+            mPreRoll = preRoll;
+            mPreRollBuffer = new PreRollBuffer(preRoll.getDurationUs(), preRoll.getMaxBytes());
+            mPreRollPoses = new PoseSample[(preRoll.getSeconds() + PRE_ROLL_POSE_MARGIN_SECONDS)
+                    * Math.max(mProfile.getFrameRate(), 1)];
+            for (int i = 0; i < mPreRollPoses.length; i++) {
+                mPreRollPoses[i] = new PoseSample();
+            }
+        }
+        if (cpuImages) {
+            mImageEncoder = new CameraImageEncoder(width, height, mProfile, outputFile,
+                    segments, mPoseTrack, mStats, CAMERA_IMAGE_SLOTS);
+        } else if (asyncEncoder) {
+            mEncoderCore = new AsyncVideoEncoderCore(width, height, mProfile, outputFile,
+                    segments, mPoseTrack, mPreRollBuffer, mStats);
+        } else {
+            mEncoderCore = new VideoEncoderCore(width, height, mProfile, outputFile, segments,
+                    mPoseTrack, mPreRollBuffer, mStats);
+        }
+        try {
+            writeInfo();
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
     }
 
+    /**
+     * Releases the encoders of a recorder whose recording or pre-roll never started, e.g. one
+     * whose setup failed halfway, and deletes its info file.
+     */
+    public void release() {
+        if (mVideoEncoder != null || mRecording) {
+            throw new IllegalStateException("Already started");
+        }
+        if (mProxyCore != null) {
+            mProxyCore.release();
+            mProxyCore = null;
+        }
+        if (mEncoderCore != null) {
+            mEncoderCore.release();
+            mEncoderCore = null;
+        }
+        if (mImageEncoder != null) {
+            // Its worker releases the encoder once it sees the end of the stream.
+            mImageEncoder.stop();
+            mImageEncoder = null;
+        }
+        getInfoFile().delete();
+    }
 
+    /**
+     * Returns the video file, or the name the segment files are derived from if the recording
+     * is segmented.
+     */
+    public File getOutputFile() {
+        return mOutputFile;
+    }
 
-    public CaptureContext startCapture() {
+    /**
+     * Also records a proxy of the video at another size, usually smaller, from the same frames
+     * and with the same presentation times: {@code video-<id>-proxy.mp4}, or segments of
+     * it that switch along with the main ones.  It shares the pose log of the main video.  Call
+     * before recording starts; only for recordings from the GL path.
+     *
+     * @param profile the requested encoder settings, adapted to what the device supports.
+     */
+    public void addProxy(int width, int height, EncoderProfile profile) throws IOException {
+        if (mEncoderCore == null || mImageSequence != null || mVideoEncoder != null) {
+            throw new IllegalStateException("Proxies are only added to GL recordings, before "
+                    + "they start");
+        }
+        EncoderProfile resolved = profile.resolve(width, height);
+        PreRollBuffer preRoll = null;
+        if (mPreRoll != null) {
+            // Its share of the memory by bitrate.
+            long bytes = (long) mPreRoll.getMaxBytes() * resolved.getBitRate()
+                    / Math.max(mProfile.getBitRate(), 1);
+            preRoll = new PreRollBuffer(mPreRoll.getDurationUs(), (int) Math.max(
+                    MIN_PROXY_PRE_ROLL_BYTES, Math.min(bytes, mPreRoll.getMaxBytes())));
+        }
+        String name = mOutputFile.getName();
+        int dot = name.lastIndexOf('.');
+        File file = new File(mOutputFile.getParentFile(),
+                (dot < 0 ? name : name.substring(0, dot)) + "-proxy.mp4");
+        mProxyCore = new VideoEncoderCore(width, height, resolved, file,
+                mSegments != null ? mSegments.createProxy() : null, null, preRoll, null);
+        mProxyPreRollBuffer = preRoll;
+        mProxySegments = mSegments != null ? mSegments.getProxy() : null;
+        mProxyProfile = resolved;
+        mProxyFile = file;
+        mProxyWidth = width;
+        mProxyHeight = height;
+        writeInfo();
+    }
 
-        if (mVideoEncoder == null) {
-            return null;
+    /**
+     * Lets a {@link BitrateController} adapt the bitrate of the video to the storage and
+     * thermal state while recording, between a quarter of the profile's and the profile's
+     * itself, within the range of the encoder.  The changes end up in the stats summary.  Call
+     * before recording starts.
+     *
+     * @return false if the recording has no bitrate to adapt: image sequences and
+     *     constant-quality profiles.
+     */
+    public boolean enableBitrateControl(Context context) {
+        if (mVideoEncoder != null || mRecording) {
+            throw new IllegalStateException("Bitrate control is enabled before recording or "
+                    + "pre-roll");
+        }
+        if (mImageSequence != null || mProfile.getBitrateMode() == EncoderProfile.BitrateMode.CQ) {
+            return false;
+        }
+        BitrateController.Target target = mImageEncoder != null
+                ? mImageEncoder::setBitRate : mEncoderCore::setBitRate;
+        // resolve() already clamped the profile's bitrate to the encoder's range.
+        int maxBitRate = mProfile.getBitRate();
+        int minBitRate = maxBitRate / 4;
+        Range<Integer> encoderBitRates = mProfile.getEncoderBitrateRange();
+        if (encoderBitRates != null) {
+            minBitRate = Math.min(encoderBitRates.clamp(minBitRate), maxBitRate);
         }
+        mBitrateController = new BitrateController(context, target, mStats, maxBitRate,
+                new Range<>(minBitRate, maxBitRate));
+        writeInfo();
+        return true;
+    }
 
-        if (mEncoderContext == null) {
-            mEncoderContext = new CaptureContext();
-            mEncoderContext.windowDisplay = EGL14.eglGetCurrentDisplay();
+    /**
+     * Returns the proxy video file, or null if there is no proxy.
+     */
+    public File getProxyFile() {
+        return mProxyFile;
+    }
 
-            // Create a window surface, and attach it to the Surface we received.
-            int[] surfaceAttribs = {
-                    EGL14.EGL_NONE
-            };
+    /**
+     * Returns how the proxy is split, or null.
+     */
+    public RecordingSegments getProxySegments() {
+        return mProxySegments;
+    }
 
-            mEncoderContext.windowDrawSurface = EGL14.eglCreateWindowSurface(
-                    mEncoderContext.windowDisplay,
-                    mEGLConfig,mEncoderCore.getInputSurface(),
-                    surfaceAttribs, 0);
-            mEncoderContext.windowReadSurface = mEncoderContext.windowDrawSurface;
+    /**
+     * Returns whether the frames are written as image files instead of a video.
+     */
+    public boolean isImageSequence() {
+        return mImageSequence != null;
+    }
+
+    /**
+     * Returns the directory an image sequence is written to, {@code frames-<id>} next to where
+     * the video would be.
+     */
+    public File getImageDirectory() {
+        String name = mOutputFile.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot < 0 ? name : name.substring(0, dot);
+        if (base.startsWith("video-")) {
+            base = base.substring("video-".length());
         }
+        return new File(mOutputFile.getParentFile(), "frames-" + base);
+    }
 
-        CaptureContext displayContext = new CaptureContext();
-        displayContext.initialize();
+    /**
+     * Returns how the recording is split, or null if it isn't.
+     */
+    public RecordingSegments getSegments() {
+        return mSegments;
+    }
 
-        // Draw for recording, swap.
-        mVideoEncoder.frameAvailableSoon();
+    /**
+     * Returns the info file next to the video, {@code video-<id>.properties}, which holds the
+     * video size and encoder settings.  Offline tools can tell from {@code allIntra=true} that
+     * every sample is a sync frame and decode any frame on its own.
+     */
+    public File getInfoFile() {
+        String name = mOutputFile.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(mOutputFile.getParentFile(),
+                (dot < 0 ? name : name.substring(0, dot)) + ".properties");
+    }
 
+    /**
+     * Returns the encoder pipeline telemetry, which is updated live while recording.
+     */
+    public EncoderStats getStats() {
+        return mStats;
+    }
 
-        // Make the input surface current
-        // mInputWindowSurface.makeCurrent();
-        EGL14.eglMakeCurrent(mEncoderContext.windowDisplay,
-                mEncoderContext.windowDrawSurface, mEncoderContext.windowReadSurface,
-                EGL14.eglGetCurrentContext());
+    /**
+     * Returns the file {@link #writeStats} writes to, {@code video-<id>.stats.json}.
+     */
+    public File getStatsFile() {
+        String name = mOutputFile.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(mOutputFile.getParentFile(),
+                (dot < 0 ? name : name.substring(0, dot)) + ".stats.json");
+    }
 
-        // If we don't set the scissor rect, the glClear() we use to draw the
-        // light-grey background will draw outside the viewport and muck up our
-        // letterboxing.  Might be better if we disabled the test immediately after
-        // the glClear().  Of course, if we were clearing the frame background to
-        // black it wouldn't matter.
-        //
-        // We do still need to clear the pixels outside the scissor rect, of course,
-        // or we'll get garbage at the edges of the recording.  We can either clear
-        // the whole thing and accept that there will be a lot of overdraw, or we
-        // can issue multiple scissor/clear calls.  Some GPUs may have a special
-        // optimization for zeroing out the color buffer.
-        //
-        // For now, be lazy and zero the whole thing.  At some point we need to
-        // examine the performance here.
-        GLES20.glClearColor(0f, 0f, 0f, 1f);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    /**
+     * Writes the telemetry summary next to the video.  Call after {@link #awaitFinished}.
+     */
+    public void writeStats() throws IOException {
+        mStats.writeJson(getStatsFile());
+    }
 
-        GLES20.glViewport(mVideoRect.left, mVideoRect.top,
-                mVideoRect.width(), mVideoRect.height());
-        GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
-        GLES20.glScissor(mVideoRect.left, mVideoRect.top,
-                mVideoRect.width(), mVideoRect.height());
+    private void writeInfo() throws IOException {
+        Properties info = mProfile.toProperties();
+        if (mProxyProfile != null) {
+            info.setProperty("proxy", mProxyFile.getName());
+            info.setProperty("proxyWidth", Integer.toString(mProxyWidth));
+            info.setProperty("proxyHeight", Integer.toString(mProxyHeight));
+            info.setProperty("proxyBitRate", Integer.toString(mProxyProfile.getBitRate()));
+        }
+        if (mImageSettings != null) {
+            info.setProperty("imageFormat", mImageSettings.getFormat().name());
+            info.setProperty("imageQuality", Integer.toString(mImageSettings.getQuality()));
+        }
+        if (mBitrateController != null) {
+            // The actual changes are in the stats summary.
+            info.setProperty("adaptiveBitRate", "true");
+        }
+        if (mPreRoll != null) {
+            info.setProperty("preRollSeconds", Integer.toString(mPreRoll.getSeconds()));
+        }
+        info.setProperty("width", Integer.toString(mWidth));
+        info.setProperty("height", Integer.toString(mHeight));
+        try (OutputStream out = new FileOutputStream(getInfoFile())) {
+            info.store(out, mOutputFile.getName());
+        }
+    }
 
-        return displayContext;
+    /**
+     * Returns whether the video carries the poses in a metadata track, see
+     * {@link at.timofeev.arcore.sessionRecorder.poses.Mp4PoseTrackReader}.
+     */
+    public boolean hasPoseTrack() {
+        return mPoseTrack != null;
     }
 
-    public void stopCapture(CaptureContext oldContext, long timeStampNanos) {
+    /**
+     * Returns how many poses were left out of the pose track because the muxer fell behind.
+     */
+    public long getDroppedPoseCount() {
+        return mPoseTrack != null ? mPoseTrack.getDroppedCount() : 0;
+    }
 
-        if (oldContext == null) {
-            return;
-        }
-        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
-        EGLExt.eglPresentationTimeANDROID(mEncoderContext.windowDisplay,
-                mEncoderContext.windowDrawSurface, timeStampNanos);
+    /**
+     * Returns the video width, which the frames submitted should have.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
 
-        EGL14.eglSwapBuffers(mEncoderContext.windowDisplay,
-                mEncoderContext.windowDrawSurface);
+    public int getHeight() {
+        return mHeight;
+    }
 
+    /**
+     * Returns the encoder settings actually in use.
+     */
+    public EncoderProfile getProfile() {
+        return mProfile;
+    }
 
-        // Restore.
-        GLES20.glViewport(0, 0, oldContext.getWidth(), oldContext.getHeight());
-        EGL14.eglMakeCurrent(oldContext.windowDisplay,
-                oldContext.windowDrawSurface, oldContext.windowReadSurface,
-                EGL14.eglGetCurrentContext());
+    /**
+     * Returns whether the video is recorded intra-only, every frame a key frame.
+     */
+    public boolean isAllIntra() {
+        return mProfile.isAllIntra();
     }
 
+    /**
+     * Hands a frame rendered into the ring to the encoder thread, which scales it onto the
+     * encoder's input surface.  Call on the GL thread after rendering into the frame; the slot
+     * belongs to the encoder from now on.
+     * <p>
+     * For a segmented recording this also decides whether the frame starts a new segment,
+     * see {@link RecordingSegments#getIndex()}.
+     *
+     * @param pose the pose of the frame, or null.  If the video has a pose track, the pose
+     *     is given the frame's presentation time and muxed along with it.
+     * @return the presentation time the frame was given, which ends up in the video as its
+     *     sample time in microseconds, or {@link PoseSample#NO_PRESENTATION_TIME} if the frame
+     *     was not taken.
+     */
+    public long submitFrame(FrameRing ring, int slot, long timeStampNanos, PoseSample pose) {
+        boolean recording = mRecording;
+        if (mVideoEncoder == null || !(recording || mPreRolling)) {
+            ring.cancel(slot);
+            return PoseSample.NO_PRESENTATION_TIME;
+        }
+        if (!mRenderingStarted) {
+            mVideoEncoder.startRendering(EGL14.eglGetCurrentContext(), mEGLConfig, ring);
+            mRenderingStarted = true;
+        }
 
+        long presentationTimeNanos = timeStampNanos;
+        boolean keyFrame;
+        if (recording) {
+            keyFrame = mSegments != null && mSegments.beginsSegment(presentationTimeNanos);
+        } else {
+            keyFrame = presentationTimeNanos - mLastPreRollKeyFrameNs
+                    >= PRE_ROLL_KEY_FRAME_INTERVAL_NS;
+            if (keyFrame) {
+                mLastPreRollKeyFrameNs = presentationTimeNanos;
+            }
+            if (pose != null) {
+                PoseSample copy = mPreRollPoses[(int) (mPreRollPoseCount++
+                        % mPreRollPoses.length)];
+                copy.set(pose);
+                copy.presentationTimeNs = presentationTimeNanos;
+            }
+        }
+        if (mPoseTrack != null && pose != null) {
+            // Queued before the frame, so the muxer has it by the time the frame is encoded.
+            pose.presentationTimeNs = presentationTimeNanos;
+            mPoseTrack.offer(pose);
+        }
+        ring.publish(slot, presentationTimeNanos);
+        if (mImageSequence != null) {
+            mImageSequence.expectFrame(presentationTimeNanos, pose != null ? pose.frameId : -1);
+        }
+        if (recording) {
+            mStats.frameSubmitted(presentationTimeNanos);
+        } else {
+            mStats.framePreRolled();
+        }
+        mVideoEncoder.renderFrame(slot, keyFrame);
+        return presentationTimeNanos;
+    }
+
+    /**
+     * Hands a CPU camera image to the encoder, which copies it into its input and closes it.
+     * Call on the GL thread; the image belongs to the recorder from now on.  Like
+     * {@link #submitFrame}, but for a recorder created with cpuImages.
+     *
+     * @return the presentation time the frame was given, or
+     *     {@link PoseSample#NO_PRESENTATION_TIME} if the frame was not taken.
+     */
+    public long submitImage(Image image, long timeStampNanos, PoseSample pose) {
+        if (mImageEncoder == null || !mRecording || !mImageEncoder.hasFreeSlot()) {
+            if (mRecording) {
+                mStats.frameDropped();
+            }
+            image.close();
+            return PoseSample.NO_PRESENTATION_TIME;
+        }
+
+        long presentationTimeNanos = timeStampNanos;
+        boolean keyFrame = mSegments != null && mSegments.beginsSegment(presentationTimeNanos);
+        if (mPoseTrack != null && pose != null) {
+            pose.presentationTimeNs = presentationTimeNanos;
+            mPoseTrack.offer(pose);
+        }
+        mStats.frameSubmitted(presentationTimeNanos);
+        mImageEncoder.submit(image, presentationTimeNanos, keyFrame);
+        return presentationTimeNanos;
+    }
 
     public boolean isRecording() {
         return mRecording;
     }
 
+    /**
+     * Starts the encoder ahead of the recording, which will then begin with the last seconds
+     * of the frames submitted before it, and start instantly.  Call after setting up the
+     * recorder; only for recorders created with a pre-roll.
+     */
+    public void startPreRoll() {
+        if (mPreRoll == null || mVideoEncoder != null) {
+            throw new IllegalStateException("No pre-roll, or already started");
+        }
+        mVideoEncoder = new TextureMovieEncoder2(mEncoderCore, mProxyCore, mStats);
+        mPreRolling = true;
+    }
+
+    /**
+     * Returns whether the recorder was created with a pre-roll, started or not.
+     */
+    public boolean hasPreRoll() {
+        return mPreRoll != null;
+    }
+
+    /**
+     * Returns whether frames are encoded into the pre-roll, and the recording hasn't started.
+     */
+    public boolean isPreRolling() {
+        return mPreRolling;
+    }
+
+    /**
+     * Stops a pre-roll whose recording never started, deleting what was written for it.
+     */
+    public void cancelPreRoll() {
+        if (!mPreRolling || mRecording) {
+            return;
+        }
+        mPreRolling = false;
+        mVideoEncoder.stopRecording();
+        if (!getInfoFile().delete()) {
+            Log.w(TAG, "Could not delete " + getInfoFile());
+        }
+    }
+
+    /**
+     * Returns the pose of the next frame of the pre-roll that made it into the video, oldest
+     * first, or null once there are no more.  The poses are only available after the recording
+     * started; they are shared and valid until the next call.  GL thread only.
+     */
+    public PoseSample pollPreRollPose() {
+        if (mPreRollPoses == null || !mRecording) {
+            return null;
+        }
+        // Poses that were overwritten already.
+        mPreRollPoseRead = Math.max(mPreRollPoseRead,
+                mPreRollPoseCount - mPreRollPoses.length);
+        while (mPreRollPoseRead < mPreRollPoseCount) {
+            PoseSample pose = mPreRollPoses[(int) (mPreRollPoseRead++ % mPreRollPoses.length)];
+            if (pose.presentationTimeNs >= mPreRollStartNs) {
+                return pose;
+            }
+        }
+        return null;
+    }
+
     public void toggleRecording() {
         if (isRecording()) {
             stopRecording();
@@ -130,9 +559,24 @@ public class VideoRecorder {
     }
 
     protected void startRecording() {
+        if (mPreRolling) {
+            long startUs = mPreRollBuffer.freeze();
+            if (mProxyPreRollBuffer != null) {
+                mProxyPreRollBuffer.freeze();
+            }
+            mPreRollStartNs = startUs >= 0 ? startUs * 1000 : Long.MAX_VALUE;
+            Log.d(TAG, "recording starts with the pre-roll from " + startUs + "us");
+            // The buffers are the muxers' from now on.
+            mPreRollBuffer = null;
+            mProxyPreRollBuffer = null;
+        }
         mRecording = true;
-        if (mVideoEncoder == null) {
-            mVideoEncoder = new TextureMovieEncoder2(mEncoderCore);
+        mPreRolling = false;
+        if (mVideoEncoder == null && mImageEncoder == null) {
+            mVideoEncoder = new TextureMovieEncoder2(mEncoderCore, mProxyCore, mStats);
+        }
+        if (mBitrateController != null) {
+            mBitrateController.start();
         }
         if (listener != null) {
             listener.onVideoRecorderEvent(VideoEvent.RecordingStarted);
@@ -141,14 +585,32 @@ public class VideoRecorder {
 
     protected void stopRecording() {
         mRecording = false;
+        if (mBitrateController != null) {
+            mBitrateController.stop();
+        }
         if (mVideoEncoder != null) {
             mVideoEncoder.stopRecording();
         }
+        if (mImageEncoder != null) {
+            mImageEncoder.stop();
+        }
         if (listener != null) {
             listener.onVideoRecorderEvent(VideoEvent.RecordingStopped);
         }
     }
 
+    /**
+     * Blocks until the movie of a stopped recording has been completely written.
+     */
+    public void awaitFinished() throws InterruptedException {
+        if (mVideoEncoder != null) {
+            mVideoEncoder.awaitStopped();
+        }
+        if (mImageEncoder != null) {
+            mImageEncoder.awaitStopped();
+        }
+    }
+
     public void setEglConfig(EGLConfig eglConfig) {
         this.mEGLConfig = eglConfig;
     }
@@ -163,59 +625,4 @@ public class VideoRecorder {
         void onVideoRecorderEvent(VideoEvent videoEvent);
     }
 
-
-    public static class CaptureContext {
-        EGLDisplay windowDisplay;
-        EGLSurface windowReadSurface;
-        EGLSurface windowDrawSurface;
-        private int mWidth;
-        private int mHeight;
-
-        public void initialize() {
-            windowDisplay = EGL14.eglGetCurrentDisplay();
-            windowReadSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW);
-            windowDrawSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_READ);
-            int v[] = new int[1];
-            EGL14.eglQuerySurface(windowDisplay, windowDrawSurface, EGL14.EGL_WIDTH,
-                    v, 0);
-            mWidth = v[0];
-            v[0] = -1;
-            EGL14.eglQuerySurface(windowDisplay, windowDrawSurface, EGL14.EGL_HEIGHT,
-                    v, 0);
-            mHeight = v[0];
-        }
-
-        /**
-         * Returns the surface's width, in pixels.
-         * <p>
-         * If this is called on a window surface, and the underlying
-         * surface is in the process
-         * of changing size, we may not see the new size right away
-         * (e.g. in the "surfaceChanged"
-         * callback).  The size should match after the next buffer swap.
-         */
-        public int getWidth() {
-            if (mWidth < 0) {
-                int v[] = new int[1];
-                EGL14.eglQuerySurface(windowDisplay,
-                        windowDrawSurface, EGL14.EGL_WIDTH, v, 0);
-                mWidth = v[0];
-            }
-            return mWidth;
-        }
-
-        /**
-         * Returns the surface's height, in pixels.
-         */
-        public int getHeight() {
-            if (mHeight < 0) {
-                int v[] = new int[1];
-                EGL14.eglQuerySurface(windowDisplay, windowDrawSurface,
-                        EGL14.EGL_HEIGHT, v, 0);
-                mHeight = v[0];
-            }
-            return mHeight;
-        }
-
-    }
 }
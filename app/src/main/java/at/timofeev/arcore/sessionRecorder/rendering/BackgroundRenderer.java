@@ -28,6 +28,12 @@ import java.nio.FloatBuffer;
 /**
  * This class renders the AR background from camera feed. It creates and hosts the texture given to
  * ARCore to be filled with the camera image.
+ *
+ * <p>While recording, the camera image is needed on the screen and on the encoder surface. Instead
+ * of sampling the external camera texture twice, {@link #drawToFramebuffer} renders it once into
+ * an offscreen texture of a {@link FrameRing}, which is then copied to each surface. To record the
+ * full camera image instead of the screen's view of it, {@link #drawCameraImage} renders the frame
+ * without the display transform.
  */
 public class BackgroundRenderer {
   private static final String TAG = BackgroundRenderer.class.getSimpleName();
@@ -72,8 +78,10 @@ public class BackgroundRenderer {
     GLES20.glBindTexture(textureTarget, textureId);
     GLES20.glTexParameteri(textureTarget, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
     GLES20.glTexParameteri(textureTarget, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-    GLES20.glTexParameteri(textureTarget, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-    GLES20.glTexParameteri(textureTarget, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+    // Linear, so a camera image recorded at half size averages 2x2 pixels. At full size it samples
+    // pixel centers, which is exact either way.
+    GLES20.glTexParameteri(textureTarget, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameteri(textureTarget, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
 
     int numVertices = 4;
     if (numVertices != QUAD_COORDS.length / COORDS_PER_VERTEX) {
@@ -139,6 +147,10 @@ public class BackgroundRenderer {
       return;
     }
 
+    drawQuad(quadTexCoordTransformed);
+  }
+
+  private void drawQuad(FloatBuffer texCoords) {
     // No need to test or write depth, the screen quad has arbitrary depth, and is expected
     // to be drawn first.
     GLES20.glDisable(GLES20.GL_DEPTH_TEST);
@@ -159,7 +171,7 @@ public class BackgroundRenderer {
         GLES20.GL_FLOAT,
         false,
         0,
-        quadTexCoordTransformed);
+        texCoords);
 
     // Enable vertex arrays
     GLES20.glEnableVertexAttribArray(quadPositionParam);
@@ -178,11 +190,49 @@ public class BackgroundRenderer {
     ShaderUtil.checkGLError(TAG, "Draw");
   }
 
+  /**
+   * Draws the AR background like {@link #draw(Frame)}, but into the given framebuffer, which
+   * should be the size of the screen. Afterwards the default framebuffer is bound again.
+   *
+   * @param frame The last {@code Frame} returned by {@link Session#update()}.
+   */
+  public void drawToFramebuffer(Frame frame, int framebufferId, int width, int height) {
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebufferId);
+    GLES20.glViewport(0, 0, width, height);
+    // draw() skips frames without a camera image, don't leave stale content behind.
+    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    draw(frame);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+    ShaderUtil.checkGLError(TAG, "Draw to framebuffer");
+  }
+
+  /**
+   * Draws the whole camera image, as described by {@link
+   * com.google.ar.core.Camera#getTextureIntrinsics()}, into the given framebuffer: upright in
+   * sensor orientation, uncropped and unaffected by the display rotation. Afterwards the default
+   * framebuffer is bound again, but the viewport is left at the framebuffer size.
+   *
+   * @param width should be the texture width, or an integer fraction of it.
+   */
+  public void drawCameraImage(Frame frame, int framebufferId, int width, int height) {
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebufferId);
+    GLES20.glViewport(0, 0, width, height);
+    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    if (frame.getTimestamp() != 0) {
+      drawQuad(quadTexCoord);
+    }
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+    ShaderUtil.checkGLError(TAG, "Draw camera image");
+  }
+
   private static final float[] QUAD_COORDS =
       new float[] {
         -1.0f, -1.0f, 0.0f, -1.0f, +1.0f, 0.0f, +1.0f, -1.0f, 0.0f, +1.0f, +1.0f, 0.0f,
       };
 
+  // The camera image untransformed, its first row at the top.
   private static final float[] QUAD_TEXCOORDS =
       new float[] {
         0.0f, 1.0f,
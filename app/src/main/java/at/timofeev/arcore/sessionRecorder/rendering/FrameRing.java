@@ -0,0 +1,219 @@
+package at.timofeev.arcore.sessionRecorder.rendering;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A few offscreen frames handed from the render thread to the encoder thread.
+ *
+ * <p>The render thread {@link #acquire}s a free slot, renders into its framebuffer and
+ * {@link #publish}es it; the encoder thread waits for the slot with {@link #awaitPublished},
+ * draws it and hands it back with {@link #release}. Both threads must use EGL contexts that share
+ * objects with the one the ring was created in.
+ *
+ * <p>GPU work is ordered across the two contexts with fence syncs if the context supports
+ * OpenGL ES 3, so neither thread blocks on the other's GPU work. Otherwise {@code glFinish()} is
+ * used instead, so both contexts should be created with client version 3 where the device has
+ * it. When the encoder falls behind, {@link #acquire} fails instead of waiting, so the
+ * render thread never stalls.
+ */
+public class FrameRing {
+  private static final String TAG = FrameRing.class.getSimpleName();
+
+  private static final int FREE = 0;
+  private static final int RENDERING = 1;
+  private static final int QUEUED = 2;
+
+  private final TextureBlitter blitter;
+  private final int size;
+  private final AtomicIntegerArray states;
+  private final int[] framebufferIds;
+  private final int[] textureIds;
+  // Fence after the render thread's writes, and after the encoder thread's reads.
+  private final long[] publishFences;
+  private final long[] releaseFences;
+  private final long[] presentationTimes;
+
+  private boolean fences;
+  private int width;
+  private int height;
+  private int next;
+
+  public FrameRing(TextureBlitter blitter, int size) {
+    this.blitter = blitter;
+    this.size = size;
+    states = new AtomicIntegerArray(size);
+    framebufferIds = new int[size];
+    textureIds = new int[size];
+    publishFences = new long[size];
+    releaseFences = new long[size];
+    presentationTimes = new long[size];
+  }
+
+  /**
+   * Creates the frames. Must be called on the render thread.
+   */
+  public void createOnGlThread(int width, int height) {
+    String version = GLES20.glGetString(GLES20.GL_VERSION);
+    fences = version != null && version.startsWith("OpenGL ES 3");
+
+    GLES20.glGenTextures(size, textureIds, 0);
+    GLES20.glGenFramebuffers(size, framebufferIds, 0);
+    for (int i = 0; i < size; i++) {
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureIds[i]);
+      GLES20.glTexParameteri(
+          GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+      GLES20.glTexParameteri(
+          GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+      GLES20.glTexParameteri(
+          GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+      GLES20.glTexParameteri(
+          GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    }
+    resize(width, height);
+  }
+
+  /**
+   * Reallocates the frames for a new surface size. Must be called on the render thread while the
+   * encoder holds no frame.
+   */
+  public void resize(int width, int height) {
+    this.width = width;
+    this.height = height;
+    for (int i = 0; i < size; i++) {
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureIds[i]);
+      GLES20.glTexImage2D(
+          GLES20.GL_TEXTURE_2D,
+          0,
+          GLES20.GL_RGBA,
+          width,
+          height,
+          0,
+          GLES20.GL_RGBA,
+          GLES20.GL_UNSIGNED_BYTE,
+          null);
+      GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebufferIds[i]);
+      GLES20.glFramebufferTexture2D(
+          GLES20.GL_FRAMEBUFFER,
+          GLES20.GL_COLOR_ATTACHMENT0,
+          GLES20.GL_TEXTURE_2D,
+          textureIds[i],
+          0);
+      int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+      if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+        throw new RuntimeException("Incomplete framebuffer: 0x" + Integer.toHexString(status));
+      }
+    }
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    ShaderUtil.checkGLError(TAG, "Frame allocation");
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Returns whether the encoder holds no frame, so the ring may be resized.
+   */
+  public boolean isIdle() {
+    for (int i = 0; i < size; i++) {
+      if (states.get(i) != FREE) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int getFramebufferId(int slot) {
+    return framebufferIds[slot];
+  }
+
+  /**
+   * Takes a free frame for rendering. Render thread only.
+   *
+   * @return the slot, or -1 if the encoder holds all frames.
+   */
+  public int acquire() {
+    for (int i = 0; i < size; i++) {
+      int slot = (next + i) % size;
+      if (states.get(slot) == FREE) {
+        states.set(slot, RENDERING);
+        next = (slot + 1) % size;
+        // Don't overwrite the frame before the encoder's GPU work has read it.
+        waitAndDelete(releaseFences, slot);
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns an acquired frame without handing it to the encoder. Render thread only.
+   */
+  public void cancel(int slot) {
+    states.set(slot, FREE);
+  }
+
+  /**
+   * Marks the end of the rendering into the frame, which the encoder thread may use from now on.
+   * Render thread only.
+   */
+  public void publish(int slot, long presentationTimeNs) {
+    presentationTimes[slot] = presentationTimeNs;
+    publishFences[slot] = insertFence();
+    states.set(slot, QUEUED);
+  }
+
+  /**
+   * Makes the following GL commands of the calling context wait until the published frame is
+   * rendered. Encoder thread only.
+   */
+  public void awaitPublished(int slot) {
+    waitAndDelete(publishFences, slot);
+  }
+
+  public long getPresentationTime(int slot) {
+    return presentationTimes[slot];
+  }
+
+  /**
+   * Draws the frame over the current viewport. Render thread, or encoder thread between
+   * {@link #awaitPublished} and {@link #release}.
+   */
+  public void draw(int slot) {
+    blitter.draw(textureIds[slot]);
+  }
+
+  /**
+   * Hands the frame back after the encoder thread has issued its last read. Encoder thread only.
+   */
+  public void release(int slot) {
+    releaseFences[slot] = insertFence();
+    states.set(slot, FREE);
+  }
+
+  private long insertFence() {
+    if (!fences) {
+      GLES20.glFinish();
+      return 0;
+    }
+    long fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    // The fence has to reach the GPU before another context can wait for it.
+    GLES20.glFlush();
+    return fence;
+  }
+
+  private void waitAndDelete(long[] fencesBySlot, int slot) {
+    long fence = fencesBySlot[slot];
+    if (fence != 0) {
+      GLES30.glWaitSync(fence, 0, GLES30.GL_TIMEOUT_IGNORED);
+      GLES30.glDeleteSync(fence);
+      fencesBySlot[slot] = 0;
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package at.timofeev.arcore.sessionRecorder.rendering;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Copies a 2D texture onto the current surface, filling the viewport.
+ *
+ * <p>Nothing changes after {@link #createOnGlThread}, so one instance can be used from every
+ * context that shares the program, e.g. the render thread and the encoder thread.
+ */
+public class TextureBlitter {
+  private static final String TAG = TextureBlitter.class.getSimpleName();
+
+  private static final String VERTEX_SHADER_NAME = "shaders/blit.vert";
+  private static final String FRAGMENT_SHADER_NAME = "shaders/blit.frag";
+
+  private static final int COORDS_PER_VERTEX = 2;
+  private static final int TEXCOORDS_PER_VERTEX = 2;
+  private static final int FLOAT_SIZE = 4;
+
+  private FloatBuffer quadVertices;
+  private FloatBuffer quadTexCoord;
+
+  private int program;
+  private int positionParam;
+  private int texCoordParam;
+  private int textureParam;
+
+  /**
+   * Compiles the program. Must be called on the OpenGL thread.
+   *
+   * @param context Needed to access shader source.
+   */
+  public void createOnGlThread(Context context) throws IOException {
+    quadVertices = createBuffer(QUAD_COORDS);
+    quadTexCoord = createBuffer(QUAD_TEXCOORDS);
+
+    int vertexShader =
+        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
+    int fragmentShader =
+        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
+
+    program = GLES20.glCreateProgram();
+    GLES20.glAttachShader(program, vertexShader);
+    GLES20.glAttachShader(program, fragmentShader);
+    GLES20.glLinkProgram(program);
+
+    positionParam = GLES20.glGetAttribLocation(program, "a_Position");
+    texCoordParam = GLES20.glGetAttribLocation(program, "a_TexCoord");
+    textureParam = GLES20.glGetUniformLocation(program, "sTexture");
+
+    ShaderUtil.checkGLError(TAG, "Program creation");
+  }
+
+  /**
+   * Draws the texture over the whole viewport, without depth test.
+   */
+  public void draw(int textureId) {
+    GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+    GLES20.glDepthMask(false);
+
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+
+    GLES20.glUseProgram(program);
+    GLES20.glUniform1i(textureParam, 0);
+
+    GLES20.glVertexAttribPointer(
+        positionParam, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, quadVertices);
+    GLES20.glVertexAttribPointer(
+        texCoordParam, TEXCOORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, quadTexCoord);
+
+    GLES20.glEnableVertexAttribArray(positionParam);
+    GLES20.glEnableVertexAttribArray(texCoordParam);
+
+    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+    GLES20.glDisableVertexAttribArray(positionParam);
+    GLES20.glDisableVertexAttribArray(texCoordParam);
+
+    GLES20.glDepthMask(true);
+    GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+
+    ShaderUtil.checkGLError(TAG, "Draw");
+  }
+
+  private static FloatBuffer createBuffer(float[] values) {
+    ByteBuffer bb = ByteBuffer.allocateDirect(values.length * FLOAT_SIZE);
+    bb.order(ByteOrder.nativeOrder());
+    FloatBuffer buffer = bb.asFloatBuffer();
+    buffer.put(values);
+    buffer.position(0);
+    return buffer;
+  }
+
+  private static final float[] QUAD_COORDS =
+      new float[] {
+        -1.0f, -1.0f, -1.0f, +1.0f, +1.0f, -1.0f, +1.0f, +1.0f,
+      };
+
+  // Texture origin is at the bottom left, like the framebuffer's.
+  private static final float[] QUAD_TEXCOORDS =
+      new float[] {
+        0.0f, 0.0f,
+        0.0f, 1.0f,
+        1.0f, 0.0f,
+        1.0f, 1.0f,
+      };
+}
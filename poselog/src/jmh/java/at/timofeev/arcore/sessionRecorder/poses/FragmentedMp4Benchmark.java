@@ -0,0 +1,107 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes fragments with {@link FragmentedMp4Writer}: every call adds one second of 30 fps
+ * video with a key frame up front and a pose record per frame, which ends the fragment before
+ * it.  Frames are about 80 KB, as at the default 20 Mbit/s, in Annex B as MediaCodec emits
+ * them or already length-prefixed.
+ * <p>
+ * Each measurement writes {@link #FRAGMENTS} fragments into a new file, without syncing, so
+ * the numbers are for that many fragments and include the file writes but not the storage.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = FragmentedMp4Benchmark.FRAGMENTS)
+@Measurement(iterations = 10, batchSize = FragmentedMp4Benchmark.FRAGMENTS)
+@Fork(1)
+@State(Scope.Thread)
+public class FragmentedMp4Benchmark {
+    static final int FRAGMENTS = 50;
+    private static final int FRAMES = 30;
+    private static final long FRAME_US = 33333;
+    private static final int FRAME_SIZE = 80 * 1024;
+
+    @Param({"true", "false"})
+    public boolean annexB;
+
+    private final ByteBuffer[] mFrames = new ByteBuffer[FRAMES];
+    private final ByteBuffer mRecord = ByteBuffer.allocate(PoseMetadataFormat.RECORD_SIZE);
+    private final PoseSample mSample = new PoseSample();
+    private File mFile;
+    private FragmentedMp4Writer mWriter;
+    private int mVideoTrack;
+    private int mPoseTrack;
+    private int mFrameId;
+
+    @Setup(Level.Trial)
+    public void setUpFrames() {
+        for (int i = 0; i < FRAMES; i++) {
+            // A slice and an SEI; the bytes are never zero, so there are no stray start codes.
+            byte[] slice = new byte[FRAME_SIZE - i * 1024];
+            Arrays.fill(slice, (byte) (0x10 + i));
+            slice[0] = (byte) (i == 0 ? 0x65 : 0x41);
+            byte[] sei = {0x06, 0x05, 0x55, 0x55, 0x55};
+            ByteBuffer frame = ByteBuffer.allocateDirect(slice.length + sei.length + 8);
+            if (annexB) {
+                frame.put(new byte[] {0, 0, 0, 1}).put(slice).put(new byte[] {0, 0, 1}).put(sei);
+            } else {
+                frame.putInt(slice.length).put(slice).putInt(sei.length).put(sei);
+            }
+            frame.flip();
+            mFrames[i] = frame;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("fragments", ".mp4");
+        mWriter = new FragmentedMp4Writer(mFile, 500000, DurabilityPolicy.NONE);
+        mVideoTrack = mWriter.addVideoTrack(FragmentedMp4Writer.Codec.AVC, 1920, 1080,
+                ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1e,
+                        0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80}));
+        mPoseTrack = mWriter.addMetadataTrack(PoseMetadataFormat.MIME_TYPE);
+        mWriter.start();
+        mFrameId = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        mWriter.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public int writeFragment() throws IOException {
+        for (int i = 0; i < FRAMES; i++) {
+            long ptsUs = mFrameId * FRAME_US;
+            mWriter.writeSample(mVideoTrack, mFrames[i], ptsUs, i == 0);
+            mSample.frameId = mFrameId;
+            mSample.presentationTimeNs = ptsUs * 1000;
+            mSample.timestampNs = mSample.presentationTimeNs;
+            PoseMetadataFormat.encode(mRecord, 0, mSample);
+            mWriter.writeSample(mPoseTrack, mRecord, ptsUs, true);
+            mFrameId++;
+        }
+        return mWriter.getFragmentCount();
+    }
+}
@@ -0,0 +1,91 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode throughput of {@link PoseStreamEncoder} and {@link PoseStreamDecoder}, one
+ * block of {@link CompressedPoseFormat#BLOCK_RECORDS} random-walk poses per invocation, reported
+ * per sample.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PoseStreamBenchmark {
+    private static final int RECORDS = CompressedPoseFormat.BLOCK_RECORDS;
+
+    private final PoseSample[] mSamples = new PoseSample[RECORDS];
+    private final PoseStreamEncoder mEncoder = new PoseStreamEncoder(RECORDS);
+    private final PoseStreamDecoder mDecoder = new PoseStreamDecoder();
+    private final PoseSample mOut = new PoseSample();
+    private ByteBuffer mEncoded;
+    private int mEncodedLength;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        PoseSample s = new PoseSample();
+        s.fx = 1500.5f;
+        s.fy = 1501.25f;
+        s.cx = 960.125f;
+        s.cy = 540.0625f;
+        s.width = 1920;
+        s.height = 1080;
+        for (int i = 0; i < RECORDS; i++) {
+            s.frameId = i;
+            s.timestampNs += 33333333L + random.nextInt(100000);
+            s.presentationTimeNs = s.timestampNs;
+            s.tx += (float) random.nextGaussian() * 0.01f;
+            s.ty += (float) random.nextGaussian() * 0.01f;
+            s.tz += (float) random.nextGaussian() * 0.01f;
+            s.qx += (float) random.nextGaussian() * 0.001f;
+            s.qy += (float) random.nextGaussian() * 0.001f;
+            s.qz += (float) random.nextGaussian() * 0.001f;
+            s.qw = 1 - s.qx * s.qx;
+            mSamples[i] = new PoseSample();
+            mSamples[i].set(s);
+        }
+        for (PoseSample sample : mSamples) {
+            mEncoder.encode(sample);
+        }
+        mEncodedLength = mEncoder.finish();
+        mEncoded = ByteBuffer.allocate(mEncodedLength);
+        mEncoded.put(mEncoder.getBuffer(), 0, mEncodedLength);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int encode() {
+        mEncoder.reset();
+        for (PoseSample sample : mSamples) {
+            mEncoder.encode(sample);
+        }
+        return mEncoder.finish();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void decode(Blackhole blackhole) {
+        mDecoder.reset(mEncoded, 0, mEncodedLength, RECORDS);
+        while (mDecoder.decode(mOut)) {
+            blackhole.consume(mOut.tx);
+        }
+    }
+}
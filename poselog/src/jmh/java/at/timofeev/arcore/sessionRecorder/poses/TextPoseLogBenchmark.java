@@ -0,0 +1,108 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes text pose log lines to a file with {@link TextPoseLogWriter}, against the
+ * StringBuilder and BufferedWriter concatenation it replaced, producing the same lines.  Both
+ * write to temporary files, so the numbers include the (buffered) I/O.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TextPoseLogBenchmark {
+    private static final int SAMPLES = 1024;
+
+    private final PoseSample[] mSamples = new PoseSample[SAMPLES];
+    private int mNext;
+    private File mFile;
+    private File mLegacyFile;
+    private TextPoseLogWriter mWriter;
+    private BufferedWriter mLegacyWriter;
+    private final StringBuilder mLine = new StringBuilder(256);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Random random = new Random(1);
+        for (int i = 0; i < SAMPLES; i++) {
+            PoseSample s = new PoseSample();
+            s.frameId = i;
+            s.tx = (float) random.nextGaussian();
+            s.ty = (float) random.nextGaussian();
+            s.tz = (float) random.nextGaussian();
+            s.qx = random.nextFloat();
+            s.qy = random.nextFloat();
+            s.qz = random.nextFloat();
+            s.qw = random.nextFloat();
+            s.fx = 1500 + random.nextFloat();
+            s.fy = 1500 + random.nextFloat();
+            s.cx = 960 + random.nextFloat();
+            s.cy = 540 + random.nextFloat();
+            s.width = 1920;
+            s.height = 1080;
+            s.timestampNs = 1000000000L + i * 33333333L;
+            s.presentationTimeNs = s.timestampNs;
+            mSamples[i] = s;
+        }
+        mFile = File.createTempFile("poses", ".txt");
+        mWriter = new TextPoseLogWriter(mFile);
+        mLegacyFile = File.createTempFile("poses-legacy", ".txt");
+        mLegacyWriter = new BufferedWriter(new FileWriter(mLegacyFile));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mWriter.close();
+        mLegacyWriter.close();
+        mFile.delete();
+        mLegacyFile.delete();
+    }
+
+    private PoseSample next() {
+        PoseSample s = mSamples[mNext];
+        mNext = (mNext + 1) % SAMPLES;
+        return s;
+    }
+
+    @Benchmark
+    public void numberFormatter() throws IOException {
+        mWriter.write(next());
+    }
+
+    @Benchmark
+    public void concatenation() throws IOException {
+        PoseSample s = next();
+        mLine.setLength(0);
+        mLine.append(s.frameId)
+                .append(' ').append(s.tx).append(' ').append(s.ty).append(' ').append(s.tz)
+                .append(' ').append(s.qx).append(' ').append(s.qy).append(' ').append(s.qz)
+                .append(' ').append(s.qw)
+                .append(' ').append(s.fx).append(' ').append(s.fy)
+                .append(' ').append(s.width).append(' ').append(s.height)
+                .append(' ').append(s.cx).append(' ').append(s.cy)
+                .append(' ').append(s.timestampNs).append(' ').append(s.presentationTimeNs);
+        mLegacyWriter.append(mLine);
+        mLegacyWriter.newLine();
+    }
+}
@@ -0,0 +1,237 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves the actual pose log I/O off the calling thread.
+ * <p>
+ * {@link #write} copies the sample into a preallocated single-producer/single-consumer ring
+ * and returns; a dedicated writer thread drains the ring in batches into the wrapped
+ * {@link PoseLogWriter}.  What happens when the writer thread falls behind and the ring is full
+ * is decided by the {@link OverflowPolicy}.
+ * <p>
+ * Exactly one thread may call {@link #write}.  An I/O error on the writer thread is reported by
+ * the next call to {@link #write} or {@link #close}; records after the error are discarded.
+ * <p>
+ * It has no position or flush, unlike a {@link BufferedPoseLogWriter}: the wrapped writer's
+ * position lags behind by however many records are queued, and it may only be flushed on the
+ * writer thread.  Wrap it in a {@link DurablePoseLogWriter} to have it flushed there.
+ */
+public class AsyncPoseLogWriter implements PoseLogWriter, Runnable {
+    // How long the writer thread sleeps when the ring is empty.  Records pile up in between,
+    // which is what makes the delegate see them in batches.
+    private static final long DRAIN_INTERVAL_NS = 20 * 1000 * 1000L;
+    // How long a blocked producer sleeps before checking for free space again.
+    private static final long BLOCK_WAIT_NS = 100 * 1000L;
+
+    public enum OverflowPolicy {
+        /** Wait for the writer thread to free a slot.  Nothing is lost, but the caller stalls. */
+        BLOCK,
+        /** Overwrite the oldest record that hasn't been written yet. */
+        DROP_OLDEST,
+        /** Discard the record being written. */
+        DROP_NEWEST
+    }
+
+    private final PoseLogWriter mDelegate;
+    private final OverflowPolicy mPolicy;
+    private final PoseSample[] mSlots;
+    private final int mMask;
+    // Wake the writer thread early once this many records are pending.
+    private final int mWakeThreshold;
+    private final Thread mThread;
+
+    // Next sequence number to publish; only advanced by the producer.
+    private final AtomicLong mHead = new AtomicLong();
+    // Next sequence number to write; advanced by the writer thread, and by the producer when
+    // it drops the oldest record.
+    private final AtomicLong mTail = new AtomicLong();
+
+    private volatile boolean mClosing;
+    private volatile IOException mError;
+
+    // ----- statistics, each written by one thread only -----
+    private volatile int mHighWaterMark;
+    private volatile long mDroppedCount;
+    private volatile long mBlockedCount;
+    private volatile long mWrittenCount;
+
+    /**
+     * Starts the writer thread.
+     *
+     * @param capacity number of records the ring can hold, rounded up to a power of two.
+     */
+    public AsyncPoseLogWriter(PoseLogWriter delegate, int capacity, OverflowPolicy policy) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        mDelegate = delegate;
+        mPolicy = policy;
+        mSlots = new PoseSample[size];
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new PoseSample();
+        }
+        mMask = size - 1;
+        mWakeThreshold = size / 2;
+        mThread = new Thread(this, "PoseLogWriter");
+        mThread.start();
+    }
+
+    @Override
+    public void write(PoseSample sample) throws IOException {
+        IOException error = mError;
+        if (error != null) {
+            throw error;
+        }
+        if (mClosing) {
+            return;
+        }
+
+        long head = mHead.get();
+        long tail = mTail.get();
+        if (head - tail > mMask) {
+            switch (mPolicy) {
+                case DROP_NEWEST:
+                    mDroppedCount++;
+                    return;
+                case DROP_OLDEST:
+                    // If this fails the writer thread took the record itself, either way
+                    // there is a free slot now.
+                    if (mTail.compareAndSet(tail, tail + 1)) {
+                        mDroppedCount++;
+                    }
+                    break;
+                case BLOCK:
+                    mBlockedCount++;
+                    while (head - mTail.get() > mMask && mError == null) {
+                        LockSupport.unpark(mThread);
+                        LockSupport.parkNanos(this, BLOCK_WAIT_NS);
+                    }
+                    break;
+            }
+        }
+
+        mSlots[(int) head & mMask].set(sample);
+        mHead.lazySet(head + 1);
+
+        int depth = (int) (head + 1 - mTail.get());
+        if (depth > mHighWaterMark) {
+            mHighWaterMark = depth;
+        }
+        if (depth >= mWakeThreshold) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        mDelegate.force();
+    }
+
+    /**
+     * Writes out everything still queued, closes the wrapped writer and waits for the writer
+     * thread to exit.
+     */
+    @Override
+    public void close() throws IOException {
+        mClosing = true;
+        LockSupport.unpark(mThread);
+        boolean interrupted = false;
+        while (mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        IOException error = mError;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Writer thread entry point.
+     */
+    @Override
+    public void run() {
+        PoseSample record = new PoseSample();
+        while (true) {
+            // Read the flag before the head, so that a close() seen here can't hide records
+            // published before it.
+            boolean closing = mClosing;
+            long tail = mTail.get();
+            if (tail == mHead.get()) {
+                if (closing) {
+                    break;
+                }
+                LockSupport.parkNanos(this, DRAIN_INTERVAL_NS);
+                continue;
+            }
+
+            record.set(mSlots[(int) tail & mMask]);
+            if (!mTail.compareAndSet(tail, tail + 1)) {
+                // The producer dropped this record while we copied it, the copy may be torn.
+                continue;
+            }
+            if (mError == null) {
+                try {
+                    mDelegate.write(record);
+                    mWrittenCount++;
+                } catch (IOException e) {
+                    mError = e;
+                }
+            }
+        }
+
+        try {
+            mDelegate.close();
+        } catch (IOException e) {
+            if (mError == null) {
+                mError = e;
+            }
+        }
+    }
+
+    /**
+     * Returns the largest number of records that were queued at the same time.
+     */
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /**
+     * Returns the number of records lost to {@link OverflowPolicy#DROP_OLDEST} or
+     * {@link OverflowPolicy#DROP_NEWEST}.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Returns how often {@link OverflowPolicy#BLOCK} made the producer wait.
+     */
+    public long getBlockedCount() {
+        return mBlockedCount;
+    }
+
+    /**
+     * Returns the number of records handed to the wrapped writer so far.
+     */
+    public long getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    /**
+     * Returns the ring size in records.
+     */
+    public int getCapacity() {
+        return mSlots.length;
+    }
+}
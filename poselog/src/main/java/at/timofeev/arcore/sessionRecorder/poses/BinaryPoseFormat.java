@@ -0,0 +1,290 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Layout of the binary pose log.
+ * <p>
+ * A file starts with a {@link #HEADER_SIZE} byte header, followed by records of
+ * {@link #RECORD_SIZE} bytes each.  Everything is little-endian.
+ * <pre>
+ * header:  0  magic "ARPPOSES"                  record:  0  int64   timestamp (ns)
+ *          8  uint16 version                             8  int32   frameId
+ *         10  uint16 header size                        12  int32   type
+ *         12  uint16 record size
+ *         14  uint16 flags                      pose:   16  float32 tx, ty, tz
+ *         16  int64  creation time (ms)                 28  float32 qx, qy, qz, qw
+ *         24  int32  intrinsics changes                 44  int64   presentation time (ns)
+ *         28  reserved
+ *         32  float32 fx, fy                    intrinsics:
+ *         40  float32 cx, cy                            16  float32 fx, fy
+ *         48  int32   width, height                     24  float32 cx, cy
+ *         56  reserved                                  32  int32   width, height
+ *                                                       40  reserved
+ * </pre>
+ * Texture intrinsics rarely change during a session, so instead of repeating them in every
+ * pose they are stored once in the header, and as an {@link #TYPE_INTRINSICS} record before
+ * the first pose they apply to whenever they change.  The header counts these changes, or
+ * holds -1 if the writer didn't get to close the file.
+ * <p>
+ * Readers should take the record size from the header rather than from this class, so that
+ * fields appended in later versions can be skipped.
+ * <p>
+ * With {@link #FLAG_CRC32} every record is followed by the CRC-32 of its bytes, which the
+ * header accounts for in its record size.  {@link #FLAG_INCOMPLETE} is set while a writer still
+ * has the file open; finding it later means the recording was not closed properly.
+ */
+public final class BinaryPoseFormat {
+    public static final byte[] MAGIC = {'A', 'R', 'P', 'P', 'O', 'S', 'E', 'S'};
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 52;
+    public static final int CRC_SIZE = 4;
+
+    public static final int FLAG_CRC32 = 1;
+    public static final int FLAG_INCOMPLETE = 1 << 1;
+
+    public static final int TYPE_POSE = 0;
+    public static final int TYPE_INTRINSICS = 1;
+
+    /** Absolute file offset of the flags field. */
+    public static final int OFFSET_FLAGS = 14;
+    /** Absolute file offset of the intrinsics change count. */
+    public static final int OFFSET_INTRINSICS_CHANGES = 24;
+
+    private static final int OFF_HEADER_INTRINSICS = 32;
+
+    private static final int OFF_TIMESTAMP = 0;
+    private static final int OFF_FRAME_ID = 8;
+    private static final int OFF_TYPE = 12;
+    private static final int OFF_POSE = 16;
+    private static final int OFF_PRESENTATION_TIME = 44;
+    private static final int OFF_INTRINSICS = 16;
+
+    private BinaryPoseFormat() {}
+
+    /**
+     * Decoded file header.
+     */
+    public static final class Header {
+        public int version;
+        public int headerSize;
+        public int recordSize;
+        public int flags;
+        public long creationTimeMillis;
+        /** Number of intrinsics records in the file, or -1 if unknown. */
+        public int intrinsicsChanges;
+        /** The intrinsics in effect before the first intrinsics record. */
+        public final PoseSample intrinsics = new PoseSample();
+
+        public boolean hasFlag(int flag) {
+            return (flags & flag) != 0;
+        }
+    }
+
+    /**
+     * Puts a header for plain records at the buffer's position and advances it by
+     * {@link #HEADER_SIZE}.
+     */
+    public static void writeHeader(ByteBuffer buf, long creationTimeMillis) {
+        writeHeader(buf, creationTimeMillis, 0);
+    }
+
+    /**
+     * Puts a header at the buffer's position and advances it by {@link #HEADER_SIZE}.  The
+     * record size is derived from the flags.  The intrinsics are left zero and the number of
+     * changes unknown, writers fill them in with {@link #putHeaderIntrinsics} and
+     * {@link #OFFSET_INTRINSICS_CHANGES}.
+     */
+    public static void writeHeader(ByteBuffer buf, long creationTimeMillis, int flags) {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        int base = buf.position();
+        buf.put(MAGIC);
+        buf.putShort((short) VERSION);
+        buf.putShort((short) HEADER_SIZE);
+        buf.putShort((short) recordSize(flags));
+        buf.putShort((short) flags);
+        buf.putLong(creationTimeMillis);
+        buf.putInt(-1);
+        while (buf.position() < base + HEADER_SIZE) {
+            buf.put((byte) 0);
+        }
+    }
+
+    /**
+     * Stores the intrinsics of {@code s} in the header that starts at {@code base}.
+     */
+    public static void putHeaderIntrinsics(ByteBuffer buf, int base, PoseSample s) {
+        putIntrinsics(buf, base + OFF_HEADER_INTRINSICS, s);
+    }
+
+    /**
+     * Overwrites a little-endian int of an already written header.
+     */
+    static void patchInt(FileChannel channel, int offset, int value) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(0, value);
+        while (buf.hasRemaining()) {
+            channel.write(buf, offset + buf.position());
+        }
+    }
+
+    /**
+     * Overwrites a little-endian short of an already written header.
+     */
+    static void patchShort(FileChannel channel, int offset, int value) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putShort(0, (short) value);
+        while (buf.hasRemaining()) {
+            channel.write(buf, offset + buf.position());
+        }
+    }
+
+    /**
+     * Returns the size of one record including the optional CRC.
+     */
+    public static int recordSize(int flags) {
+        return (flags & FLAG_CRC32) != 0 ? RECORD_SIZE + CRC_SIZE : RECORD_SIZE;
+    }
+
+    /**
+     * Validates and decodes the header at the buffer's position.  The position is advanced past
+     * the header.
+     */
+    public static Header readHeader(ByteBuffer buf) throws IOException {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        int base = buf.position();
+        if (buf.remaining() < HEADER_SIZE) {
+            throw new IOException("Truncated pose log header");
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buf.get(base + i) != MAGIC[i]) {
+                throw new IOException("Not a binary pose log");
+            }
+        }
+        Header header = new Header();
+        header.version = buf.getShort(base + 8) & 0xffff;
+        header.headerSize = buf.getShort(base + 10) & 0xffff;
+        header.recordSize = buf.getShort(base + 12) & 0xffff;
+        header.flags = buf.getShort(base + OFFSET_FLAGS) & 0xffff;
+        header.creationTimeMillis = buf.getLong(base + 16);
+        if (header.version < 1 || header.version > VERSION) {
+            throw new IOException("Unsupported pose log version " + header.version);
+        }
+        if (header.headerSize < HEADER_SIZE || header.recordSize < recordSize(header.flags)) {
+            throw new IOException("Corrupt pose log header");
+        }
+        if (buf.remaining() < header.headerSize) {
+            throw new IOException("Truncated pose log header");
+        }
+        header.intrinsicsChanges = buf.getInt(base + OFFSET_INTRINSICS_CHANGES);
+        getIntrinsics(buf, base + OFF_HEADER_INTRINSICS, header.intrinsics);
+        buf.position(base + header.headerSize);
+        return header;
+    }
+
+    /**
+     * Encodes the pose of {@code s} as a record at the given absolute offset.  Does not move
+     * the buffer's position.
+     */
+    public static void encodePose(ByteBuffer buf, int offset, PoseSample s) {
+        buf.putLong(offset + OFF_TIMESTAMP, s.timestampNs);
+        buf.putInt(offset + OFF_FRAME_ID, s.frameId);
+        buf.putInt(offset + OFF_TYPE, TYPE_POSE);
+        buf.putFloat(offset + OFF_POSE, s.tx);
+        buf.putFloat(offset + OFF_POSE + 4, s.ty);
+        buf.putFloat(offset + OFF_POSE + 8, s.tz);
+        buf.putFloat(offset + OFF_POSE + 12, s.qx);
+        buf.putFloat(offset + OFF_POSE + 16, s.qy);
+        buf.putFloat(offset + OFF_POSE + 20, s.qz);
+        buf.putFloat(offset + OFF_POSE + 24, s.qw);
+        buf.putLong(offset + OFF_PRESENTATION_TIME, s.presentationTimeNs);
+    }
+
+    /**
+     * Encodes the intrinsics of {@code s} as a record at the given absolute offset, stamped with
+     * the frame they first apply to.  Does not move the buffer's position.
+     */
+    public static void encodeIntrinsics(ByteBuffer buf, int offset, PoseSample s) {
+        buf.putLong(offset + OFF_TIMESTAMP, s.timestampNs);
+        buf.putInt(offset + OFF_FRAME_ID, s.frameId);
+        buf.putInt(offset + OFF_TYPE, TYPE_INTRINSICS);
+        putIntrinsics(buf, offset + OFF_INTRINSICS, s);
+        for (int i = offset + OFF_INTRINSICS + 24; i < offset + RECORD_SIZE; i += 4) {
+            buf.putInt(i, 0);
+        }
+    }
+
+    /**
+     * Decodes the record at the given absolute offset into {@code s}, and returns its type.
+     * Frame id and timestamp are set for every type.  A pose record leaves the intrinsics of
+     * {@code s} untouched; an intrinsics record leaves the pose.
+     */
+    public static int decode(ByteBuffer buf, int offset, PoseSample s) {
+        s.timestampNs = buf.getLong(offset + OFF_TIMESTAMP);
+        s.frameId = buf.getInt(offset + OFF_FRAME_ID);
+        int type = buf.getInt(offset + OFF_TYPE);
+        if (type == TYPE_INTRINSICS) {
+            getIntrinsics(buf, offset + OFF_INTRINSICS, s);
+        } else {
+            getPose(buf, offset + OFF_POSE, s);
+            s.presentationTimeNs = buf.getLong(offset + OFF_PRESENTATION_TIME);
+        }
+        return type;
+    }
+
+    /**
+     * Returns true if both samples have the same intrinsics, bit for bit.
+     */
+    public static boolean sameIntrinsics(PoseSample a, PoseSample b) {
+        return Float.floatToRawIntBits(a.fx) == Float.floatToRawIntBits(b.fx)
+                && Float.floatToRawIntBits(a.fy) == Float.floatToRawIntBits(b.fy)
+                && Float.floatToRawIntBits(a.cx) == Float.floatToRawIntBits(b.cx)
+                && Float.floatToRawIntBits(a.cy) == Float.floatToRawIntBits(b.cy)
+                && a.width == b.width
+                && a.height == b.height;
+    }
+
+    /**
+     * Copies only the intrinsics from {@code from} to {@code to}.
+     */
+    public static void copyIntrinsics(PoseSample from, PoseSample to) {
+        to.fx = from.fx;
+        to.fy = from.fy;
+        to.cx = from.cx;
+        to.cy = from.cy;
+        to.width = from.width;
+        to.height = from.height;
+    }
+
+    private static void getPose(ByteBuffer buf, int offset, PoseSample s) {
+        s.tx = buf.getFloat(offset);
+        s.ty = buf.getFloat(offset + 4);
+        s.tz = buf.getFloat(offset + 8);
+        s.qx = buf.getFloat(offset + 12);
+        s.qy = buf.getFloat(offset + 16);
+        s.qz = buf.getFloat(offset + 20);
+        s.qw = buf.getFloat(offset + 24);
+    }
+
+    private static void putIntrinsics(ByteBuffer buf, int offset, PoseSample s) {
+        buf.putFloat(offset, s.fx);
+        buf.putFloat(offset + 4, s.fy);
+        buf.putFloat(offset + 8, s.cx);
+        buf.putFloat(offset + 12, s.cy);
+        buf.putInt(offset + 16, s.width);
+        buf.putInt(offset + 20, s.height);
+    }
+
+    private static void getIntrinsics(ByteBuffer buf, int offset, PoseSample s) {
+        s.fx = buf.getFloat(offset);
+        s.fy = buf.getFloat(offset + 4);
+        s.cx = buf.getFloat(offset + 8);
+        s.cy = buf.getFloat(offset + 12);
+        s.width = buf.getInt(offset + 16);
+        s.height = buf.getInt(offset + 20);
+    }
+}
@@ -0,0 +1,107 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the binary pose log, see {@link BinaryPoseFormat}.
+ * <p>
+ * Records are encoded into one direct buffer that is allocated up front and handed to the
+ * channel whenever it fills up, so writing a record never allocates.  The intrinsics of the
+ * first sample go into the header, later ones only when they differ from the previous sample.
+ */
+public class BinaryPoseLogWriter implements BufferedPoseLogWriter {
+    // 1024 records, i.e. roughly half a minute at 30fps per write() call.
+    private static final int BUFFER_RECORDS = 1024;
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    // Bytes handed to the channel so far.
+    private long mFlushed;
+
+    // The intrinsics written last, valid once mRecords > 0.
+    private final PoseSample mIntrinsics = new PoseSample();
+    private int mIntrinsicsChanges;
+    private long mRecords;
+
+    public BinaryPoseLogWriter(File file) throws IOException {
+        mStream = new FileOutputStream(file);
+        mChannel = mStream.getChannel();
+        mBuffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * BinaryPoseFormat.RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        BinaryPoseFormat.writeHeader(mBuffer, System.currentTimeMillis());
+    }
+
+    @Override
+    public void write(PoseSample sample) throws IOException {
+        if (mRecords == 0) {
+            // The header is still at the start of the buffer, flush() keeps it there until now.
+            BinaryPoseFormat.putHeaderIntrinsics(mBuffer, 0, sample);
+            BinaryPoseFormat.copyIntrinsics(sample, mIntrinsics);
+        } else if (!BinaryPoseFormat.sameIntrinsics(sample, mIntrinsics)) {
+            BinaryPoseFormat.encodeIntrinsics(nextRecord(), mBuffer.position(), sample);
+            advance();
+            BinaryPoseFormat.copyIntrinsics(sample, mIntrinsics);
+            mIntrinsicsChanges++;
+        }
+        BinaryPoseFormat.encodePose(nextRecord(), mBuffer.position(), sample);
+        advance();
+        mRecords++;
+    }
+
+    @Override
+    public long position() {
+        return mFlushed + mBuffer.position();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // The intrinsics of the first record go into the header; until there is one, it stays
+        // in the buffer so write() can fill them in.
+        if (mRecords > 0) {
+            flushBuffer();
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        mChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+            BinaryPoseFormat.patchInt(mChannel, BinaryPoseFormat.OFFSET_INTRINSICS_CHANGES,
+                    mIntrinsicsChanges);
+        } finally {
+            mStream.close();
+        }
+    }
+
+    // Makes room for one record at the buffer's position.
+    private ByteBuffer nextRecord() throws IOException {
+        if (mBuffer.remaining() < BinaryPoseFormat.RECORD_SIZE) {
+            flushBuffer();
+        }
+        return mBuffer;
+    }
+
+    private void advance() {
+        mBuffer.position(mBuffer.position() + BinaryPoseFormat.RECORD_SIZE);
+    }
+
+    private void flushBuffer() throws IOException {
+        mBuffer.flip();
+        mFlushed += mBuffer.remaining();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+}
@@ -0,0 +1,24 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.IOException;
+
+/**
+ * A pose log writer that encodes records on the calling thread, so it knows where in the file
+ * the next record goes and can hand its buffer to the operating system on request.  All the
+ * format writers are; wrappers like {@link IndexedPoseLogWriter} and
+ * {@link DurablePoseLogWriter} need one underneath.  {@link AsyncPoseLogWriter} isn't, it only
+ * learns either on its writer thread.
+ */
+public interface BufferedPoseLogWriter extends PoseLogWriter {
+
+    /**
+     * Returns the file offset at which the next record will start, counting data that is still
+     * buffered.
+     */
+    long position();
+
+    /**
+     * Hands everything buffered so far to the operating system.
+     */
+    void flush() throws IOException;
+}
@@ -0,0 +1,66 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Layout of the compressed pose log.
+ * <p>
+ * A {@link #HEADER_SIZE} byte little-endian header
+ * <pre>
+ *  0  magic "ARPPOSEZ"    8  uint16 version    10  reserved    12  int32 records per block
+ * </pre>
+ * is followed by independent blocks of at most that many records.  Each block starts with
+ * {@link #BLOCK_HEADER_SIZE} bytes holding its int32 record count and int32 payload length,
+ * followed by the payload produced by {@link PoseStreamEncoder}.  Since all codec state is reset
+ * at block boundaries, decoding can start at any block.
+ */
+public final class CompressedPoseFormat {
+    public static final byte[] MAGIC = {'A', 'R', 'P', 'P', 'O', 'S', 'E', 'Z'};
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int BLOCK_HEADER_SIZE = 8;
+    /** Records per block written by {@link CompressedPoseLogWriter}, about 17s at 30fps. */
+    public static final int BLOCK_RECORDS = 512;
+    /** Upper bound for the payload of a block of {@link #BLOCK_RECORDS} records. */
+    public static final int MAX_BLOCK_PAYLOAD = BLOCK_RECORDS * PoseStreamEncoder.MAX_RECORD_BYTES;
+
+    private CompressedPoseFormat() {}
+
+    /**
+     * Puts a header at the buffer's position and advances it by {@link #HEADER_SIZE}.
+     */
+    public static void writeHeader(ByteBuffer buf, int blockRecords) {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(MAGIC);
+        buf.putShort((short) VERSION);
+        buf.putShort((short) 0);
+        buf.putInt(blockRecords);
+    }
+
+    /**
+     * Validates the header at the buffer's position and advances past it.
+     */
+    public static void readHeader(ByteBuffer buf) throws IOException {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        int base = buf.position();
+        if (buf.remaining() < HEADER_SIZE) {
+            throw new IOException("Truncated compressed pose log header");
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buf.get(base + i) != MAGIC[i]) {
+                throw new IOException("Not a compressed pose log");
+            }
+        }
+        int version = buf.getShort(base + 8) & 0xffff;
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported compressed pose log version " + version);
+        }
+        int blockRecords = buf.getInt(base + 12);
+        if (blockRecords < 1) {
+            throw new IOException("Corrupt compressed pose log header");
+        }
+        buf.position(base + HEADER_SIZE);
+    }
+}
@@ -0,0 +1,88 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the compressed pose log, see {@link CompressedPoseFormat}.
+ * <p>
+ * Samples are encoded into the current block in memory, which is written out once it holds
+ * {@link CompressedPoseFormat#BLOCK_RECORDS} samples.  A crash therefore loses the unwritten
+ * part of the last block.  {@link #flush()} ends the current block early, so flushing often
+ * costs some compression.
+ */
+public class CompressedPoseLogWriter implements BufferedPoseLogWriter {
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final PoseStreamEncoder mEncoder =
+            new PoseStreamEncoder(CompressedPoseFormat.BLOCK_RECORDS);
+    private final byte[] mBlockHeader = new byte[CompressedPoseFormat.BLOCK_HEADER_SIZE];
+    private final ByteBuffer mBlockHeaderBuffer =
+            ByteBuffer.wrap(mBlockHeader).order(ByteOrder.LITTLE_ENDIAN);
+    // File offset of the current block.
+    private long mBlockStart;
+
+    public CompressedPoseLogWriter(File file) throws IOException {
+        mStream = new FileOutputStream(file);
+        mChannel = mStream.getChannel();
+        byte[] header = new byte[CompressedPoseFormat.HEADER_SIZE];
+        CompressedPoseFormat.writeHeader(ByteBuffer.wrap(header),
+                CompressedPoseFormat.BLOCK_RECORDS);
+        mStream.write(header);
+        mBlockStart = header.length;
+    }
+
+    @Override
+    public void write(PoseSample sample) throws IOException {
+        mEncoder.encode(sample);
+        if (mEncoder.getCount() == CompressedPoseFormat.BLOCK_RECORDS) {
+            flushBlock();
+        }
+    }
+
+    /**
+     * Returns the offset of the block the next record goes into; records can't be addressed
+     * individually in this format.
+     */
+    @Override
+    public long position() {
+        return mBlockStart;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBlock();
+    }
+
+    @Override
+    public void force() throws IOException {
+        mChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBlock();
+        } finally {
+            mStream.close();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        int count = mEncoder.getCount();
+        if (count == 0) {
+            return;
+        }
+        int length = mEncoder.finish();
+        mBlockHeaderBuffer.putInt(0, count);
+        mBlockHeaderBuffer.putInt(4, length);
+        mStream.write(mBlockHeader);
+        mStream.write(mEncoder.getBuffer(), 0, length);
+        mBlockStart += mBlockHeader.length + length;
+        mEncoder.reset();
+    }
+}
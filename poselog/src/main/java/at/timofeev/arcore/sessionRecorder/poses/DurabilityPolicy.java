@@ -0,0 +1,66 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+/**
+ * How hard a sidecar log tries to get its records onto storage while recording, as opposed to
+ * only when it is closed.
+ */
+public final class DurabilityPolicy {
+
+    public enum Level {
+        /** Leave write-back to the operating system.  A crash can lose several seconds. */
+        NONE,
+        /**
+         * Flush and sync every {@link #getIntervalMillis()} milliseconds or
+         * {@link #getIntervalRecords()} records, whichever comes first.  The sync runs on the
+         * {@link SidecarSyncer} thread, so the writer never waits for storage.
+         */
+        GROUP_COMMIT,
+        /** Flush and sync after every record, on the writing thread. */
+        PER_RECORD
+    }
+
+    public static final DurabilityPolicy NONE = new DurabilityPolicy(Level.NONE, 0, 0);
+    public static final DurabilityPolicy PER_RECORD = new DurabilityPolicy(Level.PER_RECORD, 0, 1);
+
+    private final Level mLevel;
+    private final long mIntervalMillis;
+    private final int mIntervalRecords;
+
+    private DurabilityPolicy(Level level, long intervalMillis, int intervalRecords) {
+        mLevel = level;
+        mIntervalMillis = intervalMillis;
+        mIntervalRecords = intervalRecords;
+    }
+
+    /**
+     * @param intervalMillis maximum time between commits, 0 for no limit.
+     * @param intervalRecords maximum number of records between commits, 0 for no limit.
+     */
+    public static DurabilityPolicy groupCommit(long intervalMillis, int intervalRecords) {
+        if (intervalMillis < 0 || intervalRecords < 0
+                || (intervalMillis == 0 && intervalRecords == 0)) {
+            throw new IllegalArgumentException("group commit needs a time or record interval");
+        }
+        return new DurabilityPolicy(Level.GROUP_COMMIT, intervalMillis, intervalRecords);
+    }
+
+    public Level getLevel() {
+        return mLevel;
+    }
+
+    public long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    public int getIntervalRecords() {
+        return mIntervalRecords;
+    }
+
+    @Override
+    public String toString() {
+        if (mLevel == Level.GROUP_COMMIT) {
+            return "GROUP_COMMIT(" + mIntervalMillis + " ms, " + mIntervalRecords + " records)";
+        }
+        return mLevel.name();
+    }
+}
@@ -0,0 +1,104 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.IOException;
+
+/**
+ * Applies a {@link DurabilityPolicy} to the wrapped writer.
+ * <p>
+ * Flushing happens on the thread calling {@link #write}; with
+ * {@link DurabilityPolicy.Level#GROUP_COMMIT} the sync itself is left to the
+ * {@link SidecarSyncer}.  Meant to sit behind an {@link AsyncPoseLogWriter} so that neither ever
+ * runs on the render thread.
+ */
+public class DurablePoseLogWriter implements BufferedPoseLogWriter, SidecarSyncer.Target {
+    private final BufferedPoseLogWriter mDelegate;
+    private final DurabilityPolicy mPolicy;
+    private final SidecarSyncer mSyncer;
+    private final SidecarSyncer.Registration mRegistration;
+    private final long mIntervalNs;
+
+    private int mUncommitted;
+    private long mLastCommitNs;
+
+    /**
+     * @param syncer may be null if the policy is {@link DurabilityPolicy#NONE}.
+     */
+    public DurablePoseLogWriter(BufferedPoseLogWriter delegate, DurabilityPolicy policy,
+                                SidecarSyncer syncer) {
+        boolean syncing = policy.getLevel() != DurabilityPolicy.Level.NONE;
+        if (syncing && syncer == null) {
+            throw new IllegalArgumentException(policy + " needs a syncer");
+        }
+        mDelegate = delegate;
+        mPolicy = policy;
+        mSyncer = syncer;
+        mRegistration = syncing ? syncer.register(this) : null;
+        mIntervalNs = policy.getIntervalMillis() * 1000000L;
+        mLastCommitNs = System.nanoTime();
+    }
+
+    @Override
+    public void write(PoseSample sample) throws IOException {
+        mDelegate.write(sample);
+        mUncommitted++;
+
+        switch (mPolicy.getLevel()) {
+            case NONE:
+                break;
+            case PER_RECORD:
+                commit(true);
+                break;
+            case GROUP_COMMIT:
+                int records = mPolicy.getIntervalRecords();
+                if ((records > 0 && mUncommitted >= records)
+                        || (mIntervalNs > 0 && System.nanoTime() - mLastCommitNs >= mIntervalNs)) {
+                    commit(false);
+                }
+                break;
+        }
+    }
+
+    @Override
+    public long position() {
+        return mDelegate.position();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mDelegate.flush();
+    }
+
+    @Override
+    public void force() throws IOException {
+        mDelegate.force();
+    }
+
+    /**
+     * Commits whatever is left, then closes the wrapped writer.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mRegistration != null && mUncommitted > 0) {
+                commit(true);
+            }
+        } finally {
+            if (mRegistration != null) {
+                mSyncer.unregister(mRegistration);
+            }
+            mDelegate.close();
+        }
+    }
+
+    private void commit(boolean now) throws IOException {
+        mRegistration.throwIfFailed();
+        mDelegate.flush();
+        if (now) {
+            mRegistration.syncNow();
+        } else {
+            mRegistration.requestSync();
+        }
+        mUncommitted = 0;
+        mLastCommitNs = System.nanoTime();
+    }
+}
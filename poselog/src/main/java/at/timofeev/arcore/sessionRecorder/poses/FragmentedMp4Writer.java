@@ -0,0 +1,829 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a fragmented MP4 file: {@code ftyp} and a {@code moov} without samples up front, then
+ * a {@code moof}/{@code mdat} pair for every fragment of about the given duration, starting at
+ * a video key frame.  Unlike a plain MP4, whose index is only written at the end, every
+ * fragment is complete on its own: the file can be played while it is being written, and a
+ * crash loses at most the fragment that was being collected.
+ * <p>
+ * Tracks are H.264 or HEVC video, from access units in Annex B (start codes, as
+ * {@code MediaCodec} emits them) or already length-prefixed, and timed metadata with a mime
+ * type, like the pose track of {@link PoseMetadataFormat}.  The samples of a fragment are
+ * collected in one direct buffer per track and written with a single gathering
+ * {@link FileChannel#write(ByteBuffer[])} together with the fragment's header.
+ * <p>
+ * Samples must come in presentation order; streams with B-frames are not supported.  HEVC
+ * streams are described as 4:2:0 with 8 bits per sample, which is what the recorder encodes.
+ * <p>
+ * Not thread-safe.
+ */
+public class FragmentedMp4Writer implements Closeable {
+    public enum Codec {
+        AVC("avc1", "avcC"),
+        HEVC("hvc1", "hvcC");
+
+        final String sampleEntry;
+        final String configBox;
+
+        Codec(String sampleEntry, String configBox) {
+            this.sampleEntry = sampleEntry;
+            this.configBox = configBox;
+        }
+    }
+
+    private static final int TIMESCALE = 90000;
+    private static final int MOVIE_TIMESCALE = 1000;
+    // Initial size of a track's sample buffer; it grows if a fragment needs more.
+    private static final int PAYLOAD_CAPACITY = 4 * 1024 * 1024;
+    private static final int MOOF_CAPACITY = 64 * 1024;
+
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x20000;
+    private static final int TRUN_DATA_OFFSET = 0x1;
+    private static final int TRUN_SAMPLE_DURATION = 0x100;
+    private static final int TRUN_SAMPLE_SIZE = 0x200;
+    private static final int TRUN_SAMPLE_FLAGS = 0x400;
+    // sample_depends_on 2: an I-frame.
+    private static final int SYNC_SAMPLE_FLAGS = 0x02000000;
+    // sample_depends_on 1 and sample_is_non_sync_sample.
+    private static final int NON_SYNC_SAMPLE_FLAGS = 0x01010000;
+
+    private static final int[] MATRIX = {0x10000, 0, 0, 0, 0x10000, 0, 0, 0, 0x40000000};
+
+    private final FileChannel mChannel;
+    private final long mFragmentDurationUs;
+    private final DurabilityPolicy mDurability;
+    private final List<Track> mTracks = new ArrayList<>();
+    private final ByteBuffer mMoof = ByteBuffer.allocateDirect(MOOF_CAPACITY);
+    private final ByteBuffer mMdatHeader = ByteBuffer.allocateDirect(8);
+    private ByteBuffer[] mGather;
+
+    private int mVideoTrack = -1;
+    private boolean mStarted;
+    // Presentation time that becomes 0 in the file.
+    private long mStartUs = -1;
+    private long mFragmentStartUs = -1;
+    private int mSequenceNumber;
+    private long mBytesWritten;
+    private long mLastSyncMs;
+    private int mFragmentsSinceSync;
+
+    private static final class Track {
+        final int id;
+        final boolean video;
+        final Codec codec;
+        final int width;
+        final int height;
+        final List<byte[]> parameterSets;
+        final String mimeType;
+
+        ByteBuffer payload = ByteBuffer.allocateDirect(PAYLOAD_CAPACITY);
+        // Read-only view of payload for the gathering write.
+        ByteBuffer out = payload.duplicate();
+        int count;
+        int[] sizes = new int[256];
+        long[] presentationTimesUs = new long[256];
+        boolean[] sync = new boolean[256];
+        long lastDurationTicks;
+
+        Track(int id, boolean video, Codec codec, int width, int height,
+              List<byte[]> parameterSets, String mimeType) {
+            this.id = id;
+            this.video = video;
+            this.codec = codec;
+            this.width = width;
+            this.height = height;
+            this.parameterSets = parameterSets;
+            this.mimeType = mimeType;
+        }
+
+        void ensureCapacity(int bytes) {
+            if (payload.remaining() >= bytes) {
+                return;
+            }
+            int capacity = payload.capacity();
+            while (capacity - payload.position() < bytes) {
+                capacity *= 2;
+            }
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+            payload.flip();
+            grown.put(payload);
+            payload = grown;
+            out = payload.duplicate();
+        }
+
+        void add(int size, long presentationTimeUs, boolean keyFrame) {
+            if (count == sizes.length) {
+                sizes = Arrays.copyOf(sizes, count * 2);
+                presentationTimesUs = Arrays.copyOf(presentationTimesUs, count * 2);
+                sync = Arrays.copyOf(sync, count * 2);
+            }
+            sizes[count] = size;
+            presentationTimesUs[count] = presentationTimeUs;
+            sync[count] = keyFrame;
+            count++;
+        }
+    }
+
+    /**
+     * Creates or truncates the file.
+     *
+     * @param fragmentDurationUs how long a fragment should be at least; a new one starts at the
+     *     first video key frame after that.
+     * @param durability when to sync the file: after every fragment for
+     *     {@link DurabilityPolicy#PER_RECORD}, or every so many milliseconds or fragments for a
+     *     group commit.
+     */
+    public FragmentedMp4Writer(File file, long fragmentDurationUs, DurabilityPolicy durability)
+            throws IOException {
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        mFragmentDurationUs = fragmentDurationUs;
+        mDurability = durability;
+        mLastSyncMs = System.currentTimeMillis();
+    }
+
+    /**
+     * Adds a video track.  Call before {@link #start}.
+     *
+     * @param codecConfig the parameter sets, e.g. {@code csd-0} and {@code csd-1} of the
+     *     encoder's output format, in Annex B.
+     * @return the track index for {@link #writeSample}.
+     */
+    public int addVideoTrack(Codec codec, int width, int height, ByteBuffer... codecConfig) {
+        checkNotStarted();
+        if (mVideoTrack >= 0) {
+            throw new IllegalStateException("Only one video track is supported");
+        }
+        List<byte[]> parameterSets = new ArrayList<>();
+        for (ByteBuffer config : codecConfig) {
+            splitNalUnits(config, parameterSets);
+        }
+        mVideoTrack = mTracks.size();
+        mTracks.add(new Track(mTracks.size() + 1, true, codec, width, height, parameterSets,
+                null));
+        return mVideoTrack;
+    }
+
+    /**
+     * Adds a timed metadata track, whose {@code mett} sample entry carries the mime type.
+     * Call before {@link #start}.
+     *
+     * @return the track index for {@link #writeSample}.
+     */
+    public int addMetadataTrack(String mimeType) {
+        checkNotStarted();
+        mTracks.add(new Track(mTracks.size() + 1, false, null, 0, 0, null, mimeType));
+        return mTracks.size() - 1;
+    }
+
+    private void checkNotStarted() {
+        if (mStarted) {
+            throw new IllegalStateException("Tracks must be added before start()");
+        }
+    }
+
+    /**
+     * Writes the file header.
+     */
+    public void start() throws IOException {
+        checkNotStarted();
+        int size = 4096;
+        for (Track track : mTracks) {
+            size += 1024;
+            if (track.parameterSets != null) {
+                for (byte[] nal : track.parameterSets) {
+                    size += nal.length + 3;
+                }
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(size);
+        writeFtyp(header);
+        writeMoov(header);
+        header.flip();
+        write(header);
+
+        mGather = new ByteBuffer[2 + mTracks.size()];
+        mGather[0] = mMoof;
+        mGather[1] = mMdatHeader;
+        mStarted = true;
+    }
+
+    /**
+     * Adds a sample to the current fragment, and writes out the fragment first if it is due.
+     * The data between the buffer's position and limit is copied; the position is left alone.
+     */
+    public void writeSample(int trackIndex, ByteBuffer data, long presentationTimeUs,
+                            boolean keyFrame) throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("start() was not called");
+        }
+        Track track = mTracks.get(trackIndex);
+        if (mStartUs < 0) {
+            mStartUs = presentationTimeUs;
+            mFragmentStartUs = presentationTimeUs;
+        }
+        boolean fragmentStart = track.video ? keyFrame : mVideoTrack < 0;
+        if (fragmentStart && hasSamples()
+                && presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs) {
+            writeFragment(presentationTimeUs);
+            mFragmentStartUs = presentationTimeUs;
+        }
+
+        int size;
+        if (track.video && isAnnexB(data)) {
+            size = copyAnnexB(data, track);
+        } else {
+            size = data.remaining();
+            track.ensureCapacity(size);
+            int position = data.position();
+            track.payload.put(data);
+            data.position(position);
+        }
+        track.add(size, presentationTimeUs, !track.video || keyFrame);
+    }
+
+    private boolean hasSamples() {
+        for (Track track : mTracks) {
+            if (track.count > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the samples before the given time as a fragment.  Later ones, like the pose
+     * record of the frame that starts the next fragment, stay for that.
+     */
+    private void writeFragment(long cutUs) throws IOException {
+        mMoof.clear();
+        int moof = begin(mMoof, "moof");
+        int mfhd = beginFull(mMoof, "mfhd", 0, 0);
+        mMoof.putInt(++mSequenceNumber);
+        end(mMoof, mfhd);
+
+        int[] counts = new int[mTracks.size()];
+        int[] bytes = new int[mTracks.size()];
+        int[] dataOffsetFields = new int[mTracks.size()];
+        for (int t = 0; t < mTracks.size(); t++) {
+            Track track = mTracks.get(t);
+            int n = 0;
+            while (n < track.count && track.presentationTimesUs[n] < cutUs) {
+                bytes[t] += track.sizes[n];
+                n++;
+            }
+            counts[t] = n;
+            dataOffsetFields[t] = -1;
+            if (n == 0) {
+                continue;
+            }
+            int traf = begin(mMoof, "traf");
+            int tfhd = beginFull(mMoof, "tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+            mMoof.putInt(track.id);
+            end(mMoof, tfhd);
+            int tfdt = beginFull(mMoof, "tfdt", 1, 0);
+            mMoof.putLong(ticks(track.presentationTimesUs[0]));
+            end(mMoof, tfdt);
+            int trun = beginFull(mMoof, "trun", 0, TRUN_DATA_OFFSET | TRUN_SAMPLE_DURATION
+                    | TRUN_SAMPLE_SIZE | TRUN_SAMPLE_FLAGS);
+            mMoof.putInt(n);
+            dataOffsetFields[t] = mMoof.position();
+            mMoof.putInt(0);
+            for (int i = 0; i < n; i++) {
+                long next = i + 1 < track.count ? track.presentationTimesUs[i + 1] : cutUs;
+                long duration = Math.max(0, ticks(Math.min(next, cutUs))
+                        - ticks(track.presentationTimesUs[i]));
+                mMoof.putInt((int) duration);
+                mMoof.putInt(track.sizes[i]);
+                mMoof.putInt(track.sync[i] ? SYNC_SAMPLE_FLAGS : NON_SYNC_SAMPLE_FLAGS);
+                track.lastDurationTicks = duration;
+            }
+            end(mMoof, trun);
+            end(mMoof, traf);
+        }
+        end(mMoof, moof);
+
+        // The samples follow the mdat header, track after track.
+        long dataOffset = mMoof.position() + 8;
+        long mdatSize = 8;
+        for (int t = 0; t < mTracks.size(); t++) {
+            if (dataOffsetFields[t] >= 0) {
+                mMoof.putInt(dataOffsetFields[t], (int) dataOffset);
+            }
+            dataOffset += bytes[t];
+            mdatSize += bytes[t];
+        }
+        mMoof.flip();
+        mMdatHeader.clear();
+        mMdatHeader.putInt((int) mdatSize);
+        putFourCC(mMdatHeader, "mdat");
+        mMdatHeader.flip();
+        for (int t = 0; t < mTracks.size(); t++) {
+            Track track = mTracks.get(t);
+            track.out.limit(bytes[t]);
+            track.out.position(0);
+            mGather[2 + t] = track.out;
+        }
+        write(mGather);
+
+        // Move the samples left over to the front.
+        for (int t = 0; t < mTracks.size(); t++) {
+            Track track = mTracks.get(t);
+            int n = counts[t];
+            track.payload.flip();
+            track.payload.position(bytes[t]);
+            track.payload.compact();
+            track.count -= n;
+            System.arraycopy(track.sizes, n, track.sizes, 0, track.count);
+            System.arraycopy(track.presentationTimesUs, n, track.presentationTimesUs, 0,
+                    track.count);
+            System.arraycopy(track.sync, n, track.sync, 0, track.count);
+        }
+        maybeSync();
+    }
+
+    private void maybeSync() throws IOException {
+        mFragmentsSinceSync++;
+        boolean sync;
+        switch (mDurability.getLevel()) {
+            case PER_RECORD:
+                sync = true;
+                break;
+            case GROUP_COMMIT:
+                long now = System.currentTimeMillis();
+                sync = (mDurability.getIntervalMillis() > 0
+                        && now - mLastSyncMs >= mDurability.getIntervalMillis())
+                        || (mDurability.getIntervalRecords() > 0
+                        && mFragmentsSinceSync >= mDurability.getIntervalRecords());
+                break;
+            default:
+                sync = false;
+        }
+        if (sync) {
+            mChannel.force(false);
+            mLastSyncMs = System.currentTimeMillis();
+            mFragmentsSinceSync = 0;
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mBytesWritten += mChannel.write(buffer);
+        }
+    }
+
+    private void write(ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            long n = mChannel.write(buffers);
+            remaining -= n;
+            mBytesWritten += n;
+        }
+    }
+
+    /**
+     * Returns the number of fragments written so far.
+     */
+    public int getFragmentCount() {
+        return mSequenceNumber;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Writes the last fragment and closes the file.  The last sample of each track lasts as
+     * long as the one before it.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mStarted && hasSamples()) {
+                long endUs = Long.MIN_VALUE;
+                for (Track track : mTracks) {
+                    if (track.count > 0) {
+                        long last = track.presentationTimesUs[track.count - 1];
+                        long duration = track.count > 1
+                                ? last - track.presentationTimesUs[track.count - 2]
+                                : track.lastDurationTicks * 1000000 / TIMESCALE;
+                        endUs = Math.max(endUs, last + Math.max(duration, 1));
+                    }
+                }
+                writeFragment(endUs);
+            }
+            if (mStarted && mDurability.getLevel() != DurabilityPolicy.Level.NONE) {
+                mChannel.force(false);
+            }
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    private long ticks(long presentationTimeUs) {
+        return (presentationTimeUs - mStartUs) * TIMESCALE / 1000000;
+    }
+
+    // ----- header boxes -----
+
+    private static void writeFtyp(ByteBuffer b) {
+        int ftyp = begin(b, "ftyp");
+        putFourCC(b, "isom");
+        b.putInt(0x200);
+        putFourCC(b, "isom");
+        putFourCC(b, "iso5");
+        putFourCC(b, "iso6");
+        putFourCC(b, "mp41");
+        end(b, ftyp);
+    }
+
+    private void writeMoov(ByteBuffer b) {
+        int moov = begin(b, "moov");
+        int mvhd = beginFull(b, "mvhd", 0, 0);
+        b.putInt(0);  // creation time
+        b.putInt(0);  // modification time
+        b.putInt(MOVIE_TIMESCALE);
+        b.putInt(0);  // duration, unknown
+        b.putInt(0x10000);  // rate 1.0
+        b.putShort((short) 0x100);  // volume 1.0
+        b.put(new byte[10]);
+        putMatrix(b);
+        b.put(new byte[24]);
+        b.putInt(mTracks.size() + 1);  // next track id
+        end(b, mvhd);
+
+        for (Track track : mTracks) {
+            writeTrak(b, track);
+        }
+
+        int mvex = begin(b, "mvex");
+        for (Track track : mTracks) {
+            int trex = beginFull(b, "trex", 0, 0);
+            b.putInt(track.id);
+            b.putInt(1);  // sample description index
+            b.putInt(0);  // default duration, size and flags: all given in trun
+            b.putInt(0);
+            b.putInt(0);
+            end(b, trex);
+        }
+        end(b, mvex);
+        end(b, moov);
+    }
+
+    private static void writeTrak(ByteBuffer b, Track track) {
+        int trak = begin(b, "trak");
+        int tkhd = beginFull(b, "tkhd", 0, 3);  // enabled, in movie
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(track.id);
+        b.putInt(0);
+        b.putInt(0);  // duration
+        b.put(new byte[8]);
+        b.putShort((short) 0);  // layer
+        b.putShort((short) 0);  // alternate group
+        b.putShort((short) 0);  // volume
+        b.putShort((short) 0);
+        putMatrix(b);
+        b.putInt(track.width << 16);
+        b.putInt(track.height << 16);
+        end(b, tkhd);
+
+        int mdia = begin(b, "mdia");
+        int mdhd = beginFull(b, "mdhd", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(TIMESCALE);
+        b.putInt(0);
+        b.putShort((short) 0x55c4);  // "und"
+        b.putShort((short) 0);
+        end(b, mdhd);
+
+        int hdlr = beginFull(b, "hdlr", 0, 0);
+        b.putInt(0);
+        putFourCC(b, track.video ? "vide" : "meta");
+        b.put(new byte[12]);
+        b.put((track.video ? "VideoHandler" : "MetadataHandler")
+                .getBytes(StandardCharsets.US_ASCII));
+        b.put((byte) 0);
+        end(b, hdlr);
+
+        int minf = begin(b, "minf");
+        if (track.video) {
+            int vmhd = beginFull(b, "vmhd", 0, 1);
+            b.put(new byte[8]);
+            end(b, vmhd);
+        } else {
+            int nmhd = beginFull(b, "nmhd", 0, 0);
+            end(b, nmhd);
+        }
+        int dinf = begin(b, "dinf");
+        int dref = beginFull(b, "dref", 0, 0);
+        b.putInt(1);
+        int url = beginFull(b, "url ", 0, 1);  // data in this file
+        end(b, url);
+        end(b, dref);
+        end(b, dinf);
+
+        int stbl = begin(b, "stbl");
+        int stsd = beginFull(b, "stsd", 0, 0);
+        b.putInt(1);
+        if (track.video) {
+            writeVisualSampleEntry(b, track);
+        } else {
+            int mett = begin(b, "mett");
+            b.put(new byte[6]);
+            b.putShort((short) 1);  // data reference index
+            b.put((byte) 0);  // no content encoding
+            b.put(track.mimeType.getBytes(StandardCharsets.US_ASCII));
+            b.put((byte) 0);
+            end(b, mett);
+        }
+        end(b, stsd);
+        // The sample tables are empty, the samples are described by the fragments.
+        for (String type : new String[]{"stts", "stsc", "stco"}) {
+            int box = beginFull(b, type, 0, 0);
+            b.putInt(0);
+            end(b, box);
+        }
+        int stsz = beginFull(b, "stsz", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        end(b, stsz);
+        end(b, stbl);
+        end(b, minf);
+        end(b, mdia);
+        end(b, trak);
+    }
+
+    private static void writeVisualSampleEntry(ByteBuffer b, Track track) {
+        int entry = begin(b, track.codec.sampleEntry);
+        b.put(new byte[6]);
+        b.putShort((short) 1);  // data reference index
+        b.put(new byte[16]);
+        b.putShort((short) track.width);
+        b.putShort((short) track.height);
+        b.putInt(0x480000);  // 72 dpi
+        b.putInt(0x480000);
+        b.putInt(0);
+        b.putShort((short) 1);  // frame count
+        b.put(new byte[32]);  // compressor name
+        b.putShort((short) 0x18);  // depth
+        b.putShort((short) -1);
+        int config = begin(b, track.codec.configBox);
+        if (track.codec == Codec.AVC) {
+            writeAvcConfig(b, track.parameterSets);
+        } else {
+            writeHevcConfig(b, track.parameterSets);
+        }
+        end(b, config);
+        end(b, entry);
+    }
+
+    private static void writeAvcConfig(ByteBuffer b, List<byte[]> parameterSets) {
+        List<byte[]> sps = new ArrayList<>();
+        List<byte[]> pps = new ArrayList<>();
+        for (byte[] nal : parameterSets) {
+            int type = nal[0] & 0x1f;
+            if (type == 7) {
+                sps.add(nal);
+            } else if (type == 8) {
+                pps.add(nal);
+            }
+        }
+        if (sps.isEmpty() || sps.get(0).length < 4 || pps.isEmpty()) {
+            throw new IllegalArgumentException("H.264 codec config needs an SPS and a PPS");
+        }
+        byte[] first = sps.get(0);
+        b.put((byte) 1);  // configuration version
+        b.put(first[1]);  // profile
+        b.put(first[2]);  // profile compatibility
+        b.put(first[3]);  // level
+        b.put((byte) 0xff);  // 4-byte NAL unit lengths
+        b.put((byte) (0xe0 | sps.size()));
+        putNalUnits(b, sps);
+        b.put((byte) pps.size());
+        putNalUnits(b, pps);
+    }
+
+    private static void writeHevcConfig(ByteBuffer b, List<byte[]> parameterSets) {
+        List<List<byte[]>> arrays = new ArrayList<>();
+        int[] types = {32, 33, 34};  // VPS, SPS, PPS
+        for (int type : types) {
+            List<byte[]> nals = new ArrayList<>();
+            for (byte[] nal : parameterSets) {
+                if (((nal[0] >> 1) & 0x3f) == type) {
+                    nals.add(nal);
+                }
+            }
+            arrays.add(nals);
+        }
+        if (arrays.get(1).isEmpty()) {
+            throw new IllegalArgumentException("HEVC codec config needs an SPS");
+        }
+        // The SPS starts with the NAL header, a byte of ids and sub-layer counts, and the
+        // 12 bytes of the general profile, tier and level, which hvcC repeats.
+        byte[] sps = unescape(arrays.get(1).get(0));
+        if (sps.length < 15) {
+            throw new IllegalArgumentException("HEVC SPS too short");
+        }
+        int subLayers = ((sps[2] >> 1) & 0x7) + 1;
+        int temporalIdNested = sps[2] & 0x1;
+        b.put((byte) 1);  // configuration version
+        b.put(sps, 3, 12);
+        b.putShort((short) 0xf000);  // no min spatial segmentation
+        b.put((byte) 0xfc);  // unknown parallelism
+        b.put((byte) (0xfc | 1));  // 4:2:0
+        b.put((byte) 0xf8);  // 8-bit luma
+        b.put((byte) 0xf8);  // 8-bit chroma
+        b.putShort((short) 0);  // unknown frame rate
+        b.put((byte) ((subLayers << 3) | (temporalIdNested << 2) | 3));
+        int count = 0;
+        for (List<byte[]> nals : arrays) {
+            count += nals.isEmpty() ? 0 : 1;
+        }
+        b.put((byte) count);
+        for (int i = 0; i < types.length; i++) {
+            List<byte[]> nals = arrays.get(i);
+            if (nals.isEmpty()) {
+                continue;
+            }
+            b.put((byte) (0x80 | types[i]));  // complete, parameter sets only in here
+            b.putShort((short) nals.size());
+            for (byte[] nal : nals) {
+                b.putShort((short) nal.length);
+                b.put(nal);
+            }
+        }
+    }
+
+    private static void putNalUnits(ByteBuffer b, List<byte[]> nals) {
+        for (byte[] nal : nals) {
+            b.putShort((short) nal.length);
+            b.put(nal);
+        }
+    }
+
+    private static void putMatrix(ByteBuffer b) {
+        for (int value : MATRIX) {
+            b.putInt(value);
+        }
+    }
+
+    private static int begin(ByteBuffer b, String type) {
+        int start = b.position();
+        b.putInt(0);
+        putFourCC(b, type);
+        return start;
+    }
+
+    private static int beginFull(ByteBuffer b, String type, int version, int flags) {
+        int start = begin(b, type);
+        b.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void end(ByteBuffer b, int start) {
+        b.putInt(start, b.position() - start);
+    }
+
+    private static void putFourCC(ByteBuffer b, String type) {
+        for (int i = 0; i < 4; i++) {
+            b.put((byte) type.charAt(i));
+        }
+    }
+
+    // ----- NAL units -----
+
+    private static boolean isAnnexB(ByteBuffer data) {
+        int p = data.position();
+        return data.remaining() >= 4 && data.get(p) == 0 && data.get(p + 1) == 0
+                && (data.get(p + 2) == 1 || (data.get(p + 2) == 0 && data.get(p + 3) == 1));
+    }
+
+    /**
+     * Returns the offset of the next start code at or after {@code from}, or limit.
+     */
+    private static int findStartCode(ByteBuffer data, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if ((data.get(i + 2) & 0xff) > 1) {
+                // Neither byte of a start code; skip ahead.
+                i += 2;
+            } else if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Calls back with the start and end of every NAL unit of an Annex B buffer, or of the
+     * whole buffer if it has no start codes.
+     */
+    private interface NalVisitor {
+        void visit(ByteBuffer data, int start, int end);
+    }
+
+    private static void forEachNalUnit(ByteBuffer data, NalVisitor visitor) {
+        int limit = data.limit();
+        int p = findStartCode(data, data.position(), limit);
+        if (p == limit) {
+            visitor.visit(data, data.position(), limit);
+            return;
+        }
+        while (p < limit) {
+            int start = p + 3;
+            int next = findStartCode(data, start, limit);
+            int end = next;
+            // A zero before the next start code belongs to it (4-byte start codes).
+            while (end > start && data.get(end - 1) == 0) {
+                end--;
+            }
+            if (end > start) {
+                visitor.visit(data, start, end);
+            }
+            p = next;
+        }
+    }
+
+    private static void splitNalUnits(ByteBuffer data, final List<byte[]> out) {
+        forEachNalUnit(data, new NalVisitor() {
+            @Override
+            public void visit(ByteBuffer buf, int start, int end) {
+                byte[] nal = new byte[end - start];
+                for (int i = 0; i < nal.length; i++) {
+                    nal[i] = buf.get(start + i);
+                }
+                out.add(nal);
+            }
+        });
+    }
+
+    // Reused by copyAnnexB() to avoid allocating a visitor per sample.
+    private final AnnexBCopier mCopier = new AnnexBCopier();
+
+    private static final class AnnexBCopier implements NalVisitor {
+        ByteBuffer payload;
+        int size;
+
+        @Override
+        public void visit(ByteBuffer data, int start, int end) {
+            payload.putInt(end - start);
+            int limit = data.limit();
+            int position = data.position();
+            data.limit(end);
+            data.position(start);
+            payload.put(data);
+            data.limit(limit);
+            data.position(position);
+            size += 4 + end - start;
+        }
+    }
+
+    /**
+     * Copies an access unit into the track's buffer with 4-byte lengths instead of start codes.
+     *
+     * @return the size of the sample.
+     */
+    private int copyAnnexB(ByteBuffer data, Track track) {
+        // Each 3-byte start code may become a 4-byte length.
+        track.ensureCapacity(data.remaining() + data.remaining() / 3 + 4);
+        mCopier.payload = track.payload;
+        mCopier.size = 0;
+        forEachNalUnit(data, mCopier);
+        mCopier.payload = null;
+        return mCopier.size;
+    }
+
+    /**
+     * Removes the emulation prevention bytes (00 00 03 -> 00 00) of a NAL unit.
+     */
+    private static byte[] unescape(byte[] nal) {
+        byte[] out = new byte[nal.length];
+        int n = 0;
+        int zeros = 0;
+        for (byte value : nal) {
+            if (zeros >= 2 && value == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = value == 0 ? zeros + 1 : 0;
+            out[n++] = value;
+        }
+        return Arrays.copyOf(out, n);
+    }
+}
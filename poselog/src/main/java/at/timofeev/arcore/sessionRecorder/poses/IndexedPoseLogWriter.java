@@ -0,0 +1,92 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Wraps a pose log writer and maintains a {@link PoseLogIndex} next to the log.
+ */
+public class IndexedPoseLogWriter implements BufferedPoseLogWriter {
+    // Entries collected before they are written out.
+    private static final int BUFFER_ENTRIES = 256;
+
+    private final BufferedPoseLogWriter mDelegate;
+    private final int mInterval;
+    private final FileOutputStream mIndexStream;
+    private final FileChannel mIndexChannel;
+    private final ByteBuffer mIndexBuffer;
+    private long mCount;
+
+    /**
+     * @param interval write an index entry for every {@code interval}th record.
+     */
+    public IndexedPoseLogWriter(BufferedPoseLogWriter delegate, File indexFile, int interval)
+            throws IOException {
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        mDelegate = delegate;
+        mInterval = interval;
+        mIndexStream = new FileOutputStream(indexFile);
+        mIndexChannel = mIndexStream.getChannel();
+        mIndexBuffer = ByteBuffer.allocateDirect(
+                PoseLogIndex.HEADER_SIZE + BUFFER_ENTRIES * PoseLogIndex.ENTRY_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        PoseLogIndex.writeHeader(mIndexBuffer, interval);
+    }
+
+    @Override
+    public void write(PoseSample sample) throws IOException {
+        if (mCount % mInterval == 0) {
+            if (mIndexBuffer.remaining() < PoseLogIndex.ENTRY_SIZE) {
+                flushIndex();
+            }
+            PoseLogIndex.writeEntry(mIndexBuffer, sample.frameId, sample.timestampNs,
+                    mDelegate.position());
+        }
+        mDelegate.write(sample);
+        mCount++;
+    }
+
+    @Override
+    public long position() {
+        return mDelegate.position();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mDelegate.flush();
+        flushIndex();
+    }
+
+    @Override
+    public void force() throws IOException {
+        mDelegate.force();
+        mIndexChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mDelegate.close();
+        } finally {
+            try {
+                flushIndex();
+            } finally {
+                mIndexStream.close();
+            }
+        }
+    }
+
+    private void flushIndex() throws IOException {
+        mIndexBuffer.flip();
+        while (mIndexBuffer.hasRemaining()) {
+            mIndexChannel.write(mIndexBuffer);
+        }
+        mIndexBuffer.clear();
+    }
+}
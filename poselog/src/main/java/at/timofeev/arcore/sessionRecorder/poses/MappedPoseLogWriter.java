@@ -0,0 +1,211 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Writes the binary pose log through a memory mapping of the file, see
+ * {@link PoseLogFormat#BINARY_MAPPED}.
+ * <p>
+ * The file is grown in large preallocated extents, so writing a record is a plain memory copy
+ * without a system call.  Everything written ends up in the page cache right away, so killing
+ * the app loses nothing.  Every record carries a CRC-32 and the header is marked incomplete
+ * until {@link #close()} trims the unused part of the last extent.  A file that was never closed
+ * is cut back to its last intact record by {@link #recover(File)}.
+ */
+public class MappedPoseLogWriter implements BufferedPoseLogWriter {
+    // Records per extent, 4 MiB worth or about 41 minutes at 30fps.
+    private static final int EXTENT_RECORDS = 74898;
+    private static final int FLAGS = BinaryPoseFormat.FLAG_CRC32;
+    private static final int RECORD_STRIDE = BinaryPoseFormat.recordSize(FLAGS);
+    private static final int PAYLOAD_SIZE = RECORD_STRIDE - BinaryPoseFormat.CRC_SIZE;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private MappedByteBuffer mMapped;
+    // File offset of the first byte of mMapped.
+    private long mMappedStart;
+    // File offset where the next record goes.
+    private long mPosition;
+
+    // A record is assembled here first, so its CRC can be computed without allocations.
+    private final byte[] mScratch = new byte[RECORD_STRIDE];
+    private final ByteBuffer mScratchBuffer =
+            ByteBuffer.wrap(mScratch).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 mCrc = new CRC32();
+
+    // The intrinsics written last, valid once mRecords > 0.
+    private final PoseSample mIntrinsics = new PoseSample();
+    private int mIntrinsicsChanges;
+    private long mRecords;
+
+    public MappedPoseLogWriter(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        map(0);
+        BinaryPoseFormat.writeHeader(mMapped, System.currentTimeMillis(),
+                FLAGS | BinaryPoseFormat.FLAG_INCOMPLETE);
+        mPosition = BinaryPoseFormat.HEADER_SIZE;
+    }
+
+    @Override
+    public void write(PoseSample sample) throws IOException {
+        if (mRecords == 0) {
+            // The first extent always holds the header and the first record.
+            BinaryPoseFormat.putHeaderIntrinsics(mMapped, 0, sample);
+            BinaryPoseFormat.copyIntrinsics(sample, mIntrinsics);
+        } else if (!BinaryPoseFormat.sameIntrinsics(sample, mIntrinsics)) {
+            BinaryPoseFormat.encodeIntrinsics(mScratchBuffer, 0, sample);
+            putRecord();
+            BinaryPoseFormat.copyIntrinsics(sample, mIntrinsics);
+            mIntrinsicsChanges++;
+        }
+        BinaryPoseFormat.encodePose(mScratchBuffer, 0, sample);
+        putRecord();
+        mRecords++;
+    }
+
+    // Appends the record in mScratch with its CRC.
+    private void putRecord() throws IOException {
+        if (mPosition + RECORD_STRIDE > mMappedStart + mMapped.capacity()) {
+            map(mPosition);
+        }
+        mCrc.reset();
+        mCrc.update(mScratch, 0, PAYLOAD_SIZE);
+        mScratchBuffer.putInt(PAYLOAD_SIZE, (int) mCrc.getValue());
+
+        mMapped.position((int) (mPosition - mMappedStart));
+        mMapped.put(mScratch, 0, RECORD_STRIDE);
+        mPosition += RECORD_STRIDE;
+    }
+
+    @Override
+    public long position() {
+        return mPosition;
+    }
+
+    /**
+     * Nothing to do, records are in the page cache as soon as they are written.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Syncs the file, which on Linux includes the dirty pages of the mapping.
+     */
+    @Override
+    public void force() throws IOException {
+        mChannel.force(false);
+    }
+
+    /**
+     * Trims the preallocated space and marks the file complete.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            mMapped = null;
+            mChannel.truncate(mPosition);
+            BinaryPoseFormat.patchInt(mChannel, BinaryPoseFormat.OFFSET_INTRINSICS_CHANGES,
+                    mIntrinsicsChanges);
+            BinaryPoseFormat.patchShort(mChannel, BinaryPoseFormat.OFFSET_FLAGS, FLAGS);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    /**
+     * Maps the next extent, which extends the file as needed.
+     */
+    private void map(long start) throws IOException {
+        mMappedStart = start;
+        mMapped = mChannel.map(FileChannel.MapMode.READ_WRITE, start,
+                (start == 0 ? BinaryPoseFormat.HEADER_SIZE : 0)
+                        + (long) EXTENT_RECORDS * RECORD_STRIDE);
+        mMapped.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Repairs a pose log whose writer never got to {@link #close()}: the file is truncated after
+     * the last record with a valid CRC, and the header is marked complete.  Files that were
+     * closed properly are left alone.
+     *
+     * @return the number of records kept, or -1 if the file did not need recovery.
+     */
+    public static long recover(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer headerBuf = ByteBuffer.allocate(BinaryPoseFormat.HEADER_SIZE);
+            while (headerBuf.hasRemaining() && channel.read(headerBuf) >= 0) {
+                // keep reading
+            }
+            headerBuf.flip();
+            BinaryPoseFormat.Header header = BinaryPoseFormat.readHeader(headerBuf);
+            if (!header.hasFlag(BinaryPoseFormat.FLAG_INCOMPLETE)) {
+                return -1;
+            }
+            if (!header.hasFlag(BinaryPoseFormat.FLAG_CRC32)) {
+                throw new IOException("Pose log without checksums cannot be recovered");
+            }
+
+            int stride = header.recordSize;
+            int payload = stride - BinaryPoseFormat.CRC_SIZE;
+            CRC32 crc = new CRC32();
+            byte[] chunk = new byte[stride * 1024];
+            ByteBuffer chunkBuf = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+            long position = header.headerSize;
+            long records = 0;
+            int intrinsicsChanges = 0;
+            PoseSample sample = new PoseSample();
+            scan:
+            while (true) {
+                chunkBuf.clear();
+                int n;
+                while (chunkBuf.hasRemaining()
+                        && (n = channel.read(chunkBuf, position + chunkBuf.position())) >= 0) {
+                    if (n == 0) {
+                        break;
+                    }
+                }
+                int available = chunkBuf.position() / stride;
+                for (int i = 0; i < available; i++) {
+                    int offset = i * stride;
+                    crc.reset();
+                    crc.update(chunk, offset, payload);
+                    if ((int) crc.getValue() != chunkBuf.getInt(offset + payload)) {
+                        position += (long) i * stride;
+                        records += i;
+                        break scan;
+                    }
+                    if (BinaryPoseFormat.decode(chunkBuf, offset, sample)
+                            == BinaryPoseFormat.TYPE_INTRINSICS) {
+                        intrinsicsChanges++;
+                    }
+                }
+                position += (long) available * stride;
+                records += available;
+                if (available < chunk.length / stride) {
+                    break;
+                }
+            }
+
+            channel.truncate(position);
+            BinaryPoseFormat.patchInt(channel, BinaryPoseFormat.OFFSET_INTRINSICS_CHANGES,
+                    intrinsicsChanges);
+            BinaryPoseFormat.patchShort(channel, BinaryPoseFormat.OFFSET_FLAGS,
+                    header.flags & ~BinaryPoseFormat.FLAG_INCOMPLETE);
+            return records;
+        } finally {
+            raf.close();
+        }
+    }
+}
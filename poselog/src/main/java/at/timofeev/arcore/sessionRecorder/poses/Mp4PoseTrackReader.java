@@ -0,0 +1,391 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the pose metadata track (see {@link PoseMetadataFormat}) back out of a recorded MP4,
+ * without Android's MediaExtractor.
+ * <p>
+ * Only the {@code moov} box is parsed: the track is recognized by its {@code mett} sample
+ * entry with {@link PoseMetadataFormat#MIME_TYPE}, and its samples are located through the
+ * sample size, sample-to-chunk and chunk offset tables.
+ * <p>
+ * Fragmented files, like those of {@link FragmentedMp4Writer}, have empty tables; their
+ * samples are located through the {@code traf} boxes of the track in every {@code moof}
+ * instead.  A fragment counts once its {@code mdat} is complete, so a fragment cut short by a
+ * crash is left out as a whole and ends the track without an error.
+ */
+public final class Mp4PoseTrackReader {
+    private static final int HEADER_SIZE = 8;
+
+    private Mp4PoseTrackReader() {}
+
+    /**
+     * Returns the poses of the metadata track, in sample order.
+     *
+     * @throws IOException if the file has no pose track or is damaged.
+     */
+    public static PoseArrays read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer moov = readMoov(channel);
+            Box trak = findPoseTrack(moov);
+            if (trak == null) {
+                throw new IOException("No pose track in " + file);
+            }
+            Box stbl = trak.path(moov, "mdia", "minf", "stbl");
+            Box root = new Box(0, moov.limit());
+            if (moov.getInt(stbl.require(moov, "stsz").start + 8) == 0
+                    && root.child(moov, "mvex", root.start) != null) {
+                return readFragments(channel, trackId(moov, trak));
+            }
+            return readSamples(channel, moov, stbl);
+        }
+    }
+
+    /**
+     * Returns whether the file has a pose track.
+     */
+    public static boolean hasPoseTrack(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return findPoseTrack(readMoov(channel)) != null;
+        }
+    }
+
+    private static ByteBuffer readMoov(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
+        long position = 0;
+        long size = channel.size();
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            // The last box of a cut file may be shorter than a large box header.
+            header.limit((int) Math.min(header.capacity(), size - position));
+            readFully(channel, header, position);
+            long boxSize = header.getInt(0) & 0xffffffffL;
+            int type = header.getInt(4);
+            int headerSize = HEADER_SIZE;
+            if (boxSize == 1) {
+                // Left at 1 without the large size, which fails the check below.
+                boxSize = header.limit() == 16 ? header.getLong(8) : 1;
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = size - position;
+            }
+            if (boxSize < headerSize || position + boxSize > size) {
+                throw new IOException("Corrupt box at " + position);
+            }
+            if (type == fourCC("moov")) {
+                if (boxSize > Integer.MAX_VALUE) {
+                    throw new IOException("moov box too large");
+                }
+                ByteBuffer moov = ByteBuffer.allocate((int) (boxSize - headerSize));
+                readFully(channel, moov, position + headerSize);
+                moov.flip();
+                return moov;
+            }
+            position += boxSize;
+        }
+        throw new IOException("No moov box, the file was not finished");
+    }
+
+    /**
+     * Returns the {@code trak} box of the pose track, or null.
+     */
+    private static Box findPoseTrack(ByteBuffer moov) throws IOException {
+        Box root = new Box(0, moov.limit());
+        for (Box trak = root.child(moov, "trak", root.start); trak != null;
+                trak = root.child(moov, "trak", trak.end)) {
+            Box stbl = trak.path(moov, "mdia", "minf", "stbl");
+            Box stsd = stbl != null ? stbl.child(moov, "stsd", stbl.start) : null;
+            if (stsd == null) {
+                continue;
+            }
+            // Full box header and entry count, then the first sample entry.
+            Box mett = stsd.child(moov, "mett", stsd.start + 8);
+            if (mett != null && mettMimeType(moov, mett).equals(PoseMetadataFormat.MIME_TYPE)) {
+                return trak;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the mime type of a {@code mett} sample entry: after the reserved bytes and data
+     * reference index come the content encoding and the mime type as C strings.
+     */
+    private static String mettMimeType(ByteBuffer buf, Box mett) {
+        int p = mett.start + 8;
+        String encoding = cString(buf, p, mett.end);
+        String mime = cString(buf, p + encoding.length() + 1, mett.end);
+        // Some writers leave the content encoding out.
+        return mime.isEmpty() ? encoding : mime;
+    }
+
+    private static String cString(ByteBuffer buf, int offset, int limit) {
+        int end = offset;
+        while (end < limit && buf.get(end) != 0) {
+            end++;
+        }
+        byte[] bytes = new byte[Math.max(0, end - offset)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static PoseArrays readSamples(FileChannel channel, ByteBuffer moov, Box stbl)
+            throws IOException {
+        int stsz = stbl.require(moov, "stsz").start;
+        int fixedSize = moov.getInt(stsz + 4);
+        int count = moov.getInt(stsz + 8);
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = fixedSize != 0 ? fixedSize : moov.getInt(stsz + 12 + 4 * i);
+        }
+
+        long[] chunkOffsets;
+        Box stco = stbl.child(moov, "stco", stbl.start);
+        if (stco != null) {
+            chunkOffsets = new long[moov.getInt(stco.start + 4)];
+            for (int i = 0; i < chunkOffsets.length; i++) {
+                chunkOffsets[i] = moov.getInt(stco.start + 8 + 4 * i) & 0xffffffffL;
+            }
+        } else {
+            int co64 = stbl.require(moov, "co64").start;
+            chunkOffsets = new long[moov.getInt(co64 + 4)];
+            for (int i = 0; i < chunkOffsets.length; i++) {
+                chunkOffsets[i] = moov.getLong(co64 + 8 + 8 * i);
+            }
+        }
+
+        int stsc = stbl.require(moov, "stsc").start;
+        int runs = moov.getInt(stsc + 4);
+
+        PoseArrays poses = new PoseArrays(count);
+        PoseSample sample = new PoseSample();
+        ByteBuffer record = ByteBuffer.allocate(PoseMetadataFormat.RECORD_SIZE);
+        int index = 0;
+        for (int run = 0; run < runs; run++) {
+            int entry = stsc + 8 + 12 * run;
+            int firstChunk = moov.getInt(entry) - 1;
+            int samplesPerChunk = moov.getInt(entry + 4);
+            int lastChunk = run + 1 < runs ? moov.getInt(entry + 12) - 1 : chunkOffsets.length;
+            for (int chunk = firstChunk; chunk < lastChunk && index < count; chunk++) {
+                long offset = chunkOffsets[chunk];
+                for (int i = 0; i < samplesPerChunk && index < count; i++) {
+                    if (sizes[index] < PoseMetadataFormat.RECORD_SIZE) {
+                        throw new IOException("Pose sample " + index + " too short");
+                    }
+                    record.clear();
+                    readFully(channel, record, offset);
+                    PoseMetadataFormat.decode(record, 0, sample);
+                    poses.set(index, sample);
+                    offset += sizes[index];
+                    index++;
+                }
+            }
+        }
+        if (index != count) {
+            throw new IOException("Sample tables cover " + index + " of " + count + " samples");
+        }
+        return poses;
+    }
+
+    /**
+     * Returns the track_ID from the {@code tkhd} box of a track.
+     */
+    private static int trackId(ByteBuffer moov, Box trak) throws IOException {
+        int tkhd = trak.require(moov, "tkhd").start;
+        // Version 1 has 64-bit creation and modification times.
+        return moov.getInt(tkhd + (moov.get(tkhd) == 1 ? 20 : 12));
+    }
+
+    /**
+     * Reads the samples of a track of a fragmented file, from the {@code trun} boxes of every
+     * {@code moof}.  Stops at the first box that goes past the end of the file, and leaves out
+     * the samples of a {@code moof} whose {@code mdat} is missing or incomplete.
+     */
+    private static PoseArrays readFragments(FileChannel channel, int trackId)
+            throws IOException {
+        long[] offsets = new long[1024];
+        int count = 0;
+        // Samples of the fragments whose mdat is complete.
+        int complete = 0;
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long position = 0;
+        long size = channel.size();
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            // The last box of a cut file may be shorter than a large box header.
+            header.limit((int) Math.min(header.capacity(), size - position));
+            readFully(channel, header, position);
+            long boxSize = header.getInt(0) & 0xffffffffL;
+            int headerSize = HEADER_SIZE;
+            if (boxSize == 1) {
+                // Left at 1 without the large size, which fails the check below.
+                boxSize = header.limit() == 16 ? header.getLong(8) : 1;
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = size - position;
+            }
+            if (boxSize < headerSize || position + boxSize > size) {
+                break;
+            }
+            if (header.getInt(4) == fourCC("mdat")) {
+                complete = count;
+            } else if (header.getInt(4) == fourCC("moof")) {
+                if (boxSize > Integer.MAX_VALUE) {
+                    throw new IOException("moof box too large");
+                }
+                ByteBuffer moof = ByteBuffer.allocate((int) (boxSize - headerSize));
+                readFully(channel, moof, position + headerSize);
+                moof.flip();
+                Box root = new Box(0, moof.limit());
+                for (Box traf = root.child(moof, "traf", root.start); traf != null;
+                        traf = root.child(moof, "traf", traf.end)) {
+                    int tfhd = traf.require(moof, "tfhd").start;
+                    int tfhdFlags = moof.getInt(tfhd) & 0xffffff;
+                    if (moof.getInt(tfhd + 4) != trackId) {
+                        continue;
+                    }
+                    // Without an explicit base offset, data offsets count from the moof.
+                    long base = (tfhdFlags & 0x1) != 0 ? moof.getLong(tfhd + 8) : position;
+                    int p = tfhd + 8 + ((tfhdFlags & 0x1) != 0 ? 8 : 0)
+                            + ((tfhdFlags & 0x2) != 0 ? 4 : 0)
+                            + ((tfhdFlags & 0x8) != 0 ? 4 : 0);
+                    int defaultSize = (tfhdFlags & 0x10) != 0 ? moof.getInt(p) : 0;
+                    for (Box trun = traf.child(moof, "trun", traf.start); trun != null;
+                            trun = traf.child(moof, "trun", trun.end)) {
+                        int flags = moof.getInt(trun.start) & 0xffffff;
+                        int samples = moof.getInt(trun.start + 4);
+                        int q = trun.start + 8;
+                        long offset = base;
+                        if ((flags & 0x1) != 0) {
+                            offset += moof.getInt(q);
+                            q += 4;
+                        }
+                        if ((flags & 0x4) != 0) {
+                            q += 4;
+                        }
+                        for (int i = 0; i < samples; i++) {
+                            if ((flags & 0x100) != 0) {
+                                q += 4;
+                            }
+                            int sampleSize = defaultSize;
+                            if ((flags & 0x200) != 0) {
+                                sampleSize = moof.getInt(q);
+                                q += 4;
+                            }
+                            q += ((flags & 0x400) != 0 ? 4 : 0) + ((flags & 0x800) != 0 ? 4 : 0);
+                            if (sampleSize < PoseMetadataFormat.RECORD_SIZE) {
+                                throw new IOException("Pose sample " + count + " too short");
+                            }
+                            if (offset + sampleSize > size) {
+                                break;
+                            }
+                            if (count == offsets.length) {
+                                offsets = Arrays.copyOf(offsets, count * 2);
+                            }
+                            offsets[count++] = offset;
+                            offset += sampleSize;
+                        }
+                    }
+                }
+            }
+            position += boxSize;
+        }
+        count = complete;
+
+        PoseArrays poses = new PoseArrays(count);
+        PoseSample sample = new PoseSample();
+        ByteBuffer record = ByteBuffer.allocate(PoseMetadataFormat.RECORD_SIZE);
+        for (int i = 0; i < count; i++) {
+            record.clear();
+            readFully(channel, record, offsets[i]);
+            PoseMetadataFormat.decode(record, 0, sample);
+            poses.set(i, sample);
+        }
+        return poses;
+    }
+
+    /**
+     * A box inside the {@code moov} or {@code moof} buffer: its contents start after the
+     * header and end at {@link #end}, both absolute offsets.
+     */
+    private static final class Box {
+        final int start;
+        final int end;
+
+        Box(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Returns the first child box of the given type at or after {@code from}, or null.
+         */
+        Box child(ByteBuffer buf, String type, int from) throws IOException {
+            int wanted = fourCC(type);
+            int p = from;
+            while (p + HEADER_SIZE <= end) {
+                long size = buf.getInt(p) & 0xffffffffL;
+                int headerSize = HEADER_SIZE;
+                if (size == 1) {
+                    size = buf.getLong(p + 8);
+                    headerSize = 16;
+                } else if (size == 0) {
+                    size = end - p;
+                }
+                if (size < headerSize || p + size > end) {
+                    throw new IOException("Corrupt box at offset " + p);
+                }
+                if (buf.getInt(p + 4) == wanted) {
+                    return new Box(p + headerSize, (int) (p + size));
+                }
+                p += (int) size;
+            }
+            return null;
+        }
+
+        Box path(ByteBuffer buf, String... types) throws IOException {
+            Box box = this;
+            for (String type : types) {
+                box = box.child(buf, type, box.start);
+                if (box == null) {
+                    return null;
+                }
+            }
+            return box;
+        }
+
+        Box require(ByteBuffer buf, String type) throws IOException {
+            Box box = child(buf, type, start);
+            if (box == null) {
+                throw new IOException("Pose track has no " + type + " box");
+            }
+            return box;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += n;
+        }
+    }
+
+    private static int fourCC(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8)
+                | type.charAt(3);
+    }
+}
@@ -0,0 +1,335 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.math.BigInteger;
+
+/**
+ * Formats numbers as ASCII straight into a byte array, without creating a String per value.
+ * <p>
+ * Floats are printed with the fewest digits that still parse back to the same value (the Ryu
+ * algorithm by Ulf Adams, "Ryu: fast float-to-string conversion", PLDI 2018), laid out like
+ * {@link Float#toString(float)}: plain notation for magnitudes in [10^-3, 10^7), computerized
+ * scientific notation otherwise, and always at least one digit after the decimal point.  The
+ * output is identical to {@link Float#toString(float)} wherever that one is shortest as well,
+ * and parses back to the same float everywhere else.
+ */
+public final class NumberFormatter {
+    /** Upper bound for the length of {@link #appendFloat} output, e.g. "-1.17549435E-38". */
+    public static final int MAX_FLOAT_LENGTH = 15;
+    /** Upper bound for the length of {@link #appendInt} output, e.g. "-2147483648". */
+    public static final int MAX_INT_LENGTH = 11;
+    /** Upper bound for the length of {@link #appendLong} output. */
+    public static final int MAX_LONG_LENGTH = 20;
+
+    private static final int FLOAT_MANTISSA_BITS = 23;
+    private static final int FLOAT_EXPONENT_BITS = 8;
+    private static final int FLOAT_BIAS = 127;
+
+    private static final int POW5_BITCOUNT = 61;
+    private static final int POW5_INV_BITCOUNT = 59;
+    private static final long[] POW5_SPLIT = new long[48];
+    private static final long[] POW5_INV_SPLIT = new long[32];
+
+    static {
+        // 5^i normalized to POW5_BITCOUNT bits, and 2^k / 5^i rounded up, for the multiplications
+        // below.  Computing them once is cheaper to maintain than a literal table.
+        for (int i = 0; i < POW5_SPLIT.length; i++) {
+            BigInteger pow = BigInteger.valueOf(5).pow(i);
+            int shift = pow.bitLength() - POW5_BITCOUNT;
+            POW5_SPLIT[i] = (shift >= 0 ? pow.shiftRight(shift) : pow.shiftLeft(-shift))
+                    .longValue();
+        }
+        for (int i = 0; i < POW5_INV_SPLIT.length; i++) {
+            BigInteger pow = BigInteger.valueOf(5).pow(i);
+            int j = pow.bitLength() - 1 + POW5_INV_BITCOUNT;
+            POW5_INV_SPLIT[i] = BigInteger.ONE.shiftLeft(j).divide(pow).add(BigInteger.ONE)
+                    .longValue();
+        }
+    }
+
+    private NumberFormatter() {}
+
+    /**
+     * Writes the decimal representation of {@code value} at {@code pos}.
+     *
+     * @return the position after the last byte written.
+     */
+    public static int appendInt(byte[] dst, int pos, int value) {
+        if (value == Integer.MIN_VALUE) {
+            // Can't be negated; print it as a long.
+            return appendLong(dst, pos, value);
+        }
+        if (value < 0) {
+            dst[pos++] = '-';
+            value = -value;
+        }
+        int length = decimalLength(value);
+        int end = pos + length;
+        for (int i = end - 1; i >= pos; i--) {
+            dst[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Writes the decimal representation of {@code value} at {@code pos}.
+     *
+     * @return the position after the last byte written.
+     */
+    public static int appendLong(byte[] dst, int pos, long value) {
+        if (value < 0) {
+            dst[pos++] = '-';
+        } else {
+            value = -value;
+        }
+        // Works on the negative value, which covers Long.MIN_VALUE.
+        int length = 1;
+        for (long v = value / 10; v != 0; v /= 10) {
+            length++;
+        }
+        int end = pos + length;
+        for (int i = end - 1; i >= pos; i--) {
+            dst[i] = (byte) ('0' - value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Writes the shortest representation of {@code value} at {@code pos}, formatted like
+     * {@link Float#toString(float)}.
+     *
+     * @return the position after the last byte written.
+     */
+    public static int appendFloat(byte[] dst, int pos, float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int ieeeMantissa = bits & ((1 << FLOAT_MANTISSA_BITS) - 1);
+        int ieeeExponent = (bits >>> FLOAT_MANTISSA_BITS) & ((1 << FLOAT_EXPONENT_BITS) - 1);
+        boolean sign = bits < 0;
+
+        if (ieeeExponent == (1 << FLOAT_EXPONENT_BITS) - 1) {
+            if (ieeeMantissa != 0) {
+                return appendAscii(dst, pos, "NaN");
+            }
+            if (sign) {
+                dst[pos++] = '-';
+            }
+            return appendAscii(dst, pos, "Infinity");
+        }
+        if (sign) {
+            dst[pos++] = '-';
+        }
+        if (ieeeExponent == 0 && ieeeMantissa == 0) {
+            return appendAscii(dst, pos, "0.0");
+        }
+
+        // Step 1: decode the float into m2 * 2^e2.
+        int e2;
+        long m2;
+        if (ieeeExponent == 0) {
+            e2 = 1 - FLOAT_BIAS - FLOAT_MANTISSA_BITS - 2;
+            m2 = ieeeMantissa;
+        } else {
+            e2 = ieeeExponent - FLOAT_BIAS - FLOAT_MANTISSA_BITS - 2;
+            m2 = (1L << FLOAT_MANTISSA_BITS) | ieeeMantissa;
+        }
+        boolean acceptBounds = (m2 & 1) == 0;
+
+        // Step 2: the interval of decimal representations that round to this float.
+        long mv = 4 * m2;
+        long mp = 4 * m2 + 2;
+        int mmShift = ieeeMantissa != 0 || ieeeExponent <= 1 ? 1 : 0;
+        long mm = 4 * m2 - 1 - mmShift;
+
+        // Step 3: convert the interval to a decimal power base.
+        long vr, vp, vm;
+        int e10;
+        boolean vmIsTrailingZeros = false;
+        boolean vrIsTrailingZeros = false;
+        int lastRemovedDigit = 0;
+        if (e2 >= 0) {
+            int q = log10Pow2(e2);
+            e10 = q;
+            int k = POW5_INV_BITCOUNT + pow5bits(q) - 1;
+            int i = -e2 + q + k;
+            vr = mulShift(mv, POW5_INV_SPLIT[q], i);
+            vp = mulShift(mp, POW5_INV_SPLIT[q], i);
+            vm = mulShift(mm, POW5_INV_SPLIT[q], i);
+            if (q != 0 && (vp - 1) / 10 <= vm / 10) {
+                // We need one removed digit even if we aren't going to loop below.
+                int l = POW5_INV_BITCOUNT + pow5bits(q - 1) - 1;
+                lastRemovedDigit =
+                        (int) (mulShift(mv, POW5_INV_SPLIT[q - 1], -e2 + q - 1 + l) % 10);
+            }
+            if (q <= 9) {
+                // Only one of mp, mv and mm can be a multiple of 5, if any.
+                if (mv % 5 == 0) {
+                    vrIsTrailingZeros = multipleOfPowerOf5(mv, q);
+                } else if (acceptBounds) {
+                    vmIsTrailingZeros = multipleOfPowerOf5(mm, q);
+                } else if (multipleOfPowerOf5(mp, q)) {
+                    vp--;
+                }
+            }
+        } else {
+            int q = log10Pow5(-e2);
+            e10 = q + e2;
+            int i = -e2 - q;
+            int k = pow5bits(i) - POW5_BITCOUNT;
+            int j = q - k;
+            vr = mulShift(mv, POW5_SPLIT[i], j);
+            vp = mulShift(mp, POW5_SPLIT[i], j);
+            vm = mulShift(mm, POW5_SPLIT[i], j);
+            if (q != 0 && (vp - 1) / 10 <= vm / 10) {
+                j = q - 1 - (pow5bits(i + 1) - POW5_BITCOUNT);
+                lastRemovedDigit = (int) (mulShift(mv, POW5_SPLIT[i + 1], j) % 10);
+            }
+            if (q <= 1) {
+                // mv = 4 * m2 always has at least two trailing zero bits.
+                vrIsTrailingZeros = true;
+                if (acceptBounds) {
+                    vmIsTrailingZeros = mmShift == 1;
+                } else {
+                    vp--;
+                }
+            } else if (q < 31) {
+                vrIsTrailingZeros = (mv & ((1L << (q - 1)) - 1)) == 0;
+            }
+        }
+
+        // Step 4: find the shortest representation in the interval.
+        int removed = 0;
+        long output;
+        if (vmIsTrailingZeros || vrIsTrailingZeros) {
+            // The rare general case.
+            while (vp / 10 > vm / 10) {
+                vmIsTrailingZeros &= vm % 10 == 0;
+                vrIsTrailingZeros &= lastRemovedDigit == 0;
+                lastRemovedDigit = (int) (vr % 10);
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed++;
+            }
+            if (vmIsTrailingZeros) {
+                while (vm % 10 == 0) {
+                    vrIsTrailingZeros &= lastRemovedDigit == 0;
+                    lastRemovedDigit = (int) (vr % 10);
+                    vr /= 10;
+                    vp /= 10;
+                    vm /= 10;
+                    removed++;
+                }
+            }
+            if (vrIsTrailingZeros && lastRemovedDigit == 5 && vr % 2 == 0) {
+                // Round to even if the exact number is .....50..0.
+                lastRemovedDigit = 4;
+            }
+            output = vr + ((vr == vm && (!acceptBounds || !vmIsTrailingZeros))
+                    || lastRemovedDigit >= 5 ? 1 : 0);
+        } else {
+            while (vp / 10 > vm / 10) {
+                lastRemovedDigit = (int) (vr % 10);
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed++;
+            }
+            output = vr + (vr == vm || lastRemovedDigit >= 5 ? 1 : 0);
+        }
+        int exp = e10 + removed;
+
+        // Step 5: print output * 10^exp the way Float.toString() does.
+        int digits = (int) output;
+        int length = decimalLength(digits);
+        int sciExp = exp + length - 1;
+        if (sciExp >= -3 && sciExp < 7) {
+            if (sciExp >= 0) {
+                int intDigits = sciExp + 1;
+                if (length <= intDigits) {
+                    pos = appendInt(dst, pos, digits);
+                    for (int i = length; i < intDigits; i++) {
+                        dst[pos++] = '0';
+                    }
+                    dst[pos++] = '.';
+                    dst[pos++] = '0';
+                } else {
+                    // Print all digits shifted right by one, then pull the integer part back.
+                    int end = appendInt(dst, pos + 1, digits);
+                    System.arraycopy(dst, pos + 1, dst, pos, intDigits);
+                    dst[pos + intDigits] = '.';
+                    pos = end;
+                }
+            } else {
+                dst[pos++] = '0';
+                dst[pos++] = '.';
+                for (int i = -1; i > sciExp; i--) {
+                    dst[pos++] = '0';
+                }
+                pos = appendInt(dst, pos, digits);
+            }
+        } else {
+            int end = appendInt(dst, pos + 1, digits);
+            dst[pos] = dst[pos + 1];
+            dst[pos + 1] = '.';
+            if (length == 1) {
+                dst[pos + 2] = '0';
+                end++;
+            }
+            pos = end;
+            dst[pos++] = 'E';
+            pos = appendInt(dst, pos, sciExp);
+        }
+        return pos;
+    }
+
+    private static int appendAscii(byte[] dst, int pos, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            dst[pos++] = (byte) s.charAt(i);
+        }
+        return pos;
+    }
+
+    private static int decimalLength(int v) {
+        int length = 1;
+        while (v >= 10) {
+            v /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    // ceil(log2(5^e)), and 1 for e == 0.
+    private static int pow5bits(int e) {
+        return ((e * 1217359) >>> 19) + 1;
+    }
+
+    // floor(log10(2^e))
+    private static int log10Pow2(int e) {
+        return (e * 78913) >>> 18;
+    }
+
+    // floor(log10(5^e))
+    private static int log10Pow5(int e) {
+        return (e * 732923) >>> 20;
+    }
+
+    private static boolean multipleOfPowerOf5(long value, int p) {
+        int count = 0;
+        while (value % 5 == 0) {
+            value /= 5;
+            count++;
+        }
+        return count >= p;
+    }
+
+    // (m * factor) >> shift, where m fits in 32 bits and factor in 63.
+    private static long mulShift(long m, long factor, int shift) {
+        long factorLo = factor & 0xffffffffL;
+        long factorHi = factor >>> 32;
+        long bits0 = m * factorLo;
+        long bits1 = m * factorHi;
+        long sum = (bits0 >>> 32) + bits1;
+        return sum >>> (shift - 32);
+    }
+}
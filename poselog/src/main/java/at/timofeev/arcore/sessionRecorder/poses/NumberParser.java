@@ -0,0 +1,162 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses ASCII numbers straight out of a byte buffer, the counterpart of {@link NumberFormatter}.
+ * <p>
+ * Only absolute reads are used, so the buffer's position is never touched and mapped buffers
+ * can be shared between threads.  Floats with up to 15 significant digits and a moderate
+ * exponent (everything {@link NumberFormatter} prints for poses) are converted without
+ * allocating; anything else falls back to {@link Float#parseFloat(String)}.
+ */
+public final class NumberParser {
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    // Bits a double has below the precision of a float.
+    private static final int DROPPED_BITS = 52 - 23;
+    private static final long DROPPED_MASK = (1L << DROPPED_BITS) - 1;
+    private static final long HALFWAY = 1L << (DROPPED_BITS - 1);
+
+    private NumberParser() {}
+
+    /**
+     * Parses the bytes in [start, end) as a decimal int.
+     */
+    public static int parseInt(ByteBuffer buf, int start, int end) {
+        long value = parseLong(buf, start, end);
+        if (value != (int) value) {
+            throw error(buf, start, end);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parses the bytes in [start, end) as a decimal long.
+     */
+    public static long parseLong(ByteBuffer buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+            negative = buf.get(i) == '-';
+            i++;
+        }
+        if (i == end || end - i > 19) {
+            throw error(buf, start, end);
+        }
+        // Accumulate negatively, which also covers Long.MIN_VALUE.
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buf.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw error(buf, start, end);
+            }
+            long next = value * 10 - digit;
+            if (next > value) {
+                throw error(buf, start, end);
+            }
+            value = next;
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                throw error(buf, start, end);
+            }
+            value = -value;
+        }
+        return value;
+    }
+
+    /**
+     * Parses the bytes in [start, end) as a float, with the same rounding as
+     * {@link Float#parseFloat(String)}.
+     */
+    public static float parseFloat(ByteBuffer buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+            negative = buf.get(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean seenDigit = false;
+        boolean seenPoint = false;
+        for (; i < end; i++) {
+            int c = buf.get(i);
+            if (c >= '0' && c <= '9') {
+                seenDigit = true;
+                if (mantissa == 0 && c == '0') {
+                    // Leading zeros don't count as significant.
+                    if (seenPoint) {
+                        scale--;
+                    }
+                    continue;
+                }
+                if (++digits > 15) {
+                    return slowParseFloat(buf, start, end);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (seenPoint) {
+                    scale--;
+                }
+            } else if (c == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (!seenDigit) {
+            return slowParseFloat(buf, start, end);
+        }
+        if (i < end) {
+            int c = buf.get(i);
+            if (c != 'E' && c != 'e') {
+                throw error(buf, start, end);
+            }
+            long exponent = parseLong(buf, i + 1, end);
+            if (exponent > 1000 || exponent < -1000) {
+                return slowParseFloat(buf, start, end);
+            }
+            scale += (int) exponent;
+        }
+
+        if (mantissa == 0) {
+            return negative ? -0f : 0f;
+        }
+        if (scale < -22 || scale > 22) {
+            return slowParseFloat(buf, start, end);
+        }
+        // Both operands are exact doubles, so this is the correctly rounded double.
+        double d = scale < 0 ? mantissa / POW10[-scale] : mantissa * POW10[scale];
+        // Rounding that double to a float again is only ambiguous if it lies within a double ulp
+        // of the midpoint between two floats, or outside the normal float range.
+        long bits = Double.doubleToRawLongBits(d);
+        long dropped = bits & DROPPED_MASK;
+        if (Math.abs(dropped - HALFWAY) <= 1 || d < Float.MIN_NORMAL || d > Float.MAX_VALUE) {
+            return slowParseFloat(buf, start, end);
+        }
+        float f = (float) d;
+        return negative ? -f : f;
+    }
+
+    private static float slowParseFloat(ByteBuffer buf, int start, int end) {
+        return Float.parseFloat(ascii(buf, start, end));
+    }
+
+    private static NumberFormatException error(ByteBuffer buf, int start, int end) {
+        return new NumberFormatException("Not a number: \"" + ascii(buf, start, end) + "\"");
+    }
+
+    private static String ascii(ByteBuffer buf, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,511 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+/**
+ * Parses whole pose logs of any {@link PoseLogFormat} on all cores, for offline tools.
+ * <p>
+ * The log is cut into chunks that end on a record boundary: a line end for text logs, a record
+ * or block boundary for binary and compressed logs.  Each chunk is memory mapped and parsed in
+ * place by a fork-join task, so records never pass through a String or a copy of the file.
+ * Text and CRC-protected binary logs need a cheap first pass that counts the records of every
+ * chunk, which is what allows each record to be handed out with its final index.
+ * <p>
+ * Torn tails are dropped the same way {@link PoseLogReader} drops them.
+ */
+public final class ParallelPoseLogParser {
+    private static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    // How many chunks each worker should get at least, so that uneven chunks even out.
+    private static final int CHUNKS_PER_THREAD = 4;
+    // How far to look for the end of a line when placing a text chunk boundary.
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    /**
+     * Receives the parsed records.
+     */
+    public interface Visitor {
+        /**
+         * Called once per record, concurrently from the pool threads and in no particular order.
+         * {@code sample} belongs to the calling thread and is reused after this returns.
+         *
+         * @param index position of the record in the log, counting from 0.
+         */
+        void visit(int index, PoseSample sample);
+    }
+
+    private final ForkJoinPool mPool;
+    private final int mChunkSize;
+
+    /**
+     * Parses on the common pool.
+     */
+    public ParallelPoseLogParser() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize upper bound for the bytes handled by one task.
+     */
+    public ParallelPoseLogParser(ForkJoinPool pool, int chunkSize) {
+        if (chunkSize < MIN_CHUNK_SIZE) {
+            throw new IllegalArgumentException("chunkSize must be at least " + MIN_CHUNK_SIZE);
+        }
+        mPool = pool;
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Parses the whole log into arrays.
+     */
+    public PoseArrays parse(File log) throws IOException {
+        try (Job job = new Job(log)) {
+            final PoseArrays arrays = new PoseArrays(job.plan());
+            job.run(new Visitor() {
+                @Override
+                public void visit(int index, PoseSample sample) {
+                    arrays.set(index, sample);
+                }
+            });
+            return arrays;
+        }
+    }
+
+    /**
+     * Parses the whole log, handing each record to the visitor.
+     *
+     * @return the number of records.
+     */
+    public int parse(File log, Visitor visitor) throws IOException {
+        try (Job job = new Job(log)) {
+            int count = job.plan();
+            job.run(visitor);
+            return count;
+        }
+    }
+
+    /**
+     * A contiguous range of whole records, parsed by one task.
+     */
+    private static final class Chunk {
+        final long start;
+        long end;
+        // Index of the first record in the chunk.
+        int firstIndex;
+        // Number of records to hand out, -1 until counted.
+        int count = -1;
+        // Binary logs: fixed-width records in the chunk that passed the CRC check.
+        int validRecords;
+        // Binary logs: intrinsics in effect at the start, and the last intrinsics record seen.
+        PoseSample intrinsics;
+        PoseSample lastIntrinsics;
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private interface ChunkOp {
+        void apply(Chunk chunk) throws IOException;
+    }
+
+    /**
+     * Runs an operation over a list of chunks by splitting the list in halves.  Never
+     * serialized, although ForkJoinTask is Serializable.
+     */
+    @SuppressWarnings("serial")
+    private static final class ChunkTask extends RecursiveAction {
+        private final List<Chunk> mChunks;
+        private final int mFrom;
+        private final int mTo;
+        private final ChunkOp mOp;
+
+        ChunkTask(List<Chunk> chunks, int from, int to, ChunkOp op) {
+            mChunks = chunks;
+            mFrom = from;
+            mTo = to;
+            mOp = op;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom == 1) {
+                try {
+                    mOp.apply(mChunks.get(mFrom));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            invokeAll(new ChunkTask(mChunks, mFrom, mid, mOp),
+                    new ChunkTask(mChunks, mid, mTo, mOp));
+        }
+    }
+
+    /**
+     * One parse of one file.
+     */
+    private final class Job implements AutoCloseable {
+        private final FileInputStream mStream;
+        private final FileChannel mChannel;
+        private final long mSize;
+        private final List<Chunk> mChunks = new ArrayList<>();
+        // Null unless this is a binary log.
+        private BinaryPoseFormat.Header mHeader;
+        private boolean mCompressed;
+
+        Job(File log) throws IOException {
+            mStream = new FileInputStream(log);
+            mChannel = mStream.getChannel();
+            mSize = mChannel.size();
+        }
+
+        /**
+         * Splits the log into chunks and counts their records.
+         *
+         * @return the total number of records.
+         */
+        int plan() throws IOException {
+            ByteBuffer head = read(0, BinaryPoseFormat.HEADER_SIZE);
+            if (startsWith(head, BinaryPoseFormat.MAGIC)) {
+                mHeader = BinaryPoseFormat.readHeader(head);
+                planBinary();
+            } else if (startsWith(head, CompressedPoseFormat.MAGIC)) {
+                mCompressed = true;
+                CompressedPoseFormat.readHeader(head);
+                planCompressed();
+            } else {
+                planText();
+            }
+
+            int index = 0;
+            for (Chunk chunk : mChunks) {
+                chunk.firstIndex = index;
+                index += chunk.count;
+            }
+            return index;
+        }
+
+        void run(Visitor visitor) throws IOException {
+            ChunkOp op;
+            if (mHeader != null) {
+                op = chunk -> parseBinary(chunk, visitor);
+            } else if (mCompressed) {
+                op = chunk -> parseCompressed(chunk, visitor);
+            } else {
+                op = chunk -> parseText(chunk, visitor);
+            }
+            invoke(op);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mStream.close();
+        }
+
+        private int chunkSize(long dataSize) {
+            long perThread = dataSize / ((long) mPool.getParallelism() * CHUNKS_PER_THREAD);
+            return (int) Math.max(MIN_CHUNK_SIZE, Math.min(mChunkSize, perThread));
+        }
+
+        private void invoke(ChunkOp op) throws IOException {
+            if (mChunks.isEmpty()) {
+                return;
+            }
+            try {
+                mPool.invoke(new ChunkTask(mChunks, 0, mChunks.size(), op));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        private MappedByteBuffer map(Chunk chunk) throws IOException {
+            MappedByteBuffer buf = mChannel.map(FileChannel.MapMode.READ_ONLY, chunk.start,
+                    chunk.end - chunk.start);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            return buf;
+        }
+
+        private ByteBuffer read(long offset, int length) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            while (buf.hasRemaining() && mChannel.read(buf, offset + buf.position()) > 0) {
+                // keep reading
+            }
+            buf.flip();
+            return buf;
+        }
+
+        // ----- text -----
+
+        private void planText() throws IOException {
+            int size = chunkSize(mSize);
+            long start = 0;
+            while (start < mSize) {
+                long end = start + size;
+                if (end >= mSize) {
+                    end = mSize;
+                } else {
+                    ByteBuffer probe = read(end, MAX_LINE_LENGTH);
+                    int i = 0;
+                    while (i < probe.limit() && probe.get(i) != '\n') {
+                        i++;
+                    }
+                    end = Math.min(end + i + 1, mSize);
+                }
+                mChunks.add(new Chunk(start, end));
+                start = end;
+            }
+            if (mChunks.isEmpty()) {
+                return;
+            }
+
+            // A last line without a line end may be cut off, keep it only if it parses.
+            Chunk last = mChunks.get(mChunks.size() - 1);
+            ByteBuffer tail = read(Math.max(last.start, mSize - MAX_LINE_LENGTH),
+                    (int) Math.min(MAX_LINE_LENGTH, mSize - last.start));
+            int lineStart = tail.limit();
+            while (lineStart > 0 && tail.get(lineStart - 1) != '\n') {
+                lineStart--;
+            }
+            if (lineStart < tail.limit()) {
+                try {
+                    int end = tail.limit();
+                    if (tail.get(end - 1) == '\r') {
+                        end--;
+                    }
+                    if (end > lineStart) {
+                        PoseLogReader.parseTextLine(tail, lineStart, end, new PoseSample());
+                    }
+                } catch (NumberFormatException e) {
+                    last.end -= tail.limit() - lineStart;
+                }
+            }
+
+            invoke(chunk -> chunk.count = countLines(map(chunk)));
+        }
+
+        private void parseText(Chunk chunk, Visitor visitor) throws IOException {
+            MappedByteBuffer buf = map(chunk);
+            PoseSample sample = new PoseSample();
+            int index = chunk.firstIndex;
+            int limit = buf.limit();
+            int start = 0;
+            while (start < limit) {
+                int lineEnd = start;
+                while (lineEnd < limit && buf.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                int end = lineEnd;
+                if (end > start && buf.get(end - 1) == '\r') {
+                    end--;
+                }
+                if (end > start) {
+                    try {
+                        PoseLogReader.parseTextLine(buf, start, end, sample);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed pose line at offset "
+                                + (chunk.start + start), e);
+                    }
+                    visitor.visit(index++, sample);
+                }
+                start = lineEnd + 1;
+            }
+        }
+
+        // ----- binary -----
+
+        private void planBinary() throws IOException {
+            final int stride = mHeader.recordSize;
+            long records = (mSize - mHeader.headerSize) / stride;
+            int chunkRecords = Math.max(1, chunkSize(records * stride) / stride);
+            for (long first = 0; first < records; first += chunkRecords) {
+                long last = Math.min(first + chunkRecords, records);
+                Chunk chunk = new Chunk(mHeader.headerSize + first * stride,
+                        mHeader.headerSize + last * stride);
+                chunk.validRecords = (int) (last - first);
+                mChunks.add(chunk);
+            }
+
+            final boolean crc = mHeader.hasFlag(BinaryPoseFormat.FLAG_CRC32);
+            final boolean events = mHeader.intrinsicsChanges != 0;
+            if (crc || events) {
+                invoke(chunk -> scanBinary(chunk, crc));
+            } else {
+                for (Chunk chunk : mChunks) {
+                    chunk.count = chunk.validRecords;
+                }
+            }
+
+            // Everything after the first bad record is the unused or torn tail of a log that
+            // was never closed.
+            PoseSample intrinsics = mHeader.intrinsics;
+            for (int i = 0; i < mChunks.size(); i++) {
+                Chunk chunk = mChunks.get(i);
+                chunk.intrinsics = intrinsics;
+                if (chunk.lastIntrinsics != null) {
+                    intrinsics = chunk.lastIntrinsics;
+                }
+                if (chunk.validRecords < (chunk.end - chunk.start) / stride) {
+                    chunk.end = chunk.start + (long) chunk.validRecords * stride;
+                    mChunks.subList(i + 1, mChunks.size()).clear();
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Counts the valid records, poses and intrinsics changes of a binary chunk.
+         */
+        private void scanBinary(Chunk chunk, boolean checkCrc) throws IOException {
+            MappedByteBuffer buf = map(chunk);
+            int stride = mHeader.recordSize;
+            int records = chunk.validRecords;
+            CRC32 crc = new CRC32();
+            PoseSample sample = new PoseSample();
+            int poses = 0;
+            int valid = 0;
+            for (; valid < records; valid++) {
+                int offset = valid * stride;
+                if (checkCrc) {
+                    int payload = stride - BinaryPoseFormat.CRC_SIZE;
+                    ByteBuffer record = buf.duplicate();
+                    record.limit(offset + payload).position(offset);
+                    crc.reset();
+                    crc.update(record);
+                    if ((int) crc.getValue() != buf.getInt(offset + payload)) {
+                        break;
+                    }
+                }
+                int type = BinaryPoseFormat.decode(buf, offset, sample);
+                if (type == BinaryPoseFormat.TYPE_POSE) {
+                    poses++;
+                } else if (type == BinaryPoseFormat.TYPE_INTRINSICS) {
+                    if (chunk.lastIntrinsics == null) {
+                        chunk.lastIntrinsics = new PoseSample();
+                    }
+                    BinaryPoseFormat.copyIntrinsics(sample, chunk.lastIntrinsics);
+                }
+            }
+            chunk.validRecords = valid;
+            chunk.count = poses;
+        }
+
+        private void parseBinary(Chunk chunk, Visitor visitor) throws IOException {
+            MappedByteBuffer buf = map(chunk);
+            int stride = mHeader.recordSize;
+            int records = (int) ((chunk.end - chunk.start) / stride);
+            PoseSample intrinsics = new PoseSample();
+            BinaryPoseFormat.copyIntrinsics(chunk.intrinsics, intrinsics);
+            PoseSample sample = new PoseSample();
+            int index = chunk.firstIndex;
+            for (int i = 0; i < records; i++) {
+                int type = BinaryPoseFormat.decode(buf, i * stride, sample);
+                if (type == BinaryPoseFormat.TYPE_INTRINSICS) {
+                    BinaryPoseFormat.copyIntrinsics(sample, intrinsics);
+                } else if (type == BinaryPoseFormat.TYPE_POSE) {
+                    BinaryPoseFormat.copyIntrinsics(intrinsics, sample);
+                    visitor.visit(index++, sample);
+                }
+            }
+        }
+
+        // ----- compressed -----
+
+        private void planCompressed() throws IOException {
+            int size = chunkSize(mSize);
+            int headerSize = CompressedPoseFormat.BLOCK_HEADER_SIZE;
+            long position = CompressedPoseFormat.HEADER_SIZE;
+            Chunk chunk = null;
+            while (position + headerSize <= mSize) {
+                ByteBuffer header = read(position, headerSize);
+                int count = header.getInt(0);
+                int length = header.getInt(4);
+                if (count < 1 || length < 0) {
+                    throw new IOException("Corrupt pose block at offset " + position);
+                }
+                long end = position + headerSize + length;
+                if (end > mSize) {
+                    // The block was cut off by a crash.
+                    break;
+                }
+                if (chunk == null || end - chunk.start > size) {
+                    chunk = new Chunk(position, end);
+                    chunk.count = 0;
+                    mChunks.add(chunk);
+                }
+                chunk.end = end;
+                chunk.count += count;
+                position = end;
+            }
+        }
+
+        private void parseCompressed(Chunk chunk, Visitor visitor) throws IOException {
+            MappedByteBuffer buf = map(chunk);
+            int headerSize = CompressedPoseFormat.BLOCK_HEADER_SIZE;
+            PoseStreamDecoder decoder = new PoseStreamDecoder();
+            PoseSample sample = new PoseSample();
+            int index = chunk.firstIndex;
+            int position = 0;
+            while (position < buf.limit()) {
+                int count = buf.getInt(position);
+                int length = buf.getInt(position + 4);
+                decoder.reset(buf, position + headerSize, length, count);
+                try {
+                    while (decoder.decode(sample)) {
+                        visitor.visit(index++, sample);
+                    }
+                } catch (IndexOutOfBoundsException e) {
+                    throw new IOException("Corrupt pose block at offset "
+                            + (chunk.start + position), e);
+                }
+                position += headerSize + length;
+            }
+        }
+    }
+
+    /**
+     * Counts the non-empty lines in the buffer.
+     */
+    private static int countLines(ByteBuffer buf) {
+        int lines = 0;
+        boolean content = false;
+        for (int i = 0, limit = buf.limit(); i < limit; i++) {
+            byte b = buf.get(i);
+            if (b == '\n') {
+                if (content) {
+                    lines++;
+                }
+                content = false;
+            } else if (b != '\r') {
+                content = true;
+            }
+        }
+        return content ? lines + 1 : lines;
+    }
+
+    private static boolean startsWith(ByteBuffer buf, byte[] magic) {
+        if (buf.remaining() < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (buf.get(i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+/**
+ * A whole pose log as one primitive array per field, as produced by
+ * {@link ParallelPoseLogParser#parse(java.io.File)}.
+ * <p>
+ * Text logs written by older versions of the recorder have no timestamps; {@link #timestampNs}
+ * and {@link #presentationTimeNs} are all zeros for them.
+ */
+public final class PoseArrays {
+    public final int size;
+
+    public final int[] frameId;
+    public final long[] timestampNs;
+    public final long[] presentationTimeNs;
+
+    public final float[] tx;
+    public final float[] ty;
+    public final float[] tz;
+    public final float[] qx;
+    public final float[] qy;
+    public final float[] qz;
+    public final float[] qw;
+
+    public final float[] fx;
+    public final float[] fy;
+    public final float[] cx;
+    public final float[] cy;
+    public final int[] width;
+    public final int[] height;
+
+    public PoseArrays(int size) {
+        this.size = size;
+        frameId = new int[size];
+        timestampNs = new long[size];
+        presentationTimeNs = new long[size];
+        tx = new float[size];
+        ty = new float[size];
+        tz = new float[size];
+        qx = new float[size];
+        qy = new float[size];
+        qz = new float[size];
+        qw = new float[size];
+        fx = new float[size];
+        fy = new float[size];
+        cx = new float[size];
+        cy = new float[size];
+        width = new int[size];
+        height = new int[size];
+    }
+
+    public void set(int i, PoseSample s) {
+        frameId[i] = s.frameId;
+        timestampNs[i] = s.timestampNs;
+        presentationTimeNs[i] = s.presentationTimeNs;
+        tx[i] = s.tx;
+        ty[i] = s.ty;
+        tz[i] = s.tz;
+        qx[i] = s.qx;
+        qy[i] = s.qy;
+        qz[i] = s.qz;
+        qw[i] = s.qw;
+        fx[i] = s.fx;
+        fy[i] = s.fy;
+        cx[i] = s.cx;
+        cy[i] = s.cy;
+        width[i] = s.width;
+        height[i] = s.height;
+    }
+
+    public void get(int i, PoseSample out) {
+        out.frameId = frameId[i];
+        out.timestampNs = timestampNs[i];
+        out.presentationTimeNs = presentationTimeNs[i];
+        out.tx = tx[i];
+        out.ty = ty[i];
+        out.tz = tz[i];
+        out.qx = qx[i];
+        out.qy = qy[i];
+        out.qz = qz[i];
+        out.qw = qw[i];
+        out.fx = fx[i];
+        out.fy = fy[i];
+        out.cx = cx[i];
+        out.cy = cy[i];
+        out.width = width[i];
+        out.height = height[i];
+    }
+}
@@ -0,0 +1,62 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * On-disk formats for the pose log.
+ */
+public enum PoseLogFormat {
+    /**
+     * The original space separated text format, one frame per line:
+     * {@code frameId tx ty tz qx qy qz qw fx fy width height cx cy timestampNs presentationTimeNs}.
+     * Logs from before the last two columns were added are still readable.
+     */
+    TEXT("txt"),
+    /**
+     * Fixed-width little-endian records behind a versioned header, see {@link BinaryPoseFormat}.
+     */
+    BINARY("bin"),
+    /**
+     * The binary format with a CRC after every record, written through a memory mapping of the
+     * preallocated file.  Survives the app being killed mid-recording, see
+     * {@link MappedPoseLogWriter}.
+     */
+    BINARY_MAPPED("bin"),
+    /**
+     * Delta-of-delta and XOR compressed blocks, typically well under a tenth of the text format,
+     * see {@link CompressedPoseFormat}.
+     */
+    COMPRESSED("pz");
+
+    private final String mExtension;
+
+    PoseLogFormat(String extension) {
+        mExtension = extension;
+    }
+
+    /**
+     * Returns the file name extension used for logs in this format, without the dot.
+     */
+    public String getExtension() {
+        return mExtension;
+    }
+
+    /**
+     * Creates (or truncates) the given file and returns a writer for this format.
+     */
+    public BufferedPoseLogWriter createWriter(File file) throws IOException {
+        switch (this) {
+            case TEXT:
+                return new TextPoseLogWriter(file);
+            case BINARY:
+                return new BinaryPoseLogWriter(file);
+            case BINARY_MAPPED:
+                return new MappedPoseLogWriter(file);
+            case COMPRESSED:
+                return new CompressedPoseLogWriter(file);
+            default:
+                throw new IllegalStateException("Unhandled format " + this);
+        }
+    }
+}
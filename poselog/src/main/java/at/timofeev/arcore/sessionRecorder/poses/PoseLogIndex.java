@@ -0,0 +1,164 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sparse index of a pose log, written next to it by {@link IndexedPoseLogWriter}.
+ * <p>
+ * Every {@link #getInterval()}th record gets an entry with its frame id, timestamp and byte
+ * offset in the log, which lets {@link PoseLogReader} start reading close to any frame instead
+ * of at the beginning of the file.  The file is a little-endian {@link #HEADER_SIZE} byte header
+ * <pre>
+ *  0  magic "ARPPOSEI"    8  uint16 version    10  uint16 entry size    12  int32 interval
+ * </pre>
+ * followed by entries of {@link #ENTRY_SIZE} bytes:
+ * <pre>
+ *  0  int64 timestamp (ns)    8  int64 offset    16  int32 frameId    20  reserved
+ * </pre>
+ */
+public class PoseLogIndex {
+    public static final byte[] MAGIC = {'A', 'R', 'P', 'P', 'O', 'S', 'E', 'I'};
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int ENTRY_SIZE = 24;
+
+    private final int mInterval;
+    private final int[] mFrameIds;
+    private final long[] mTimestamps;
+    private final long[] mOffsets;
+
+    private PoseLogIndex(int interval, int[] frameIds, long[] timestamps, long[] offsets) {
+        mInterval = interval;
+        mFrameIds = frameIds;
+        mTimestamps = timestamps;
+        mOffsets = offsets;
+    }
+
+    /**
+     * Loads an index file.  A partially written last entry, as left by a crash, is ignored.
+     */
+    public static PoseLogIndex read(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE || size - HEADER_SIZE > (long) Integer.MAX_VALUE) {
+                throw new IOException("Invalid pose index " + file);
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+            while (buf.hasRemaining() && channel.read(buf) >= 0) {
+                // keep reading
+            }
+            buf.flip();
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (buf.get(i) != MAGIC[i]) {
+                    throw new IOException("Not a pose index " + file);
+                }
+            }
+            int version = buf.getShort(8) & 0xffff;
+            int entrySize = buf.getShort(10) & 0xffff;
+            int interval = buf.getInt(12);
+            if (version < 1 || version > VERSION || entrySize < ENTRY_SIZE || interval < 1) {
+                throw new IOException("Unsupported pose index " + file);
+            }
+
+            int count = (buf.limit() - HEADER_SIZE) / entrySize;
+            int[] frameIds = new int[count];
+            long[] timestamps = new long[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                int base = HEADER_SIZE + i * entrySize;
+                timestamps[i] = buf.getLong(base);
+                offsets[i] = buf.getLong(base + 8);
+                frameIds[i] = buf.getInt(base + 16);
+            }
+            return new PoseLogIndex(interval, frameIds, timestamps, offsets);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Puts an index header at the buffer's position and advances it by {@link #HEADER_SIZE}.
+     */
+    static void writeHeader(ByteBuffer buf, int interval) {
+        buf.put(MAGIC);
+        buf.putShort((short) VERSION);
+        buf.putShort((short) ENTRY_SIZE);
+        buf.putInt(interval);
+    }
+
+    /**
+     * Puts an entry at the buffer's position and advances it by {@link #ENTRY_SIZE}.
+     */
+    static void writeEntry(ByteBuffer buf, int frameId, long timestampNs, long offset) {
+        buf.putLong(timestampNs);
+        buf.putLong(offset);
+        buf.putInt(frameId);
+        buf.putInt(0);
+    }
+
+    public int size() {
+        return mOffsets.length;
+    }
+
+    /**
+     * Returns the number of log records between two index entries.
+     */
+    public int getInterval() {
+        return mInterval;
+    }
+
+    public int getFrameId(int entry) {
+        return mFrameIds[entry];
+    }
+
+    public long getTimestamp(int entry) {
+        return mTimestamps[entry];
+    }
+
+    public long getOffset(int entry) {
+        return mOffsets[entry];
+    }
+
+    /**
+     * Returns the last entry whose frame id is not greater than {@code frameId}, or -1 if the
+     * frame comes before the first entry.
+     */
+    public int floorFrameId(int frameId) {
+        int lo = 0;
+        int hi = mFrameIds.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mFrameIds[mid] <= frameId) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi;
+    }
+
+    /**
+     * Returns the last entry whose timestamp is not greater than {@code timestampNs}, or -1 if
+     * the time comes before the first entry.
+     */
+    public int floorTimestamp(long timestampNs) {
+        int lo = 0;
+        int hi = mTimestamps.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mTimestamps[mid] <= timestampNs) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi;
+    }
+}
@@ -0,0 +1,521 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Reads ranges of records from a pose log in any {@link PoseLogFormat}.
+ * <p>
+ * With a {@link PoseLogIndex} a range starts reading at the closest preceding index entry, so
+ * that only up to {@link PoseLogIndex#getInterval()} records (or, for compressed logs, one
+ * block) have to be skipped.  Binary logs without an index are searched by bisecting the
+ * fixed-width records; other logs without an index are read from the beginning.  Ranges assume
+ * that frame ids and timestamps increase through the log, which is how the recorder writes them.
+ */
+public class PoseLogReader implements Closeable {
+    // Large enough to hold a whole compressed block.
+    private static final int CHUNK_SIZE = 128 * 1024;
+    private static final int MAX_TEXT_LINE_LENGTH = 1024;
+    private static final int TEXT_COLUMNS_WITH_TIMESTAMPS = 16;
+
+    private final FileInputStream mStream;
+    private final FileChannel mChannel;
+    private final PoseLogIndex mIndex;
+    // Null unless this is a binary log.
+    private final BinaryPoseFormat.Header mHeader;
+    private final boolean mCompressed;
+    // Whether a text log has the timestamp columns.
+    private final boolean mTextTimestamps;
+    private final long mDataStart;
+
+    // Offsets and contents of the intrinsics records of a binary log, loaded when first needed.
+    private long[] mIntrinsicsOffsets;
+    private List<PoseSample> mIntrinsicsEvents;
+
+    public PoseLogReader(File log) throws IOException {
+        this(log, null);
+    }
+
+    /**
+     * @param index the log's index, or null to do without.
+     * @throws IOException also for a memory mapped log that was never closed; those must go
+     *     through {@link MappedPoseLogWriter#recover} first.
+     */
+    public PoseLogReader(File log, PoseLogIndex index) throws IOException {
+        mStream = new FileInputStream(log);
+        mChannel = mStream.getChannel();
+        mIndex = index;
+
+        ByteBuffer head = ByteBuffer.allocate(BinaryPoseFormat.HEADER_SIZE);
+        while (head.hasRemaining() && mChannel.read(head, head.position()) > 0) {
+            // keep reading
+        }
+        head.flip();
+        mCompressed = startsWith(head, CompressedPoseFormat.MAGIC);
+        if (startsWith(head, BinaryPoseFormat.MAGIC)) {
+            mHeader = BinaryPoseFormat.readHeader(head);
+            if (mHeader.hasFlag(BinaryPoseFormat.FLAG_INCOMPLETE)) {
+                // The preallocated, zero-filled tail would be taken for records.
+                mStream.close();
+                throw new IOException(log + " was not closed, run MappedPoseLogWriter.recover()"
+                        + " on it first");
+            }
+            mTextTimestamps = false;
+            mDataStart = mHeader.headerSize;
+        } else if (mCompressed) {
+            mHeader = null;
+            CompressedPoseFormat.readHeader(head);
+            mTextTimestamps = false;
+            mDataStart = CompressedPoseFormat.HEADER_SIZE;
+        } else {
+            mHeader = null;
+            mTextTimestamps = countFirstLineColumns() >= TEXT_COLUMNS_WITH_TIMESTAMPS;
+            mDataStart = 0;
+        }
+    }
+
+    /**
+     * Counts the space separated columns of the first line of a text log.
+     */
+    private int countFirstLineColumns() throws IOException {
+        ByteBuffer line = ByteBuffer.allocate(MAX_TEXT_LINE_LENGTH);
+        while (line.hasRemaining() && mChannel.read(line, line.position()) > 0) {
+            // keep reading
+        }
+        int columns = 0;
+        boolean inColumn = false;
+        for (int i = 0; i < line.position(); i++) {
+            byte b = line.get(i);
+            if (b == '\n' || b == '\r') {
+                break;
+            }
+            if (b == ' ') {
+                inColumn = false;
+            } else if (!inColumn) {
+                inColumn = true;
+                columns++;
+            }
+        }
+        return columns;
+    }
+
+    private static boolean startsWith(ByteBuffer buf, byte[] magic) {
+        if (buf.remaining() < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (buf.get(i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true for binary logs, false for text logs.
+     */
+    public boolean isBinary() {
+        return mHeader != null;
+    }
+
+    /**
+     * Returns true for compressed logs.
+     */
+    public boolean isCompressed() {
+        return mCompressed;
+    }
+
+    /**
+     * Returns true if the records carry ARCore timestamps and presentation times, which text
+     * logs written by older versions of the recorder do not.
+     */
+    public boolean hasTimestamps() {
+        return isBinary() || isCompressed() || mTextTimestamps;
+    }
+
+    /**
+     * Returns a cursor over all records.
+     */
+    public Cursor all() throws IOException {
+        return new Cursor(mDataStart, false, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns a cursor over the records with {@code first <= frameId <= last}.
+     */
+    public Cursor rangeByFrameId(int first, int last) throws IOException {
+        long start;
+        if (mIndex != null) {
+            int entry = mIndex.floorFrameId(first);
+            start = entry >= 0 ? mIndex.getOffset(entry) : mDataStart;
+        } else if (isBinary()) {
+            start = bisect(false, first);
+        } else {
+            start = mDataStart;
+        }
+        return new Cursor(start, false, first, last);
+    }
+
+    /**
+     * Returns a cursor over the records with {@code fromNs <= timestamp <= toNs}.
+     *
+     * @throws IllegalStateException if the log has no timestamps, see {@link #hasTimestamps()}.
+     */
+    public Cursor rangeByTimestamp(long fromNs, long toNs) throws IOException {
+        if (!hasTimestamps()) {
+            throw new IllegalStateException("This pose log carries no timestamps");
+        }
+        long start;
+        if (mIndex != null) {
+            int entry = mIndex.floorTimestamp(fromNs);
+            start = entry >= 0 ? mIndex.getOffset(entry) : mDataStart;
+        } else if (isBinary()) {
+            start = bisect(true, fromNs);
+        } else {
+            start = mDataStart;
+        }
+        return new Cursor(start, true, fromNs, toNs);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStream.close();
+    }
+
+    /**
+     * Returns the offset of the first binary record whose key is not less than {@code key}.
+     */
+    private long bisect(boolean byTimestamp, long key) throws IOException {
+        int stride = mHeader.recordSize;
+        long count = (mChannel.size() - mDataStart) / stride;
+        ByteBuffer record = ByteBuffer.allocate(stride).order(ByteOrder.LITTLE_ENDIAN);
+        PoseSample sample = new PoseSample();
+        long lo = 0;
+        long hi = count;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            record.clear();
+            long offset = mDataStart + mid * stride;
+            while (record.hasRemaining()
+                    && mChannel.read(record, offset + record.position()) > 0) {
+                // keep reading
+            }
+            BinaryPoseFormat.decode(record, 0, sample);
+            long midKey = byTimestamp ? sample.timestampNs : sample.frameId;
+            if (midKey < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return mDataStart + lo * stride;
+    }
+
+    /**
+     * Copies the intrinsics in effect at the binary record at {@code offset} into {@code out}.
+     */
+    private void intrinsicsAt(long offset, PoseSample out) throws IOException {
+        BinaryPoseFormat.copyIntrinsics(mHeader.intrinsics, out);
+        if (offset <= mDataStart || mHeader.intrinsicsChanges == 0) {
+            return;
+        }
+        if (mIntrinsicsOffsets == null) {
+            loadIntrinsicsEvents();
+        }
+        int lo = 0;
+        int hi = mIntrinsicsOffsets.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mIntrinsicsOffsets[mid] < offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (hi >= 0) {
+            BinaryPoseFormat.copyIntrinsics(mIntrinsicsEvents.get(hi), out);
+        }
+    }
+
+    /**
+     * Collects all intrinsics records of a binary log in one sequential pass.  Only needed for
+     * logs in which the intrinsics changed, which are rare.
+     */
+    private void loadIntrinsicsEvents() throws IOException {
+        int stride = mHeader.recordSize;
+        ByteBuffer chunk = ByteBuffer.allocate(stride * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        List<PoseSample> events = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        long position = mDataStart;
+        while (true) {
+            chunk.clear();
+            while (chunk.hasRemaining()
+                    && mChannel.read(chunk, position + chunk.position()) > 0) {
+                // keep reading
+            }
+            int records = chunk.position() / stride;
+            for (int i = 0; i < records; i++) {
+                PoseSample event = new PoseSample();
+                if (BinaryPoseFormat.decode(chunk, i * stride, event)
+                        == BinaryPoseFormat.TYPE_INTRINSICS) {
+                    events.add(event);
+                    offsets.add(position + (long) i * stride);
+                }
+            }
+            position += (long) records * stride;
+            if (records < chunk.capacity() / stride) {
+                break;
+            }
+        }
+        mIntrinsicsEvents = events;
+        mIntrinsicsOffsets = new long[offsets.size()];
+        for (int i = 0; i < mIntrinsicsOffsets.length; i++) {
+            mIntrinsicsOffsets[i] = offsets.get(i);
+        }
+    }
+
+    /**
+     * Parses one line of the text format into {@code out}.  Timestamp and presentation time are
+     * left untouched if the line doesn't have them.
+     *
+     * @throws NumberFormatException if the line is malformed or incomplete.
+     */
+    static void parseTextLine(ByteBuffer buf, int start, int end, PoseSample out) {
+        int p = start;
+        int e = tokenEnd(buf, p, end);
+        out.frameId = NumberParser.parseInt(buf, p, e);
+        e = tokenEnd(buf, p = e + 1, end);
+        out.tx = NumberParser.parseFloat(buf, p, e);
+        e = tokenEnd(buf, p = e + 1, end);
+        out.ty = NumberParser.parseFloat(buf, p, e);
+        e = tokenEnd(buf, p = e + 1, end);
+        out.tz = NumberParser.parseFloat(buf, p, e);
+        e = tokenEnd(buf, p = e + 1, end);
+        out.qx = NumberParser.parseFloat(buf, p, e);
+        e = tokenEnd(buf, p = e + 1, end);
+        out.qy = NumberParser.parseFloat(buf, p, e);
+        e = tokenEnd(buf, p = e + 1, end);
+        out.qz = NumberParser.parseFloat(buf, p, e);
+        e = tokenEnd(buf, p = e + 1, end);
+        out.qw = NumberParser.parseFloat(buf, p, e);
+        e = tokenEnd(buf, p = e + 1, end);
+        out.fx = NumberParser.parseFloat(buf, p, e);
+        e = tokenEnd(buf, p = e + 1, end);
+        out.fy = NumberParser.parseFloat(buf, p, e);
+        e = tokenEnd(buf, p = e + 1, end);
+        out.width = NumberParser.parseInt(buf, p, e);
+        e = tokenEnd(buf, p = e + 1, end);
+        out.height = NumberParser.parseInt(buf, p, e);
+        e = tokenEnd(buf, p = e + 1, end);
+        out.cx = NumberParser.parseFloat(buf, p, e);
+        e = tokenEnd(buf, p = e + 1, end);
+        out.cy = NumberParser.parseFloat(buf, p, e);
+        if (e < end) {
+            e = tokenEnd(buf, p = e + 1, end);
+            out.timestampNs = NumberParser.parseLong(buf, p, e);
+            e = tokenEnd(buf, p = e + 1, end);
+            out.presentationTimeNs = NumberParser.parseLong(buf, p, e);
+        }
+    }
+
+    private static int tokenEnd(ByteBuffer buf, int start, int end) {
+        if (start >= end) {
+            throw new NumberFormatException("Truncated pose line");
+        }
+        int i = start;
+        while (i < end && buf.get(i) != ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Forward iterator over a range of records.  Not thread-safe; each cursor reads through its
+     * own buffer, so several cursors of one reader can be used at the same time.
+     */
+    public final class Cursor {
+        private final boolean mByTimestamp;
+        private final long mFrom;
+        private final long mTo;
+        private final ByteBuffer mChunk =
+                ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private final byte[] mBytes = mChunk.array();
+        private final CRC32 mCrc = new CRC32();
+        private final PoseStreamDecoder mDecoder = new PoseStreamDecoder();
+        // Intrinsics in effect at the current record of a binary log.
+        private final PoseSample mIntrinsics = new PoseSample();
+        // File offset of mBytes[0].
+        private long mChunkStart;
+        private int mPos;
+        private int mLimit;
+        private boolean mEof;
+        private boolean mDone;
+
+        private Cursor(long start, boolean byTimestamp, long from, long to) throws IOException {
+            mChunkStart = start;
+            mByTimestamp = byTimestamp;
+            mFrom = from;
+            mTo = to;
+            if (isBinary()) {
+                intrinsicsAt(start, mIntrinsics);
+            }
+        }
+
+        /**
+         * Reads the next record of the range into {@code out}.
+         *
+         * @return false once the range is exhausted.
+         */
+        public boolean next(PoseSample out) throws IOException {
+            while (!mDone) {
+                boolean read;
+                if (isBinary()) {
+                    read = readBinary(out);
+                } else if (isCompressed()) {
+                    read = readCompressed(out);
+                } else {
+                    read = readText(out);
+                }
+                if (!read) {
+                    mDone = true;
+                    break;
+                }
+                long key = mByTimestamp ? out.timestampNs : out.frameId;
+                if (key > mTo) {
+                    mDone = true;
+                } else if (key >= mFrom) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean readBinary(PoseSample out) throws IOException {
+            int stride = mHeader.recordSize;
+            while (true) {
+                if (!fill(stride)) {
+                    return false;
+                }
+                if (mHeader.hasFlag(BinaryPoseFormat.FLAG_CRC32)) {
+                    int payload = stride - BinaryPoseFormat.CRC_SIZE;
+                    mCrc.reset();
+                    mCrc.update(mBytes, mPos, payload);
+                    if ((int) mCrc.getValue() != mChunk.getInt(mPos + payload)) {
+                        // The unused or torn tail of a log that was never closed.
+                        return false;
+                    }
+                }
+                int type = BinaryPoseFormat.decode(mChunk, mPos, out);
+                mPos += stride;
+                if (type == BinaryPoseFormat.TYPE_INTRINSICS) {
+                    BinaryPoseFormat.copyIntrinsics(out, mIntrinsics);
+                } else if (type == BinaryPoseFormat.TYPE_POSE) {
+                    BinaryPoseFormat.copyIntrinsics(mIntrinsics, out);
+                    return true;
+                }
+                // Skip record types from newer versions.
+            }
+        }
+
+        private boolean readCompressed(PoseSample out) throws IOException {
+            if (mDecoder.getRemaining() == 0) {
+                int headerSize = CompressedPoseFormat.BLOCK_HEADER_SIZE;
+                if (!fill(headerSize)) {
+                    return false;
+                }
+                int count = mChunk.getInt(mPos);
+                int length = mChunk.getInt(mPos + 4);
+                if (count < 1 || length < 0 || headerSize + length > CHUNK_SIZE) {
+                    throw new IOException("Corrupt pose block at offset " + (mChunkStart + mPos));
+                }
+                if (!fill(headerSize + length)) {
+                    // The block was cut off by a crash.
+                    return false;
+                }
+                // The block stays in place until it is decoded, fill() isn't called before.
+                mDecoder.reset(mChunk, mPos + headerSize, length, count);
+                mPos += headerSize + length;
+            }
+            try {
+                return mDecoder.decode(out);
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Corrupt pose block", e);
+            }
+        }
+
+        private boolean readText(PoseSample out) throws IOException {
+            while (true) {
+                int lineEnd = mPos;
+                while (lineEnd < mLimit && mBytes[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                if (lineEnd == mLimit && !mEof) {
+                    if (mLimit - mPos >= mBytes.length) {
+                        // Not a pose log, or a corrupt one; fill() could never make room.
+                        throw new IOException("Pose line at offset " + (mChunkStart + mPos)
+                                + " exceeds " + mBytes.length + " bytes");
+                    }
+                    fill(mLimit - mPos + 1);
+                    continue;
+                }
+                if (mPos == mLimit) {
+                    return false;
+                }
+                int start = mPos;
+                int end = lineEnd;
+                mPos = Math.min(lineEnd + 1, mLimit);
+                if (end > start && mBytes[end - 1] == '\r') {
+                    end--;
+                }
+                if (end == start) {
+                    continue;
+                }
+                try {
+                    parseTextLine(mChunk, start, end, out);
+                    return true;
+                } catch (NumberFormatException e) {
+                    if (lineEnd == mLimit) {
+                        // A torn last line.
+                        return false;
+                    }
+                    throw new IOException("Malformed pose line at offset "
+                            + (mChunkStart + start), e);
+                }
+            }
+        }
+
+        /**
+         * Makes sure at least {@code needed} bytes are buffered after mPos.
+         *
+         * @return false if the file ends before that.
+         */
+        private boolean fill(int needed) throws IOException {
+            if (mLimit - mPos >= needed) {
+                return true;
+            }
+            System.arraycopy(mBytes, mPos, mBytes, 0, mLimit - mPos);
+            mChunkStart += mPos;
+            mLimit -= mPos;
+            mPos = 0;
+            while (mLimit - mPos < needed && !mEof) {
+                mChunk.limit(mBytes.length);
+                mChunk.position(mLimit);
+                int n = mChannel.read(mChunk, mChunkStart + mLimit);
+                if (n < 0) {
+                    mEof = true;
+                } else {
+                    mLimit += n;
+                }
+            }
+            return mLimit - mPos >= needed;
+        }
+    }
+}
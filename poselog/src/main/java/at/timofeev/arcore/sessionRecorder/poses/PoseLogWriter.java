@@ -0,0 +1,34 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sink for the per-frame pose records of a recording session.
+ * <p>
+ * Implementations are not thread-safe; all calls have to come from the same thread, with the
+ * exception of {@link #force()}.
+ *
+ * @see BufferedPoseLogWriter for writers that work on the calling thread and know their
+ *     position in the file.
+ */
+public interface PoseLogWriter extends Closeable {
+
+    /**
+     * Appends one record.  The sample is only read during the call and may be reused afterwards.
+     */
+    void write(PoseSample sample) throws IOException;
+
+    /**
+     * Asks the operating system to write everything flushed so far to storage, as in
+     * {@link java.nio.channels.FileChannel#force(boolean)}.  May be called from any thread
+     * while the writer is open.
+     */
+    void force() throws IOException;
+
+    /**
+     * Writes everything buffered so far, and closes the underlying file.
+     */
+    @Override
+    void close() throws IOException;
+}
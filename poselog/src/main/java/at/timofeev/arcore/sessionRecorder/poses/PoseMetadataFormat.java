@@ -0,0 +1,79 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Layout of the samples of the pose metadata track the recorder muxes into its MP4 files, one
+ * sample per video frame at the frame's presentation time.  Little-endian:
+ * <pre>
+ *  0  int64   timestamp (ns)             44  float32 qw
+ *  8  int64   presentation time (ns)     48  float32 fx, fy
+ * 16  int32   frameId                    56  float32 cx, cy
+ * 20  float32 tx, ty, tz                 64  int32   width, height
+ * 32  float32 qx, qy, qz
+ * </pre>
+ * Unlike the binary pose log, every sample carries the intrinsics, so any single sample can be
+ * used on its own.  Readers should accept samples longer than {@link #RECORD_SIZE} and ignore
+ * the rest, which leaves room for fields in later versions.
+ */
+public final class PoseMetadataFormat {
+    /** Mime type of the track's sample entry. */
+    public static final String MIME_TYPE = "application/x-arcore-pose";
+    public static final int RECORD_SIZE = 72;
+
+    private static final int OFF_TIMESTAMP = 0;
+    private static final int OFF_PRESENTATION_TIME = 8;
+    private static final int OFF_FRAME_ID = 16;
+    private static final int OFF_POSE = 20;
+    private static final int OFF_INTRINSICS = 48;
+
+    private PoseMetadataFormat() {}
+
+    /**
+     * Encodes {@code s} at the given absolute offset.  Does not move the buffer's position.
+     */
+    public static void encode(ByteBuffer buf, int offset, PoseSample s) {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.putLong(offset + OFF_TIMESTAMP, s.timestampNs);
+        buf.putLong(offset + OFF_PRESENTATION_TIME, s.presentationTimeNs);
+        buf.putInt(offset + OFF_FRAME_ID, s.frameId);
+        buf.putFloat(offset + OFF_POSE, s.tx);
+        buf.putFloat(offset + OFF_POSE + 4, s.ty);
+        buf.putFloat(offset + OFF_POSE + 8, s.tz);
+        buf.putFloat(offset + OFF_POSE + 12, s.qx);
+        buf.putFloat(offset + OFF_POSE + 16, s.qy);
+        buf.putFloat(offset + OFF_POSE + 20, s.qz);
+        buf.putFloat(offset + OFF_POSE + 24, s.qw);
+        buf.putFloat(offset + OFF_INTRINSICS, s.fx);
+        buf.putFloat(offset + OFF_INTRINSICS + 4, s.fy);
+        buf.putFloat(offset + OFF_INTRINSICS + 8, s.cx);
+        buf.putFloat(offset + OFF_INTRINSICS + 12, s.cy);
+        buf.putInt(offset + OFF_INTRINSICS + 16, s.width);
+        buf.putInt(offset + OFF_INTRINSICS + 20, s.height);
+    }
+
+    /**
+     * Decodes the sample at the given absolute offset into {@code s}.  Does not move the
+     * buffer's position.
+     */
+    public static void decode(ByteBuffer buf, int offset, PoseSample s) {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        s.timestampNs = buf.getLong(offset + OFF_TIMESTAMP);
+        s.presentationTimeNs = buf.getLong(offset + OFF_PRESENTATION_TIME);
+        s.frameId = buf.getInt(offset + OFF_FRAME_ID);
+        s.tx = buf.getFloat(offset + OFF_POSE);
+        s.ty = buf.getFloat(offset + OFF_POSE + 4);
+        s.tz = buf.getFloat(offset + OFF_POSE + 8);
+        s.qx = buf.getFloat(offset + OFF_POSE + 12);
+        s.qy = buf.getFloat(offset + OFF_POSE + 16);
+        s.qz = buf.getFloat(offset + OFF_POSE + 20);
+        s.qw = buf.getFloat(offset + OFF_POSE + 24);
+        s.fx = buf.getFloat(offset + OFF_INTRINSICS);
+        s.fy = buf.getFloat(offset + OFF_INTRINSICS + 4);
+        s.cx = buf.getFloat(offset + OFF_INTRINSICS + 8);
+        s.cy = buf.getFloat(offset + OFF_INTRINSICS + 12);
+        s.width = buf.getInt(offset + OFF_INTRINSICS + 16);
+        s.height = buf.getInt(offset + OFF_INTRINSICS + 20);
+    }
+}
@@ -0,0 +1,53 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+/**
+ * Mutable holder for everything that is logged about a single camera frame.
+ * <p>
+ * The render thread keeps one instance around and overwrites it every frame, so that copying a
+ * pose into a log never allocates.  Only primitives live here, which keeps this class free of
+ * ARCore types and lets offline tools use it as well.
+ */
+public final class PoseSample {
+    /** {@link #presentationTimeNs} of a frame that was not handed to the video encoder. */
+    public static final long NO_PRESENTATION_TIME = -1;
+
+    public int frameId;
+    /** ARCore frame timestamp, in nanoseconds. */
+    public long timestampNs;
+    /**
+     * Presentation time the frame was given in the video, in nanoseconds, or
+     * {@link #NO_PRESENTATION_TIME}.  The muxed sample time is this divided by 1000.
+     */
+    public long presentationTimeNs;
+
+    // Camera pose in world coordinates: translation and rotation quaternion.
+    public float tx, ty, tz;
+    public float qx, qy, qz, qw;
+
+    // Texture intrinsics.
+    public float fx, fy;
+    public float cx, cy;
+    public int width, height;
+
+    /**
+     * Copies all fields of the given sample into this one.
+     */
+    public void set(PoseSample other) {
+        frameId = other.frameId;
+        timestampNs = other.timestampNs;
+        presentationTimeNs = other.presentationTimeNs;
+        tx = other.tx;
+        ty = other.ty;
+        tz = other.tz;
+        qx = other.qx;
+        qy = other.qy;
+        qz = other.qz;
+        qw = other.qw;
+        fx = other.fx;
+        fy = other.fy;
+        cx = other.cx;
+        cy = other.cy;
+        width = other.width;
+        height = other.height;
+    }
+}
@@ -0,0 +1,151 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes streams written by {@link PoseStreamEncoder}.
+ * <p>
+ * Reads with absolute gets, so it works on heap and mapped buffers alike without moving their
+ * position.  Decoding doesn't allocate.
+ */
+public final class PoseStreamDecoder {
+    private static final int FIELDS = PoseStreamEncoder.FIELDS;
+
+    private ByteBuffer mBuffer;
+    private int mPos;
+    private int mEnd;
+    private long mAccumulator;
+    private int mAccumulatedBits;
+    private int mRemaining;
+    private boolean mFirst;
+
+    private long mPrevFrameId;
+    private long mPrevFrameDelta;
+    private long mPrevTimestamp;
+    private long mPrevTimestampDelta;
+    private long mPrevPresentationOffset;
+    private long mPrevPresentationDelta;
+    private final int[] mPrev = new int[FIELDS];
+    private final int[] mLeading = new int[FIELDS];
+    private final int[] mTrailing = new int[FIELDS];
+
+    /**
+     * Starts decoding {@code count} samples from the stream in [offset, offset + length).
+     */
+    public void reset(ByteBuffer buffer, int offset, int length, int count) {
+        mBuffer = buffer;
+        mPos = offset;
+        mEnd = offset + length;
+        mAccumulator = 0;
+        mAccumulatedBits = 0;
+        mRemaining = count;
+        mFirst = true;
+    }
+
+    /**
+     * Returns the number of samples left in the stream.
+     */
+    public int getRemaining() {
+        return mRemaining;
+    }
+
+    /**
+     * Decodes the next sample into {@code out}.
+     *
+     * @return false if the stream is exhausted.
+     * @throws IndexOutOfBoundsException if the stream is shorter than announced.
+     */
+    public boolean decode(PoseSample out) {
+        if (mRemaining == 0) {
+            return false;
+        }
+        if (mFirst) {
+            mPrevFrameId = (int) readBits(32);
+            mPrevFrameDelta = 0;
+            mPrevTimestamp = (readBits(32) << 32) | readBits(32);
+            mPrevTimestampDelta = 0;
+            mPrevPresentationOffset = (readBits(32) << 32) | readBits(32);
+            mPrevPresentationDelta = 0;
+        } else {
+            mPrevFrameDelta += readDeltaOfDelta();
+            mPrevFrameId += mPrevFrameDelta;
+            mPrevTimestampDelta += readDeltaOfDelta();
+            mPrevTimestamp += mPrevTimestampDelta;
+            mPrevPresentationDelta += readDeltaOfDelta();
+            mPrevPresentationOffset += mPrevPresentationDelta;
+        }
+        out.frameId = (int) mPrevFrameId;
+        out.timestampNs = mPrevTimestamp;
+        out.presentationTimeNs = mPrevTimestamp + mPrevPresentationOffset;
+
+        out.tx = Float.intBitsToFloat(readField(0));
+        out.ty = Float.intBitsToFloat(readField(1));
+        out.tz = Float.intBitsToFloat(readField(2));
+        out.qx = Float.intBitsToFloat(readField(3));
+        out.qy = Float.intBitsToFloat(readField(4));
+        out.qz = Float.intBitsToFloat(readField(5));
+        out.qw = Float.intBitsToFloat(readField(6));
+        out.fx = Float.intBitsToFloat(readField(7));
+        out.fy = Float.intBitsToFloat(readField(8));
+        out.cx = Float.intBitsToFloat(readField(9));
+        out.cy = Float.intBitsToFloat(readField(10));
+        out.width = readField(11);
+        out.height = readField(12);
+
+        mFirst = false;
+        mRemaining--;
+        return true;
+    }
+
+    private int readField(int field) {
+        if (mFirst) {
+            mPrev[field] = (int) readBits(32);
+            return mPrev[field];
+        }
+        if (readBits(1) == 0) {
+            return mPrev[field];
+        }
+        int xor;
+        if (readBits(1) == 0) {
+            int length = 32 - mLeading[field] - mTrailing[field];
+            xor = (int) readBits(length) << mTrailing[field];
+        } else {
+            int leading = (int) readBits(5);
+            int length = (int) readBits(5) + 1;
+            mLeading[field] = leading;
+            mTrailing[field] = 32 - leading - length;
+            xor = (int) readBits(length) << mTrailing[field];
+        }
+        mPrev[field] ^= xor;
+        return mPrev[field];
+    }
+
+    private long readDeltaOfDelta() {
+        long zigzag;
+        if (readBits(1) == 0) {
+            return 0;
+        } else if (readBits(1) == 0) {
+            zigzag = readBits(14);
+        } else if (readBits(1) == 0) {
+            zigzag = readBits(22);
+        } else if (readBits(1) == 0) {
+            zigzag = readBits(32);
+        } else {
+            zigzag = (readBits(32) << 32) | readBits(32);
+        }
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    // Reads n bits, most significant first.  n <= 32.
+    private long readBits(int n) {
+        while (mAccumulatedBits < n) {
+            if (mPos >= mEnd) {
+                throw new IndexOutOfBoundsException("Truncated pose stream");
+            }
+            mAccumulator = (mAccumulator << 8) | (mBuffer.get(mPos++) & 0xff);
+            mAccumulatedBits += 8;
+        }
+        mAccumulatedBits -= n;
+        return (mAccumulator >>> mAccumulatedBits) & ((1L << n) - 1);
+    }
+}
@@ -0,0 +1,193 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+/**
+ * Compresses a stream of pose samples, in the style of the Gorilla time series encoding
+ * (Pelkonen et al., "Gorilla: A Fast, Scalable, In-Memory Time Series Database", VLDB 2015).
+ * <p>
+ * Frame ids and timestamps are stored as delta-of-deltas, which is a single bit for a steady
+ * frame rate.  The presentation time is stored the same way, as its offset from the timestamp.
+ * Every float (and the image dimensions) is XORed with its value in the previous sample; only
+ * the bits between the leading and trailing zeros of the result are stored, and their position
+ * is reused from the previous value of the same field when it fits.  Consecutive poses differ
+ * only in their low mantissa bits, and intrinsics usually not at all.
+ * <p>
+ * The first sample after {@link #reset()} is stored verbatim.  The encoder writes into a
+ * buffer allocated up front, so encoding never allocates.  See {@link PoseStreamDecoder}.
+ */
+public final class PoseStreamEncoder {
+    /** Number of 32-bit fields XOR-coded per sample. */
+    static final int FIELDS = 13;
+    /** Upper bound for the encoded size of one sample. */
+    public static final int MAX_RECORD_BYTES = (3 * 68 + FIELDS * 44) / 8 + 1;
+
+    private final byte[] mBuffer;
+    private int mLength;
+    private long mAccumulator;
+    private int mAccumulatedBits;
+    private int mCount;
+
+    private long mPrevFrameId;
+    private long mPrevFrameDelta;
+    private long mPrevTimestamp;
+    private long mPrevTimestampDelta;
+    private long mPrevPresentationOffset;
+    private long mPrevPresentationDelta;
+    private final int[] mPrev = new int[FIELDS];
+    private final int[] mLeading = new int[FIELDS];
+    private final int[] mTrailing = new int[FIELDS];
+
+    /**
+     * @param maxRecords number of samples that have to fit between two calls to {@link #reset()}.
+     */
+    public PoseStreamEncoder(int maxRecords) {
+        mBuffer = new byte[maxRecords * MAX_RECORD_BYTES];
+    }
+
+    /**
+     * Discards the encoded data and all state, the next sample starts a new stream.
+     */
+    public void reset() {
+        mLength = 0;
+        mAccumulator = 0;
+        mAccumulatedBits = 0;
+        mCount = 0;
+    }
+
+    public void encode(PoseSample s) {
+        if (mCount == 0) {
+            writeBits(s.frameId, 32);
+            writeBits(s.timestampNs >>> 32, 32);
+            writeBits(s.timestampNs, 32);
+            mPrevFrameId = s.frameId;
+            mPrevFrameDelta = 0;
+            mPrevTimestamp = s.timestampNs;
+            mPrevTimestampDelta = 0;
+
+            long presentationOffset = s.presentationTimeNs - s.timestampNs;
+            writeBits(presentationOffset >>> 32, 32);
+            writeBits(presentationOffset, 32);
+            mPrevPresentationOffset = presentationOffset;
+            mPrevPresentationDelta = 0;
+        } else {
+            long frameDelta = s.frameId - mPrevFrameId;
+            writeDeltaOfDelta(frameDelta - mPrevFrameDelta);
+            mPrevFrameId = s.frameId;
+            mPrevFrameDelta = frameDelta;
+
+            long timestampDelta = s.timestampNs - mPrevTimestamp;
+            writeDeltaOfDelta(timestampDelta - mPrevTimestampDelta);
+            mPrevTimestamp = s.timestampNs;
+            mPrevTimestampDelta = timestampDelta;
+
+            long presentationOffset = s.presentationTimeNs - s.timestampNs;
+            long presentationDelta = presentationOffset - mPrevPresentationOffset;
+            writeDeltaOfDelta(presentationDelta - mPrevPresentationDelta);
+            mPrevPresentationOffset = presentationOffset;
+            mPrevPresentationDelta = presentationDelta;
+        }
+
+        writeField(0, Float.floatToRawIntBits(s.tx));
+        writeField(1, Float.floatToRawIntBits(s.ty));
+        writeField(2, Float.floatToRawIntBits(s.tz));
+        writeField(3, Float.floatToRawIntBits(s.qx));
+        writeField(4, Float.floatToRawIntBits(s.qy));
+        writeField(5, Float.floatToRawIntBits(s.qz));
+        writeField(6, Float.floatToRawIntBits(s.qw));
+        writeField(7, Float.floatToRawIntBits(s.fx));
+        writeField(8, Float.floatToRawIntBits(s.fy));
+        writeField(9, Float.floatToRawIntBits(s.cx));
+        writeField(10, Float.floatToRawIntBits(s.cy));
+        writeField(11, s.width);
+        writeField(12, s.height);
+        mCount++;
+    }
+
+    /**
+     * Pads the stream to a whole byte and returns its length.  No more samples may be encoded
+     * until the next {@link #reset()}.
+     */
+    public int finish() {
+        if (mAccumulatedBits > 0) {
+            mBuffer[mLength++] = (byte) (mAccumulator << (8 - mAccumulatedBits));
+            mAccumulatedBits = 0;
+        }
+        return mLength;
+    }
+
+    /**
+     * Returns the buffer holding the encoded stream, valid up to {@link #finish()}'s result.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Returns the number of samples encoded since the last {@link #reset()}.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    private void writeField(int field, int value) {
+        if (mCount == 0) {
+            writeBits(value, 32);
+            mPrev[field] = value;
+            mLeading[field] = -1;
+            return;
+        }
+        int xor = value ^ mPrev[field];
+        mPrev[field] = value;
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        int leading = Integer.numberOfLeadingZeros(xor);
+        int trailing = Integer.numberOfTrailingZeros(xor);
+        if (mLeading[field] >= 0 && leading >= mLeading[field]
+                && trailing >= mTrailing[field]) {
+            // Fits into the previous window.
+            writeBits(0b10, 2);
+            writeBits(xor >>> mTrailing[field], 32 - mLeading[field] - mTrailing[field]);
+        } else {
+            int length = 32 - leading - trailing;
+            writeBits(0b11, 2);
+            writeBits(leading, 5);
+            writeBits(length - 1, 5);
+            writeBits(xor >>> trailing, length);
+            mLeading[field] = leading;
+            mTrailing[field] = trailing;
+        }
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        long zigzag = (dod << 1) ^ (dod >> 63);
+        if (zigzag >>> 14 == 0) {
+            writeBits(0b10, 2);
+            writeBits(zigzag, 14);
+        } else if (zigzag >>> 22 == 0) {
+            writeBits(0b110, 3);
+            writeBits(zigzag, 22);
+        } else if (zigzag >>> 32 == 0) {
+            writeBits(0b1110, 4);
+            writeBits(zigzag, 32);
+        } else {
+            writeBits(0b1111, 4);
+            writeBits(zigzag >>> 32, 32);
+            writeBits(zigzag, 32);
+        }
+    }
+
+    // Appends the low n bits of value, most significant first.  n <= 32.
+    private void writeBits(long value, int n) {
+        mAccumulator = (mAccumulator << n) | (value & ((1L << n) - 1));
+        mAccumulatedBits += n;
+        while (mAccumulatedBits >= 8) {
+            mAccumulatedBits -= 8;
+            mBuffer[mLength++] = (byte) (mAccumulator >>> mAccumulatedBits);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.util.Arrays;
+
+/**
+ * Matches the presentation times in a pose log against the sample times of the video recorded
+ * with it.
+ * <p>
+ * The encoder takes the presentation time in nanoseconds and the muxer stores it in
+ * microseconds, so a pose belongs to the sample at {@code presentationTimeNs / 1000}.  Poses
+ * without a sample are frames the encoder dropped; samples without a pose should not exist.
+ */
+public final class PoseVideoAlignment {
+    /** Poses that were handed to the encoder. */
+    public final int presentedPoses;
+    /** Poses recorded while nothing was handed to the encoder. */
+    public final int unpresentedPoses;
+    public final int samples;
+    public final int matched;
+    /** Presented poses whose frame is missing from the video. */
+    public final int posesWithoutSample;
+    /** Video samples that no pose was presented at. */
+    public final int samplesWithoutPose;
+
+    private PoseVideoAlignment(int presentedPoses, int unpresentedPoses, int samples,
+                               int matched) {
+        this.presentedPoses = presentedPoses;
+        this.unpresentedPoses = unpresentedPoses;
+        this.samples = samples;
+        this.matched = matched;
+        posesWithoutSample = presentedPoses - matched;
+        samplesWithoutPose = samples - matched;
+    }
+
+    /**
+     * @param presentationTimesNs presentation times of all poses, in log order.
+     * @param sampleTimesUs sample times of the video track, in any order.  Sorted in place.
+     */
+    public static PoseVideoAlignment check(long[] presentationTimesNs, long[] sampleTimesUs) {
+        Arrays.sort(sampleTimesUs);
+        int presented = 0;
+        int unpresented = 0;
+        int matched = 0;
+        long previous = Long.MIN_VALUE;
+        for (long presentationTimeNs : presentationTimesNs) {
+            if (presentationTimeNs == PoseSample.NO_PRESENTATION_TIME) {
+                unpresented++;
+                continue;
+            }
+            presented++;
+            long sampleTimeUs = presentationTimeNs / 1000;
+            // Two poses presented within the same microsecond share a sample.
+            if (sampleTimeUs != previous && Arrays.binarySearch(sampleTimesUs, sampleTimeUs) >= 0) {
+                matched++;
+            }
+            previous = sampleTimeUs;
+        }
+        return new PoseVideoAlignment(presented, unpresented, sampleTimesUs.length, matched);
+    }
+
+    /**
+     * Returns the index of the pose presented at the given video sample time, or -1.  The
+     * presentation times have to increase through the log, apart from
+     * {@link PoseSample#NO_PRESENTATION_TIME} entries, which is how the recorder writes them.
+     */
+    public static int findPose(long[] presentationTimesNs, long sampleTimeUs) {
+        int lo = 0;
+        int hi = presentationTimesNs.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            // Step over poses without a presentation time, they carry no ordering.
+            int probe = mid;
+            while (probe <= hi && presentationTimesNs[probe] == PoseSample.NO_PRESENTATION_TIME) {
+                probe++;
+            }
+            if (probe > hi) {
+                hi = mid - 1;
+                continue;
+            }
+            long probeUs = presentationTimesNs[probe] / 1000;
+            if (probeUs < sampleTimeUs) {
+                lo = probe + 1;
+            } else if (probeUs > sampleTimeUs) {
+                hi = mid - 1;
+            } else {
+                return probe;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if every presented pose has its frame in the video and vice versa.
+     */
+    public boolean isExact() {
+        return posesWithoutSample == 0 && samplesWithoutPose == 0;
+    }
+
+    @Override
+    public String toString() {
+        return matched + "/" + presentedPoses + " presented poses matched " + samples
+                + " video samples, " + posesWithoutSample + " frames dropped by the encoder, "
+                + samplesWithoutPose + " samples without a pose, " + unpresentedPoses
+                + " poses not presented";
+    }
+}
@@ -0,0 +1,199 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background thread that syncs sidecar files to storage on request.
+ * <p>
+ * Writers {@link #register} a {@link Target} and then call {@link Registration#requestSync()}
+ * whenever they have flushed something worth keeping.  Requests that arrive while a sync is
+ * still running are merged into the next one, which is what turns a stream of small commits into
+ * a group commit.  The time every sync takes is collected in a {@link Stats} histogram.
+ */
+public class SidecarSyncer implements Runnable {
+    // Upper bound on how long a request may sit unnoticed if an unpark gets lost.
+    private static final long IDLE_WAIT_NS = 500 * 1000 * 1000L;
+
+    /**
+     * Something that can be synced from another thread, usually a {@link PoseLogWriter}.
+     */
+    public interface Target {
+        void force() throws IOException;
+    }
+
+    /**
+     * Handle of a registered target.
+     */
+    public final class Registration {
+        private final Target mTarget;
+        private final AtomicBoolean mPending = new AtomicBoolean();
+        private volatile IOException mError;
+
+        private Registration(Target target) {
+            mTarget = target;
+        }
+
+        /**
+         * Asks the syncer thread to sync the target soon.  Never blocks.
+         */
+        public void requestSync() {
+            if (mPending.compareAndSet(false, true)) {
+                LockSupport.unpark(mThread);
+            }
+        }
+
+        /**
+         * Syncs the target on the calling thread, still counted in the statistics.
+         */
+        public void syncNow() throws IOException {
+            mPending.set(false);
+            sync(this);
+            throwIfFailed();
+        }
+
+        /**
+         * Rethrows the last error the syncer thread ran into for this target.
+         */
+        public void throwIfFailed() throws IOException {
+            IOException error = mError;
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * Sync latencies.  Bucket {@code i} counts syncs that took less than {@code 2^i} ms, the
+     * last bucket everything slower.
+     */
+    public static final class Stats {
+        public static final int BUCKETS = 12;
+
+        private long mCount;
+        private long mTotalNs;
+        private long mMaxNs;
+        private final long[] mBuckets = new long[BUCKETS];
+
+        synchronized void record(long ns) {
+            mCount++;
+            mTotalNs += ns;
+            if (ns > mMaxNs) {
+                mMaxNs = ns;
+            }
+            long ms = ns / 1000000L;
+            int bucket = ms == 0 ? 0 : 64 - Long.numberOfLeadingZeros(ms);
+            mBuckets[Math.min(bucket, BUCKETS - 1)]++;
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized long getMaxNanos() {
+            return mMaxNs;
+        }
+
+        public synchronized long getMeanNanos() {
+            return mCount == 0 ? 0 : mTotalNs / mCount;
+        }
+
+        public synchronized long getBucket(int i) {
+            return mBuckets[i];
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("syncs=").append(mCount)
+                    .append(" mean=").append(getMeanNanos() / 1000).append("us")
+                    .append(" max=").append(mMaxNs / 1000).append("us [");
+            for (int i = 0; i < BUCKETS; i++) {
+                if (i > 0) {
+                    sb.append(' ');
+                }
+                sb.append(i == BUCKETS - 1 ? ">=" : "<").append(1 << Math.min(i, BUCKETS - 2))
+                        .append("ms:").append(mBuckets[i]);
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    private final CopyOnWriteArrayList<Registration> mRegistrations = new CopyOnWriteArrayList<>();
+    private final Stats mStats = new Stats();
+    private final Thread mThread;
+    private volatile boolean mStopping;
+
+    /**
+     * Starts the syncer thread.
+     */
+    public SidecarSyncer() {
+        mThread = new Thread(this, "SidecarSyncer");
+        mThread.start();
+    }
+
+    public Registration register(Target target) {
+        Registration registration = new Registration(target);
+        mRegistrations.add(registration);
+        return registration;
+    }
+
+    /**
+     * Removes the target, waiting for a sync of it that is currently running.  The target may be
+     * closed afterwards.
+     */
+    public void unregister(Registration registration) {
+        mRegistrations.remove(registration);
+        synchronized (registration) {
+            registration.mPending.set(false);
+        }
+    }
+
+    public Stats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Stops the thread once it has handled the outstanding requests.
+     */
+    public void stop() throws InterruptedException {
+        mStopping = true;
+        LockSupport.unpark(mThread);
+        mThread.join();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            boolean stopping = mStopping;
+            for (Registration registration : mRegistrations) {
+                if (registration.mPending.getAndSet(false)) {
+                    sync(registration);
+                }
+            }
+            if (stopping) {
+                return;
+            }
+            LockSupport.parkNanos(this, IDLE_WAIT_NS);
+        }
+    }
+
+    private void sync(Registration registration) {
+        synchronized (registration) {
+            // Unregistered while this thread was on its way here.
+            if (!mRegistrations.contains(registration)) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                registration.mTarget.force();
+            } catch (IOException e) {
+                registration.mError = e;
+                return;
+            }
+            mStats.record(System.nanoTime() - start);
+        }
+    }
+}
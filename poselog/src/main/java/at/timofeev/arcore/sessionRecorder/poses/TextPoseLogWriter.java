@@ -0,0 +1,97 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the legacy {@code poses-*.txt} format, see {@link PoseLogFormat#TEXT}.
+ * <p>
+ * Numbers are formatted by {@link NumberFormatter} straight into a reusable byte buffer, so
+ * writing a line doesn't create any Strings.  Floats come out with the shortest digits that
+ * round-trip, which matches {@link Float#toString(float)} for practically all poses.
+ */
+public class TextPoseLogWriter implements BufferedPoseLogWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // 16 numbers, 15 separators and the newline.
+    private static final int MAX_LINE_LENGTH = 3 * NumberFormatter.MAX_INT_LENGTH
+            + 11 * NumberFormatter.MAX_FLOAT_LENGTH + 2 * NumberFormatter.MAX_LONG_LENGTH + 16;
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mLength;
+    // Bytes handed to the stream so far.
+    private long mFlushed;
+
+    public TextPoseLogWriter(File file) throws IOException {
+        mStream = new FileOutputStream(file);
+        mChannel = mStream.getChannel();
+    }
+
+    @Override
+    public void write(PoseSample s) throws IOException {
+        if (BUFFER_SIZE - mLength < MAX_LINE_LENGTH) {
+            flushBuffer();
+        }
+        byte[] b = mBuffer;
+        int pos = NumberFormatter.appendInt(b, mLength, s.frameId);
+        pos = appendFloat(b, pos, s.tx);
+        pos = appendFloat(b, pos, s.ty);
+        pos = appendFloat(b, pos, s.tz);
+        pos = appendFloat(b, pos, s.qx);
+        pos = appendFloat(b, pos, s.qy);
+        pos = appendFloat(b, pos, s.qz);
+        pos = appendFloat(b, pos, s.qw);
+        pos = appendFloat(b, pos, s.fx);
+        pos = appendFloat(b, pos, s.fy);
+        b[pos++] = ' ';
+        pos = NumberFormatter.appendInt(b, pos, s.width);
+        b[pos++] = ' ';
+        pos = NumberFormatter.appendInt(b, pos, s.height);
+        pos = appendFloat(b, pos, s.cx);
+        pos = appendFloat(b, pos, s.cy);
+        b[pos++] = ' ';
+        pos = NumberFormatter.appendLong(b, pos, s.timestampNs);
+        b[pos++] = ' ';
+        pos = NumberFormatter.appendLong(b, pos, s.presentationTimeNs);
+        b[pos++] = '\n';
+        mLength = pos;
+    }
+
+    @Override
+    public long position() {
+        return mFlushed + mLength;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public void force() throws IOException {
+        mChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            mStream.close();
+        }
+    }
+
+    private static int appendFloat(byte[] b, int pos, float value) {
+        b[pos++] = ' ';
+        return NumberFormatter.appendFloat(b, pos, value);
+    }
+
+    private void flushBuffer() throws IOException {
+        mStream.write(mBuffer, 0, mLength);
+        mFlushed += mLength;
+        mLength = 0;
+    }
+}
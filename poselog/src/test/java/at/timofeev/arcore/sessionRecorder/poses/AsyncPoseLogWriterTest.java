@@ -0,0 +1,206 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncPoseLogWriterTest {
+    private static final int CAPACITY = 8;
+
+    /**
+     * Collects the frame ids it is given.  Its first write blocks until {@link #open()}, which
+     * holds the writer thread while the ring fills up.
+     */
+    private static final class GatedWriter implements PoseLogWriter {
+        final CountDownLatch mEntered = new CountDownLatch(1);
+        final CountDownLatch mGate = new CountDownLatch(1);
+        final List<Integer> mFrameIds = new ArrayList<>();
+        IOException mFailure;
+        volatile boolean mClosed;
+
+        @Override
+        public void write(PoseSample sample) throws IOException {
+            mEntered.countDown();
+            try {
+                mGate.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            synchronized (mFrameIds) {
+                mFrameIds.add(sample.frameId);
+            }
+        }
+
+        @Override
+        public void force() {
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+
+        void awaitEntered() throws InterruptedException {
+            assertTrue("writer thread never wrote", mEntered.await(10, TimeUnit.SECONDS));
+        }
+
+        void open() {
+            mGate.countDown();
+        }
+
+        List<Integer> getFrameIds() {
+            synchronized (mFrameIds) {
+                return new ArrayList<>(mFrameIds);
+            }
+        }
+    }
+
+    private static void write(AsyncPoseLogWriter writer, int first, int last) throws IOException {
+        PoseSample sample = new PoseSample();
+        for (int i = first; i <= last; i++) {
+            sample.frameId = i;
+            sample.tx = i;
+            writer.write(sample);
+        }
+    }
+
+    private static List<Integer> range(int first, int last) {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = first; i <= last; i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+
+    /**
+     * Writes frame 0, which the writer thread takes and then hangs on, and fills the ring with
+     * frames 1 to {@link #CAPACITY}.
+     */
+    private static AsyncPoseLogWriter fill(GatedWriter delegate,
+                                           AsyncPoseLogWriter.OverflowPolicy policy)
+            throws IOException, InterruptedException {
+        AsyncPoseLogWriter writer = new AsyncPoseLogWriter(delegate, CAPACITY, policy);
+        assertEquals(CAPACITY, writer.getCapacity());
+        write(writer, 0, 0);
+        delegate.awaitEntered();
+        write(writer, 1, CAPACITY);
+        assertEquals(CAPACITY, writer.getHighWaterMark());
+        assertEquals(0, writer.getDroppedCount());
+        assertEquals(0, writer.getBlockedCount());
+        return writer;
+    }
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() throws IOException {
+        int[][] capacities = {{2, 2}, {3, 4}, {8, 8}, {9, 16}, {256, 256}};
+        for (int[] capacity : capacities) {
+            GatedWriter delegate = new GatedWriter();
+            delegate.open();
+            AsyncPoseLogWriter writer = new AsyncPoseLogWriter(delegate, capacity[0],
+                    AsyncPoseLogWriter.OverflowPolicy.BLOCK);
+            assertEquals(capacity[1], writer.getCapacity());
+            writer.close();
+        }
+    }
+
+    @Test
+    public void dropNewestKeepsTheQueuedRecords() throws Exception {
+        GatedWriter delegate = new GatedWriter();
+        AsyncPoseLogWriter writer = fill(delegate, AsyncPoseLogWriter.OverflowPolicy.DROP_NEWEST);
+        write(writer, CAPACITY + 1, CAPACITY + 5);
+        assertEquals(5, writer.getDroppedCount());
+        assertEquals(CAPACITY, writer.getHighWaterMark());
+
+        delegate.open();
+        writer.close();
+        assertTrue(delegate.mClosed);
+        assertEquals(range(0, CAPACITY), delegate.getFrameIds());
+        assertEquals(CAPACITY + 1, writer.getWrittenCount());
+        assertEquals(0, writer.getBlockedCount());
+    }
+
+    @Test
+    public void dropOldestKeepsTheLatestRecords() throws Exception {
+        GatedWriter delegate = new GatedWriter();
+        AsyncPoseLogWriter writer = fill(delegate, AsyncPoseLogWriter.OverflowPolicy.DROP_OLDEST);
+        write(writer, CAPACITY + 1, CAPACITY + 5);
+        assertEquals(5, writer.getDroppedCount());
+        assertEquals(CAPACITY, writer.getHighWaterMark());
+
+        delegate.open();
+        writer.close();
+        List<Integer> expected = range(6, CAPACITY + 5);
+        expected.add(0, 0);
+        assertEquals(expected, delegate.getFrameIds());
+        assertEquals(CAPACITY + 1, writer.getWrittenCount());
+        assertEquals(0, writer.getBlockedCount());
+    }
+
+    @Test
+    public void blockLosesNothing() throws Exception {
+        final GatedWriter delegate = new GatedWriter();
+        AsyncPoseLogWriter writer = fill(delegate, AsyncPoseLogWriter.OverflowPolicy.BLOCK);
+        Thread opener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // open right away
+                }
+                delegate.open();
+            }
+        });
+        opener.start();
+        // The first of these has to wait for the opener.
+        write(writer, CAPACITY + 1, 1000);
+        assertTrue(writer.getBlockedCount() >= 1);
+        writer.close();
+        opener.join();
+
+        assertEquals(range(0, 1000), delegate.getFrameIds());
+        assertEquals(1001, writer.getWrittenCount());
+        assertEquals(0, writer.getDroppedCount());
+        assertTrue(writer.getHighWaterMark() <= CAPACITY);
+    }
+
+    @Test
+    public void writeErrorIsReported() throws Exception {
+        GatedWriter delegate = new GatedWriter();
+        delegate.mFailure = new IOException("disk full");
+        AsyncPoseLogWriter writer = new AsyncPoseLogWriter(delegate, CAPACITY,
+                AsyncPoseLogWriter.OverflowPolicy.BLOCK);
+        write(writer, 0, 0);
+        delegate.open();
+        try {
+            // Blocks until the error is there, at the latest when the ring is full.
+            for (int i = 1; i < 1000000; i++) {
+                write(writer, i, i);
+                Thread.sleep(1);
+            }
+            fail("The error was never reported");
+        } catch (IOException e) {
+            assertSame(delegate.mFailure, e);
+        }
+        try {
+            writer.close();
+            fail("The error was not reported by close()");
+        } catch (IOException e) {
+            assertSame(delegate.mFailure, e);
+        }
+        assertTrue(delegate.mClosed);
+        assertEquals(0, writer.getWrittenCount());
+    }
+}
@@ -0,0 +1,313 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FragmentedMp4WriterTest {
+    private static final long FRAME_US = 33333;
+    private static final int VIDEO_TRACK_ID = 1;
+    private static final int POSE_TRACK_ID = 2;
+    // trun sample flags of FragmentedMp4Writer.
+    private static final int SYNC_SAMPLE_FLAGS = 0x02000000;
+    private static final int NON_SYNC_SAMPLE_FLAGS = 0x01010000;
+
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1e, 1, 2, 3};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Returns the NAL units of a frame: a slice and an SEI, of varying sizes.  The bytes are
+     * never zero, so no start code or trailing zero appears by accident.
+     */
+    private static byte[][] nalUnits(int frame, boolean keyFrame) {
+        byte[] slice = new byte[40 + frame % 13];
+        Arrays.fill(slice, (byte) (0x10 + frame % 64));
+        slice[0] = (byte) (keyFrame ? 0x65 : 0x41);
+        byte[] sei = new byte[5 + frame % 3];
+        Arrays.fill(sei, (byte) 0x55);
+        sei[0] = 0x06;
+        return new byte[][] {slice, sei};
+    }
+
+    /**
+     * Returns the NAL units with a 4-byte start code before the first and 3-byte start codes
+     * before the others, as MediaCodec emits them.
+     */
+    private static ByteBuffer annexB(byte[]... nals) {
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        for (int i = 0; i < nals.length; i++) {
+            if (i == 0) {
+                buf.put((byte) 0);
+            }
+            buf.put(new byte[] {0, 0, 1});
+            buf.put(nals[i]);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static ByteBuffer lengthPrefixed(byte[]... nals) {
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        for (byte[] nal : nals) {
+            buf.putInt(nal.length);
+            buf.put(nal);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static PoseSample pose(int frame) {
+        PoseSample s = new PoseSample();
+        s.frameId = frame;
+        s.timestampNs = 1000000000L + frame * FRAME_US * 1000;
+        s.presentationTimeNs = frame * FRAME_US * 1000;
+        s.tx = frame * 0.01f;
+        s.ty = -frame * 0.02f;
+        s.tz = 1.5f;
+        s.qw = 1;
+        s.fx = 1500.5f;
+        s.fy = 1501.25f;
+        s.cx = 960.125f;
+        s.cy = 540.0625f;
+        s.width = 1920;
+        s.height = 1080;
+        return s;
+    }
+
+    /**
+     * Records {@code frames} frames with a key frame every {@code keyInterval} and a pose
+     * record per frame.
+     */
+    private static FragmentedMp4Writer record(File file, int frames, int keyInterval,
+                                              long fragmentUs, boolean annexB)
+            throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, fragmentUs,
+                DurabilityPolicy.NONE);
+        int video = annexB
+                ? writer.addVideoTrack(FragmentedMp4Writer.Codec.AVC, 1920, 1080,
+                        annexB(SPS), annexB(PPS))
+                : writer.addVideoTrack(FragmentedMp4Writer.Codec.AVC, 1920, 1080,
+                        annexB(SPS, PPS));
+        int poses = writer.addMetadataTrack(PoseMetadataFormat.MIME_TYPE);
+        writer.start();
+        ByteBuffer record = ByteBuffer.allocate(PoseMetadataFormat.RECORD_SIZE);
+        for (int i = 0; i < frames; i++) {
+            boolean keyFrame = i % keyInterval == 0;
+            byte[][] nals = nalUnits(i, keyFrame);
+            long ptsUs = i * FRAME_US;
+            writer.writeSample(video, annexB ? annexB(nals) : lengthPrefixed(nals), ptsUs,
+                    keyFrame);
+            PoseMetadataFormat.encode(record, 0, pose(i));
+            writer.writeSample(poses, record, ptsUs, true);
+        }
+        writer.close();
+        return writer;
+    }
+
+    private static void assertPoses(PoseArrays poses, int count) {
+        assertEquals(count, poses.size);
+        for (int i = 0; i < count; i++) {
+            PoseSample expected = pose(i);
+            assertEquals(expected.frameId, poses.frameId[i]);
+            assertEquals(expected.timestampNs, poses.timestampNs[i]);
+            assertEquals(expected.presentationTimeNs, poses.presentationTimeNs[i]);
+            assertEquals(Float.floatToRawIntBits(expected.tx),
+                    Float.floatToRawIntBits(poses.tx[i]));
+            assertEquals(Float.floatToRawIntBits(expected.ty),
+                    Float.floatToRawIntBits(poses.ty[i]));
+        }
+    }
+
+    /**
+     * Top-level boxes of a file as {offset, size, type}.
+     */
+    private static List<long[]> topLevelBoxes(File file) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        List<long[]> boxes = new ArrayList<>();
+        int p = 0;
+        while (p + 8 <= buf.limit()) {
+            int size = buf.getInt(p);
+            boxes.add(new long[] {p, size, buf.getInt(p + 4)});
+            p += size;
+        }
+        return boxes;
+    }
+
+    private static int fourCC(String type) {
+        return ByteBuffer.wrap(type.getBytes()).getInt();
+    }
+
+    /**
+     * Returns the contents of the first child box of the given type, or null.
+     */
+    private static ByteBuffer child(ByteBuffer box, String type) {
+        int p = box.position();
+        while (p + 8 <= box.limit()) {
+            int size = box.getInt(p);
+            if (box.getInt(p + 4) == fourCC(type)) {
+                ByteBuffer content = box.duplicate();
+                content.limit(p + size).position(p + 8);
+                return content;
+            }
+            p += size;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the trun sample flags of a track in every fragment, one array per fragment.
+     * Fragments without samples of the track get an empty array.
+     */
+    private static List<int[]> sampleFlags(File file, int trackId) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        List<int[]> fragments = new ArrayList<>();
+        for (long[] box : topLevelBoxes(file)) {
+            if (box[2] != fourCC("moof")) {
+                continue;
+            }
+            ByteBuffer moof = buf.duplicate();
+            moof.limit((int) (box[0] + box[1])).position((int) box[0] + 8);
+            int[] flags = new int[0];
+            ByteBuffer traf;
+            while ((traf = child(moof, "traf")) != null) {
+                moof.position(traf.limit());
+                ByteBuffer tfhd = child(traf, "tfhd");
+                if (tfhd.getInt(tfhd.position() + 4) != trackId) {
+                    continue;
+                }
+                // Full box header, sample count, data offset, then duration, size, flags.
+                ByteBuffer trun = child(traf, "trun");
+                flags = new int[trun.getInt(trun.position() + 4)];
+                for (int i = 0; i < flags.length; i++) {
+                    flags[i] = trun.getInt(trun.position() + 12 + 12 * i + 8);
+                }
+            }
+            fragments.add(flags);
+        }
+        return fragments;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        File file = mFolder.newFile("video.mp4");
+        FragmentedMp4Writer writer = record(file, 100, 30, 500000, true);
+        assertEquals(file.length(), writer.getBytesWritten());
+        assertTrue(Mp4PoseTrackReader.hasPoseTrack(file));
+        assertPoses(Mp4PoseTrackReader.read(file), 100);
+    }
+
+    @Test
+    public void annexBAndLengthPrefixedInputGiveTheSameFile() throws IOException {
+        File annexB = mFolder.newFile("annexb.mp4");
+        File lengthPrefixed = mFolder.newFile("lengthprefixed.mp4");
+        record(annexB, 60, 30, 500000, true);
+        record(lengthPrefixed, 60, 30, 500000, false);
+        assertArrayEquals(Files.readAllBytes(lengthPrefixed.toPath()),
+                Files.readAllBytes(annexB.toPath()));
+
+        // The first sample of the first mdat is the key frame with 4-byte lengths.
+        byte[] bytes = Files.readAllBytes(annexB.toPath());
+        for (long[] box : topLevelBoxes(annexB)) {
+            if (box[2] == fourCC("mdat")) {
+                ByteBuffer expected = lengthPrefixed(nalUnits(0, true));
+                byte[] first = Arrays.copyOfRange(bytes, (int) box[0] + 8,
+                        (int) box[0] + 8 + expected.remaining());
+                assertArrayEquals(Arrays.copyOf(expected.array(), expected.limit()), first);
+                break;
+            }
+        }
+    }
+
+    @Test
+    public void fragmentsStartAtKeyFrames() throws IOException {
+        File file = mFolder.newFile("video.mp4");
+        // Fragments are due after half a second, but key frames only come every second.
+        FragmentedMp4Writer writer = record(file, 100, 30, 500000, true);
+        assertEquals(4, writer.getFragmentCount());
+
+        List<int[]> video = sampleFlags(file, VIDEO_TRACK_ID);
+        List<int[]> poses = sampleFlags(file, POSE_TRACK_ID);
+        assertEquals(4, video.size());
+        int[] expectedCounts = {30, 30, 30, 10};
+        for (int f = 0; f < video.size(); f++) {
+            int[] flags = video.get(f);
+            assertEquals("fragment " + f, expectedCounts[f], flags.length);
+            assertEquals("fragment " + f, SYNC_SAMPLE_FLAGS, flags[0]);
+            for (int i = 1; i < flags.length; i++) {
+                assertEquals("fragment " + f + " sample " + i, NON_SYNC_SAMPLE_FLAGS, flags[i]);
+            }
+            // The pose record of the frame that starts a fragment goes into that fragment.
+            assertEquals("fragment " + f, expectedCounts[f], poses.get(f).length);
+        }
+    }
+
+    @Test
+    public void shortFragmentDurationCutsAtEveryKeyFrame() throws IOException {
+        File file = mFolder.newFile("video.mp4");
+        FragmentedMp4Writer writer = record(file, 25, 5, 1, true);
+        assertEquals(5, writer.getFragmentCount());
+        for (int[] flags : sampleFlags(file, VIDEO_TRACK_ID)) {
+            assertEquals(5, flags.length);
+            assertEquals(SYNC_SAMPLE_FLAGS, flags[0]);
+        }
+        assertPoses(Mp4PoseTrackReader.read(file), 25);
+    }
+
+    @Test
+    public void truncatedFileKeepsCompleteFragments() throws IOException {
+        File file = mFolder.newFile("video.mp4");
+        record(file, 100, 30, 500000, true);
+        long length = file.length();
+        List<long[]> boxes = topLevelBoxes(file);
+        long[] lastMoof = boxes.get(boxes.size() - 2);
+        assertEquals(fourCC("moof"), lastMoof[2]);
+
+        // A tail cut of a few bytes loses the whole last fragment, frames 90 to 99, even though
+        // most of its pose records are still there.
+        truncate(file, length - 10);
+        assertPoses(Mp4PoseTrackReader.read(file), 90);
+
+        // Likewise if the cut goes through the last mdat header or the last moof.
+        truncate(file, lastMoof[0] + lastMoof[1] + 4);
+        assertPoses(Mp4PoseTrackReader.read(file), 90);
+        truncate(file, lastMoof[0] + lastMoof[1]);
+        assertPoses(Mp4PoseTrackReader.read(file), 90);
+        truncate(file, lastMoof[0] + 20);
+        assertPoses(Mp4PoseTrackReader.read(file), 90);
+        truncate(file, lastMoof[0]);
+        assertPoses(Mp4PoseTrackReader.read(file), 90);
+    }
+
+    @Test
+    public void fileWithoutFragmentsHasNoPoses() throws IOException {
+        File file = mFolder.newFile("video.mp4");
+        record(file, 100, 30, 500000, true);
+        List<long[]> boxes = topLevelBoxes(file);
+        long[] moov = boxes.get(1);
+        assertEquals(fourCC("moov"), moov[2]);
+        truncate(file, moov[0] + moov[1] + 10);
+        assertPoses(Mp4PoseTrackReader.read(file), 0);
+    }
+}
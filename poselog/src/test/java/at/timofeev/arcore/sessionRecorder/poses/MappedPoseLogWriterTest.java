@@ -0,0 +1,215 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedPoseLogWriterTest {
+    private static final int POSES = 400;
+    // Poses whose intrinsics differ from the previous pose's, so an intrinsics record precedes
+    // each of them.
+    private static final int[] INTRINSICS_CHANGES = {100, 101, 250};
+    private static final int RECORDS = POSES + INTRINSICS_CHANGES.length;
+    private static final int STRIDE = BinaryPoseFormat.recordSize(BinaryPoseFormat.FLAG_CRC32);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mClosed;
+    // What a crash right after the last write would leave behind.
+    private File mUnclosed;
+
+    private static PoseSample pose(int i) {
+        PoseSample s = new PoseSample();
+        s.frameId = i;
+        s.timestampNs = 1000000000L + i * 33333333L;
+        s.presentationTimeNs = s.timestampNs + 1000;
+        s.tx = i * 0.01f;
+        s.ty = -i * 0.02f;
+        s.tz = 1.5f;
+        s.qw = 1f;
+        int changes = 0;
+        for (int change : INTRINSICS_CHANGES) {
+            if (i >= change) {
+                changes++;
+            }
+        }
+        s.fx = 1500f + changes;
+        s.fy = 1500f + changes;
+        s.cx = 960f;
+        s.cy = 540f;
+        s.width = 1920;
+        s.height = 1080;
+        return s;
+    }
+
+    /**
+     * Returns the number of records up to and including the given pose's.
+     */
+    private static int recordsThrough(int pose) {
+        int records = pose + 1;
+        for (int change : INTRINSICS_CHANGES) {
+            if (pose >= change) {
+                records++;
+            }
+        }
+        return records;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mClosed = mFolder.newFile("poses.bin");
+        mUnclosed = mFolder.newFile("unclosed.bin");
+        MappedPoseLogWriter writer = new MappedPoseLogWriter(mClosed);
+        try {
+            for (int i = 0; i < POSES; i++) {
+                writer.write(pose(i));
+            }
+            writer.force();
+            Files.copy(mClosed.toPath(), mUnclosed.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            writer.close();
+        }
+        // Still the whole preallocated extent.
+        assertTrue(mUnclosed.length() > BinaryPoseFormat.HEADER_SIZE + RECORDS * STRIDE);
+    }
+
+    private static BinaryPoseFormat.Header readHeader(File file) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(BinaryPoseFormat.HEADER_SIZE);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.readFully(buf.array());
+        }
+        return BinaryPoseFormat.readHeader(buf);
+    }
+
+    private static void overwrite(File file, long offset, byte[] bytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(offset);
+            raf.write(bytes);
+        }
+    }
+
+    private static long recordOffset(int record) {
+        return BinaryPoseFormat.HEADER_SIZE + (long) record * STRIDE;
+    }
+
+    private static void assertRejected(File file) throws IOException {
+        try {
+            new PoseLogReader(file).close();
+            fail(file + " was read before recovery");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("recover"));
+        }
+    }
+
+    /**
+     * Checks that the file holds exactly the first {@code poses} poses, with their intrinsics.
+     */
+    private static void assertPoses(File file, int poses) throws IOException {
+        PoseLogReader reader = new PoseLogReader(file);
+        try {
+            PoseLogReader.Cursor cursor = reader.all();
+            PoseSample out = new PoseSample();
+            for (int i = 0; i < poses; i++) {
+                assertTrue("pose " + i, cursor.next(out));
+                PoseSample expected = pose(i);
+                assertEquals(expected.frameId, out.frameId);
+                assertEquals(expected.timestampNs, out.timestampNs);
+                assertEquals(expected.presentationTimeNs, out.presentationTimeNs);
+                assertEquals(expected.tx, out.tx, 0f);
+                assertEquals(expected.fx, out.fx, 0f);
+                assertEquals(expected.width, out.width);
+            }
+            assertFalse(cursor.next(out));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void assertRecovered(File file, int poses) throws IOException {
+        int records = poses == 0 ? 0 : recordsThrough(poses - 1);
+        assertEquals(records, MappedPoseLogWriter.recover(file));
+        assertEquals(recordOffset(records), file.length());
+
+        BinaryPoseFormat.Header header = readHeader(file);
+        assertFalse(header.hasFlag(BinaryPoseFormat.FLAG_INCOMPLETE));
+        assertTrue(header.hasFlag(BinaryPoseFormat.FLAG_CRC32));
+        assertEquals(records - poses, header.intrinsicsChanges);
+        assertPoses(file, poses);
+    }
+
+    @Test
+    public void closedFileNeedsNoRecovery() throws IOException {
+        assertEquals(recordOffset(RECORDS), mClosed.length());
+        assertEquals(INTRINSICS_CHANGES.length, readHeader(mClosed).intrinsicsChanges);
+        assertEquals(-1, MappedPoseLogWriter.recover(mClosed));
+        assertEquals(recordOffset(RECORDS), mClosed.length());
+        assertPoses(mClosed, POSES);
+    }
+
+    @Test
+    public void unclosedFileKeepsEveryRecord() throws IOException {
+        BinaryPoseFormat.Header header = readHeader(mUnclosed);
+        assertTrue(header.hasFlag(BinaryPoseFormat.FLAG_INCOMPLETE));
+        assertEquals(-1, header.intrinsicsChanges);
+        assertRejected(mUnclosed);
+
+        assertRecovered(mUnclosed, POSES);
+        // Recovering again changes nothing.
+        assertEquals(-1, MappedPoseLogWriter.recover(mUnclosed));
+    }
+
+    @Test
+    public void corruptLastRecordIsCut() throws IOException {
+        overwrite(mUnclosed, recordOffset(RECORDS - 1) + 20, new byte[] {0x5a});
+        assertRejected(mUnclosed);
+        assertRecovered(mUnclosed, POSES - 1);
+    }
+
+    @Test
+    public void zeroedTailIsCut() throws IOException {
+        // Pages that never made it to storage read back as zeros.
+        int lost = 30;
+        overwrite(mUnclosed, recordOffset(RECORDS - lost), new byte[lost * STRIDE]);
+        assertRejected(mUnclosed);
+        assertRecovered(mUnclosed, POSES - lost);
+    }
+
+    @Test
+    public void corruptMiddleRecordEndsTheLog() throws IOException {
+        // The pose after the second intrinsics change; everything behind it goes too.
+        int pose = 180;
+        overwrite(mUnclosed, recordOffset(recordsThrough(pose) - 1) + 4, new byte[] {0, 0});
+        assertRejected(mUnclosed);
+        assertRecovered(mUnclosed, pose);
+    }
+
+    @Test
+    public void corruptIntrinsicsRecordEndsTheLog() throws IOException {
+        // The intrinsics record before pose 250 is only counted if it survives.
+        overwrite(mUnclosed, recordOffset(recordsThrough(249)) + 16, new byte[] {1, 2, 3});
+        assertRejected(mUnclosed);
+        assertRecovered(mUnclosed, 250);
+        assertEquals(2, readHeader(mUnclosed).intrinsicsChanges);
+    }
+
+    @Test
+    public void corruptFirstRecordLeavesAnEmptyLog() throws IOException {
+        overwrite(mUnclosed, recordOffset(0) + STRIDE - 1, new byte[] {0x11});
+        assertRecovered(mUnclosed, 0);
+    }
+}
@@ -0,0 +1,98 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NumberFormatterTest {
+    private final byte[] mBuffer = new byte[64];
+
+    private String format(float value) {
+        int end = NumberFormatter.appendFloat(mBuffer, 0, value);
+        assertTrue(end <= NumberFormatter.MAX_FLOAT_LENGTH);
+        return new String(mBuffer, 0, end, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Checks that the digits parse back to the same float, and are no longer than those of
+     * Float.toString(), which isn't always the shortest.
+     */
+    private void assertRoundTrip(float value) {
+        String s = format(value);
+        assertEquals(s, Float.floatToIntBits(value), Float.floatToIntBits(Float.parseFloat(s)));
+        assertTrue(s + " longer than " + Float.toString(value),
+                s.length() <= Float.toString(value).length());
+    }
+
+    @Test
+    public void specialValues() {
+        assertEquals("0.0", format(0f));
+        assertEquals("-0.0", format(-0f));
+        assertEquals("NaN", format(Float.NaN));
+        assertEquals("Infinity", format(Float.POSITIVE_INFINITY));
+        assertEquals("-Infinity", format(Float.NEGATIVE_INFINITY));
+        assertEquals("1.0", format(1f));
+        assertEquals("0.1", format(0.1f));
+        assertEquals("1.0E10", format(1e10f));
+        assertEquals("1.0E-5", format(1e-5f));
+    }
+
+    @Test
+    public void extremesRoundTrip() {
+        float[] values = {Float.MIN_VALUE, -Float.MIN_VALUE, Float.MIN_NORMAL, Float.MAX_VALUE,
+                -Float.MAX_VALUE, Math.nextUp(1f), Math.nextDown(1f), 1e-3f, 9.999999e-4f,
+                1e7f, 9999999f, 16777216f, 0.33333334f};
+        for (float value : values) {
+            assertRoundTrip(value);
+        }
+    }
+
+    @Test
+    public void randomBitPatternsRoundTrip() {
+        Random random = new Random(42);
+        for (int i = 0; i < 1000000; i++) {
+            float value = Float.intBitsToFloat(random.nextInt());
+            if (!Float.isNaN(value)) {
+                assertRoundTrip(value);
+            }
+        }
+    }
+
+    @Test
+    public void poseLikeValuesRoundTrip() {
+        // Translations in meters, quaternion components and intrinsics in pixels.
+        Random random = new Random(7);
+        for (int i = 0; i < 1000000; i++) {
+            float value = (float) (random.nextGaussian() * (i % 3 == 0 ? 1000 : 2));
+            assertRoundTrip(value);
+        }
+    }
+
+    @Test
+    public void integers() {
+        int[] ints = {0, 1, -1, 9, 10, 99, 100, 123456789, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int value : ints) {
+            int end = NumberFormatter.appendInt(mBuffer, 0, value);
+            assertEquals(Integer.toString(value),
+                    new String(mBuffer, 0, end, StandardCharsets.US_ASCII));
+        }
+        long[] longs = {0, -1, 1234567890123456789L, Long.MAX_VALUE, Long.MIN_VALUE,
+                PoseSample.NO_PRESENTATION_TIME};
+        for (long value : longs) {
+            int end = NumberFormatter.appendLong(mBuffer, 0, value);
+            assertEquals(Long.toString(value),
+                    new String(mBuffer, 0, end, StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void appendsAtPosition() {
+        mBuffer[0] = 'x';
+        int end = NumberFormatter.appendFloat(mBuffer, 1, 2.5f);
+        assertEquals("x2.5", new String(mBuffer, 0, end, StandardCharsets.US_ASCII));
+    }
+}
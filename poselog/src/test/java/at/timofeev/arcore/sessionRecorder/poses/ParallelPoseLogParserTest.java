@@ -0,0 +1,239 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelPoseLogParserTest {
+    // Enough for many of the smallest chunks in every format, even the compressed one.
+    private static final int POSES = 30000;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static ForkJoinPool sPool;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void startPool() {
+        sPool = new ForkJoinPool(4);
+    }
+
+    @AfterClass
+    public static void stopPool() {
+        sPool.shutdown();
+    }
+
+    private static ParallelPoseLogParser parser() {
+        return new ParallelPoseLogParser(sPool, CHUNK_SIZE);
+    }
+
+    private File writeLog(PoseLogFormat format, int poses) throws IOException {
+        File log = mFolder.newFile("poses-" + format + "." + format.getExtension());
+        BufferedPoseLogWriter writer = format.createWriter(log);
+        try {
+            Random random = new Random(7);
+            PoseSample s = new PoseSample();
+            s.qw = 1f;
+            s.fx = 1500f;
+            s.fy = 1500f;
+            s.cx = 960f;
+            s.cy = 540f;
+            s.width = 1920;
+            s.height = 1080;
+            for (int i = 0; i < poses; i++) {
+                s.frameId = i;
+                s.timestampNs = 1000000000L + i * 33333333L + random.nextInt(100000);
+                s.presentationTimeNs = i % 10 == 9 ? PoseSample.NO_PRESENTATION_TIME
+                        : s.timestampNs + random.nextInt(5000);
+                s.tx += (float) random.nextGaussian() * 0.01f;
+                s.ty += (float) random.nextGaussian() * 0.01f;
+                s.tz += (float) random.nextGaussian() * 0.01f;
+                s.qx = random.nextFloat();
+                // Intrinsics changes scattered over the chunks, some on consecutive poses.
+                if (i % 2999 == 1 || i % 2999 == 2) {
+                    s.fx = 1400f + random.nextFloat() * 200f;
+                    s.cx = 900f + random.nextInt(100);
+                }
+                writer.write(s);
+            }
+        } finally {
+            writer.close();
+        }
+        return log;
+    }
+
+    private static void assertSame(String message, PoseSample expected, PoseSample actual) {
+        assertEquals(message, expected.frameId, actual.frameId);
+        assertEquals(message, expected.timestampNs, actual.timestampNs);
+        assertEquals(message, expected.presentationTimeNs, actual.presentationTimeNs);
+        float[] e = {expected.tx, expected.ty, expected.tz, expected.qx, expected.qy,
+                expected.qz, expected.qw, expected.fx, expected.fy, expected.cx, expected.cy};
+        float[] a = {actual.tx, actual.ty, actual.tz, actual.qx, actual.qy, actual.qz,
+                actual.qw, actual.fx, actual.fy, actual.cx, actual.cy};
+        for (int i = 0; i < e.length; i++) {
+            assertEquals(message + " field " + i, Float.floatToRawIntBits(e[i]),
+                    Float.floatToRawIntBits(a[i]));
+        }
+        assertEquals(message, expected.width, actual.width);
+        assertEquals(message, expected.height, actual.height);
+    }
+
+    /**
+     * Parses {@code parsed} in parallel and checks it against {@code sequential} read with
+     * {@link PoseLogReader}.
+     */
+    private static void assertAgrees(File parsed, File sequential, int expectedPoses)
+            throws IOException {
+        PoseArrays arrays = parser().parse(parsed);
+        assertEquals(expectedPoses, arrays.size);
+        PoseLogReader reader = new PoseLogReader(sequential);
+        try {
+            PoseLogReader.Cursor cursor = reader.all();
+            PoseSample expected = new PoseSample();
+            PoseSample actual = new PoseSample();
+            for (int i = 0; i < arrays.size; i++) {
+                assertTrue("pose " + i, cursor.next(expected));
+                arrays.get(i, actual);
+                assertSame("pose " + i, expected, actual);
+            }
+            assertFalse(cursor.next(expected));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void assertAgrees(PoseLogFormat format) throws IOException {
+        File log = writeLog(format, POSES);
+        assertTrue(log.length() > 4 * CHUNK_SIZE);
+        assertAgrees(log, log, POSES);
+
+        // Every record is visited exactly once.
+        final AtomicIntegerArray visits = new AtomicIntegerArray(POSES);
+        int count = parser().parse(log, new ParallelPoseLogParser.Visitor() {
+            @Override
+            public void visit(int index, PoseSample sample) {
+                assertEquals(index, sample.frameId);
+                visits.incrementAndGet(index);
+            }
+        });
+        assertEquals(POSES, count);
+        for (int i = 0; i < POSES; i++) {
+            assertEquals("visits of " + i, 1, visits.get(i));
+        }
+    }
+
+    @Test
+    public void text() throws IOException {
+        assertAgrees(PoseLogFormat.TEXT);
+    }
+
+    @Test
+    public void binary() throws IOException {
+        assertAgrees(PoseLogFormat.BINARY);
+    }
+
+    @Test
+    public void mapped() throws IOException {
+        assertAgrees(PoseLogFormat.BINARY_MAPPED);
+    }
+
+    @Test
+    public void compressed() throws IOException {
+        assertAgrees(PoseLogFormat.COMPRESSED);
+    }
+
+    @Test
+    public void smallLogsAndEmptyLogs() throws IOException {
+        for (PoseLogFormat format : PoseLogFormat.values()) {
+            File log = writeLog(format, 3);
+            assertAgrees(log, log, 3);
+            log = mFolder.newFile("empty-" + format + "." + format.getExtension());
+            format.createWriter(log).close();
+            assertAgrees(log, log, 0);
+        }
+        assertEquals(0, parser().parse(mFolder.newFile("empty.txt")).size);
+    }
+
+    @Test
+    public void tornTextLineIsDropped() throws IOException {
+        File log = writeLog(PoseLogFormat.TEXT, POSES);
+        try (OutputStream out = new FileOutputStream(log, true)) {
+            out.write("30000 0.125 -0.5".getBytes("US-ASCII"));
+        }
+        assertAgrees(log, log, POSES);
+    }
+
+    @Test
+    public void windowsLineEnds() throws IOException {
+        File log = writeLog(PoseLogFormat.TEXT, 5000);
+        String text = new String(Files.readAllBytes(log.toPath()), "US-ASCII");
+        try (OutputStream out = new FileOutputStream(log)) {
+            out.write(text.replace("\n", "\r\n").getBytes("US-ASCII"));
+        }
+        assertAgrees(log, log, 5000);
+    }
+
+    @Test
+    public void tornCompressedBlockIsDropped() throws IOException {
+        File log = writeLog(PoseLogFormat.COMPRESSED, POSES);
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+        // The last block goes as a whole.
+        int lastBlock = (POSES - 1) / CompressedPoseFormat.BLOCK_RECORDS;
+        assertAgrees(log, log, lastBlock * CompressedPoseFormat.BLOCK_RECORDS);
+    }
+
+    @Test
+    public void unclosedMappedLogEndsAtItsLastRecord() throws IOException {
+        // The parser reads a log that was never closed as it is, the reader only after recovery.
+        File unclosed = mFolder.newFile("unclosed.bin");
+        File recovered = mFolder.newFile("recovered.bin");
+        MappedPoseLogWriter writer = new MappedPoseLogWriter(recovered);
+        try {
+            PoseSample s = new PoseSample();
+            for (int i = 0; i < 20000; i++) {
+                s.frameId = i;
+                s.timestampNs = i * 1000L;
+                s.fx = i < 15000 ? 1000f : 1100f;
+                writer.write(s);
+            }
+            writer.force();
+            Files.copy(recovered.toPath(), unclosed.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            writer.close();
+        }
+        Files.copy(unclosed.toPath(), recovered.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        MappedPoseLogWriter.recover(recovered);
+        assertAgrees(unclosed, recovered, 20000);
+
+        // A torn record in the middle ends the log there, too.
+        long stride = BinaryPoseFormat.recordSize(BinaryPoseFormat.FLAG_CRC32);
+        try (RandomAccessFile raf = new RandomAccessFile(unclosed, "rw")) {
+            raf.seek(BinaryPoseFormat.HEADER_SIZE + 12345 * stride + 3);
+            raf.write(0x7f);
+        }
+        Files.copy(unclosed.toPath(), recovered.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        MappedPoseLogWriter.recover(recovered);
+        assertAgrees(unclosed, recovered, 12345);
+    }
+}
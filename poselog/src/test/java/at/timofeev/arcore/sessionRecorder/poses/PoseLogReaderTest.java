@@ -0,0 +1,345 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PoseLogReaderTest {
+    // Several compressed blocks, and index entries that fall into the middle of them.
+    private static final int POSES = CompressedPoseFormat.BLOCK_RECORDS * 3 + 77;
+    private static final int INTERVAL = 100;
+    private static final long FIRST_TIMESTAMP = 5000000000L;
+    private static final long FRAME_NS = 33333333L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Frame ids and timestamps leave gaps, so that range bounds can fall between records.
+     */
+    private static PoseSample pose(int i) {
+        PoseSample s = new PoseSample();
+        s.frameId = 2 * i + 10;
+        s.timestampNs = FIRST_TIMESTAMP + i * FRAME_NS;
+        s.presentationTimeNs = s.timestampNs + 2000;
+        s.tx = i * 0.001f;
+        s.ty = 0.25f;
+        s.tz = -i * 0.002f;
+        s.qw = 1f;
+        // The intrinsics change once, in the middle of the log.
+        s.fx = i < POSES / 2 ? 1500.5f : 1490.25f;
+        s.fy = s.fx;
+        s.cx = 960f;
+        s.cy = 540f;
+        s.width = 1920;
+        s.height = 1080;
+        return s;
+    }
+
+    private File writeLog(PoseLogFormat format, File indexFile) throws IOException {
+        File log = mFolder.newFile("poses-" + format + (indexFile != null ? "-indexed" : "")
+                + "." + format.getExtension());
+        BufferedPoseLogWriter writer = format.createWriter(log);
+        if (indexFile != null) {
+            writer = new IndexedPoseLogWriter(writer, indexFile, INTERVAL);
+        }
+        try {
+            for (int i = 0; i < POSES; i++) {
+                writer.write(pose(i));
+            }
+        } finally {
+            writer.close();
+        }
+        return log;
+    }
+
+    private static void assertCursor(String message, PoseLogReader.Cursor cursor, int first,
+                                     int last) throws IOException {
+        PoseSample out = new PoseSample();
+        for (int i = first; i <= last; i++) {
+            assertTrue(message + ": pose " + i, cursor.next(out));
+            PoseSample expected = pose(i);
+            assertEquals(message, expected.frameId, out.frameId);
+            assertEquals(message, expected.timestampNs, out.timestampNs);
+            assertEquals(message, expected.presentationTimeNs, out.presentationTimeNs);
+            assertEquals(message, expected.tx, out.tx, 0f);
+            assertEquals(message, expected.tz, out.tz, 0f);
+            assertEquals(message, expected.fx, out.fx, 0f);
+            assertEquals(message, expected.width, out.width);
+        }
+        assertFalse(message + ": past pose " + last, cursor.next(out));
+        // Stays exhausted.
+        assertFalse(message, cursor.next(out));
+    }
+
+    /**
+     * Returns the first pose with a key not less than {@code key}.
+     */
+    private static int ceilPose(long key, boolean byTimestamp) {
+        for (int i = 0; i < POSES; i++) {
+            PoseSample s = pose(i);
+            if ((byTimestamp ? s.timestampNs : s.frameId) >= key) {
+                return i;
+            }
+        }
+        return POSES;
+    }
+
+    /**
+     * Returns the last pose with a key not greater than {@code key}.
+     */
+    private static int floorPose(long key, boolean byTimestamp) {
+        for (int i = POSES - 1; i >= 0; i--) {
+            PoseSample s = pose(i);
+            if ((byTimestamp ? s.timestampNs : s.frameId) <= key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void assertRanges(String message, PoseLogReader reader) throws IOException {
+        int firstId = pose(0).frameId;
+        int lastId = pose(POSES - 1).frameId;
+        int[][] frameRanges = {
+                {firstId, lastId},
+                {Integer.MIN_VALUE, Integer.MAX_VALUE},
+                {firstId, firstId},
+                {lastId, lastId},
+                // Within one index interval, on and between records.
+                {pose(20).frameId, pose(30).frameId},
+                {pose(20).frameId + 1, pose(30).frameId - 1},
+                // Starting exactly at, just before and just after an index entry.
+                {pose(INTERVAL).frameId, pose(INTERVAL * 3 + 5).frameId},
+                {pose(INTERVAL - 1).frameId, pose(INTERVAL + 1).frameId},
+                {pose(INTERVAL + 1).frameId, pose(INTERVAL * 2).frameId},
+                // Across the intrinsics change and the compressed blocks.
+                {pose(POSES / 2 - 3).frameId, pose(POSES / 2 + 3).frameId},
+                {pose(CompressedPoseFormat.BLOCK_RECORDS - 1).frameId,
+                        pose(CompressedPoseFormat.BLOCK_RECORDS * 2).frameId},
+                // Running past the end, or entirely outside the log.
+                {pose(POSES - 10).frameId, lastId + 1000},
+                {firstId - 100, firstId - 1},
+                {lastId + 1, lastId + 100},
+                // Between two records, and backwards.
+                {pose(40).frameId + 1, pose(40).frameId + 1},
+                {pose(50).frameId, pose(40).frameId},
+        };
+        for (int[] range : frameRanges) {
+            String rangeMessage = message + " frames " + Arrays.toString(range);
+            assertCursor(rangeMessage, reader.rangeByFrameId(range[0], range[1]),
+                    ceilPose(range[0], false), floorPose(range[1], false));
+        }
+
+        long firstNs = pose(0).timestampNs;
+        long lastNs = pose(POSES - 1).timestampNs;
+        long[][] timeRanges = {
+                {firstNs, lastNs},
+                {Long.MIN_VALUE, Long.MAX_VALUE},
+                {pose(INTERVAL * 2).timestampNs, pose(INTERVAL * 2).timestampNs},
+                {pose(INTERVAL * 2).timestampNs - 1, pose(INTERVAL * 2).timestampNs + 1},
+                {pose(INTERVAL * 2 - 1).timestampNs + 1, pose(INTERVAL * 5).timestampNs - 1},
+                {pose(POSES / 2).timestampNs, lastNs + FRAME_NS},
+                {0, firstNs - 1},
+                {lastNs + 1, Long.MAX_VALUE},
+                {pose(7).timestampNs + 1, pose(8).timestampNs - 1},
+        };
+        for (long[] range : timeRanges) {
+            String rangeMessage = message + " times " + Arrays.toString(range);
+            assertCursor(rangeMessage, reader.rangeByTimestamp(range[0], range[1]),
+                    ceilPose(range[0], true), floorPose(range[1], true));
+        }
+    }
+
+    private void assertRangesOf(PoseLogFormat format) throws IOException {
+        File indexFile = mFolder.newFile("poses-" + format + ".idx");
+        File[] logs = {writeLog(format, null), writeLog(format, indexFile)};
+        PoseLogIndex index = PoseLogIndex.read(indexFile);
+        assertEquals((POSES + INTERVAL - 1) / INTERVAL, index.size());
+
+        PoseLogReader plain = new PoseLogReader(logs[0]);
+        PoseLogReader indexed = new PoseLogReader(logs[1], index);
+        try {
+            assertTrue(plain.hasTimestamps());
+            assertCursor(format + " all", plain.all(), 0, POSES - 1);
+            assertCursor(format + " indexed all", indexed.all(), 0, POSES - 1);
+            assertRanges(format.toString(), plain);
+            assertRanges(format + " indexed", indexed);
+
+            // Several cursors of one reader are independent.
+            PoseLogReader.Cursor a = indexed.rangeByFrameId(pose(10).frameId, Integer.MAX_VALUE);
+            PoseLogReader.Cursor b = indexed.rangeByFrameId(pose(1000).frameId, Integer.MAX_VALUE);
+            PoseSample out = new PoseSample();
+            for (int i = 0; i < 5; i++) {
+                assertTrue(a.next(out));
+                assertEquals(pose(10 + i).frameId, out.frameId);
+                assertTrue(b.next(out));
+                assertEquals(pose(1000 + i).frameId, out.frameId);
+            }
+        } finally {
+            plain.close();
+            indexed.close();
+        }
+    }
+
+    @Test
+    public void textRanges() throws IOException {
+        assertRangesOf(PoseLogFormat.TEXT);
+    }
+
+    @Test
+    public void binaryRanges() throws IOException {
+        assertRangesOf(PoseLogFormat.BINARY);
+    }
+
+    @Test
+    public void mappedRanges() throws IOException {
+        assertRangesOf(PoseLogFormat.BINARY_MAPPED);
+    }
+
+    @Test
+    public void compressedRanges() throws IOException {
+        assertRangesOf(PoseLogFormat.COMPRESSED);
+    }
+
+    @Test
+    public void indexEntries() throws IOException {
+        File indexFile = mFolder.newFile("poses.idx");
+        File log = writeLog(PoseLogFormat.BINARY, indexFile);
+        PoseLogIndex index = PoseLogIndex.read(indexFile);
+        assertEquals(INTERVAL, index.getInterval());
+        int entries = (POSES + INTERVAL - 1) / INTERVAL;
+        assertEquals(entries, index.size());
+        for (int e = 0; e < entries; e++) {
+            PoseSample s = pose(e * INTERVAL);
+            assertEquals(s.frameId, index.getFrameId(e));
+            assertEquals(s.timestampNs, index.getTimestamp(e));
+        }
+        // The intrinsics record in the middle shifts the offsets after it by one record.
+        int stride = BinaryPoseFormat.RECORD_SIZE;
+        assertEquals(BinaryPoseFormat.HEADER_SIZE, index.getOffset(0));
+        assertEquals(BinaryPoseFormat.HEADER_SIZE + INTERVAL * stride, index.getOffset(1));
+        assertEquals(BinaryPoseFormat.HEADER_SIZE + ((entries - 1) * INTERVAL + 1) * stride,
+                index.getOffset(entries - 1));
+        assertEquals(log.length() - (POSES - (entries - 1) * INTERVAL) * stride,
+                index.getOffset(entries - 1));
+
+        // Before, on, between and after the entries.
+        assertEquals(-1, index.floorFrameId(Integer.MIN_VALUE));
+        assertEquals(-1, index.floorFrameId(pose(0).frameId - 1));
+        for (int e = 0; e < entries; e++) {
+            int frameId = index.getFrameId(e);
+            long timestamp = index.getTimestamp(e);
+            assertEquals(e, index.floorFrameId(frameId));
+            assertEquals(e, index.floorFrameId(frameId + 1));
+            assertEquals(e - 1, index.floorFrameId(frameId - 1));
+            assertEquals(e, index.floorTimestamp(timestamp));
+            assertEquals(e, index.floorTimestamp(timestamp + FRAME_NS / 2));
+            assertEquals(e - 1, index.floorTimestamp(timestamp - 1));
+        }
+        assertEquals(entries - 1, index.floorFrameId(Integer.MAX_VALUE));
+        assertEquals(-1, index.floorTimestamp(Long.MIN_VALUE));
+        assertEquals(entries - 1, index.floorTimestamp(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void tornLastIndexEntryIsIgnored() throws IOException {
+        File indexFile = mFolder.newFile("poses.idx");
+        writeLog(PoseLogFormat.BINARY, indexFile);
+        int entries = PoseLogIndex.read(indexFile).size();
+        try (OutputStream out = new FileOutputStream(indexFile, true)) {
+            out.write(new byte[PoseLogIndex.ENTRY_SIZE - 1]);
+        }
+        assertEquals(entries, PoseLogIndex.read(indexFile).size());
+    }
+
+    @Test
+    public void emptyIndexStartsAtTheBeginning() throws IOException {
+        File indexFile = mFolder.newFile("poses.idx");
+        File log = mFolder.newFile("poses.pz");
+        new IndexedPoseLogWriter(PoseLogFormat.COMPRESSED.createWriter(log), indexFile, INTERVAL)
+                .close();
+        PoseLogIndex index = PoseLogIndex.read(indexFile);
+        assertEquals(0, index.size());
+        assertEquals(-1, index.floorFrameId(0));
+        PoseLogReader reader = new PoseLogReader(log, index);
+        try {
+            assertFalse(reader.rangeByFrameId(0, 100).next(new PoseSample()));
+            assertFalse(reader.all().next(new PoseSample()));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void textLogWithoutTimestamps() throws IOException {
+        File log = mFolder.newFile("poses.txt");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            lines.add((i * 3) + " 0.5 1 -1 0 0 0 1 1500 1500 1920 1080 960 540");
+        }
+        try (OutputStream out = new FileOutputStream(log)) {
+            for (String line : lines) {
+                out.write((line + "\n").getBytes("US-ASCII"));
+            }
+        }
+        PoseLogReader reader = new PoseLogReader(log);
+        try {
+            assertFalse(reader.hasTimestamps());
+            PoseLogReader.Cursor cursor = reader.rangeByFrameId(4, 9);
+            PoseSample out = new PoseSample();
+            assertTrue(cursor.next(out));
+            assertEquals(6, out.frameId);
+            assertTrue(cursor.next(out));
+            assertEquals(9, out.frameId);
+            assertFalse(cursor.next(out));
+            try {
+                reader.rangeByTimestamp(0, Long.MAX_VALUE);
+                fail("Timestamp range of a log without timestamps");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void overlongTextLineIsAnError() throws IOException {
+        File log = mFolder.newFile("poses.txt");
+        try (OutputStream out = new FileOutputStream(log)) {
+            out.write("0 0 0 0 0 0 0 1 1500 1500 1920 1080 960 540 1 1\n".getBytes("US-ASCII"));
+            byte[] junk = new byte[256 * 1024];
+            Arrays.fill(junk, (byte) '7');
+            out.write(junk);
+            out.write('\n');
+        }
+        PoseLogReader reader = new PoseLogReader(log);
+        try {
+            PoseLogReader.Cursor cursor = reader.all();
+            PoseSample out = new PoseSample();
+            assertTrue(cursor.next(out));
+            try {
+                cursor.next(out);
+                fail("Read a line longer than the buffer");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("exceeds"));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
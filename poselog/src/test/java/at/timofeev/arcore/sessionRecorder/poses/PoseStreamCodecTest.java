@@ -0,0 +1,218 @@
+package at.timofeev.arcore.sessionRecorder.poses;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PoseStreamCodecTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static PoseSample pose(int frameId, long timestampNs, float value) {
+        PoseSample s = new PoseSample();
+        s.frameId = frameId;
+        s.timestampNs = timestampNs;
+        s.presentationTimeNs = timestampNs + 5000;
+        s.tx = value;
+        s.ty = -value;
+        s.tz = value * 0.5f;
+        s.qx = 0.1f;
+        s.qy = 0.2f;
+        s.qz = 0.3f;
+        s.qw = 0.9f;
+        s.fx = 1500.5f;
+        s.fy = 1501.25f;
+        s.cx = 960.125f;
+        s.cy = 540.0625f;
+        s.width = 1920;
+        s.height = 1080;
+        return s;
+    }
+
+    private static void assertSamePose(String message, PoseSample expected, PoseSample actual) {
+        assertEquals(message, expected.frameId, actual.frameId);
+        assertEquals(message, expected.timestampNs, actual.timestampNs);
+        assertEquals(message, expected.presentationTimeNs, actual.presentationTimeNs);
+        float[] e = {expected.tx, expected.ty, expected.tz, expected.qx, expected.qy,
+                expected.qz, expected.qw, expected.fx, expected.fy, expected.cx, expected.cy};
+        float[] a = {actual.tx, actual.ty, actual.tz, actual.qx, actual.qy, actual.qz,
+                actual.qw, actual.fx, actual.fy, actual.cx, actual.cy};
+        for (int i = 0; i < e.length; i++) {
+            assertEquals(message + " field " + i, Float.floatToRawIntBits(e[i]),
+                    Float.floatToRawIntBits(a[i]));
+        }
+        assertEquals(message, expected.width, actual.width);
+        assertEquals(message, expected.height, actual.height);
+    }
+
+    private static void assertRoundTrip(List<PoseSample> samples) {
+        PoseStreamEncoder encoder = new PoseStreamEncoder(samples.size());
+        for (PoseSample s : samples) {
+            encoder.encode(s);
+        }
+        assertEquals(samples.size(), encoder.getCount());
+        int length = encoder.finish();
+        assertTrue(length <= samples.size() * PoseStreamEncoder.MAX_RECORD_BYTES);
+
+        PoseStreamDecoder decoder = new PoseStreamDecoder();
+        decoder.reset(ByteBuffer.wrap(encoder.getBuffer()), 0, length, samples.size());
+        PoseSample out = new PoseSample();
+        for (int i = 0; i < samples.size(); i++) {
+            assertTrue(decoder.decode(out));
+            assertSamePose("sample " + i, samples.get(i), out);
+        }
+        assertEquals(0, decoder.getRemaining());
+        assertFalse(decoder.decode(out));
+    }
+
+    @Test
+    public void steadyStream() {
+        List<PoseSample> samples = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            samples.add(pose(i, 1000000000L + i * 33333333L, i * 0.01f));
+        }
+        assertRoundTrip(samples);
+    }
+
+    @Test
+    public void frameIdGapsAndNegativeDeltas() {
+        // Delta-of-deltas in every size class: 0, 14, 22, 32 and 64 bits, both signs.
+        int[] frameIds = {0, 1, 2, 5, 6, 4, 100, 101, 20000, 3, 3, 2000000, -7,
+                Integer.MAX_VALUE, Integer.MIN_VALUE, 0};
+        long[] timestamps = {0, 33, 66, 166, 200, 100, 1L << 20, (1L << 20) + 1, 1L << 40,
+                5, 5, 1L << 62, -1L << 62, Long.MAX_VALUE / 2, -12345, 0};
+        List<PoseSample> samples = new ArrayList<>();
+        for (int i = 0; i < frameIds.length; i++) {
+            PoseSample s = pose(frameIds[i], timestamps[i], i);
+            // Frames that didn't go to the encoder in between.
+            s.presentationTimeNs = i % 3 == 0 ? PoseSample.NO_PRESENTATION_TIME
+                    : timestamps[i] + i * 1000;
+            samples.add(s);
+        }
+        assertRoundTrip(samples);
+    }
+
+    @Test
+    public void identicalConsecutiveFloats() {
+        // Every field repeats, so each is the single control bit '0'.
+        List<PoseSample> samples = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            samples.add(pose(i, i * 33L, 1.5f));
+        }
+        assertRoundTrip(samples);
+
+        // Once the deltas are steady, 3 delta-of-delta bits and 13 field bits per sample.
+        int bits = encodedLength(samples.subList(0, 50)) * 8
+                - encodedLength(samples.subList(0, 2)) * 8;
+        assertTrue(bits + " bits", Math.abs(bits - 48 * 16) < 8);
+    }
+
+    private static int encodedLength(List<PoseSample> samples) {
+        PoseStreamEncoder encoder = new PoseStreamEncoder(samples.size());
+        for (PoseSample s : samples) {
+            encoder.encode(s);
+        }
+        return encoder.finish();
+    }
+
+    @Test
+    public void leadingZeroRunsOf31() {
+        // XORs of 1 (31 leading zeros, a one-bit window), and of the sign bit (31 trailing).
+        List<PoseSample> samples = new ArrayList<>();
+        float value = 1f;
+        for (int i = 0; i < 20; i++) {
+            PoseSample s = pose(i, i * 33L, value);
+            s.qx = Float.intBitsToFloat(Float.floatToRawIntBits(0.1f) ^ (i & 1));
+            s.qy = i % 2 == 0 ? 0.5f : -0.5f;
+            // Alternates between reusing the window and needing a new one.
+            s.fx = Float.intBitsToFloat(Float.floatToRawIntBits(1500f) ^ (i % 4 == 0 ? 1 : 0x3));
+            s.width = 1920 ^ (i & 1);
+            samples.add(s);
+            value = Math.nextUp(value);
+        }
+        assertRoundTrip(samples);
+    }
+
+    @Test
+    public void specialFloats() {
+        float[] values = {0f, -0f, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                Float.MIN_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, 0f};
+        List<PoseSample> samples = new ArrayList<>();
+        for (int i = 0; i < values.length; i++) {
+            samples.add(pose(i, i, values[i]));
+        }
+        assertRoundTrip(samples);
+    }
+
+    @Test
+    public void randomWalk() {
+        Random random = new Random(3);
+        List<PoseSample> samples = new ArrayList<>();
+        PoseSample s = pose(0, 0, 0);
+        for (int i = 0; i < 2000; i++) {
+            s.frameId += 1 + (random.nextInt(20) == 0 ? random.nextInt(5) : 0);
+            s.timestampNs += 33000000L + random.nextInt(200000) - 100000;
+            s.presentationTimeNs = random.nextInt(10) == 0 ? PoseSample.NO_PRESENTATION_TIME
+                    : s.timestampNs + random.nextInt(1000);
+            s.tx += (float) random.nextGaussian() * 0.01f;
+            s.ty += (float) random.nextGaussian() * 0.01f;
+            s.tz += (float) random.nextGaussian() * 0.01f;
+            s.qx = random.nextFloat();
+            s.qw = random.nextFloat();
+            if (random.nextInt(100) == 0) {
+                s.fx = random.nextFloat() * 2000;
+                s.width = random.nextInt(4000);
+            }
+            PoseSample copy = new PoseSample();
+            copy.set(s);
+            samples.add(copy);
+        }
+        assertRoundTrip(samples);
+    }
+
+    @Test
+    public void blockClosedEarlyByFlush() throws IOException {
+        File file = mFolder.newFile("poses.pz");
+        List<PoseSample> samples = new ArrayList<>();
+        CompressedPoseLogWriter writer = new CompressedPoseLogWriter(file);
+        int total = CompressedPoseFormat.BLOCK_RECORDS * 2 + 100;
+        for (int i = 0; i < total; i++) {
+            PoseSample s = pose(i, 1000L + i * 33333333L, i * 0.001f);
+            writer.write(s);
+            samples.add(s);
+            // Short blocks, including one of a single record; the next starts verbatim again.
+            if (i == 10 || i == 11 || i == 700) {
+                writer.flush();
+            }
+        }
+        writer.flush();
+        // Flushing with nothing pending must not write an empty block.
+        writer.flush();
+        writer.close();
+
+        PoseLogReader reader = new PoseLogReader(file);
+        try {
+            assertTrue(reader.isCompressed());
+            PoseLogReader.Cursor cursor = reader.all();
+            PoseSample out = new PoseSample();
+            for (int i = 0; i < total; i++) {
+                assertTrue("sample " + i, cursor.next(out));
+                assertSamePose("sample " + i, samples.get(i), out);
+            }
+            assertFalse(cursor.next(out));
+        } finally {
+            reader.close();
+        }
+    }
+}